@@ -0,0 +1,455 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * XMODEM/YMODEM style block transfer from the MldpBluetoothService to a host MCU behind the module.
+ *
+ * Sends 1024 byte blocks (128 bytes for a short final block) with CRC-16/XMODEM. In YMODEM mode a block 0 with the
+ * file name and size comes first and an empty block 0 ends the batch. With a window of 1 this is standard YMODEM; a
+ * larger window sends blocks ahead of the ACKs and goes back to the oldest unacknowledged block on a NAK or timeout,
+ * which avoids waiting a connection interval or more for every ACK. An empty file is sent as just the header and EOT.
+ */
+public class MldpBlockTransfer {
+
+    private final static String TAG = MldpBlockTransfer.class.getSimpleName();                     //Class name for logging messages on the ADB
+
+    private static final byte SOH = 0x01;                                                           //Start of 128 byte block
+    private static final byte STX = 0x02;                                                           //Start of 1024 byte block
+    private static final byte EOT = 0x04;
+    private static final byte ACK = 0x06;
+    private static final byte NAK = 0x15;
+    private static final byte CAN = 0x18;
+    private static final byte CRC_REQUEST = 'C';                                                    //Receiver asks for CRC mode
+    private static final byte PAD = 0x1A;                                                           //Fills the last block
+
+    private static final int SHORT_BLOCK_SIZE = 128;
+    private static final int BLOCK_SIZE = 1024;
+    private static final long START_TIME = 60000;                                                   //Milliseconds to wait for the receiver to start
+    private static final long BLOCK_TIME = 10000;                                                   //Milliseconds to wait for an ACK
+    private static final long PROGRESS_TIME = 250;                                                  //Milliseconds between progress reports
+    private static final int MAX_RETRIES = 10;                                                      //NAKs or timeouts in a row before giving up
+
+    private enum State {WAIT_START, WAIT_HEADER_ACK, WAIT_DATA_START, SENDING, WAIT_EOT_ACK, WAIT_END_START, WAIT_END_ACK, DONE}
+
+    // Where blocks are written and the progress is reported, the MldpBluetoothService outside of tests
+    interface Output {
+        void write(byte[] data);
+        void onProgress(long sent, long size, double rate);
+        void onFinished(int status, long sent, long size, double rate);
+    }
+
+    private final Output output;
+    private final FileChannel channel;
+    private final Closeable source;
+    private final String fileName;
+    private final boolean ymodem;                                                                   //False for plain XMODEM with no block 0
+    private final int window;
+    private final long size;
+    private final int blockCount;
+    private final Handler handler;                                                                  //All events are handled on the main thread
+
+    private volatile State state = State.WAIT_START;                                                //Read by the service on other threads
+    private volatile boolean paused;
+    private int baseBlock, nextBlock;                                                               //Oldest unacknowledged block and next block to send, counting from 1
+    private final LinkedList<Long> sendTimes = new LinkedList<Long>();                              //When each unacknowledged block was sent
+    private int retries;
+    private byte lastByte;
+    private long startTime, lastProgressTime;
+    private long blocksSent, naks, timeouts, ackLatencyTotal, ackLatencyMax, acks;
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Constructor
+    public MldpBlockTransfer(final MldpBluetoothService bleService, FileChannel channel, Closeable source, String fileName, boolean ymodem, int window) throws IOException {
+        this(new Output() {
+            @Override
+            public void write(byte[] data) {
+                bleService.writeMLDP(data);
+            }
+
+            @Override
+            public void onProgress(long sent, long size, double rate) {
+                bleService.onFileSendProgress(sent, size, rate);
+            }
+
+            @Override
+            public void onFinished(int status, long sent, long size, double rate) {
+                bleService.onFileSendFinished(status, sent, size, rate);
+            }
+        }, new Handler(Looper.getMainLooper()), channel, source, fileName, ymodem, window);
+    }
+
+    MldpBlockTransfer(Output output, Handler handler, FileChannel channel, Closeable source, String fileName, boolean ymodem, int window) throws IOException {
+        this.output = output;
+        this.handler = handler;
+        this.channel = channel;
+        this.source = source;
+        this.fileName = fileName != null ? fileName : "file";
+        this.ymodem = ymodem;
+        this.window = Math.max(1, Math.min(127, window));
+        size = channel.size();
+        blockCount = (int) ((size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Wait for the receiver to ask for the first block
+    public void start() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                begin();
+            }
+        });
+    }
+
+    void begin() {
+        startTime = SystemClock.elapsedRealtime();
+        baseBlock = nextBlock = 1;
+        state = State.WAIT_START;
+        handler.postDelayed(timeout, START_TIME);
+    }
+
+    public void pause() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                paused = true;                                                                      //Blocks in flight are still acknowledged
+            }
+        });
+    }
+
+    public void resume() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                paused = false;
+                if (state == State.SENDING) {
+                    fillWindow();
+                }
+            }
+        });
+    }
+
+    // Abort the transfer and tell the receiver
+    public void cancel() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (state != State.DONE) {
+                    output.write(new byte[] {CAN, CAN, CAN});
+                    finish(MldpFileSender.STATUS_CANCELLED);
+                }
+            }
+        });
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    public boolean isFinished() {
+        return state == State.DONE;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called by the MldpBluetoothService with data received while the transfer is running
+    void onDataReceived(byte[] data) {
+        final byte[] copy = data.clone();
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (byte b : copy) {
+                    onByte(b);
+                }
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Handle one byte from the receiver
+    void onByte(byte b) {
+        final boolean cancelled = b == CAN && lastByte == CAN;                                      //Two CAN in a row aborts
+        lastByte = b;
+        if (state == State.DONE) {
+            return;
+        }
+        if (cancelled) {
+            Log.w(TAG, "Transfer cancelled by the receiver");
+            finish(MldpFileSender.STATUS_ERROR);
+            return;
+        }
+        switch (state) {
+            case WAIT_START:
+                if (b == CRC_REQUEST) {
+                    retries = 0;
+                    if (ymodem) {
+                        sendHeader(fileName + '\0' + size + '\0');                                  //Block 0 has the name and size
+                        state = State.WAIT_HEADER_ACK;
+                    }
+                    else {
+                        startData();
+                    }
+                }
+                break;
+            case WAIT_HEADER_ACK:
+                if (b == ACK) {
+                    retries = 0;
+                    state = State.WAIT_DATA_START;                                                  //Receiver sends another C before the data
+                    restartTimeout(BLOCK_TIME);
+                }
+                else if (b == NAK) {
+                    retry();
+                }
+                break;
+            case WAIT_DATA_START:
+                if (b == CRC_REQUEST) {
+                    startData();
+                }
+                break;
+            case SENDING:
+                if (b == ACK && baseBlock < nextBlock) {                                            //Oldest block received
+                    long latency = SystemClock.elapsedRealtime() - sendTimes.removeFirst();
+                    ackLatencyTotal += latency;
+                    ackLatencyMax = Math.max(ackLatencyMax, latency);
+                    acks++;
+                    baseBlock++;
+                    retries = 0;
+                    reportProgress();
+                    if (baseBlock > blockCount) {                                                   //All data received
+                        sendEot();
+                    }
+                    else {
+                        fillWindow();
+                    }
+                }
+                else if (b == NAK) {
+                    naks++;
+                    retry();
+                }
+                break;
+            case WAIT_EOT_ACK:
+                if (b == ACK) {
+                    retries = 0;
+                    if (ymodem) {
+                        state = State.WAIT_END_START;                                               //Receiver asks for the next file in the batch
+                        restartTimeout(BLOCK_TIME);
+                    }
+                    else {
+                        finish(MldpFileSender.STATUS_COMPLETE);
+                    }
+                }
+                else if (b == NAK) {                                                                //Receivers usually NAK the first EOT
+                    output.write(new byte[] {EOT});
+                    restartTimeout(BLOCK_TIME);
+                }
+                break;
+            case WAIT_END_START:
+                if (b == CRC_REQUEST) {
+                    sendHeader("");                                                                 //Empty block 0 ends the batch
+                    state = State.WAIT_END_ACK;
+                }
+                break;
+            case WAIT_END_ACK:
+                if (b == ACK) {
+                    finish(MldpFileSender.STATUS_COMPLETE);
+                }
+                else if (b == NAK) {
+                    retry();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start on the data blocks, with nothing to wait for if the file is empty
+    private void startData() {
+        if (blockCount == 0) {
+            sendEot();
+        }
+        else {
+            state = State.SENDING;
+            fillWindow();
+        }
+    }
+
+    private void sendEot() {
+        output.write(new byte[] {EOT});
+        state = State.WAIT_EOT_ACK;
+        restartTimeout(BLOCK_TIME);
+    }
+
+    // Send blocks until the window is full
+    private void fillWindow() {
+        try {
+            while (!paused && nextBlock <= blockCount && nextBlock - baseBlock < window) {
+                output.write(readBlock(nextBlock));
+                sendTimes.add(SystemClock.elapsedRealtime());
+                nextBlock++;
+                blocksSent++;
+            }
+            restartTimeout(BLOCK_TIME);
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Unable to read file: " + e.getMessage());
+            output.write(new byte[] {CAN, CAN, CAN});
+            finish(MldpFileSender.STATUS_ERROR);
+        }
+    }
+
+    // NAK or time out so send again from the oldest unacknowledged block or resend the header
+    private void retry() {
+        if (++retries > MAX_RETRIES) {
+            Log.w(TAG, "Too many retries");
+            output.write(new byte[] {CAN, CAN, CAN});
+            finish(MldpFileSender.STATUS_ERROR);
+            return;
+        }
+        switch (state) {
+            case SENDING:
+                nextBlock = baseBlock;                                                              //Go back to the oldest block
+                sendTimes.clear();
+                fillWindow();
+                break;
+            case WAIT_HEADER_ACK:
+                sendHeader(fileName + '\0' + size + '\0');
+                break;
+            case WAIT_EOT_ACK:
+                output.write(new byte[] {EOT});
+                restartTimeout(BLOCK_TIME);
+                break;
+            case WAIT_END_ACK:
+                sendHeader("");
+                break;
+            default:
+                restartTimeout(BLOCK_TIME);
+                break;
+        }
+    }
+
+    private void sendHeader(String contents) {
+        byte[] data = new byte[SHORT_BLOCK_SIZE];                                                   //Header is padded with zeros, not PAD
+        byte[] text = contents.getBytes();
+        System.arraycopy(text, 0, data, 0, Math.min(text.length, data.length));
+        output.write(buildBlock(0, data));
+        restartTimeout(BLOCK_TIME);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Read a block of the file and add the block header and CRC
+    private byte[] readBlock(int block) throws IOException {
+        final long offset = (long) (block - 1) * BLOCK_SIZE;
+        final int remaining = (int) Math.min(BLOCK_SIZE, size - offset);
+        byte[] data = new byte[remaining <= SHORT_BLOCK_SIZE ? SHORT_BLOCK_SIZE : BLOCK_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, remaining);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("File is shorter than expected");
+            }
+        }
+        Arrays.fill(data, remaining, data.length, PAD);
+        return buildBlock(block, data);
+    }
+
+    private static byte[] buildBlock(int block, byte[] data) {
+        byte[] packet = new byte[data.length + 5];
+        packet[0] = data.length == SHORT_BLOCK_SIZE ? SOH : STX;
+        packet[1] = (byte) block;
+        packet[2] = (byte) ~block;
+        System.arraycopy(data, 0, packet, 3, data.length);
+        int crc = MldpFrameTransport.crc16(0, data, 0, data.length);                                //CRC-16/XMODEM starts at 0
+        packet[data.length + 3] = (byte) (crc >> 8);
+        packet[data.length + 4] = (byte) crc;
+        return packet;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Timer for the state waiting on the receiver
+    private void restartTimeout(long time) {
+        handler.removeCallbacks(timeout);
+        handler.postDelayed(timeout, time);
+    }
+
+    private final Runnable timeout = new Runnable() {
+        @Override
+        public void run() {
+            if (state == State.DONE) {
+                return;
+            }
+            timeouts++;
+            if (state == State.WAIT_START) {
+                Log.w(TAG, "Receiver did not start");
+                finish(MldpFileSender.STATUS_ERROR);
+            }
+            else {
+                retry();
+            }
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Bytes acknowledged by the receiver
+    private long getBytesAcknowledged() {
+        return Math.min(size, (long) (baseBlock - 1) * BLOCK_SIZE);
+    }
+
+    private double getRate() {
+        long elapsed = SystemClock.elapsedRealtime() - startTime;
+        return elapsed > 0 ? getBytesAcknowledged() * 1000.0 / elapsed : 0;
+    }
+
+    private void reportProgress() {
+        long now = SystemClock.elapsedRealtime();
+        if (now - lastProgressTime >= PROGRESS_TIME) {
+            lastProgressTime = now;
+            output.onProgress(getBytesAcknowledged(), size, getRate());
+        }
+    }
+
+    private void finish(int status) {
+        handler.removeCallbacks(timeout);
+        state = State.DONE;
+        try {
+            source.close();
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Unable to close file: " + e.getMessage());
+        }
+        Log.i(TAG, toString());
+        output.onFinished(status, getBytesAcknowledged(), size, getRate());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: window %d, blocks sent %d of %d, NAKs %d, timeouts %d, ACK latency avg %.0f ms max %d ms, %.0f bytes/s",
+                ymodem ? "YMODEM" : "XMODEM", window, blocksSent, blockCount, naks, timeouts, acks > 0 ? (double) ackLatencyTotal / acks : 0, ackLatencyMax, getRate());
+    }
+}
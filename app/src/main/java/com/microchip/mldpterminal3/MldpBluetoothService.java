@@ -31,10 +31,24 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 import java.util.LinkedList;
+import java.util.Locale;
 import java.util.Queue;
 import java.util.UUID;
 
@@ -51,16 +65,56 @@ public class MldpBluetoothService extends Service {
     public static final String INTENT_EXTRA_SERVICE_ADDRESS = "BLE_SERVICE_DEVICE_ADDRESS";
     public static final String INTENT_EXTRA_SERVICE_NAME = "BLE_SERVICE_DEVICE_NAME";
     public static final String INTENT_EXTRA_SERVICE_DATA = "BLE_SERVICE_DATA";
+    public static final String INTENT_EXTRA_PROVISION_SUCCESS = "BLE_PROVISION_SUCCESS";
+    public static final String INTENT_EXTRA_PROVISION_DETAIL = "BLE_PROVISION_DETAIL";
+    public static final String INTENT_EXTRA_PROVISION_DURATION = "BLE_PROVISION_DURATION";
+    public static final String INTENT_EXTRA_PROVISION_PASSED = "BLE_PROVISION_PASSED";
+    public static final String INTENT_EXTRA_PROVISION_FAILED = "BLE_PROVISION_FAILED";
+    public static final String INTENT_EXTRA_PROVISION_RATE = "BLE_PROVISION_RATE";
+    public static final String INTENT_EXTRA_FILE_SENT = "BLE_FILE_SENT";
+    public static final String INTENT_EXTRA_FILE_SIZE = "BLE_FILE_SIZE";
+    public static final String INTENT_EXTRA_FILE_RATE = "BLE_FILE_RATE";
+    public static final String INTENT_EXTRA_FILE_STATUS = "BLE_FILE_STATUS";
+    public static final String INTENT_EXTRA_FRAME_DATA = "BLE_FRAME_DATA";
+    public static final String INTENT_EXTRA_TRIGGER_MATCH = "BLE_TRIGGER_MATCH";
+    public static final String INTENT_EXTRA_TRIGGER_ALERT = "BLE_TRIGGER_ALERT";
+    public static final String INTENT_EXTRA_TRIGGER_MARK = "BLE_TRIGGER_MARK";
+    public static final String INTENT_EXTRA_CAPTURE_FILE = "BLE_CAPTURE_FILE";
+    public static final String INTENT_EXTRA_CONTROL_COMMAND = "BLE_CONTROL_COMMAND";
+    public static final String INTENT_EXTRA_CONTROL_RESPONSE = "BLE_CONTROL_RESPONSE";
+    public static final String INTENT_EXTRA_CONTROL_STATUS = "BLE_CONTROL_STATUS";
+    public static final String INTENT_EXTRA_BENCHMARK_RESULT = "BLE_BENCHMARK_RESULT";
+    public static final String INTENT_EXTRA_BENCHMARK_FILE = "BLE_BENCHMARK_FILE";
+    public static final String INTENT_EXTRA_LATENCY_DEGRADED = "BLE_LATENCY_DEGRADED";
+    public static final String INTENT_EXTRA_LATENCY = "BLE_LATENCY";
+    public static final String INTENT_EXTRA_REPLAY_RESULT = "BLE_REPLAY_RESULT";
+    public static final String INTENT_EXTRA_SESSION_FILE = "BLE_SESSION_FILE";
+    public static final String INTENT_EXTRA_SEARCH_TEXT = "BLE_SEARCH_TEXT";
+    public static final String INTENT_EXTRA_SEARCH_RESULT = "BLE_SEARCH_RESULT";
+    public static final String INTENT_EXTRA_EXPORT_FILE = "BLE_EXPORT_FILE";
+    public static final String INTENT_EXTRA_EXPORT_RESULT = "BLE_EXPORT_RESULT";
 
     public final static String ACTION_BLE_REQ_ENABLE_BT = "com.microchip.mldpterminal3.ACTION_BLE_REQ_ENABLE_BT";
     public final static String ACTION_BLE_SCAN_RESULT = "com.microchip.mldpterminal3.ACTION_BLE_SCAN_RESULT";
     public final static String ACTION_BLE_CONNECTED = "com.microchip.mldpterminal3.ACTION_BLE_CONNECTED";
     public final static String ACTION_BLE_DISCONNECTED = "com.microchip.mldpterminal3.ACTION_BLE_DISCONNECTED";
     public final static String ACTION_BLE_DATA_RECEIVED = "com.microchip.mldpterminal3.ACTION_BLE_DATA_RECEIVED";
+    public final static String ACTION_BLE_PROVISION_RESULT = "com.microchip.mldpterminal3.ACTION_BLE_PROVISION_RESULT";
+    public final static String ACTION_BLE_PROVISION_FINISHED = "com.microchip.mldpterminal3.ACTION_BLE_PROVISION_FINISHED";
+    public final static String ACTION_BLE_FILE_PROGRESS = "com.microchip.mldpterminal3.ACTION_BLE_FILE_PROGRESS";
+    public final static String ACTION_BLE_FILE_FINISHED = "com.microchip.mldpterminal3.ACTION_BLE_FILE_FINISHED";
+    public final static String ACTION_BLE_FRAME_RECEIVED = "com.microchip.mldpterminal3.ACTION_BLE_FRAME_RECEIVED";
+    public final static String ACTION_BLE_TRIGGER = "com.microchip.mldpterminal3.ACTION_BLE_TRIGGER";
+    public final static String ACTION_BLE_CAPTURE_SAVED = "com.microchip.mldpterminal3.ACTION_BLE_CAPTURE_SAVED";
+    public final static String ACTION_BLE_CONTROL_RESPONSE = "com.microchip.mldpterminal3.ACTION_BLE_CONTROL_RESPONSE";
+    public final static String ACTION_BLE_BENCHMARK_FINISHED = "com.microchip.mldpterminal3.ACTION_BLE_BENCHMARK_FINISHED";
+    public final static String ACTION_BLE_LATENCY_ALERT = "com.microchip.mldpterminal3.ACTION_BLE_LATENCY_ALERT";
+    public final static String ACTION_BLE_REPLAY_FINISHED = "com.microchip.mldpterminal3.ACTION_BLE_REPLAY_FINISHED";
+    public final static String ACTION_BLE_SESSION_SAVED = "com.microchip.mldpterminal3.ACTION_BLE_SESSION_SAVED";
+    public final static String ACTION_BLE_SEARCH_RESULT = "com.microchip.mldpterminal3.ACTION_BLE_SEARCH_RESULT";
+    public final static String ACTION_BLE_EXPORT_FINISHED = "com.microchip.mldpterminal3.ACTION_BLE_EXPORT_FINISHED";
 
     //The MLDP UUID will be included in the RN4020 Advertising packet unless a private service and characteristic exists. In that case use the private service UUID here instead.
-    private final static byte[] SCAN_RECORD_MLDP_PRIVATE_SERVICE = {0x00, 0x03, 0x00, 0x3a, 0x12, 0x08, 0x1a, 0x02, (byte) 0xdd, 0x07, (byte) 0xe6, 0x58, 0x03, 0x5b, 0x03, 0x00};
-
     private final static UUID UUID_MLDP_PRIVATE_SERVICE = UUID.fromString("00035b03-58e6-07dd-021a-08123a000300"); //Private service for Microchip MLDP
     private final static UUID UUID_MLDP_DATA_PRIVATE_CHAR = UUID.fromString("00035b03-58e6-07dd-021a-08123a000301"); //Characteristic for MLDP Data, properties - notify, write
     private final static UUID UUID_MLDP_CONTROL_PRIVATE_CHAR = UUID.fromString("00035b03-58e6-07dd-021a-08123a0003ff"); //Characteristic for MLDP Control, properties - read, write
@@ -71,16 +125,68 @@ public class MldpBluetoothService extends Service {
 
     private final static UUID UUID_CHAR_NOTIFICATION_DESCRIPTOR = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb"); //Special descriptor needed to enable notifications
     private UUID[] uuidScanList = {UUID_MLDP_PRIVATE_SERVICE, UUID_TANSPARENT_PRIVATE_SERVICE};
+
+    private final static int REQUEST_MTU = 247;                                                     //Largest MTU that fits a single LE data length extension packet
+    private final static long MTU_TIME = 1000;                                                      //Length of time in milliseconds to wait for the MTU exchange before discovering services anyway
+    private final static int PHY_LE_2M_MASK = 2;                                                    //Same value as BluetoothDevice.PHY_LE_2M_MASK added in API 26
+    private final static int PHY_OPTION_NO_PREFERRED = 0;                                           //Same value as BluetoothDevice.PHY_OPTION_NO_PREFERRED added in API 26
+    public final static int DEFAULT_TX_WINDOW = 4;                                                  //Unacknowledged writes to have in flight when the stack accepts them
+    private final static int TX_WINDOW_PROBE_COUNT = 64;                                            //Writes completed in strict mode before trying the full window again
+    private final static long TX_RETRY_TIME = 10;                                                   //Milliseconds to wait before retrying a write the stack did not accept
+    private final static int TX_RETRY_LIMIT = 100;                                                  //Retries before giving up on a write
+    private final static int CAPTURE_RECORDS_PER_KB = 16;                                           //Capture records to allow for each KB of capture data
+    private final static int SEARCH_LIMIT = 50;                                                     //Most matches to report from a session search
+    private final static int OUTBOUND_QUEUE_LOW = 8;                                                //Take more from the outbound queue when the write queue falls below this depth
+    private final static int RX_RING_SIZE = 4096;                                                   //Received chunks kept for subscribers that have fallen behind
+    private final static int OUTBOUND_CHUNK = 4096;                                                 //Bytes to take from the outbound queue at a time
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    private final static int RPC_MAX_REPLY = 1024;                                                  //Longest reply line when the RPC client sets the decoder
     private final Queue<BluetoothGattDescriptor> descriptorWriteQueue = new LinkedList<BluetoothGattDescriptor>();
-    private final Queue<BluetoothGattCharacteristic> characteristicWriteQueue = new LinkedList<BluetoothGattCharacteristic>();
+    private final LinkedList<byte[]> txQueue = new LinkedList<byte[]>();                            //Data waiting to be written, each entry fits in one packet
+    private final Queue<TxWrite> txInFlightQueue = new LinkedList<TxWrite>();                       //Writes issued to the BluetoothGatt that have not completed yet
+    private final Queue<ControlCommand> controlQueue = new LinkedList<ControlCommand>();            //Commands for the MLDP control characteristic, sent ahead of data
 
     private BluetoothManager bluetoothManager;
     private BluetoothAdapter bluetoothAdapter;
-    private BluetoothDevice bluetoothDevice;
-    private BluetoothGatt bluetoothGatt;
+    private BluetoothGatt bluetoothGatt;                                                            //GATT connection for the MLDP specific operations, null for the simulator
+    private volatile MldpTransport mldpTransport;                                                   //Carries the data, a real connection or the simulator
+    private MldpGattTransport gattTransport;                                                        //Real connection, null when using the simulator
     private BluetoothGattCharacteristic mldpDataCharacteristic, transparentTxDataCharacteristic, transparentRxDataCharacteristic;
+    private BluetoothGattCharacteristic mldpControlCharacteristic;                                  //Separate command channel, null if the module does not have it
+    private ControlCommand controlInFlight;                                                         //Control write or read issued and not completed, guarded by txQueue
 
     private int connectionAttemptCountdown = 0;
+    private Handler serviceHandler;                                                                 //Handler for delayed runnables on the main thread
+    private boolean serviceDiscoveryStarted;                                                        //Indication that discoverServices() has been called for this connection
+    private int txWindow = DEFAULT_TX_WINDOW;                                                       //Configured number of unacknowledged writes in flight
+    private int txWindowCurrent = DEFAULT_TX_WINDOW;                                                //Window in use, drops to 1 when the stack reports busy
+    private long txPacingTime;                                                                      //Minimum milliseconds between writes, 0 for no pacing
+    private long txLastWriteTime;                                                                   //SystemClock.uptimeMillis() of the last write issued
+    private int txCleanCount, txRetryCount;
+    private long txBusyCount;                                                                       //Times the stack refused a write because it was busy
+    private long txDropCount;                                                                       //Packets given up on, failed or cleared without being written
+    private long controlCount, controlLatencyMax;                                                   //Control commands completed and the slowest in nanoseconds
+    private final MldpCreditFlowControl creditFlowControl = new MldpCreditFlowControl();            //Optional credits granted by the peripheral
+    private final MldpTokenBucket txRateLimiter = new MldpTokenBucket();                            //Optional cap on the bytes per second written
+    private volatile MldpFrameTransport frameTransport;                                             //Optional reliable framing, null when not used
+    private final MldpCompression compression = new MldpCompression();                              //Optional compression negotiated with the peripheral
+    private final MldpRxRing rxRing = new MldpRxRing(RX_RING_SIZE);                                 //Received data for subscribers reading at their own pace
+    private MldpDecoderPipeline decoderPipeline;                                                    //Splits received data into frames on its own thread
+    private volatile MldpRpcClient rpcClient;                                                       //Matches replies to requests, created when first used
+    private volatile MldpPollScheduler pollScheduler;                                               //Sends commands on fixed periods, null when not polling
+    private volatile MldpTriggerEngine triggerEngine;                                               //Watches received data for patterns, null when none are loaded
+    private volatile MldpCaptureBuffer captureBuffer;                                               //Recent data kept for snapshots, null when not capturing
+    private long capturePreTime, capturePostTime;                                                   //Milliseconds of data to save before and after an event
+    private volatile MldpSessionFile.Writer sessionWriter;                                          //Whole session being recorded, null when not recording
+    private volatile File sessionFile;                                                              //Session being recorded or the last one recorded, for searching
+    private volatile MldpOutboundQueue outboundQueue;                                               //Writes kept while disconnected, null when not queueing
+    private volatile MldpFileSender fileSender;                                                     //File being streamed to the peripheral, null when none
+    private volatile MldpBlockTransfer blockTransfer;                                               //YMODEM transfer to the peripheral, null when none
+    private volatile MldpEchoBenchmark echoBenchmark;                                               //Throughput and latency run against an echo, null when none
+    private volatile MldpLatencyProbe latencyProbe;                                                 //Background round trip pings, null when not probing
+    private MldpLinkTuner linkTuner;                                                                //Changes the connection priority to suit the traffic
+    private boolean linkTuningEnabled = true;
+    private MldpProvisioner provisioner;                                                            //Runs headless provisioning of devices found by scanning
 
     // ----------------------------------------------------------------------------------------------------------------
     // Client Activity has bound to our Service
@@ -102,6 +208,10 @@ public class MldpBluetoothService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
+        serviceHandler = new Handler();
+        linkTuner = new MldpLinkTuner(this);
+        decoderPipeline = new MldpDecoderPipeline(rxRing);
+        decoderPipeline.addListener(frameBroadcaster);
         try {
             bluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);          //Get a reference to BluetoothManager from the operating system
             if (bluetoothManager == null) {                                                             //Check that we did get a BluetoothManager
@@ -125,10 +235,16 @@ public class MldpBluetoothService extends Service {
     @Override
     public void onDestroy() {
         try {
-            if (bluetoothGatt != null) {                                                                //See if there is an existing Bluetooth connection
-                bluetoothGatt.close();                                                                  //Close the connection as the service is ending
-                bluetoothGatt = null;                                                                   //Remove the reference to the connection we had
+            if (provisioner != null) {                                                              //Stop provisioning as there will be no more events
+                provisioner.stop();
             }
+            linkTuner.stop();
+            probeStop();
+            sessionStop();
+            outboundQueueStop();
+            decoderPipeline.quit();
+            serviceHandler.removeCallbacks(startServiceDiscovery);
+            closeTransport();                                                                       //Close any connection as the service is ending
         }
         catch (Exception e) {
             Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
@@ -154,28 +270,32 @@ public class MldpBluetoothService extends Service {
                 if (status == BluetoothGatt.GATT_SUCCESS) {
                     connectionAttemptCountdown = 0;                                                     //Stop counting connection attempts
                     if (newState == BluetoothProfile.STATE_CONNECTED) {                                 //Connected
-                        final Intent intent = new Intent(ACTION_BLE_CONNECTED);
-                        sendBroadcast(intent);
-                        Log.i(TAG, "Connected to BLE device");
-                        descriptorWriteQueue.clear();                                                   //Clear write queues in case there was something left in the queue from the previous connection
-                        characteristicWriteQueue.clear();
-                        bluetoothGatt.discoverServices();                                               //Discover services after successful connection
+                        descriptorWriteQueue.clear();                                                   //Clear write queue in case there was something left in the queue from the previous connection
+                        gattTransport.setMtu(MldpGattTransport.DEFAULT_MTU);
+                        transportCallback.onConnected();
+                        serviceDiscoveryStarted = false;
+                        if (requestMtu(REQUEST_MTU)) {                                                  //Ask for longer packets first, services are discovered when the exchange completes
+                            serviceHandler.postDelayed(startServiceDiscovery, MTU_TIME);                //Discover services anyway if the MTU exchange never completes
+                        }
+                        else {
+                            serviceHandler.post(startServiceDiscovery);                                 //Discover services after successful connection
+                        }
                     }
                     else if (newState == BluetoothProfile.STATE_DISCONNECTED) {                         //Disconnected
-                        final Intent intent = new Intent(ACTION_BLE_DISCONNECTED);
-                        sendBroadcast(intent);
                         Log.i(TAG, "Disconnected from BLE device");
+                        gattTransport.setWriteCharacteristic(null);                                     //Not ready for writes until the next connection finds the characteristics
+                        transportCallback.onDisconnected();
                     }
                 }
                 else {                                                                                  //Something went wrong with the connection or disconnection request
                     if (connectionAttemptCountdown-- > 0) {                                             //See is we should try another attempt at connecting
-                        gatt.connect();                                                                 //Use the existing BluetoothGatt to try connect
+                        gattTransport.reconnect();                                                      //Use the existing BluetoothGatt to try connect
                         Log.d(TAG, "Connection attempt failed, trying again");
                     }
                     else if (newState == BluetoothProfile.STATE_DISCONNECTED) {                         //Not trying another connection attempt and are not connected
-                        final Intent intent = new Intent(ACTION_BLE_DISCONNECTED);
-                        sendBroadcast(intent);
                         Log.i(TAG, "Unexpectedly disconnected from BLE device");
+                        gattTransport.setWriteCharacteristic(null);                                     //Writes go to the outbound queue, not to a link that has gone
+                        transportCallback.onDisconnected();
                     }
                 }
             }
@@ -184,11 +304,35 @@ public class MldpBluetoothService extends Service {
             }
         }
 
+        //MTU exchange completed. Only called on API 21 and later, so no @Override when building against API 19
+        public void onMtuChanged(BluetoothGatt gatt, int newMtu, int status) {
+            try {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    gattTransport.setMtu(newMtu);
+                    Log.d(TAG, "MTU changed to " + newMtu);
+                }
+                else {
+                    Log.w(TAG, "MTU exchange failed with status: " + status);
+                }
+                serviceHandler.removeCallbacks(startServiceDiscovery);
+                serviceHandler.post(startServiceDiscovery);                                             //Now that the MTU is settled, discover services
+            }
+            catch (Exception e) {
+                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            }
+        }
+
+        //PHY update completed. Only called on API 26 and later
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            Log.d(TAG, "PHY update with status: " + status + ", Tx PHY: " + txPhy + ", Rx PHY: " + rxPhy);
+        }
+
         //Service discovery completed
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
             try {
                 mldpDataCharacteristic = transparentTxDataCharacteristic = transparentRxDataCharacteristic = null;
+                mldpControlCharacteristic = null;
                 if (status == BluetoothGatt.GATT_SUCCESS) {
                     List<BluetoothGattService> gattServices = gatt.getServices();                       //Get the list of services discovered
                     if (gattServices == null) {
@@ -228,6 +372,12 @@ public class MldpBluetoothService extends Service {
                                     Log.d(TAG, "Found Transparent service Rx characteristics");
                                 }
 
+                                if (uuid.equals(UUID_MLDP_CONTROL_PRIVATE_CHAR)) {                      //See if it is the MLDP control private characteristic UUID
+                                    mldpControlCharacteristic = gattCharacteristic;                     //Written with response, read for the reply
+                                    gattCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+                                    Log.d(TAG, "Found MLDP control characteristic");
+                                }
+
                                 if (uuid.equals(UUID_MLDP_DATA_PRIVATE_CHAR)) {                         //See if it is the MLDP data private characteristic UUID
                                     mldpDataCharacteristic = gattCharacteristic;
                                     final int characteristicProperties = gattCharacteristic.getProperties(); //Get the properties of the characteristic
@@ -266,6 +416,12 @@ public class MldpBluetoothService extends Service {
                     if(mldpDataCharacteristic == null && (transparentTxDataCharacteristic == null || transparentRxDataCharacteristic == null)) {
                         Log.d(TAG, "Did not find MLDP or Transparent service");
                     }
+                    else {
+                        gattTransport.setWriteCharacteristic(getWriteDataCharacteristic());
+                        if (descriptorWriteQueue.isEmpty()) {                                       //No notifications to enable so the link is ready now
+                            transportCallback.onReady();
+                        }
+                    }
                 }
                 else {
                     Log.w(TAG, "Failed service discovery with status: " + status);
@@ -281,12 +437,7 @@ public class MldpBluetoothService extends Service {
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
             try {
                 if (UUID_MLDP_DATA_PRIVATE_CHAR.equals(characteristic.getUuid()) || UUID_TRANSPARENT_TX_PRIVATE_CHAR.equals(characteristic.getUuid())) {                     //See if it is the MLDP data characteristic
-                    String dataValue = characteristic.getStringValue(0);                                //Get the data in string format
-                    //byte[] dataValue = characteristic.getValue();                                     //Example of getting data in a byte array
-                    Log.d(TAG, "New notification or indication");
-                    final Intent intent = new Intent(ACTION_BLE_DATA_RECEIVED);                         //Create the intent to announce the new data
-                    intent.putExtra(INTENT_EXTRA_SERVICE_DATA, dataValue);                              //Add the data to the intent
-                    sendBroadcast(intent);                                                              //Broadcast the intent
+                    transportCallback.onNotification(characteristic.getValue());
                 }
             }
             catch (Exception e) {
@@ -302,10 +453,10 @@ public class MldpBluetoothService extends Service {
                 if (status != BluetoothGatt.GATT_SUCCESS) {                                             //See if the write was successful
                     Log.w(TAG, "Error writing GATT characteristic with status: " + status);
                 }
-                characteristicWriteQueue.remove();                                                      //Pop the item that we just finishing writing
-                if(characteristicWriteQueue.size() > 0) {                                               //See if there is more to write
-                    bluetoothGatt.writeCharacteristic(characteristicWriteQueue.element());              //Write characteristic
+                if (onControlComplete(characteristic, status, false)) {                                 //Control command written, the data queue was not involved
+                    return;
                 }
+                transportCallback.onWriteComplete(status == BluetoothGatt.GATT_SUCCESS);
             }
             catch (Exception e) {
                 Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
@@ -324,6 +475,9 @@ public class MldpBluetoothService extends Service {
                 if(descriptorWriteQueue.size() > 0) {                                                   //See if there is more to write
                     bluetoothGatt.writeDescriptor(descriptorWriteQueue.element());                      //Write descriptor
                 }
+                else {
+                    transportCallback.onReady();                                                        //All notifications are enabled so data can flow
+                }
             }
             catch (Exception e) {
                 Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
@@ -333,6 +487,12 @@ public class MldpBluetoothService extends Service {
         //Read completed. For information only. This application uses Notification or Indication to receive updated characteristic data, not Read
         @Override
         public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            try {
+                onControlComplete(characteristic, status, true);                                        //Reply to a control command has been read
+            }
+            catch (Exception e) {
+                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            }
         }
 
         @Override
@@ -348,6 +508,121 @@ public class MldpBluetoothService extends Service {
         }
     };
 
+    // ----------------------------------------------------------------------------------------------------------------
+    // Connection and data events from the transport, the same for a real connection and the simulator
+    private final MldpTransport.Callback transportCallback = new MldpTransport.Callback() {
+        @Override
+        public void onConnected() {
+            try {
+                final Intent intent = new Intent(ACTION_BLE_CONNECTED);
+                sendBroadcast(intent);
+                Log.i(TAG, "Connected to BLE device");
+                synchronized (txQueue) {                                                            //Clear write queues in case there was something left from the previous connection
+                    txDropCount += txQueue.size() + txInFlightQueue.size();
+                    txQueue.clear();
+                    txInFlightQueue.clear();
+                    controlQueue.clear();
+                    controlInFlight = null;
+                    txWindowCurrent = txWindow;                                                     //Try the full window again on the new connection
+                    txCleanCount = txRetryCount = 0;
+                }
+                final MldpTransport transport = mldpTransport;
+                if (transport != null && transport != gattTransport) {                              //GATT discovers services after the MTU exchange
+                    transport.discover();
+                }
+            }
+            catch (Exception e) {
+                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void onReady() {
+            linkReady();
+        }
+
+        @Override
+        public void onDisconnected() {
+            try {
+                final Intent intent = new Intent(ACTION_BLE_DISCONNECTED);
+                sendBroadcast(intent);
+                linkTuner.stop();
+                sendFileCancel();
+                benchmarkStop();
+                pollStop();
+                probeStop();                                                                        //Pings would pile up in the write queue
+                final MldpOutboundQueue queue = outboundQueue;
+                if (queue != null) {                                                                //Send anything not known to be written again on the next connection
+                    queue.rewind();
+                }
+                final MldpRpcClient rpc = rpcClient;
+                if (rpc != null) {                                                                  //Replies will not come now
+                    rpc.reset("Disconnected");
+                }
+                if (provisioner != null) {
+                    provisioner.onDisconnected();
+                }
+            }
+            catch (Exception e) {
+                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            }
+        }
+
+        //Data from the peripheral
+        @Override
+        public void onNotification(byte[] byteValue) {
+            try {
+                Log.d(TAG, "New notification or indication");
+                linkTuner.onDataReceived(byteValue.length);
+                if (creditFlowControl.isEnabled()) {
+                    byteValue = creditFlowControl.onDataReceived(byteValue);                        //Take out any credit grants
+                    txPump();                                                                       //Credits may have been granted so see if more can be written
+                    if (byteValue.length == 0) {                                                    //Notification only had credit grants
+                        return;
+                    }
+                }
+                final MldpFrameTransport transport = frameTransport;
+                if (transport != null) {                                                            //Frames are decoded and the payloads delivered in order by the transport
+                    transport.onReceived(byteValue, SystemClock.uptimeMillis());
+                    scheduleFrameTimer();
+                    onTxSpace();                                                                    //An ACK may have emptied the transport window
+                }
+                else {
+                    deliverData(byteValue);
+                }
+            }
+            catch (Exception e) {
+                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            }
+        }
+
+        //Data write completed
+        @Override
+        public void onWriteComplete(boolean success) {
+            try {
+                final TxWrite write;
+                synchronized (txQueue) {
+                    write = txInFlightQueue.poll();                                                 //Pop the item that we just finishing writing
+                    if (!success) {
+                        txDropCount++;
+                    }
+                    if (txWindowCurrent < txWindow && ++txCleanCount >= TX_WINDOW_PROBE_COUNT) {    //Been in strict mode for a while so see if the stack accepts the window now
+                        txWindowCurrent = txWindow;
+                        txCleanCount = 0;
+                    }
+                }
+                if (write != null) {                                                                //Not under txQueue, the tuner takes it through getTxQueueDepth()
+                    linkTuner.onWriteComplete(write.data.length, System.nanoTime() - write.startTime);
+                }
+                txPump();                                                                           //See if there is more to write
+                onTxSpace();
+            }
+            catch (Exception e) {
+                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            }
+        }
+    };
+
     // ----------------------------------------------------------------------------------------------------------------
     // Check whether Bluetooth radio is enabled
     public boolean isBluetoothRadioEnabled() {
@@ -401,16 +676,15 @@ public class MldpBluetoothService extends Service {
                 Log.w(TAG, "BluetoothAdapter not initialized or unspecified address");
                 return false;
             }
-            bluetoothDevice = bluetoothAdapter.getRemoteDevice(address);
-            if (bluetoothDevice == null) {
-                Log.w(TAG, "Unable to connect because device was not found");
+            closeTransport();                                                                           //Faster to create new connection than reconnect with existing BluetoothGatt
+            connectionAttemptCountdown = 3;                                                             //Try to connect three times for reliability
+            gattTransport = new MldpGattTransport(this, bluetoothAdapter, bleGattCallback);
+            gattTransport.setCallback(transportCallback);
+            mldpTransport = gattTransport;
+            if (!gattTransport.connect(address)) {
                 return false;
             }
-            if (bluetoothGatt != null) {                                                                //See if an existing connection needs to be closed
-                bluetoothGatt.close();                                                                  //Faster to create new connection than reconnect with existing BluetoothGatt
-            }
-            connectionAttemptCountdown = 3;                                                             //Try to connect three times for reliability
-            bluetoothGatt = bluetoothDevice.connectGatt(this, false, bleGattCallback);                           //Directly connect to the device , so set autoConnect to false
+            bluetoothGatt = gattTransport.getGatt();
             Log.d(TAG, "Attempting to create a new Bluetooth connection");
             return true;
         }
@@ -424,107 +698,1432 @@ public class MldpBluetoothService extends Service {
     // Disconnect an existing connection or cancel a connection that has been requested
     public void disconnect() {
         try {
-            if (bluetoothAdapter == null || bluetoothGatt == null) {
-                Log.w(TAG, "BluetoothAdapter not initialized");
+            final MldpTransport transport = mldpTransport;
+            if (transport == null) {
+                Log.w(TAG, "Not connected or connecting");
                 return;
             }
             connectionAttemptCountdown = 0;                                                             //Stop counting connection attempts
-            bluetoothGatt.disconnect();
+            transport.disconnect();
         }
         catch (Exception e) {
             Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
         }
     }
 
+    // ----------------------------------------------------------------------------------------------------------------
+    // Connect to a simulated peripheral instead of a real device. The data path runs as it would over a real connection,
+    // but there is no MLDP control characteristic and no link parameter tuning.
+    public MldpSimulatedPeripheral connectSimulator(MldpSimulatedPeripheral.Config config) {
+        closeTransport();
+        connectionAttemptCountdown = 0;
+        final MldpSimulatedPeripheral simulator = new MldpSimulatedPeripheral(config);
+        simulator.setCallback(transportCallback);
+        mldpTransport = simulator;
+        simulator.connect(null);
+        Log.d(TAG, "Connecting to simulated peripheral");
+        return simulator;
+    }
+
+    // Links, connection events and losses, or null if not using the simulator
+    public String getSimulatorStatistics() {
+        final MldpTransport transport = mldpTransport;
+        return transport instanceof MldpSimulatedPeripheral ? transport.toString() : null;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Play back a session or capture file as if it came from a connected device. Speed is 1 for the recorded timing or
+    // MldpSessionReplay.SPEED_MAX for no delays. The end of playback is reported with ACTION_BLE_REPLAY_FINISHED
+    // followed by ACTION_BLE_DISCONNECTED, and disconnect() stops it early.
+    public boolean replayStart(File file, double speed, boolean checkTx) {
+        final MldpSessionReplay.Source source;
+        try {
+            source = file.getName().endsWith(MldpSessionFile.FILE_EXTENSION) ? MldpSessionFile.open(file)
+                    : MldpSessionReplay.openCapture(file);
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Unable to open replay file: " + e.getMessage());
+            return false;
+        }
+        closeTransport();
+        connectionAttemptCountdown = 0;
+        final MldpSessionReplay replay = new MldpSessionReplay(source, file.getName(), speed, checkTx);
+        replay.setCallback(transportCallback);
+        replay.setListener(replayListener);
+        mldpTransport = replay;
+        replay.connect(null);
+        Log.d(TAG, "Replaying " + file.getPath());
+        return true;
+    }
+
+    public boolean isReplaying() {
+        final MldpTransport transport = mldpTransport;
+        return transport instanceof MldpSessionReplay && transport.isReady();
+    }
+
+    // Progress or results of the last replay, or null if the connection is not a replay
+    public String getReplayStatistics() {
+        final MldpTransport transport = mldpTransport;
+        return transport instanceof MldpSessionReplay ? transport.toString() : null;
+    }
+
+    private final MldpSessionReplay.Listener replayListener = new MldpSessionReplay.Listener() {
+        @Override
+        public void onReplayFinished(MldpSessionReplay replay) {
+            final Intent intent = new Intent(ACTION_BLE_REPLAY_FINISHED);
+            intent.putExtra(INTENT_EXTRA_REPLAY_RESULT, replay.toString());
+            sendBroadcast(intent);
+        }
+    };
+
+    // Close the current connection without waiting for it to disconnect
+    private void closeTransport() {
+        final MldpTransport transport = mldpTransport;
+        if (transport != null) {
+            transport.close();
+        }
+        mldpTransport = null;
+        gattTransport = null;
+        bluetoothGatt = null;
+        mldpDataCharacteristic = transparentTxDataCharacteristic = transparentRxDataCharacteristic = null;
+        mldpControlCharacteristic = null;
+    }
+
+    // Data can be written
+    boolean isDataReady() {
+        final MldpTransport transport = mldpTransport;
+        return transport != null && transport.isReady();
+    }
+
     // ----------------------------------------------------------------------------------------------------------------
     // Write to the MLDP data characteristic
-    public void writeMLDP(String string) {                                                          //Write string (may need to add code to limit write to 20 bytes)
+    public void writeMLDP(String string) {                                                          //Write string, split into packets that fit the MTU
         try {
-            BluetoothGattCharacteristic writeDataCharacteristic;
-            if (mldpDataCharacteristic != null) {
-                writeDataCharacteristic = mldpDataCharacteristic;
-            }
-            else {
-                writeDataCharacteristic = transparentRxDataCharacteristic;
+            writeMLDP(string.getBytes("UTF-8"));
+        }
+        catch (UnsupportedEncodingException e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+    }
+
+    public void writeMLDP(byte[] byteValues) {                                                      //Write bytes, split into packets that fit the MTU
+        try {
+            final MldpOutboundQueue queue = outboundQueue;
+            if (queue != null && (!isDataReady() || queue.hasUnread())) {                           //Keep it until the link is ready, behind anything already waiting
+                if (!queue.add(byteValues)) {
+                    Log.w(TAG, "Outbound queue full, write refused");
+                }
+                drainOutbound();
+                return;
             }
-            if (bluetoothAdapter == null || bluetoothGatt == null || writeDataCharacteristic == null) {
+            if (!isDataReady()) {
                 Log.w(TAG, "Write attempted with Bluetooth uninitialized or not connected");
                 return;
             }
-            writeDataCharacteristic.setValue(string);
-            characteristicWriteQueue.add(writeDataCharacteristic);                                       //Put the characteristic into the write queue
-            if(characteristicWriteQueue.size() == 1){                                                   //If there is only 1 item in the queue, then write it.  If more than 1, we handle asynchronously in the callback above
-                if (!bluetoothGatt.writeCharacteristic(writeDataCharacteristic)) {                       //Request the BluetoothGatt to do the Write
-                    Log.d(TAG, "Failed to write characteristic");                                       //Write request was not accepted by the BluetoothGatt
+            sendData(byteValues);
+        } catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+    }
+
+    // Record data being sent and put it in the write queue
+    private void sendData(byte[] byteValues) {
+        try {
+            final MldpCaptureBuffer capture = captureBuffer;
+            if (capture != null) {
+                capture.record(MldpCaptureBuffer.DIRECTION_TX, byteValues, 0, byteValues.length);
+            }
+            final MldpSessionFile.Writer session = sessionWriter;
+            if (session != null) {
+                session.record(MldpSessionFile.TYPE_TX, byteValues, 0, byteValues.length);
+            }
+            synchronized (compression) {                                                            //Compressed blocks must be queued in the order they were made
+                final byte[] encoded = compression.encode(byteValues);
+                if (encoded.length > 0) {                                                           //Held while the compression handshake is going on
+                    writeData(encoded);
                 }
             }
+        } catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
         }
-        catch (Exception e) {
+    }
+
+    // Send data that is ready to go, through the framed transport if it is enabled
+    private void writeData(byte[] byteValues) {
+        final MldpFrameTransport transport = frameTransport;
+        if (transport != null) {                                                                    //Send in frames that are acknowledged and retransmitted
+            transport.send(byteValues, SystemClock.uptimeMillis());
+            scheduleFrameTimer();
+        }
+        else {
+            queueWrite(byteValues);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Put data in the write queue, split into packets that fit the MTU
+    private void queueWrite(byte[] byteValues) {
+        try {
+            final int mtu = getMtu();
+            synchronized (txQueue) {
+                MldpPacketizer.split(byteValues, mtu, txQueue);                                     //Put the data into the write queue one packet at a time
+            }
+            txPump();                                                                               //Start writing if the window is open
+        } catch (Exception e) {
             Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
         }
     }
 
-    public void writeMLDP(byte[] byteValues) {                                                      //Write bytes (may need to add code to limit write to 20 bytes)
+    // ----------------------------------------------------------------------------------------------------------------
+    // Announce data received from the peripheral, after any flow control and framing has been removed
+    private void deliverData(byte[] byteValue) {
         try {
-            BluetoothGattCharacteristic writeDataCharacteristic;
-            if (mldpDataCharacteristic != null) {
-                writeDataCharacteristic = mldpDataCharacteristic;
+            byteValue = compression.decode(byteValue);                                              //Decompress once the peripheral has agreed to compress
+            if (compression.isActive() && compression.getHeldWrites() > 0) {                        //Peripheral hello has arrived so send what was held
+                serviceHandler.post(compressionFlush);
             }
-            else {
-                writeDataCharacteristic = transparentRxDataCharacteristic;
+            if (byteValue.length == 0) {
+                return;                                                                             //Rest of the block has not arrived yet
             }
-            if (bluetoothAdapter == null || bluetoothGatt == null || writeDataCharacteristic == null) {
-                Log.w(TAG, "Write attempted with Bluetooth uninitialized or not connected");
-                return;
+            final MldpCaptureBuffer capture = captureBuffer;
+            if (capture != null) {
+                capture.record(MldpCaptureBuffer.DIRECTION_RX, byteValue, 0, byteValue.length);
+            }
+            final MldpSessionFile.Writer session = sessionWriter;
+            if (session != null) {
+                session.record(MldpSessionFile.TYPE_RX, byteValue, 0, byteValue.length);
             }
-            writeDataCharacteristic.setValue(byteValues);
-            characteristicWriteQueue.add(writeDataCharacteristic);                                       //Put the characteristic into the write queue
-            if(characteristicWriteQueue.size() == 1){                                                   //If there is only 1 item in the queue, then write it.  If more than 1, we handle asynchronously in the callback above
-                if (!bluetoothGatt.writeCharacteristic(writeDataCharacteristic)) {                       //Request the BluetoothGatt to do the Write
-                    Log.d(TAG, "Failed to write characteristic");                                       //Write request was not accepted by the BluetoothGatt
+            final MldpLatencyProbe probe = latencyProbe;
+            if (probe != null) {
+                byteValue = probe.onDataReceived(byteValue);                                        //Take out the replies to pings
+                if (byteValue.length == 0) {
+                    return;
                 }
             }
-        } catch (Exception e) {
+            final MldpBlockTransfer transfer = blockTransfer;
+            if (transfer != null && !transfer.isFinished()) {                                      //Replies from the receiver during a block transfer are not shown
+                transfer.onDataReceived(byteValue);
+                return;
+            }
+            final MldpEchoBenchmark benchmark = echoBenchmark;
+            if (benchmark != null && !benchmark.isFinished()) {                                     //Echoes are checked, not shown
+                benchmark.onDataReceived(byteValue);
+                return;
+            }
+            rxRing.publish(byteValue);                                                              //Subscribers such as the decoder thread read it in their own time
+            final MldpTriggerEngine triggers = triggerEngine;
+            if (triggers != null) {                                                                 //Look for trigger patterns, which may reply straight away
+                triggers.process(byteValue, 0, byteValue.length);
+            }
+            String dataValue = new String(byteValue, "UTF-8");                                      //Get the data in string format
+            if (provisioner != null) {
+                provisioner.onDataReceived(dataValue);
+            }
+            final Intent intent = new Intent(ACTION_BLE_DATA_RECEIVED);                             //Create the intent to announce the new data
+            intent.putExtra(INTENT_EXTRA_SERVICE_DATA, dataValue);                                  //Add the data to the intent
+            sendBroadcast(intent);                                                                  //Broadcast the intent
+        }
+        catch (Exception e) {
             Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
         }
     }
 
     // ----------------------------------------------------------------------------------------------------------------
-    // Device scan callback. Bluetooth adapter calls this method when a new device is discovered during a scan.
-    // The callback is only called for devices with advertising packets containing a UUID in the uuidScanList[] (i.e. MLDP service).
-    // The code that parses the UUID in the advertising packet is only required because the uuidScanList[] does not work for Android 4.X.
-    private final BluetoothAdapter.LeScanCallback bleScanCallback = new BluetoothAdapter.LeScanCallback() {
+    // Subscribe to received data, or get back the subscription with this name and its place in the data. Data received
+    // while a subscriber is not listening is kept until the ring wraps, when the policy decides what happens.
+    public MldpRxRing.Subscription subscribeRx(String name, int policy) {
+        return rxRing.subscribe(name, policy);
+    }
+
+    public void unsubscribeRx(MldpRxRing.Subscription subscription) {
+        rxRing.unsubscribe(subscription);
+    }
+
+    // Position of each subscriber in the received data
+    public String getRxRingStatistics() {
+        return rxRing.toString();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Enable or disable the reliable framed transport. The peripheral must use the same frame format as MldpFrameTransport.
+    public void setFramedTransport(boolean enabled, int window, int payloadSize) {
+        serviceHandler.removeCallbacks(frameTimer);
+        if (!enabled) {
+            frameTransport = null;
+            return;
+        }
+        frameTransport = new MldpFrameTransport(new MldpFrameTransport.Listener() {
+            @Override
+            public void sendFrame(byte[] frame) {
+                queueWrite(frame);                                                                  //Frames go through the normal write queue
+            }
+
+            @Override
+            public void onPayload(byte[] payload) {
+                deliverData(payload);
+            }
+        }, window, payloadSize);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Set how received data is split into frames, or null to stop. Frames are broadcast with ACTION_BLE_FRAME_RECEIVED
+    // and passed to listeners added with addFrameListener, which are called on the decoder thread.
+    public void setStreamDecoder(MldpStreamDecoder decoder) {
+        decoderPipeline.setDecoder(decoder);
+    }
+
+    public void addFrameListener(MldpStreamDecoder.Listener listener) {
+        decoderPipeline.addListener(listener);
+    }
+
+    public void removeFrameListener(MldpStreamDecoder.Listener listener) {
+        decoderPipeline.removeListener(listener);
+    }
+
+    // Frames and errors, or null if no decoder is set
+    public String getStreamDecoderStatistics() {
+        return decoderPipeline.getDecoder() != null ? decoderPipeline.toString() : null;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Request and response calls that match replies to requests. Lines are used as replies unless a decoder is set.
+    public synchronized MldpRpcClient getRpcClient() {
+        if (rpcClient == null) {
+            rpcClient = new MldpRpcClient(this);
+            if (decoderPipeline.getDecoder() == null) {
+                setStreamDecoder(new MldpStreamDecoder.Line((byte) '\n', RPC_MAX_REPLY));
+            }
+            decoderPipeline.addListener(new MldpStreamDecoder.Listener() {
+                @Override
+                public void onFrame(byte[] frame) {
+                    rpcClient.onFrame(frame);
+                }
+            });
+        }
+        return rpcClient;
+    }
+
+    // Requests, replies, timeouts and round trip time, or null if the RPC client has not been used
+    public synchronized String getRpcStatistics() {
+        return rpcClient != null ? rpcClient.toString() : null;
+    }
+
+    // Announces each decoded frame
+    private final MldpStreamDecoder.Listener frameBroadcaster = new MldpStreamDecoder.Listener() {
         @Override
-        public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
+        public void onFrame(byte[] frame) {
+            final Intent intent = new Intent(ACTION_BLE_FRAME_RECEIVED);
+            intent.putExtra(INTENT_EXTRA_FRAME_DATA, frame);
+            sendBroadcast(intent);
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Load triggers from a file in the format described in MldpTriggerEngine, replacing any already loaded
+    public boolean loadTriggers(File file) {
         try {
-            if (Build.VERSION.SDK_INT >= 21) { //Build.VERSION_CODES.LOLLIPOP) {
-                final Intent intent = new Intent(ACTION_BLE_SCAN_RESULT);                           //Create intent to report back the scan result
-                intent.putExtra(INTENT_EXTRA_SERVICE_ADDRESS, device.getAddress());                 //Get address and add to intent
-                intent.putExtra(INTENT_EXTRA_SERVICE_NAME, device.getName());                       //Get name and add to intent
-                sendBroadcast(intent);                                                              //Broadcast the intent
+            final List<MldpTriggerEngine.Trigger> triggers = MldpTriggerEngine.Trigger.load(file);
+            if (triggers.isEmpty()) {
+                Log.w(TAG, "No triggers in " + file.getPath());
+                return false;
             }
-            else {
-                int i = 0;
-                while (i < scanRecord.length - 1) {
-                    if (scanRecord[i + 1] != 6 && scanRecord[i + 1] != 7) {                         //Look for complete or incomplete list of 128-bit Service Class UUIDs
-                        i += scanRecord[i] + 1;                                                     //Add length of current field to the index to point to the next field
-                    } else {
-                        if (scanRecord[i] == 17) {                                                  //Look for length code of 17 for 1 byte identifier and 16 byte UUID
-                            i += 2;                                                                 //Set index to start of data
-                            if (i + 15 < scanRecord.length) {
-                                for (byte b : SCAN_RECORD_MLDP_PRIVATE_SERVICE) {                   //Check that the scan record shows the MLDP service UUID
-                                    if (b != scanRecord[i++]) {
-                                        return;                                                     //Don't report discovered device if it does not have the MLDP service
-                                    }
-                                }
-                                final Intent intent = new Intent(ACTION_BLE_SCAN_RESULT);           //Create intent to report back the scan result
-                                intent.putExtra(INTENT_EXTRA_SERVICE_ADDRESS, device.getAddress()); //Get address and add to intent
-                                intent.putExtra(INTENT_EXTRA_SERVICE_NAME, device.getName());       //Get name and add to intent
-                                sendBroadcast(intent);                                              //Broadcast the intent
-                            }
+            triggerEngine = new MldpTriggerEngine(triggers, triggerListener);
+            return true;
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Unable to load triggers: " + e.getMessage());
+            return false;
+        }
+    }
+
+    public void clearTriggers() {
+        triggerEngine = null;
+    }
+
+    public boolean hasTriggers() {
+        return triggerEngine != null;
+    }
+
+    // Matches for each trigger, or null if none are loaded
+    public String getTriggerStatistics() {
+        final MldpTriggerEngine triggers = triggerEngine;
+        return triggers != null ? triggers.toString() : null;
+    }
+
+    // Carries out a trigger that has fired, on the thread that received the data
+    private final MldpTriggerEngine.Listener triggerListener = new MldpTriggerEngine.Listener() {
+        @Override
+        public void onTrigger(MldpTriggerEngine.Trigger trigger) {
+            if (trigger.getReply() != null) {
+                writeMLDP(trigger.getReply());                                                      //Canned reply goes out through the normal write queue
+            }
+            if (trigger.getMark() != null && captureBuffer != null) {                               //Save the data around the mark
+                captureSnapshot(trigger.getMark());
+            }
+            if (trigger.getAlert() != null || trigger.getMark() != null) {
+                final Intent intent = new Intent(ACTION_BLE_TRIGGER);
+                intent.putExtra(INTENT_EXTRA_TRIGGER_MATCH, trigger.getMatch());
+                intent.putExtra(INTENT_EXTRA_TRIGGER_ALERT, trigger.getAlert());
+                intent.putExtra(INTENT_EXTRA_TRIGGER_MARK, trigger.getMark());
+                sendBroadcast(intent);
+            }
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start keeping the most recent data sent and received in a ring buffer of this many bytes. A snapshot saves the
+    // data from preTime milliseconds before the event to postTime milliseconds after it.
+    public void captureStart(int bufferSize, long preTime, long postTime) {
+        capturePreTime = preTime;
+        capturePostTime = postTime;
+        captureBuffer = new MldpCaptureBuffer(bufferSize, bufferSize / 1024 * CAPTURE_RECORDS_PER_KB);
+    }
+
+    public void captureStop() {
+        captureBuffer = null;
+    }
+
+    public boolean isCapturing() {
+        return captureBuffer != null;
+    }
+
+    // Save the data around an event to a file once the time after it has passed. Reports ACTION_BLE_CAPTURE_SAVED.
+    public void captureSnapshot(final String label) {
+        final MldpCaptureBuffer capture = captureBuffer;
+        if (capture == null) {
+            return;
+        }
+        final long eventTime = System.currentTimeMillis();
+        final long preTime = capturePreTime, postTime = capturePostTime;
+        serviceHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                final MldpCaptureBuffer.Snapshot snapshot = capture.snapshot(eventTime - preTime, eventTime + postTime);
+                new Thread(new Runnable() {                                                         //Keep file writing off the main thread
+                    @Override
+                    public void run() {
+                        File directory = getExternalFilesDir(null);
+                        if (directory == null) {
+                            directory = getFilesDir();
+                        }
+                        final File file = new File(directory, "capture_"
+                                + new SimpleDateFormat("yyyyMMdd_HHmmss_SSS", Locale.US).format(new Date(eventTime)) + ".txt");
+                        try {
+                            snapshot.write(file, eventTime, label);
+                            final Intent intent = new Intent(ACTION_BLE_CAPTURE_SAVED);
+                            intent.putExtra(INTENT_EXTRA_CAPTURE_FILE, file.getPath());
+                            sendBroadcast(intent);
+                        }
+                        catch (IOException e) {
+                            Log.e(TAG, "Unable to write capture: " + e.getMessage());
                         }
-                        break;
                     }
+                }).start();
+            }
+        }, postTime);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Record everything sent and received to a session file until stopped. Unlike a capture this keeps the whole
+    // session, with an index for finding any time in it, see MldpSessionFile.
+    public boolean sessionStart(File file) {
+        sessionStop();
+        try {
+            sessionWriter = new MldpSessionFile.Writer(file);
+            sessionFile = file;
+            return true;
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Unable to create session file: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Finish the file in the background and report ACTION_BLE_SESSION_SAVED
+    public void sessionStop() {
+        final MldpSessionFile.Writer session = sessionWriter;
+        if (session == null) {
+            return;
+        }
+        sessionWriter = null;
+        new Thread(new Runnable() {                                                                 //Keep file writing off the main thread
+            @Override
+            public void run() {
+                try {
+                    session.close();
+                    final Intent intent = new Intent(ACTION_BLE_SESSION_SAVED);
+                    intent.putExtra(INTENT_EXTRA_SESSION_FILE, session.getFile().getPath());
+                    sendBroadcast(intent);
+                }
+                catch (IOException e) {
+                    Log.e(TAG, "Unable to write session: " + e.getMessage());
+                }
+            }
+        }).start();
+    }
+
+    public boolean isRecordingSession() {
+        return sessionWriter != null;
+    }
+
+    // Records and bytes written so far, or null if not recording
+    public String getSessionStatistics() {
+        final MldpSessionFile.Writer session = sessionWriter;
+        return session != null ? session.toString() : null;
+    }
+
+    // True if there is a session to search, being recorded or recorded earlier
+    public boolean hasSession() {
+        return sessionFile != null;
+    }
+
+    // Find text in the session being recorded, or the last one recorded, in the background. The newest matches are
+    // reported with ACTION_BLE_SEARCH_RESULT.
+    public boolean searchSession(final String text) {
+        final MldpSessionFile.Writer session = sessionWriter;
+        final File file = sessionFile;
+        if (file == null || text.length() == 0) {
+            return false;
+        }
+        new Thread(new Runnable() {                                                                 //Keep file reading off the main thread
+            @Override
+            public void run() {
+                try {
+                    final long startTime = SystemClock.uptimeMillis();
+                    final MldpSessionFile.Reader reader = session != null ? session.openReader() : MldpSessionFile.open(file);
+                    final StringBuilder result = new StringBuilder();
+                    try {
+                        final List<MldpSessionFile.Match> matches = reader.search(text, SEARCH_LIMIT);
+                        result.append(String.format(Locale.US, "%d%s matches in %s, %d ms (%d of %d blocks read)",
+                                matches.size(), matches.size() == SEARCH_LIMIT ? " newest" : "", file.getName(),
+                                SystemClock.uptimeMillis() - startTime, reader.getBlocksScanned(), reader.getBlockCount()));
+                        final SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+                        for (MldpSessionFile.Match match : matches) {
+                            result.append(String.format("\n%s %s %s", format.format(new Date(reader.getStartTime() + match.time)),
+                                    match.direction == MldpSessionFile.TYPE_TX ? "TX" : "RX", match.text));
+                        }
+                    }
+                    finally {
+                        reader.close();
+                    }
+                    final Intent intent = new Intent(ACTION_BLE_SEARCH_RESULT);
+                    intent.putExtra(INTENT_EXTRA_SEARCH_TEXT, text);
+                    intent.putExtra(INTENT_EXTRA_SEARCH_RESULT, result.toString());
+                    sendBroadcast(intent);
+                }
+                catch (IOException e) {
+                    Log.e(TAG, "Unable to search session: " + e.getMessage());
+                }
+            }
+        }).start();
+        return true;
+    }
+
+    // Convert the session being recorded, up to now, or the last one recorded to another format in the background.
+    // The file is written next to the session and reported with ACTION_BLE_EXPORT_FINISHED, which has no
+    // INTENT_EXTRA_EXPORT_FILE if the export failed.
+    public boolean exportSession(final int format) {
+        final MldpSessionFile.Writer session = sessionWriter;
+        final File file = sessionFile;
+        if (file == null) {
+            return false;
+        }
+        final int mtu = getMtu();                                                                   //Packets as they would be on this link
+        new Thread(new Runnable() {                                                                 //Keep file writing off the main thread
+            @Override
+            public void run() {
+                final String name = file.getName();
+                final File exportFile = new File(file.getParentFile(), name.substring(0, name.length() - MldpSessionFile.FILE_EXTENSION.length())
+                        + MldpSessionExporter.getExtension(format));
+                try {
+                    final MldpSessionFile.Reader reader = session != null ? session.openReader() : MldpSessionFile.open(file);
+                    final MldpSessionExporter exporter = new MldpSessionExporter(reader, format, mtu);
+                    try {
+                        exporter.export(new FileOutputStream(exportFile));
+                    }
+                    finally {
+                        reader.close();
+                    }
+                    final Intent intent = new Intent(ACTION_BLE_EXPORT_FINISHED);
+                    intent.putExtra(INTENT_EXTRA_EXPORT_FILE, exportFile.getPath());
+                    intent.putExtra(INTENT_EXTRA_EXPORT_RESULT, exporter.toString());
+                    sendBroadcast(intent);
+                }
+                catch (IOException e) {
+                    exportFailed(exportFile, e.getMessage());
+                }
+                catch (RuntimeException e) {
+                    exportFailed(exportFile, e.toString());                                         //Report it rather than lose the thread and the app
+                }
+            }
+        }).start();
+        return true;
+    }
+
+    private void exportFailed(File exportFile, String reason) {
+        Log.e(TAG, "Unable to export session: " + reason);
+        exportFile.delete();                                                                        //Do not leave a partial file
+        final Intent intent = new Intent(ACTION_BLE_EXPORT_FINISHED);                               //No file extra tells the activity it failed
+        intent.putExtra(INTENT_EXTRA_EXPORT_RESULT, reason);
+        sendBroadcast(intent);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Enable or disable compression. When enabled, a hello is sent on each connection and data written is held until the
+    // peripheral replies with its own hello, then compressed in both directions. With no reply in
+    // MldpCompression.HELLO_TIMEOUT the data is sent plain for the rest of the connection. The peripheral must be told
+    // separately, for example by reconnecting, when compression is disabled.
+    public void setCompression(boolean enabled, int windowBits) {
+        synchronized (compression) {
+            if (!enabled) {
+                serviceHandler.removeCallbacks(compressionTimeout);
+                final byte[] held = compression.disable();
+                if (held != null) {                                                                 //Handshake never finished so send it plain
+                    writeData(held);
+                }
+                return;
+            }
+            compression.enable(windowBits);
+            if (isDataReady()) {                                                                    //Start the handshake now if already connected
+                sendCompressionHello();
+            }
+        }
+    }
+
+    // Send the hello and wait for the reply, called with the compression lock held
+    private void sendCompressionHello() {
+        writeData(compression.getHello());
+        serviceHandler.removeCallbacks(compressionTimeout);
+        serviceHandler.postDelayed(compressionTimeout, MldpCompression.HELLO_TIMEOUT);
+    }
+
+    // Send what was written during the handshake once it is over
+    private final Runnable compressionFlush = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (compression) {
+                final byte[] held = compression.flush();
+                if (held != null) {
+                    writeData(held);
+                }
+            }
+        }
+    };
+
+    private final Runnable compressionTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (compression.onHelloTimeout()) {
+                Log.w(TAG, "No compression hello from the peripheral, sending plain data");
+            }
+            compressionFlush.run();
+        }
+    };
+
+    // Compression ratio and effective throughput, or null if compression is not enabled
+    public String getCompressionStatistics() {
+        return compression.isEnabled() ? compression.toString() : null;
+    }
+
+    // Frames, retransmissions and errors, or null if the framed transport is not enabled
+    public String getFramedTransportStatistics() {
+        final MldpFrameTransport transport = frameTransport;
+        return transport != null ? transport.toString() : null;
+    }
+
+    // Set the frame timer for the next delayed ACK or retransmission
+    private void scheduleFrameTimer() {
+        final MldpFrameTransport transport = frameTransport;
+        serviceHandler.removeCallbacks(frameTimer);
+        if (transport != null) {
+            final long deadline = transport.getNextDeadline();
+            if (deadline != 0) {
+                serviceHandler.postAtTime(frameTimer, deadline);                                    //Deadline is in SystemClock.uptimeMillis() time
+            }
+        }
+    }
+
+    private final Runnable frameTimer = new Runnable() {
+        @Override
+        public void run() {
+            final MldpFrameTransport transport = frameTransport;
+            if (transport != null) {
+                transport.poll(SystemClock.uptimeMillis());
+                scheduleFrameTimer();
+            }
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Characteristic used to write data, MLDP if the device has it, otherwise Transparent
+    private BluetoothGattCharacteristic getWriteDataCharacteristic() {
+        if (mldpDataCharacteristic != null) {
+            return mldpDataCharacteristic;
+        }
+        return transparentRxDataCharacteristic;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Issue queued writes while the window has room
+    // Writes without response can have several writes in flight so more than one packet goes out per connection event.
+    // Android only accepts one write at a time on many versions, so if the stack reports busy the window drops to one
+    // write at a time until TX_WINDOW_PROBE_COUNT writes have completed, then the full window is tried again.
+    private void txPump() {
+        synchronized (txQueue) {
+            final MldpTransport transport = mldpTransport;
+            if (transport == null || !transport.isReady()) {
+                return;
+            }
+            if (!controlQueue.isEmpty() && controlInFlight == null && txInFlightQueue.isEmpty()) {  //Control commands go ahead of any queued data
+                issueControl();
+            }
+            if (controlInFlight != null) {                                                          //Stack takes one acknowledged operation at a time
+                return;
+            }
+            final int window = transport.isWriteWithoutResponse() ? txWindowCurrent : 1;           //Acknowledged writes are always one at a time
+            while (!txQueue.isEmpty() && txInFlightQueue.size() < window) {
+                if (!controlQueue.isEmpty()) {                                                      //Let the data in flight finish so the control command can go
+                    return;
+                }
+                if (txPacingTime > 0) {                                                             //See if it is too soon for the next write
+                    long wait = txLastWriteTime + txPacingTime - SystemClock.uptimeMillis();
+                    if (wait > 0) {
+                        serviceHandler.removeCallbacks(txPumpRunnable);
+                        serviceHandler.postDelayed(txPumpRunnable, wait);
+                        return;
+                    }
+                }
+                byte[] data = txQueue.peek();
+                if (creditFlowControl.isEnabled()) {                                                //Only write what the peripheral has room for
+                    final long credits = creditFlowControl.getCredits(true);
+                    if (credits == 0) {                                                             //Wait for a grant, onCharacteristicChanged() pumps again
+                        return;
+                    }
+                    if (data.length > credits) {                                                    //Split the packet to use the credits that are available
+                        txQueue.removeFirst();
+                        txQueue.addFirst(Arrays.copyOfRange(data, (int) credits, data.length));
+                        txQueue.addFirst(Arrays.copyOf(data, (int) credits));
+                        data = txQueue.peek();
+                    }
+                }
+                if (txRateLimiter.isEnabled()) {                                                    //See if there are enough tokens to send this packet
+                    long wait = txRateLimiter.getDelay(data.length);
+                    if (wait > 0) {                                                                 //Schedule the write for when the tokens will be there
+                        serviceHandler.removeCallbacks(txPumpRunnable);
+                        serviceHandler.postDelayed(txPumpRunnable, wait);
+                        return;
+                    }
+                }
+                final TxWrite write = new TxWrite(data, System.nanoTime());
+                txInFlightQueue.add(write);
+                if (transport.write(data)) {                                                        //Request the transport to do the Write
+                    txQueue.remove();
+                    txLastWriteTime = SystemClock.uptimeMillis();
+                    txRetryCount = 0;
+                    if (creditFlowControl.isEnabled()) {
+                        creditFlowControl.onDataSent(data.length);
+                    }
+                    txRateLimiter.consume(data.length);
+                    continue;
+                }
+                txInFlightQueue.remove(write);                                                      //Write request was not accepted by the BluetoothGatt
+                if (!txInFlightQueue.isEmpty()) {                                                   //Busy with an earlier write so fall back to one write at a time
+                    txBusyCount++;
+                    txWindowCurrent = 1;
+                    txCleanCount = 0;
+                    Log.d(TAG, "Stack busy, writing one packet at a time");
+                }
+                else if (++txRetryCount <= TX_RETRY_LIMIT) {                                        //Nothing in flight, possibly a descriptor write, so try again shortly
+                    serviceHandler.removeCallbacks(txPumpRunnable);
+                    serviceHandler.postDelayed(txPumpRunnable, TX_RETRY_TIME);
+                }
+                else {
+                    Log.d(TAG, "Failed to write characteristic");
+                    txQueue.remove();                                                               //Give up on this packet so the rest can go
+                    txRetryCount = 0;
+                    txDropCount++;                                                                  //Outbound queue sends it again
+                    continue;
+                }
+                return;
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write the next control command, called with the txQueue lock held and nothing in flight
+    private void issueControl() {
+        final ControlCommand command = controlQueue.peek();
+        if (mldpControlCharacteristic == null) {
+            controlQueue.clear();                                                                   //Characteristic has gone with the connection
+            return;
+        }
+        mldpControlCharacteristic.setValue(command.command);
+        controlInFlight = command;
+        if (bluetoothGatt.writeCharacteristic(mldpControlCharacteristic)) {
+            controlQueue.remove();
+            command.startTime = System.nanoTime();
+        }
+        else {
+            controlInFlight = null;                                                                 //Stack busy, perhaps a descriptor write, so try again shortly
+            serviceHandler.removeCallbacks(txPumpRunnable);
+            serviceHandler.postDelayed(txPumpRunnable, TX_RETRY_TIME);
+        }
+    }
+
+    // A write or read on the control characteristic has completed. Returns false if it was for another characteristic.
+    private boolean onControlComplete(BluetoothGattCharacteristic characteristic, int status, boolean read) {
+        if (characteristic == null || !UUID_MLDP_CONTROL_PRIVATE_CHAR.equals(characteristic.getUuid())) {
+            return false;
+        }
+        final ControlCommand command;
+        synchronized (txQueue) {
+            command = controlInFlight;
+            if (command == null) {
+                return true;
+            }
+            if (!read && command.readResponse && status == BluetoothGatt.GATT_SUCCESS) {            //Read back the reply before anything else is sent
+                if (bluetoothGatt.readCharacteristic(characteristic)) {
+                    return true;
+                }
+            }
+            controlInFlight = null;
+        }
+        controlLatencyMax = Math.max(controlLatencyMax, System.nanoTime() - command.startTime);
+        controlCount++;
+        final Intent intent = new Intent(ACTION_BLE_CONTROL_RESPONSE);
+        intent.putExtra(INTENT_EXTRA_CONTROL_COMMAND, new String(command.command, UTF8));
+        if (read && characteristic.getValue() != null) {
+            intent.putExtra(INTENT_EXTRA_CONTROL_RESPONSE, new String(characteristic.getValue(), UTF8));
+        }
+        intent.putExtra(INTENT_EXTRA_CONTROL_STATUS, status);
+        sendBroadcast(intent);
+        txPump();                                                                                   //Next control command or the data that waited for it
+        return true;
+    }
+
+    private final Runnable txPumpRunnable = new Runnable() {
+        @Override
+        public void run() {
+            txPump();
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Send a command on the MLDP control characteristic. Commands have their own queue and go ahead of queued data, and
+    // do not pass through flow control, rate limiting, framing or compression, so settings can be changed in the middle
+    // of a transfer. The result is reported with ACTION_BLE_CONTROL_RESPONSE.
+    public boolean writeControl(String command, boolean readResponse) {
+        if (bluetoothGatt == null || mldpControlCharacteristic == null) {
+            Log.w(TAG, "Control command attempted with no MLDP control characteristic");
+            return false;
+        }
+        synchronized (txQueue) {
+            controlQueue.add(new ControlCommand(command.getBytes(UTF8), readResponse));
+        }
+        txPump();
+        return true;
+    }
+
+    public boolean hasControlChannel() {
+        return mldpControlCharacteristic != null;
+    }
+
+    // Commands sent and the longest time to complete one, or null if there is no control characteristic
+    public String getControlStatistics() {
+        return mldpControlCharacteristic != null
+                ? String.format("Control: %d commands, slowest %.0f ms", controlCount, controlLatencyMax / 1e6) : null;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Configure the write window and the minimum time between writes. A window of 1 writes strictly one packet at a time.
+    public void setTxWindow(int window, long pacingMillis) {
+        synchronized (txQueue) {
+            txWindow = txWindowCurrent = Math.max(1, window);
+            txPacingTime = Math.max(0, pacingMillis);
+            txCleanCount = 0;
+        }
+        txPump();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Enable or disable credit based flow control. The peripheral must send credit grants as described in MldpCreditFlowControl.
+    public void setCreditFlowControl(boolean enabled, int initialCredits, int creditUnit) {
+        if (enabled) {
+            creditFlowControl.enable(initialCredits, creditUnit);
+        }
+        else {
+            creditFlowControl.disable();
+        }
+        txPump();                                                                                   //Data may have been waiting for credits
+    }
+
+    // Credits, grants and stalls, or null if flow control is not enabled
+    public String getCreditFlowStatistics() {
+        return creditFlowControl.isEnabled() ? creditFlowControl.toString() : null;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Limit the bytes per second written so a slow UART on the module is not overrun. A rate of 0 removes the limit.
+    public void setTxRateLimit(long bytesPerSecond, int burstBytes) {
+        txRateLimiter.configure(bytesPerSecond, burstBytes);
+        txPump();
+    }
+
+    // Configured and achieved rate and time spent throttled, or null if there is no limit
+    public String getTxRateStatistics() {
+        return txRateLimiter.isEnabled() ? txRateLimiter.toString() : null;
+    }
+
+    public int getTxWindow() {
+        synchronized (txQueue) {
+            return txWindowCurrent;
+        }
+    }
+
+    public long getTxBusyCount() {
+        synchronized (txQueue) {
+            return txBusyCount;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // A command for the MLDP control characteristic
+    private static class ControlCommand {
+        private final byte[] command;
+        private final boolean readResponse;                                                         //Read the characteristic after writing to get the reply
+        private long startTime;
+
+        private ControlCommand(byte[] command, boolean readResponse) {
+            this.command = command;
+            this.readResponse = readResponse;
+        }
+    }
+
+    // Class to hold a write that has been issued and the System.nanoTime() when it was issued
+    private static class TxWrite {
+        private final byte[] data;
+        private final long startTime;
+
+        private TxWrite(byte[] data, long startTime) {
+            this.data = data;
+            this.startTime = startTime;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Services have been discovered and notifications enabled so the data characteristics can be used
+    private void linkReady() {
+        Log.d(TAG, "Data characteristics ready");
+        creditFlowControl.reset();                                                                  //Peripheral starts again with its initial credits
+        final MldpFrameTransport transport = frameTransport;
+        if (transport != null) {                                                                    //Sequence numbers start again on a new connection
+            transport.reset();
+        }
+        decoderPipeline.reset();                                                                    //Partial frame from the last connection is no use
+        final MldpTriggerEngine triggers = triggerEngine;
+        if (triggers != null) {                                                                     //Partly matched pattern from the last connection is no use
+            triggers.reset();
+        }
+        synchronized (compression) {
+            if (compression.isEnabled()) {                                                          //Peripheral has to agree to compression again
+                compression.reset();
+                sendCompressionHello();
+            }
+        }
+        if (linkTuningEnabled) {
+            setPreferredPhy(PHY_LE_2M_MASK);                                                        //Use the 2M PHY if both sides support it
+            linkTuner.start();                                                                      //Start adjusting the connection priority to the traffic
+        }
+        if (provisioner != null) {
+            provisioner.onLinkReady();
+        }
+        drainOutbound();                                                                            //Send what was written while disconnected
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Runnable used by the serviceHandler to discover services once per connection
+    private final Runnable startServiceDiscovery = new Runnable() {
+        @Override
+        public void run() {
+            if (!serviceDiscoveryStarted && bluetoothGatt != null) {
+                serviceDiscoveryStarted = true;
+                bluetoothGatt.discoverServices();                                                   //Discover services after successful connection
+            }
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Link parameter requests. The BluetoothGatt methods were added after API 19 so are called by reflection, and
+    // return false if not available so the link carries on with the default parameters
+    boolean requestConnectionPriority(int priority) {
+        return invokeGattMethod(21, "requestConnectionPriority", new Class<?>[] {int.class}, priority);
+    }
+
+    private boolean requestMtu(int requestedMtu) {
+        return invokeGattMethod(21, "requestMtu", new Class<?>[] {int.class}, requestedMtu);
+    }
+
+    private boolean setPreferredPhy(int phyMask) {
+        return invokeGattMethod(26, "setPreferredPhy", new Class<?>[] {int.class, int.class, int.class}, phyMask, phyMask, PHY_OPTION_NO_PREFERRED);
+    }
+
+    private boolean invokeGattMethod(int minSdk, String name, Class<?>[] types, Object... args) {
+        if (Build.VERSION.SDK_INT < minSdk || bluetoothGatt == null) {
+            return false;
+        }
+        try {
+            Method method = BluetoothGatt.class.getMethod(name, types);
+            Object result = method.invoke(bluetoothGatt, args);
+            return !(result instanceof Boolean) || (Boolean) result;                                //setPreferredPhy() returns void
+        }
+        catch (Exception e) {
+            Log.w(TAG, "Unable to call BluetoothGatt." + name + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Enable or disable automatic connection priority and PHY selection, takes effect on the next connection
+    public void setLinkTuningEnabled(boolean enabled) {
+        linkTuningEnabled = enabled;
+        if (!enabled) {
+            linkTuner.stop();
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Throughput and write latency measured at each connection priority, indexed by MldpLinkTuner.PRIORITY_xxx
+    public MldpLinkTuner.ModeStats[] getLinkStatistics() {
+        return linkTuner.getModeStats();
+    }
+
+    public int getMtu() {
+        final MldpTransport transport = mldpTransport;
+        return transport != null ? transport.getMtu() : MldpGattTransport.DEFAULT_MTU;
+    }
+
+    int getTxQueueDepth() {
+        final MldpFrameTransport transport = frameTransport;
+        final int frames = transport != null ? transport.getQueuedFrames() : 0;                    //Frames waiting for room in the transport window or an ACK
+        synchronized (txQueue) {
+            return txQueue.size() + txInFlightQueue.size() + frames + compression.getHeldWrites();  //Held writes count so senders do not pile more on during the handshake
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Room has been made in the write queue so let a file send or the outbound queue add more
+    private void onTxSpace() {
+        final MldpFileSender sender = fileSender;
+        if (sender != null) {
+            sender.onTxSpace();
+        }
+        final MldpEchoBenchmark benchmark = echoBenchmark;
+        if (benchmark != null) {
+            benchmark.onTxSpace();
+        }
+        drainOutbound();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Keep writes made while disconnected in the given file and send them in order once the link is ready again,
+    // including any left in the file from before. The queue holds up to capacity bytes, and the policy says whether
+    // the oldest or the newest data is dropped when it is full, see MldpOutboundQueue.
+    public boolean outboundQueueStart(File file, long capacity, int policy) {
+        outboundQueueStop();
+        try {
+            outboundQueue = new MldpOutboundQueue(file, capacity, policy);
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Unable to open outbound queue: " + e.getMessage());
+            return false;
+        }
+        drainOutbound();
+        return true;
+    }
+
+    // Stop queueing. Anything still waiting stays in the file for next time.
+    public void outboundQueueStop() {
+        final MldpOutboundQueue queue = outboundQueue;
+        if (queue != null) {
+            outboundQueue = null;
+            queue.close();
+        }
+    }
+
+    public boolean isOutboundQueueing() {
+        return outboundQueue != null;
+    }
+
+    // Data waiting and dropped, or null if not queueing
+    public String getOutboundQueueStatistics() {
+        final MldpOutboundQueue queue = outboundQueue;
+        return queue != null ? queue.toString() : null;
+    }
+
+    // Move data from the outbound queue to the write queue while there is room. The outbound queue forgets it once the
+    // write queue has emptied without dropping anything, see MldpOutboundQueue.drain().
+    private void drainOutbound() {
+        final MldpOutboundQueue queue = outboundQueue;
+        if (queue == null) {
+            return;
+        }
+        try {
+            queue.drain(outboundLink, OUTBOUND_QUEUE_LOW, OUTBOUND_CHUNK);                          //Holds the queue lock so data reaches the write queue in order
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+    }
+
+    private final MldpOutboundQueue.Link outboundLink = new MldpOutboundQueue.Link() {
+        @Override
+        public boolean isReady() {
+            return isDataReady();
+        }
+
+        @Override
+        public int getDepth() {
+            return getTxQueueDepth();
+        }
+
+        @Override
+        public long getDropCount() {
+            synchronized (txQueue) {
+                return txDropCount;
+            }
+        }
+
+        @Override
+        public void send(byte[] data) {
+            sendData(data);
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Stream a file to the peripheral. The descriptor is closed when the send ends.
+    public boolean sendFileStart(ParcelFileDescriptor fileDescriptor) {
+        try {
+            if (!isDataReady()) {
+                Log.w(TAG, "File send attempted with Bluetooth not connected");
+                fileDescriptor.close();
+                return false;
+            }
+            sendFileCancel();                                                                       //Only one file at a time
+            final FileInputStream stream = new FileInputStream(fileDescriptor.getFileDescriptor());
+            fileSender = new MldpFileSender(this, stream.getChannel(), fileDescriptor);
+            fileSender.start();
+            return true;
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Send a file with YMODEM (or XMODEM) to a receiver on the peripheral. Window 1 is standard YMODEM, a larger
+    // window sends blocks ahead of the ACKs. The descriptor is closed when the transfer ends.
+    public boolean sendFileBlockStart(ParcelFileDescriptor fileDescriptor, String fileName, boolean ymodem, int window) {
+        try {
+            if (!isDataReady()) {
+                Log.w(TAG, "Block transfer attempted with Bluetooth not connected");
+                fileDescriptor.close();
+                return false;
+            }
+            sendFileCancel();                                                                       //Only one file at a time
+            final FileInputStream stream = new FileInputStream(fileDescriptor.getFileDescriptor());
+            blockTransfer = new MldpBlockTransfer(this, stream.getChannel(), fileDescriptor, fileName, ymodem, window);
+            blockTransfer.start();
+            return true;
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    public void sendFilePause() {
+        final MldpFileSender sender = fileSender;
+        if (sender != null) {
+            sender.pause();
+        }
+        final MldpBlockTransfer transfer = blockTransfer;
+        if (transfer != null) {
+            transfer.pause();
+        }
+    }
+
+    public void sendFileResume() {
+        final MldpFileSender sender = fileSender;
+        if (sender != null) {
+            sender.resume();
+        }
+        final MldpBlockTransfer transfer = blockTransfer;
+        if (transfer != null) {
+            transfer.resume();
+        }
+    }
+
+    public void sendFileCancel() {
+        final MldpFileSender sender = fileSender;
+        if (sender != null) {
+            sender.cancel();
+        }
+        final MldpBlockTransfer transfer = blockTransfer;
+        if (transfer != null) {
+            transfer.cancel();
+        }
+    }
+
+    public boolean isSendingFile() {
+        final MldpFileSender sender = fileSender;
+        final MldpBlockTransfer transfer = blockTransfer;
+        return (sender != null && !sender.isFinished()) || (transfer != null && !transfer.isFinished());
+    }
+
+    public boolean isSendingFilePaused() {
+        final MldpFileSender sender = fileSender;
+        final MldpBlockTransfer transfer = blockTransfer;
+        return (sender != null && sender.isPaused()) || (transfer != null && transfer.isPaused());
+    }
+
+    // Blocks, NAKs, timeouts and ACK latency of the current or last YMODEM transfer, or null if there has been none
+    public String getBlockTransferStatistics() {
+        final MldpBlockTransfer transfer = blockTransfer;
+        return transfer != null ? transfer.toString() : null;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called by the MldpFileSender or MldpBlockTransfer to report how far the send has got
+    void onFileSendProgress(long sent, long size, double rate) {
+        final Intent intent = new Intent(ACTION_BLE_FILE_PROGRESS);
+        intent.putExtra(INTENT_EXTRA_FILE_SENT, sent);
+        intent.putExtra(INTENT_EXTRA_FILE_SIZE, size);
+        intent.putExtra(INTENT_EXTRA_FILE_RATE, rate);
+        sendBroadcast(intent);
+    }
+
+    // Called by the MldpFileSender or MldpBlockTransfer when the send has completed, been cancelled or failed
+    void onFileSendFinished(int status, long sent, long size, double rate) {
+        final Intent intent = new Intent(ACTION_BLE_FILE_FINISHED);
+        intent.putExtra(INTENT_EXTRA_FILE_STATUS, status);
+        intent.putExtra(INTENT_EXTRA_FILE_SENT, sent);
+        intent.putExtra(INTENT_EXTRA_FILE_SIZE, size);
+        intent.putExtra(INTENT_EXTRA_FILE_RATE, rate);
+        sendBroadcast(intent);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Measure throughput, loss and round trip time against a peripheral that echoes everything, for the given number
+    // of milliseconds. Results are appended to the given CSV file and reported with ACTION_BLE_BENCHMARK_FINISHED.
+    public boolean benchmarkStart(long duration, int packetSize, File resultFile) {
+        if (!isDataReady()) {
+            Log.w(TAG, "Benchmark attempted with Bluetooth not connected");
+            return false;
+        }
+        if (isSendingFile()) {                                                                      //Would share the link and spoil the results
+            Log.w(TAG, "Benchmark attempted while sending a file");
+            return false;
+        }
+        benchmarkStop();
+        echoBenchmark = new MldpEchoBenchmark(this, duration, packetSize, resultFile);
+        echoBenchmark.start();
+        return true;
+    }
+
+    public void benchmarkStop() {
+        final MldpEchoBenchmark benchmark = echoBenchmark;
+        if (benchmark != null) {
+            benchmark.cancel();                                                                     //Reports what was measured so far
+        }
+    }
+
+    public boolean isBenchmarking() {
+        final MldpEchoBenchmark benchmark = echoBenchmark;
+        return benchmark != null && !benchmark.isFinished();
+    }
+
+    // Progress or results of the last benchmark, or null if none has been run
+    public String getBenchmarkStatistics() {
+        final MldpEchoBenchmark benchmark = echoBenchmark;
+        return benchmark != null ? benchmark.toString() : null;
+    }
+
+    // Called by the MldpEchoBenchmark when it has finished
+    void onBenchmarkFinished(String result, File resultFile) {
+        final Intent intent = new Intent(ACTION_BLE_BENCHMARK_FINISHED);
+        intent.putExtra(INTENT_EXTRA_BENCHMARK_RESULT, result);
+        intent.putExtra(INTENT_EXTRA_BENCHMARK_FILE, resultFile.getPath());
+        sendBroadcast(intent);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Ping the peripheral every period to watch the round trip time. The peripheral must send each ping back, see
+    // MldpLatencyProbe. A change between normal and degraded latency is reported with ACTION_BLE_LATENCY_ALERT.
+    public void probeStart(long period) {
+        probeStop();
+        latencyProbe = new MldpLatencyProbe(this, period);
+        latencyProbe.start();
+    }
+
+    public void probeStop() {
+        final MldpLatencyProbe probe = latencyProbe;
+        if (probe != null) {
+            probe.stop();
+            latencyProbe = null;
+        }
+    }
+
+    public boolean isProbing() {
+        return latencyProbe != null;
+    }
+
+    // Pings, replies and the round trip distribution, or null if not probing
+    public String getProbeStatistics() {
+        final MldpLatencyProbe probe = latencyProbe;
+        return probe != null ? probe.toString() : null;
+    }
+
+    // Called by the MldpLatencyProbe when the latency becomes degraded or recovers
+    void onLatencyAlert(boolean degraded, long latency) {
+        final Intent intent = new Intent(ACTION_BLE_LATENCY_ALERT);
+        intent.putExtra(INTENT_EXTRA_LATENCY_DEGRADED, degraded);
+        intent.putExtra(INTENT_EXTRA_LATENCY, latency);
+        sendBroadcast(intent);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start headless provisioning using the script in the given file
+    // Results are appended to a CSV file in the same directory as the script
+    public boolean provisionStart(File scriptFile) {
+        try {
+            if (bluetoothAdapter == null) {
+                Log.w(TAG, "Provisioning attempted with Bluetooth uninitialized");
+                return false;
+            }
+            final MldpProvisioner.Script script = MldpProvisioner.Script.load(scriptFile);         //Read the matching rules and steps
+            if (!script.isValid()) {
+                Log.w(TAG, "Provisioning script needs a name or uuid and at least one send step");
+                return false;
+            }
+            provisionStop();                                                                        //Only one provisioning run at a time
+            provisioner = new MldpProvisioner(this, script, new File(scriptFile.getParentFile(), MldpProvisioner.RESULT_FILE_NAME));
+            provisioner.start();
+            Log.i(TAG, "Provisioning started with script " + scriptFile.getPath());
+            return true;
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Unable to read provisioning script: " + e.getMessage());
+            return false;
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start polling with the schedules in the given file. Replies are appended to a CSV file in the same directory.
+    public boolean pollStart(File scheduleFile) {
+        try {
+            if (!isDataReady()) {
+                Log.w(TAG, "Polling attempted with Bluetooth not connected");
+                return false;
+            }
+            final List<MldpPollScheduler.Schedule> schedules = MldpPollScheduler.Schedule.load(scheduleFile);
+            if (schedules.isEmpty()) {
+                Log.w(TAG, "No schedules in " + scheduleFile.getPath());
+                return false;
+            }
+            pollStop();                                                                             //Only one set of schedules at a time
+            pollScheduler = new MldpPollScheduler(this, getRpcClient(), schedules,
+                    new File(scheduleFile.getParentFile(), MldpPollScheduler.RESULT_FILE_NAME));
+            pollScheduler.start();
+            return true;
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Unable to read poll schedule: " + e.getMessage());
+            return false;
+        }
+    }
+
+    public void pollStop() {
+        final MldpPollScheduler scheduler = pollScheduler;
+        if (scheduler != null) {
+            scheduler.stop();
+            pollScheduler = null;
+        }
+    }
+
+    public boolean isPolling() {
+        return pollScheduler != null;
+    }
+
+    // Replies, timeouts, skips and latency for each schedule, or null if not polling
+    public String getPollStatistics() {
+        final MldpPollScheduler scheduler = pollScheduler;
+        return scheduler != null ? scheduler.toString() : null;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Stop headless provisioning
+    public void provisionStop() {
+        if (provisioner != null) {
+            provisioner.stop();
+        }
+    }
+
+    public boolean isProvisioning() {
+        return provisioner != null && provisioner.isActive();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called by the MldpProvisioner to announce the result for one device
+    void onProvisionResult(String address, String name, boolean success, String detail, long duration, double devicesPerMinute) {
+        final Intent intent = new Intent(ACTION_BLE_PROVISION_RESULT);                              //Create the intent to announce the result
+        intent.putExtra(INTENT_EXTRA_SERVICE_ADDRESS, address);
+        intent.putExtra(INTENT_EXTRA_SERVICE_NAME, name);
+        intent.putExtra(INTENT_EXTRA_PROVISION_SUCCESS, success);
+        intent.putExtra(INTENT_EXTRA_PROVISION_DETAIL, detail);
+        intent.putExtra(INTENT_EXTRA_PROVISION_DURATION, duration);
+        intent.putExtra(INTENT_EXTRA_PROVISION_RATE, devicesPerMinute);
+        sendBroadcast(intent);
+        Log.i(TAG, "Provisioned " + address + (success ? " OK" : " FAILED: " + detail) + String.format(" (%.1f devices/min)", devicesPerMinute));
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called by the MldpProvisioner when provisioning has ended
+    void onProvisionFinished(int passed, int failed, double devicesPerMinute) {
+        final Intent intent = new Intent(ACTION_BLE_PROVISION_FINISHED);                            //Create the intent to announce the totals
+        intent.putExtra(INTENT_EXTRA_PROVISION_PASSED, passed);
+        intent.putExtra(INTENT_EXTRA_PROVISION_FAILED, failed);
+        intent.putExtra(INTENT_EXTRA_PROVISION_RATE, devicesPerMinute);
+        sendBroadcast(intent);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Device scan callback. Bluetooth adapter calls this method when a new device is discovered during a scan.
+    // The callback is only called for devices with advertising packets containing a UUID in the uuidScanList[] (i.e. MLDP service).
+    // The code that parses the UUID in the advertising packet is only required because the uuidScanList[] does not work for Android 4.X.
+    private final BluetoothAdapter.LeScanCallback bleScanCallback = new BluetoothAdapter.LeScanCallback() {
+        @Override
+        public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
+        try {
+            if (provisioner != null) {                                                              //Let the provisioner see every device, it does its own matching
+                provisioner.onScanResult(device.getAddress(), device.getName(), scanRecord);
+            }
+            if (Build.VERSION.SDK_INT >= 21) { //Build.VERSION_CODES.LOLLIPOP) {
+                final Intent intent = new Intent(ACTION_BLE_SCAN_RESULT);                           //Create intent to report back the scan result
+                intent.putExtra(INTENT_EXTRA_SERVICE_ADDRESS, device.getAddress());                 //Get address and add to intent
+                intent.putExtra(INTENT_EXTRA_SERVICE_NAME, device.getName());                       //Get name and add to intent
+                sendBroadcast(intent);                                                              //Broadcast the intent
+            }
+            else {
+                if (MldpScanRecord.hasServiceUuid(scanRecord, UUID_MLDP_PRIVATE_SERVICE)) {         //Don't report discovered device if it does not have the MLDP service
+                    final Intent intent = new Intent(ACTION_BLE_SCAN_RESULT);                       //Create intent to report back the scan result
+                    intent.putExtra(INTENT_EXTRA_SERVICE_ADDRESS, device.getAddress());             //Get address and add to intent
+                    intent.putExtra(INTENT_EXTRA_SERVICE_NAME, device.getName());                   //Get name and add to intent
+                    sendBroadcast(intent);                                                          //Broadcast the intent
                 }
             }
             return;
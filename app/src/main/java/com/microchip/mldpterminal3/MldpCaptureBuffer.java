@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Fixed size ring buffer of the most recent data sent and received, kept so the data leading up to an event can be
+ * saved without logging everything to a file.
+ *
+ * Bytes go into one ring and a timestamp, direction, position and length for each write or notification go into a
+ * second ring. Both are allocated once, so recording is two array copies with no allocation. When something
+ * happens, snapshot() copies out the records between two times that are still in the buffer and the copy is written
+ * to a file away from the thread that is recording.
+ */
+public class MldpCaptureBuffer {
+
+    public static final int DIRECTION_RX = 0;
+    public static final int DIRECTION_TX = 1;
+
+    private static final int BYTES_PER_LINE = 16;                                                   //Hex dump line length in the capture file
+
+    private final byte[] data;
+    private long dataWritten;                                                                       //Bytes ever written, data.length behind this are still there
+    private final long[] recordTime;                                                                //System.currentTimeMillis() of each record
+    private final long[] recordStart;                                                               //Position of the first byte in dataWritten terms
+    private final int[] recordLength;
+    private final byte[] recordDirection;
+    private long recordsWritten;
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Constructor allocates all the memory the buffer will use
+    public MldpCaptureBuffer(int dataSize, int recordCount) {
+        data = new byte[Math.max(1024, dataSize)];
+        recordCount = Math.max(64, recordCount);
+        recordTime = new long[recordCount];
+        recordStart = new long[recordCount];
+        recordLength = new int[recordCount];
+        recordDirection = new byte[recordCount];
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Add data that was sent or received
+    public synchronized void record(int direction, byte[] bytes, int offset, int length) {
+        if (length > data.length) {                                                                 //Only the end of a huge write fits
+            offset += length - data.length;
+            length = data.length;
+        }
+        final int slot = (int) (recordsWritten++ % recordTime.length);
+        recordTime[slot] = System.currentTimeMillis();
+        recordStart[slot] = dataWritten;
+        recordLength[slot] = length;
+        recordDirection[slot] = (byte) direction;
+        final int start = (int) (dataWritten % data.length);
+        final int first = Math.min(length, data.length - start);                                    //Copy up to the end of the ring, then wrap
+        System.arraycopy(bytes, offset, data, start, first);
+        System.arraycopy(bytes, offset + first, data, 0, length - first);
+        dataWritten += length;
+    }
+
+    public synchronized void clear() {
+        dataWritten = recordsWritten = 0;
+    }
+
+    // Time of the oldest record still in the buffer, 0 when empty
+    public synchronized long getOldestTime() {
+        final long oldest = findOldest();
+        return oldest < recordsWritten ? recordTime[(int) (oldest % recordTime.length)] : 0;
+    }
+
+    public int getCapacity() {
+        return data.length;
+    }
+
+    // Index of the oldest record whose bytes have not been overwritten
+    private long findOldest() {
+        long oldest = Math.max(0, recordsWritten - recordTime.length);
+        while (oldest < recordsWritten && recordStart[(int) (oldest % recordTime.length)] < dataWritten - data.length) {
+            oldest++;
+        }
+        return oldest;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Copy out the records from one time to another. The copy is made under the lock, writing it is not.
+    public synchronized Snapshot snapshot(long fromTime, long toTime) {
+        long first = findOldest();
+        final boolean truncated = first >= recordsWritten || recordTime[(int) (first % recordTime.length)] > fromTime;
+        while (first < recordsWritten && recordTime[(int) (first % recordTime.length)] < fromTime) {
+            first++;
+        }
+        long last = first;
+        int bytes = 0;
+        while (last < recordsWritten && recordTime[(int) (last % recordTime.length)] <= toTime) {
+            bytes += recordLength[(int) (last % recordTime.length)];
+            last++;
+        }
+        final int count = (int) (last - first);
+        Snapshot snapshot = new Snapshot(count, bytes, truncated);
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            final int slot = (int) ((first + i) % recordTime.length);
+            snapshot.time[i] = recordTime[slot];
+            snapshot.direction[i] = recordDirection[slot];
+            snapshot.length[i] = recordLength[slot];
+            final int start = (int) (recordStart[slot] % data.length);
+            final int part = Math.min(recordLength[slot], data.length - start);
+            System.arraycopy(data, start, snapshot.data, position, part);
+            System.arraycopy(data, 0, snapshot.data, position + part, recordLength[slot] - part);
+            position += recordLength[slot];
+        }
+        return snapshot;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Records copied out of the buffer
+    public static class Snapshot {
+        private final long[] time;
+        private final byte[] direction;
+        private final int[] length;
+        private final byte[] data;
+        private final boolean truncated;                                                            //Buffer did not go back as far as asked
+
+        private Snapshot(int count, int bytes, boolean truncated) {
+            time = new long[count];
+            direction = new byte[count];
+            length = new int[count];
+            data = new byte[bytes];
+            this.truncated = truncated;
+        }
+
+        public int getRecordCount() {
+            return time.length;
+        }
+
+        // Write a hex dump with each record's time relative to the event
+        public void write(File file, long eventTime, String label) throws IOException {
+            Writer writer = new BufferedWriter(new FileWriter(file));
+            try {
+                writer.write(String.format(Locale.US, "# %s at %s\n", label,
+                        new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US).format(new Date(eventTime))));
+                if (truncated) {
+                    writer.write("# Buffer did not hold all the time before the event\n");
+                }
+                int position = 0;
+                StringBuilder line = new StringBuilder();
+                for (int i = 0; i < time.length; i++) {
+                    for (int offset = 0; offset < length[i]; offset += BYTES_PER_LINE) {
+                        final int count = Math.min(BYTES_PER_LINE, length[i] - offset);
+                        line.setLength(0);
+                        line.append(String.format(Locale.US, "%+10.3f %s ", (time[i] - eventTime) / 1000.0,
+                                direction[i] == DIRECTION_TX ? "TX" : "RX"));
+                        for (int k = 0; k < BYTES_PER_LINE; k++) {
+                            line.append(k < count ? String.format("%02X ", data[position + offset + k]) : "   ");
+                        }
+                        line.append(' ');
+                        for (int k = 0; k < count; k++) {
+                            final char c = (char) (data[position + offset + k] & 0xff);
+                            line.append(c >= 0x20 && c < 0x7f ? c : '.');
+                        }
+                        writer.write(line.append('\n').toString());
+                    }
+                    position += length[i];
+                }
+            }
+            finally {
+                writer.close();
+            }
+        }
+    }
+}
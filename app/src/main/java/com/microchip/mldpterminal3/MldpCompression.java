@@ -0,0 +1,518 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Optional LZSS compression of the MLDP data stream in both directions.
+ *
+ * The window is 2^windowBits bytes (256 to 4096) so the peripheral only needs that much RAM to decompress. Each side
+ * announces itself with a hello (ESC 'L' 'Z' windowBits) as the last bytes it sends uncompressed, and both sides then
+ * use the smaller window. The window is only known once both hellos have been seen, so after sending its hello this
+ * side holds everything written until the peripheral hello arrives, and the first bytes after its hello are a block.
+ *
+ * A peripheral that has not replied within HELLO_TIMEOUT milliseconds is taken not to support compression. The held
+ * data is then sent plain, nothing more is compressed on that connection, and a late hello is passed through as data,
+ * so a peripheral that supports compression must reply in time. A peripheral without support sees the 4 hello bytes
+ * in its stream once per connection, so compression should only be enabled for peripherals that support it or ignore
+ * them.
+ *
+ * Data is sent in blocks of a type byte, a 16 bit length and the payload. A block that does
+ * not get smaller is sent raw, and after a run of raw blocks compression is only tried now and then, so incompressible
+ * data costs 3 bytes per block and very little CPU. Raw blocks still go into the history on both sides.
+ *
+ * Compressed payload is groups of a flag byte, LSB first, followed by 8 tokens. A set bit is a literal byte and a clear
+ * bit is a 2 byte match, big endian, with the distance - 1 in the high windowBits bits and the length - 3 in the rest.
+ */
+public class MldpCompression {
+
+    public static final long HELLO_TIMEOUT = 2000;                                                  //Milliseconds to wait for the peripheral hello
+
+    private static final byte[] HELLO = {0x1B, 'L', 'Z'};                                           //Followed by the window bits
+    private static final int BLOCK_RAW = 0;
+    private static final int BLOCK_LZSS = 1;
+    private static final int BLOCK_HEADER_SIZE = 3;
+    private static final int MAX_BLOCK_SIZE = 1024;                                                 //Most uncompressed bytes in a block
+    private static final int MIN_MATCH = 3;
+    private static final int MIN_WINDOW_BITS = 8;
+    private static final int MAX_WINDOW_BITS = 12;
+    private static final int HASH_SIZE = 4096;
+    private static final int MAX_CHAIN = 16;                                                        //Match candidates tried at each position
+    private static final int RAW_RUN = 4;                                                           //Raw blocks in a row before backing off
+    private static final int RAW_RETRY = 8;                                                         //Blocks between attempts while backed off
+
+    private volatile int localWindowBits;                                                           //0 when disabled
+    private volatile boolean peerReady;                                                             //Peripheral hello received, blocks in both directions
+    private volatile boolean refused;                                                               //No peripheral hello in time so data stays plain
+    private final ByteArrayOutputStream held = new ByteArrayOutputStream();                         //Written during the handshake, guarded by encoder
+    private volatile int heldWrites;
+    private final Encoder encoder = new Encoder();
+    private final Decoder decoder = new Decoder();
+    private final HelloMatcher helloMatcher = new HelloMatcher();
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Enable with the largest window this side will use, or disable
+    public synchronized void enable(int windowBits) {
+        localWindowBits = Math.max(MIN_WINDOW_BITS, Math.min(MAX_WINDOW_BITS, windowBits));
+        reset();
+    }
+
+    // Disable, returning anything held during the handshake to be sent plain, or null if nothing was held
+    public synchronized byte[] disable() {
+        byte[] data = null;
+        synchronized (encoder) {
+            if (heldWrites > 0) {
+                data = held.toByteArray();
+            }
+        }
+        localWindowBits = 0;
+        reset();
+        return data;
+    }
+
+    public boolean isEnabled() {
+        return localWindowBits != 0;
+    }
+
+    // True once the peripheral has said it will compress too
+    public boolean isActive() {
+        return peerReady;
+    }
+
+    // Start the handshake again, as on a new connection
+    public synchronized void reset() {
+        peerReady = refused = false;
+        synchronized (encoder) {
+            encoder.reset(localWindowBits);
+            held.reset();
+            heldWrites = 0;
+        }
+        synchronized (decoder) {
+            decoder.reset(localWindowBits);
+            helloMatcher.reset();
+        }
+    }
+
+    // Bytes to send to the peripheral, uncompressed, to announce compression
+    public synchronized byte[] getHello() {
+        return new byte[] {HELLO[0], HELLO[1], HELLO[2], (byte) localWindowBits};
+    }
+
+    // True from the hello being sent until the peripheral replies or the wait times out
+    public boolean isWaiting() {
+        return isEnabled() && !peerReady && !refused;
+    }
+
+    // Writes held until the handshake is done
+    public int getHeldWrites() {
+        return heldWrites;
+    }
+
+    // The peripheral has not replied in time. Returns true if it had not, after which data is sent plain.
+    public boolean onHelloTimeout() {
+        synchronized (decoder) {                                                                    //Peripheral hello cannot arrive part way through
+            if (!isWaiting()) {
+                return false;
+            }
+            refused = true;
+            return true;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Data to send to the peripheral. Returns an empty array while the handshake is going on, and the data unchanged if
+    // compression is disabled or was refused.
+    public byte[] encode(byte[] data) {
+        synchronized (encoder) {
+            if (isWaiting()) {                                                                      //Peripheral would not know what window to use yet
+                held.write(data, 0, data.length);
+                heldWrites++;
+                return new byte[0];
+            }
+            if (heldWrites > 0) {                                                                   //What was held goes first
+                held.write(data, 0, data.length);
+                data = held.toByteArray();
+                held.reset();
+                heldWrites = 0;
+            }
+            return peerReady ? encoder.encode(data) : data;
+        }
+    }
+
+    // Data held during the handshake, ready to send now it is over, or null if there is none or it is not over
+    public byte[] flush() {
+        synchronized (encoder) {
+            if (heldWrites == 0 || isWaiting()) {
+                return null;
+            }
+            return encode(new byte[0]);
+        }
+    }
+
+    // Data received from the peripheral. Returns the bytes to deliver, which may be empty while a block is incomplete.
+    public byte[] decode(byte[] data) {
+        if (!isEnabled() || refused) {
+            return data;
+        }
+        synchronized (decoder) {
+            if (peerReady) {
+                return decoder.decode(data, 0);
+            }
+            if (refused) {                                                                          //Timed out while waiting for the lock
+                return data;
+            }
+            ByteArrayOutputStream plain = new ByteArrayOutputStream(data.length);
+            for (int i = 0; i < data.length; i++) {                                                 //Look for the peripheral hello in the plain stream
+                int windowBits = helloMatcher.match(data[i], plain);
+                if (windowBits != 0) {
+                    onPeerHello(windowBits);
+                    byte[] rest = decoder.decode(data, i + 1);                                      //Everything after the hello is in blocks
+                    plain.write(rest, 0, rest.length);
+                    break;
+                }
+            }
+            return plain.toByteArray();
+        }
+    }
+
+    private void onPeerHello(int peerWindowBits) {
+        final int windowBits = Math.max(MIN_WINDOW_BITS, Math.min(localWindowBits, peerWindowBits)); //Both sides use the smaller window
+        synchronized (encoder) {
+            encoder.reset(windowBits);
+        }
+        decoder.reset(windowBits);
+        peerReady = true;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Uncompressed bytes divided by bytes on the link, 1.0 when nothing has been compressed yet
+    public double getTxRatio() {
+        synchronized (encoder) {
+            return encoder.bytesOut > 0 ? (double) encoder.bytesIn / encoder.bytesOut : 1.0;
+        }
+    }
+
+    public double getRxRatio() {
+        synchronized (decoder) {
+            return decoder.bytesIn > 0 ? (double) decoder.bytesOut / decoder.bytesIn : 1.0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder text = new StringBuilder();
+        synchronized (encoder) {
+            text.append(String.format("Compression: %s, window %d\nTX %d -> %d bytes (ratio %.2f), %d raw blocks of %d, %.0f bytes/s effective",
+                    peerReady ? "active" : refused ? "not supported by peripheral" : "waiting for peripheral", 1 << encoder.windowBits, encoder.bytesIn, encoder.bytesOut,
+                    encoder.bytesOut > 0 ? (double) encoder.bytesIn / encoder.bytesOut : 1.0, encoder.rawBlocks, encoder.blocks,
+                    encoder.getEffectiveRate()));
+        }
+        synchronized (decoder) {
+            text.append(String.format("\nRX %d -> %d bytes (ratio %.2f), %d errors, %.0f bytes/s effective",
+                    decoder.bytesIn, decoder.bytesOut, decoder.bytesIn > 0 ? (double) decoder.bytesOut / decoder.bytesIn : 1.0,
+                    decoder.errors, decoder.getEffectiveRate()));
+        }
+        return text.toString();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Compresses blocks, keeping the history from one block to the next
+    private static class Encoder {
+        private int windowBits;
+        private int mask;
+        private byte[] history;
+        private int[] head, prev;                                                                   //Hash chains of history positions + 1
+        private int position;                                                                       //Bytes added to the history so far
+        private int rawRun, skipCount;
+        long bytesIn, bytesOut, blocks, rawBlocks;
+        private long firstTime, lastTime;
+
+        void reset(int windowBits) {
+            this.windowBits = Math.max(MIN_WINDOW_BITS, windowBits);
+            mask = (1 << this.windowBits) - 1;
+            history = new byte[1 << this.windowBits];
+            head = new int[HASH_SIZE];
+            prev = new int[1 << this.windowBits];
+            position = rawRun = skipCount = 0;
+            bytesIn = bytesOut = blocks = rawBlocks = firstTime = lastTime = 0;
+        }
+
+        byte[] encode(byte[] data) {
+            if (position > Integer.MAX_VALUE - 2 * MAX_BLOCK_SIZE) {                                //Positions would overflow so start a fresh history
+                Arrays.fill(head, 0);
+                position = 0;                                                                       //Decoder only keeps the last window bytes so needs no reset
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + BLOCK_HEADER_SIZE * (data.length / MAX_BLOCK_SIZE + 1));
+            for (int offset = 0; offset < data.length; offset += MAX_BLOCK_SIZE) {
+                encodeBlock(data, offset, Math.min(MAX_BLOCK_SIZE, data.length - offset), out);
+            }
+            final long now = System.nanoTime();
+            if (firstTime == 0) {
+                firstTime = now;
+            }
+            lastTime = now;
+            bytesIn += data.length;
+            bytesOut += out.size();
+            return out.toByteArray();
+        }
+
+        private void encodeBlock(byte[] data, int offset, int length, ByteArrayOutputStream out) {
+            blocks++;
+            if (rawRun >= RAW_RUN && ++skipCount % RAW_RETRY != 0) {                                //Data has not been compressing so do not try every block
+                for (int i = 0; i < length; i++) {
+                    history[(position + i) & mask] = data[offset + i];
+                }
+                position += length;
+                writeBlock(out, BLOCK_RAW, data, offset, length);
+                rawBlocks++;
+                return;
+            }
+            final int start = position;
+            byte[] packed = new byte[length + length / 8 + 1];                                      //Worst case is all literals
+            int packedLength = 0;
+            int flagIndex = 0, flagBit = 8;
+            int i = 0;
+            while (i < length) {
+                if (flagBit == 8) {                                                                 //Start a new group of 8 tokens
+                    flagIndex = packedLength++;
+                    packed[flagIndex] = 0;
+                    flagBit = 0;
+                }
+                int bestLength = 0, bestDistance = 0;
+                final int maxLength = Math.min(length - i, (1 << (16 - windowBits)) + MIN_MATCH - 1);
+                if (maxLength >= MIN_MATCH) {
+                    final int hash = hash(data, offset + i);
+                    int candidate = head[hash] - 1;
+                    for (int chain = 0; candidate >= 0 && chain < MAX_CHAIN; chain++) {
+                        final int distance = start + i - candidate;
+                        if (distance > mask + 1) {
+                            break;                                                                  //Older positions have left the window
+                        }
+                        int matched = 0;
+                        while (matched < maxLength && byteAt(candidate + matched, data, offset, start) == data[offset + i + matched]) {
+                            matched++;
+                        }
+                        if (matched > bestLength) {
+                            bestLength = matched;
+                            bestDistance = distance;
+                            if (matched == maxLength) {
+                                break;
+                            }
+                        }
+                        final int next = prev[candidate & mask] - 1;
+                        if (next >= candidate) {
+                            break;                                                                  //Chain entry has been reused by a newer position
+                        }
+                        candidate = next;
+                    }
+                }
+                final int step = bestLength >= MIN_MATCH ? bestLength : 1;
+                if (step == 1) {
+                    packed[flagIndex] |= 1 << flagBit;                                              //Literal
+                    packed[packedLength++] = data[offset + i];
+                }
+                else {
+                    final int token = ((bestDistance - 1) << (16 - windowBits)) | (bestLength - MIN_MATCH);
+                    packed[packedLength++] = (byte) (token >> 8);
+                    packed[packedLength++] = (byte) token;
+                }
+                flagBit++;
+                for (int k = 0; k < step; k++, i++) {                                               //Add the bytes to the history and hash chains
+                    history[(start + i) & mask] = data[offset + i];
+                    if (i + MIN_MATCH <= length) {
+                        final int hash = hash(data, offset + i);
+                        prev[(start + i) & mask] = head[hash];
+                        head[hash] = start + i + 1;
+                    }
+                }
+                if (packedLength >= length) {
+                    break;                                                                          //Already no smaller than raw
+                }
+            }
+            position = start + length;
+            if (packedLength < length) {
+                writeBlock(out, BLOCK_LZSS, packed, 0, packedLength);
+                rawRun = skipCount = 0;
+            }
+            else {
+                for (; i < length; i++) {                                                           //Finish adding the block to the history
+                    history[(start + i) & mask] = data[offset + i];
+                }
+                writeBlock(out, BLOCK_RAW, data, offset, length);
+                rawBlocks++;
+                rawRun++;
+            }
+        }
+
+        // Byte at a history position, which may be in the block being compressed
+        private byte byteAt(int at, byte[] data, int offset, int start) {
+            return at >= start ? data[offset + at - start] : history[at & mask];
+        }
+
+        private static int hash(byte[] data, int at) {
+            return (((data[at] & 0xff) << 8) ^ ((data[at + 1] & 0xff) << 4) ^ (data[at + 2] & 0xff)) & (HASH_SIZE - 1);
+        }
+
+        private static void writeBlock(ByteArrayOutputStream out, int type, byte[] payload, int offset, int length) {
+            out.write(type);
+            out.write(length >> 8);
+            out.write(length);
+            out.write(payload, offset, length);
+        }
+
+        double getEffectiveRate() {
+            return lastTime > firstTime ? bytesIn * 1e9 / (lastTime - firstTime) : 0;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Reassembles blocks split across packets and decompresses them
+    private static class Decoder {
+        private int windowBits;
+        private int mask;
+        private byte[] history;
+        private int position;
+        private final byte[] header = new byte[BLOCK_HEADER_SIZE];
+        private int headerLength;
+        private byte[] payload;
+        private int payloadLength;
+        long bytesIn, bytesOut, errors;
+        private long firstTime, lastTime;
+
+        void reset(int windowBits) {
+            this.windowBits = Math.max(MIN_WINDOW_BITS, windowBits);
+            mask = (1 << this.windowBits) - 1;
+            history = new byte[1 << this.windowBits];
+            position = headerLength = payloadLength = 0;
+            payload = null;
+            bytesIn = bytesOut = errors = firstTime = lastTime = 0;
+        }
+
+        byte[] decode(byte[] data, int offset) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 2);
+            bytesIn += data.length - offset;
+            int i = offset;
+            while (i < data.length) {
+                if (payload == null) {                                                              //Collect the block header
+                    header[headerLength++] = data[i++];
+                    if (headerLength == BLOCK_HEADER_SIZE) {
+                        payload = new byte[((header[1] & 0xff) << 8) | (header[2] & 0xff)];
+                        payloadLength = 0;
+                    }
+                }
+                else {                                                                              //Collect the payload
+                    final int count = Math.min(data.length - i, payload.length - payloadLength);
+                    System.arraycopy(data, i, payload, payloadLength, count);
+                    payloadLength += count;
+                    i += count;
+                }
+                if (payload != null && payloadLength == payload.length) {                           //Block complete
+                    decodeBlock(header[0], payload, out);
+                    payload = null;
+                    headerLength = 0;
+                }
+            }
+            final long now = System.nanoTime();
+            if (firstTime == 0) {
+                firstTime = now;
+            }
+            lastTime = now;
+            bytesOut += out.size();
+            return out.toByteArray();
+        }
+
+        private void decodeBlock(int type, byte[] block, ByteArrayOutputStream out) {
+            if (type == BLOCK_RAW) {
+                for (byte b : block) {
+                    history[position++ & mask] = b;
+                }
+                out.write(block, 0, block.length);
+                return;
+            }
+            if (type != BLOCK_LZSS) {
+                errors++;                                                                           //Unknown block type, skip it
+                return;
+            }
+            int i = 0;
+            while (i < block.length) {
+                final int flags = block[i++] & 0xff;
+                for (int bit = 0; bit < 8 && i < block.length; bit++) {
+                    if ((flags & (1 << bit)) != 0) {                                                //Literal
+                        history[position++ & mask] = block[i];
+                        out.write(block[i++]);
+                    }
+                    else {                                                                          //Match, may overlap the bytes it produces
+                        if (i + 1 >= block.length) {
+                            errors++;
+                            return;
+                        }
+                        final int token = ((block[i] & 0xff) << 8) | (block[i + 1] & 0xff);
+                        i += 2;
+                        final int distance = (token >> (16 - windowBits)) + 1;
+                        final int length = (token & ((1 << (16 - windowBits)) - 1)) + MIN_MATCH;
+                        for (int k = 0; k < length; k++) {
+                            final byte b = history[(position - distance) & mask];
+                            history[position++ & mask] = b;
+                            out.write(b);
+                        }
+                    }
+                }
+            }
+        }
+
+        double getEffectiveRate() {
+            return lastTime > firstTime ? bytesOut * 1e9 / (lastTime - firstTime) : 0;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Finds the peripheral hello in the plain stream, passing other bytes through
+    private static class HelloMatcher {
+        private int matched;
+
+        void reset() {
+            matched = 0;
+        }
+
+        // Returns the peripheral window bits when a complete hello has been seen, otherwise 0
+        int match(byte b, ByteArrayOutputStream plain) {
+            if (matched == HELLO.length) {                                                          //Last byte of the hello is the window bits
+                matched = 0;
+                if (b >= MIN_WINDOW_BITS && b <= MAX_WINDOW_BITS) {
+                    return b;
+                }
+                plain.write(HELLO, 0, HELLO.length);                                                //Not a hello after all
+            }
+            if (b == HELLO[matched]) {
+                matched++;
+                return 0;
+            }
+            plain.write(HELLO, 0, matched);                                                         //Bytes held back were data
+            matched = 0;
+            if (b == HELLO[0]) {
+                matched = 1;
+            }
+            else {
+                plain.write(b);
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Credit based flow control for the MLDP data stream.
+ *
+ * The peripheral grants credits in-band on the notification stream and the MldpBluetoothService only writes while it
+ * has credits, so a slow host MCU behind the RN4020 can never have its UART buffer overrun.
+ *
+ * A grant is the byte DC1 (0x11) followed by a count byte. A count of 1 to 255 grants count * creditUnit bytes.
+ * A count of 0 is an escaped DC1 data byte. Grants are removed from the received data before it is delivered and may be
+ * split across notifications.
+ */
+public class MldpCreditFlowControl {
+
+    public static final byte CREDIT_MARKER = 0x11;                                                  //DC1, starts a credit grant in the received data
+
+    private boolean enabled;
+    private int initialCredits;                                                                     //Bytes that may be sent on a new connection before any grant
+    private int creditUnit;                                                                         //Bytes granted by each count of a grant
+    private boolean markerPending;                                                                  //Last notification ended with a DC1 so the count is in the next one
+
+    private long credits;                                                                           //Bytes that may be sent now
+    private long creditsGranted, bytesSent, grants, stalls;
+    private long stallStartTime, stallTime;                                                         //Nanoseconds spent with data waiting and no credits
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Enable flow control with the credits the peripheral allows before its first grant
+    public synchronized void enable(int initialCredits, int creditUnit) {
+        this.initialCredits = Math.max(0, initialCredits);
+        this.creditUnit = Math.max(1, creditUnit);
+        enabled = true;
+        reset();
+    }
+
+    public synchronized void disable() {
+        enabled = false;
+        markerPending = false;
+    }
+
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start a new connection with the initial credits
+    public synchronized void reset() {
+        credits = initialCredits;
+        markerPending = false;
+        stallStartTime = 0;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Number of bytes that may be sent now. Starts timing a stall if there is data waiting but no credit.
+    public synchronized long getCredits(boolean dataWaiting) {
+        if (credits == 0 && dataWaiting && stallStartTime == 0) {
+            stallStartTime = System.nanoTime();
+            stalls++;
+        }
+        return credits;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Use credits for bytes that have been written
+    public synchronized void onDataSent(int length) {
+        credits -= Math.min(credits, length);
+        bytesSent += length;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Remove credit grants from received data and add the credits. Returns the data that remains.
+    public synchronized byte[] onDataReceived(byte[] data) {
+        ByteArrayOutputStream remaining = new ByteArrayOutputStream(data.length);
+        int granted = 0;
+        for (byte b : data) {
+            if (markerPending) {                                                                    //This byte is the count that follows a DC1
+                markerPending = false;
+                if (b == 0) {
+                    remaining.write(CREDIT_MARKER);                                                 //Escaped DC1 data byte
+                }
+                else {
+                    granted += (b & 0xff) * creditUnit;
+                    grants++;
+                }
+            }
+            else if (b == CREDIT_MARKER) {
+                markerPending = true;
+            }
+            else {
+                remaining.write(b);
+            }
+        }
+        if (granted > 0) {
+            credits += granted;
+            creditsGranted += granted;
+            if (stallStartTime != 0) {                                                              //Stall is over
+                stallTime += System.nanoTime() - stallStartTime;
+                stallStartTime = 0;
+            }
+        }
+        return remaining.size() == data.length ? data : remaining.toByteArray();
+    }
+
+    public synchronized long getStallCount() {
+        return stalls;
+    }
+
+    // Total milliseconds spent waiting for credits, including a stall in progress
+    public synchronized double getStallTime() {
+        long time = stallTime + (stallStartTime != 0 ? System.nanoTime() - stallStartTime : 0);
+        return time / 1e6;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Credits: %d, granted %d in %d grants, sent %d bytes, %d stalls for %.0f ms",
+                credits, creditsGranted, grants, bytesSent, stalls, getStallTime());
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Runs an MldpStreamDecoder on its own thread, reading received data from the RX ring so the GATT callback thread only
+ * has to publish it.
+ *
+ * Whole frames are passed to every subscribed listener on the decoder thread, so each consumer gets frames instead of
+ * buffering and scanning the raw stream itself. Listeners that update the UI must post to the main thread.
+ */
+public class MldpDecoderPipeline {
+
+    private final static String TAG = MldpDecoderPipeline.class.getSimpleName();                  //Class name for logging messages on the ADB
+
+    private final HandlerThread thread;
+    private final Handler handler;
+    private volatile MldpStreamDecoder decoder;                                                     //Null when no framing is wanted
+    private final CopyOnWriteArrayList<MldpStreamDecoder.Listener> listeners = new CopyOnWriteArrayList<MldpStreamDecoder.Listener>();
+    private final MldpRxRing.Subscription subscription;                                             //Received data not yet decoded
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Constructor starts the decoder thread
+    public MldpDecoderPipeline(MldpRxRing ring) {
+        thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_DEFAULT);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        subscription = ring.subscribe(TAG, MldpRxRing.POLICY_SKIP_OLDEST);
+    }
+
+    // Stop the decoder thread, dropping anything not yet decoded
+    public void quit() {
+        subscription.setListener(null, null);
+        thread.quit();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Change the framing. Any partial frame from the previous decoder is lost.
+    public void setDecoder(final MldpStreamDecoder newDecoder) {
+        handler.post(new Runnable() {                                                               //Change over between chunks on the decoder thread
+            @Override
+            public void run() {
+                if (newDecoder == null) {
+                    subscription.setListener(null, null);                                           //Nothing to read the ring for
+                }
+                else if (decoder == null) {
+                    subscription.skip();                                                            //Only frame data received from now on
+                    subscription.setListener(chunkReader, handler);
+                }
+                decoder = newDecoder;
+            }
+        });
+    }
+
+    public MldpStreamDecoder getDecoder() {
+        return decoder;
+    }
+
+    public void addListener(MldpStreamDecoder.Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(MldpStreamDecoder.Listener listener) {
+        listeners.remove(listener);
+    }
+
+    // Throw away a partial frame, as on a new connection
+    public void reset() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                final MldpStreamDecoder current = decoder;
+                if (current != null) {
+                    current.reset();
+                }
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called on the decoder thread with each chunk of received data from the ring
+    private final MldpRxRing.Listener chunkReader = new MldpRxRing.Listener() {
+        @Override
+        public void onData(byte[] data, long time) {
+            final MldpStreamDecoder current = decoder;
+            if (current != null) {
+                current.decode(data, 0, data.length, dispatcher);
+            }
+        }
+    };
+
+    // Passes each frame to all the listeners
+    private final MldpStreamDecoder.Listener dispatcher = new MldpStreamDecoder.Listener() {
+        @Override
+        public void onFrame(byte[] frame) {
+            for (MldpStreamDecoder.Listener listener : listeners) {
+                listener.onFrame(frame);
+            }
+        }
+    };
+
+    @Override
+    public String toString() {
+        final MldpStreamDecoder current = decoder;
+        return (current != null ? current.toString() : "No decoder") + ", backlog " + subscription.getLag();
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Measures throughput, loss and round trip latency against a peripheral that echoes what it receives.
+ *
+ * Numbered packets with a known pattern are written through writeMLDP(), keeping the write queue topped up as
+ * MldpFileSender does, for the given time. Echoed data is checked against the pattern as it arrives, however the
+ * peripheral splits it into notifications, and after a short wait for the last echoes the results are reported and
+ * appended to a CSV file so handsets and firmware versions can be compared. Round trip times are measured from
+ * writeMLDP() to the echo, so they include time in the write queue.
+ */
+public class MldpEchoBenchmark {
+
+    private final static String TAG = MldpEchoBenchmark.class.getSimpleName();                     //Class name for logging messages on the ADB
+
+    public static final String RESULT_FILE_NAME = "benchmark_results.csv";                          //Name of the file that results are appended to
+    public static final int MIN_PACKET_SIZE = 8;
+
+    private static final byte SYNC_1 = (byte) 0xA5;                                                 //Start of each packet, then the sequence number
+    private static final byte SYNC_2 = 0x5A;
+    private static final int HEADER_SIZE = 6;
+    private static final int QUEUE_LOW = 4;                                                         //Add packets when the write queue falls to this depth
+    private static final int QUEUE_HIGH = 16;                                                       //Kept lower than a file send so queueing adds less to the round trip
+    private static final int SEND_SLOTS = 65536;                                                    //Send times kept, older packets get no round trip time
+    private static final int MAX_SAMPLES = 1 << 20;                                                 //Round trip times kept for the percentiles
+    private static final long DRAIN_TIME = 2000;                                                    //Milliseconds to wait for echoes after the last write
+
+    private final MldpBluetoothService bleService;
+    private final long duration;
+    private final int packetSize;
+    private final File resultFile;
+    private final Handler handler;
+
+    private final long[] sendTimes = new long[SEND_SLOTS];                                          //System.nanoTime() each packet was queued, by sequence number
+    private final BitSet received = new BitSet();
+    private final byte[] rxBuffer;
+    private int rxLength;
+    private int[] samples = new int[1024];                                                          //Round trip times in microseconds
+    private int sampleCount;
+    private int nextSeq;
+    private long receivedCount, duplicates, corruptBytes;
+    private long startTime, sendEndTime, lastRxTime;                                                //SystemClock.elapsedRealtime()
+    private boolean sending, finished;
+    private String summary;
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Constructor. Packets larger than the MTU allows are cut to fit when the benchmark starts.
+    public MldpEchoBenchmark(MldpBluetoothService bleService, long duration, int packetSize, File resultFile) {
+        this.bleService = bleService;
+        this.duration = duration;
+        this.packetSize = Math.max(MIN_PACKET_SIZE, Math.min(packetSize, MldpPacketizer.getPacketSize(bleService.getMtu())));
+        this.resultFile = resultFile;
+        rxBuffer = new byte[this.packetSize];
+        handler = new Handler(Looper.getMainLooper());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start sending, the results are reported when the benchmark finishes
+    public void start() {
+        synchronized (this) {
+            startTime = SystemClock.elapsedRealtime();
+            sending = true;
+        }
+        handler.postDelayed(stopSending, duration);
+        onTxSpace();
+    }
+
+    public void cancel() {
+        handler.removeCallbacks(stopSending);
+        finish(true);
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    private final Runnable stopSending = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (MldpEchoBenchmark.this) {
+                sending = false;
+                sendEndTime = SystemClock.elapsedRealtime();
+            }
+            onTxSpace();                                                                            //Starts the drain wait if the queue is already empty
+        }
+    };
+
+    private final Runnable drained = new Runnable() {
+        @Override
+        public void run() {
+            finish(false);
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called by the MldpBluetoothService when a write completes to top up the write queue
+    void onTxSpace() {
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            int depth = bleService.getTxQueueDepth();
+            if (!sending) {
+                if (depth == 0) {                                                                   //Everything written so wait for the last echoes
+                    handler.removeCallbacks(drained);
+                    handler.postDelayed(drained, DRAIN_TIME);
+                }
+                return;
+            }
+            if (depth > QUEUE_LOW) {
+                return;
+            }
+            final byte[] packet = new byte[packetSize];
+            packet[0] = SYNC_1;
+            packet[1] = SYNC_2;
+            while (depth < QUEUE_HIGH) {
+                final int seq = nextSeq++;
+                packet[2] = (byte) (seq >> 24);
+                packet[3] = (byte) (seq >> 16);
+                packet[4] = (byte) (seq >> 8);
+                packet[5] = (byte) seq;
+                for (int i = HEADER_SIZE; i < packetSize; i++) {
+                    packet[i] = patternByte(seq, i);
+                }
+                sendTimes[seq & (SEND_SLOTS - 1)] = System.nanoTime();
+                bleService.writeMLDP(packet);                                                       //writeMLDP copies the data into its queue
+                depth++;
+            }
+        }
+    }
+
+    private static byte patternByte(int seq, int index) {
+        return (byte) (seq * 7 + index);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Echoed data from the peripheral, split into notifications in any way
+    void onDataReceived(byte[] data) {
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            for (byte b : data) {
+                if (rxLength == 0 && b != SYNC_1) {                                                 //Not the start of a packet
+                    corruptBytes++;
+                    continue;
+                }
+                rxBuffer[rxLength++] = b;
+                if (rxLength == packetSize) {
+                    if (checkPacket()) {
+                        rxLength = 0;
+                    }
+                    else {
+                        resynchronise();
+                    }
+                }
+            }
+        }
+    }
+
+    // Check a whole packet against the pattern and record it
+    private boolean checkPacket() {
+        if (rxBuffer[1] != SYNC_2) {
+            return false;
+        }
+        final int seq = ((rxBuffer[2] & 0xff) << 24) | ((rxBuffer[3] & 0xff) << 16) | ((rxBuffer[4] & 0xff) << 8) | (rxBuffer[5] & 0xff);
+        if (seq < 0 || seq >= nextSeq) {
+            return false;
+        }
+        for (int i = HEADER_SIZE; i < packetSize; i++) {
+            if (rxBuffer[i] != patternByte(seq, i)) {
+                return false;
+            }
+        }
+        if (received.get(seq)) {
+            duplicates++;
+            return true;
+        }
+        received.set(seq);
+        receivedCount++;
+        lastRxTime = SystemClock.elapsedRealtime();
+        if (nextSeq - seq <= SEND_SLOTS && sampleCount < MAX_SAMPLES) {                             //Send time has not been overwritten
+            if (sampleCount == samples.length) {
+                samples = Arrays.copyOf(samples, sampleCount * 2);
+            }
+            samples[sampleCount++] = (int) ((System.nanoTime() - sendTimes[seq & (SEND_SLOTS - 1)]) / 1000);
+        }
+        return true;
+    }
+
+    // Drop bytes up to the next possible start of a packet
+    private void resynchronise() {
+        int start = 1;
+        while (start < rxLength && rxBuffer[start] != SYNC_1) {
+            start++;
+        }
+        corruptBytes += start;
+        rxLength -= start;
+        System.arraycopy(rxBuffer, start, rxBuffer, 0, rxLength);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Work out the results, append them to the result file and report them
+    private void finish(boolean cancelled) {
+        final String line;
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            sending = false;
+            handler.removeCallbacks(drained);
+            final long now = SystemClock.elapsedRealtime();
+            final long sendTime = (sendEndTime != 0 ? sendEndTime : now) - startTime;
+            final long echoTime = (lastRxTime != 0 ? lastRxTime : now) - startTime;
+            final double txRate = sendTime > 0 ? nextSeq * (double) packetSize * 1000 / sendTime : 0;
+            final double rxRate = echoTime > 0 ? receivedCount * (double) packetSize * 1000 / echoTime : 0;
+            final double loss = nextSeq > 0 ? 100.0 * (nextSeq - receivedCount) / nextSeq : 0;
+            Arrays.sort(samples, 0, sampleCount);
+            summary = String.format(Locale.US, "Benchmark%s: %d packets of %d bytes, sent %.0f B/s, echoed %.0f B/s, loss %.2f%%, "
+                    + "round trip p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms, %d corrupt bytes, %d duplicates",
+                    cancelled ? " (cancelled)" : "", nextSeq, packetSize, txRate, rxRate, loss,
+                    percentile(50), percentile(90), percentile(99), percentile(100), corruptBytes, duplicates);
+            line = String.format(Locale.US, "%s,%s,%s,%s,%d,%d,%d,%d,%d,%.0f,%.0f,%.2f,%.1f,%.1f,%.1f,%.1f,%d,%d,%s\n",
+                    new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(new Date()), Build.MANUFACTURER,
+                    Build.MODEL, Build.VERSION.RELEASE, bleService.getMtu(), packetSize, sendTime, nextSeq, receivedCount,
+                    txRate, rxRate, loss, percentile(50), percentile(90), percentile(99), percentile(100),
+                    corruptBytes, duplicates, cancelled ? "cancelled" : "complete");
+        }
+        Log.i(TAG, summary);
+        final boolean newFile = !resultFile.exists();
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(resultFile, true));                         //Append to the results of previous runs
+            if (newFile) {
+                writer.write("time,manufacturer,model,android,mtu,packet_size,send_ms,packets_sent,packets_echoed,"
+                        + "sent_bps,echoed_bps,loss_percent,rtt_p50_ms,rtt_p90_ms,rtt_p99_ms,rtt_max_ms,corrupt_bytes,duplicates,status\n");
+            }
+            writer.write(line);
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Unable to write benchmark results: " + e.getMessage());
+        }
+        finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                }
+                catch (IOException e) {
+                    Log.w(TAG, "Unable to close benchmark results: " + e.getMessage());
+                }
+            }
+        }
+        bleService.onBenchmarkFinished(summary, resultFile);
+    }
+
+    // Round trip time in milliseconds at the given percentile, from the sorted samples
+    private double percentile(int percent) {
+        if (sampleCount == 0) {
+            return 0;
+        }
+        final int index = Math.min(sampleCount - 1, (int) Math.ceil(sampleCount * percent / 100.0) - 1);
+        return samples[Math.max(0, index)] / 1000.0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (summary != null) {
+            return summary;
+        }
+        return String.format(Locale.US, "Benchmark: %d packets sent, %d echoed, %d corrupt bytes", nextSeq, receivedCount, corruptBytes);
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streams a file through the MldpBluetoothService transmit path.
+ *
+ * The file is memory mapped a window at a time, so a large file is never loaded into the heap, and only enough packets
+ * to keep the link busy are put in the write queue. More are added each time a write completes, which lets the
+ * transfer run at whatever rate the window, flow control and rate limit allow.
+ */
+public class MldpFileSender {
+
+    private final static String TAG = MldpFileSender.class.getSimpleName();                        //Class name for logging messages on the ADB
+
+    public static final int STATUS_COMPLETE = 0;                                                    //Values reported when the send finishes
+    public static final int STATUS_CANCELLED = 1;
+    public static final int STATUS_ERROR = 2;
+
+    private static final long MAP_SIZE = 1024 * 1024;                                               //Bytes of the file mapped at a time
+    private static final int QUEUE_LOW = 8;                                                         //Add packets when the write queue falls to this depth
+    private static final int QUEUE_HIGH = 32;                                                       //Fill the write queue up to this depth
+    private static final long PROGRESS_TIME = 250;                                                  //Milliseconds between progress reports
+
+    private final MldpBluetoothService bleService;
+    private final FileChannel channel;
+    private final Closeable source;                                                                 //Closed when the send ends
+    private final long size;
+
+    private MappedByteBuffer mapped;                                                                //Window of the file currently mapped
+    private long mappedStart;
+    private long position;                                                                          //Bytes handed to the write queue
+    private boolean paused, finished;
+    private long startTime, pauseStartTime, pausedTime, lastProgressTime;
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Constructor
+    public MldpFileSender(MldpBluetoothService bleService, FileChannel channel, Closeable source) throws IOException {
+        this.bleService = bleService;
+        this.channel = channel;
+        this.source = source;
+        size = channel.size();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start sending
+    public void start() {
+        synchronized (this) {
+            startTime = SystemClock.elapsedRealtime();
+        }
+        onTxSpace();
+    }
+
+    public synchronized void pause() {
+        if (!paused && !finished) {
+            paused = true;
+            pauseStartTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    public void resume() {
+        synchronized (this) {
+            if (!paused || finished) {
+                return;
+            }
+            paused = false;
+            pausedTime += SystemClock.elapsedRealtime() - pauseStartTime;                           //Paused time does not count toward the rate
+        }
+        onTxSpace();
+    }
+
+    public void cancel() {
+        finish(STATUS_CANCELLED);                                                                   //Packets already queued are still written
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized long getBytesSent() {
+        return position;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Average bytes per second while not paused
+    public synchronized double getRate() {
+        long now = SystemClock.elapsedRealtime();
+        long elapsed = now - startTime - pausedTime - (paused ? now - pauseStartTime : 0);
+        return elapsed > 0 ? position * 1000.0 / elapsed : 0;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called by the MldpBluetoothService when a write completes, and on start and resume, to top up the write queue
+    void onTxSpace() {
+        int status = -1;
+        synchronized (this) {
+            if (paused || finished) {
+                return;
+            }
+            try {
+                int depth = bleService.getTxQueueDepth();
+                if (position < size && depth <= QUEUE_LOW) {
+                    final int packetSize = bleService.getMtu() - 3;
+                    final byte[] packet = new byte[packetSize];
+                    while (position < size && depth < QUEUE_HIGH) {                                 //Add packets until the queue is full enough to keep the link busy
+                        if (mapped == null || position >= mappedStart + mapped.capacity()) {        //Map the next window of the file
+                            mappedStart = position;
+                            mapped = channel.map(FileChannel.MapMode.READ_ONLY, mappedStart, Math.min(MAP_SIZE, size - mappedStart));
+                        }
+                        final int length = (int) Math.min(packetSize, mappedStart + mapped.capacity() - position);
+                        mapped.position((int) (position - mappedStart));
+                        if (length == packetSize) {
+                            mapped.get(packet);
+                            bleService.writeMLDP(packet);                                           //writeMLDP copies the data into its queue
+                        }
+                        else {
+                            final byte[] last = new byte[length];                                   //Short packet at the end of a window
+                            mapped.get(last);
+                            bleService.writeMLDP(last);
+                        }
+                        position += length;
+                        depth++;
+                    }
+                }
+                final long now = SystemClock.elapsedRealtime();
+                if (position >= size && bleService.getTxQueueDepth() == 0) {                        //Everything has been written
+                    status = STATUS_COMPLETE;
+                }
+                else if (now - lastProgressTime >= PROGRESS_TIME) {
+                    lastProgressTime = now;
+                    bleService.onFileSendProgress(position, size, getRate());
+                }
+            }
+            catch (IOException e) {
+                Log.e(TAG, "Unable to read file: " + e.getMessage());
+                status = STATUS_ERROR;
+            }
+        }
+        if (status >= 0) {
+            finish(status);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Close the file and report the result
+    private void finish(int status) {
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            mapped = null;
+            try {
+                source.close();
+            }
+            catch (IOException e) {
+                Log.w(TAG, "Unable to close file: " + e.getMessage());
+            }
+        }
+        Log.i(TAG, "File send finished with status " + status + " after " + position + " of " + size + " bytes");
+        bleService.onFileSendFinished(status, position, size, getRate());
+    }
+}
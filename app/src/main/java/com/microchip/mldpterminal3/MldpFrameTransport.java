@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * Reliable framed transport over the MLDP or Transparent data characteristics.
+ *
+ * Data is carried in frames with an 8-bit sequence number and a CRC-16, delimited with HDLC style flag bytes so frames
+ * can be split or joined across packets by the module. The receiver delivers payloads in order, buffers frames that
+ * arrive early, acknowledges with a cumulative ACK and asks for a missing frame with a NACK so only that frame is sent
+ * again. Only one NACK is outstanding at a time; it is repeated after NACK_TIME if the frame has still not come.
+ * Frames still unacknowledged after RETRANSMIT_TIME are resent oldest first.
+ * The same class is used at both ends of the link, so a host MCU can implement the identical frame format.
+ *
+ * Frame: 0x7E, type, sequence, payload (DATA only), CRC-16/CCITT-FALSE of type to payload (big-endian), 0x7E.
+ * 0x7E and 0x7D inside a frame are sent as 0x7D followed by the byte XOR 0x20.
+ *
+ * The transport has no timer of its own. The owner calls poll() at or after the time returned by getNextDeadline().
+ * The Listener is called without the transport's lock held, so it may take its own locks and call send() again. One
+ * thread at a time makes the calls, in order, and passes on output queued by other threads while it does.
+ */
+public class MldpFrameTransport {
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Receives the output of the transport, never with the transport's lock held
+    public interface Listener {
+        void sendFrame(byte[] frame);                                                               //Encoded frame to write to the link
+        void onPayload(byte[] payload);                                                             //Payload received in order
+    }
+
+    private static final byte FLAG = 0x7E;
+    private static final byte ESCAPE = 0x7D;
+    private static final byte ESCAPE_XOR = 0x20;
+    private static final byte TYPE_DATA = 0x01;
+    private static final byte TYPE_ACK = 0x02;
+    private static final byte TYPE_NACK = 0x03;
+
+    public static final int DEFAULT_WINDOW = 8;                                                     //Frames sent before waiting for an acknowledgement
+    public static final int DEFAULT_PAYLOAD_SIZE = 64;                                              //Largest payload in a frame
+    private static final int MAX_WINDOW = 127;                                                      //Half the sequence space so old and new frames cannot be confused
+    private static final long RETRANSMIT_TIME = 500;                                                //Milliseconds before an unacknowledged frame is sent again
+    private static final long ACK_DELAY = 20;                                                       //Milliseconds to hold an ACK so one ACK covers several frames
+    private static final long NACK_TIME = 200;                                                      //Milliseconds before asking again for the same missing frame
+
+    private static final int[] CRC_TABLE = new int[256];                                            //Table for CRC-16/CCITT-FALSE, polynomial 0x1021
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            CRC_TABLE[i] = crc & 0xffff;
+        }
+    }
+
+    private final Listener listener;
+    private final int window;
+    private final int payloadSize;
+
+    //Sender
+    private final byte[][] sentPayloads = new byte[256][];                                          //Unacknowledged payloads indexed by sequence number
+    private final long[] sentTimes = new long[256];
+    private final LinkedList<byte[]> pendingPayloads = new LinkedList<byte[]>();                    //Payloads waiting for room in the window
+    private int baseSeq, nextSeq;                                                                   //Oldest unacknowledged and next sequence number to use
+
+    //Receiver
+    private final byte[][] receivedPayloads = new byte[256][];                                      //Frames that arrived ahead of a missing frame
+    private int expectedSeq;
+    private int framesSinceAck;
+    private long ackDeadline;                                                                       //Time to send a delayed ACK, 0 if none pending
+    private boolean nackSent;                                                                       //Already asked for the frame at expectedSeq
+    private long nackTime;                                                                          //When the outstanding NACK was sent
+
+    //Frame decoder
+    private final ByteArrayOutputStream frameBuffer = new ByteArrayOutputStream();
+    private boolean escaping, discarding;
+
+    //Output for the listener
+    private final LinkedList<byte[]> outputFrames = new LinkedList<byte[]>();                       //Frames to write, oldest first
+    private final LinkedList<byte[]> outputPayloads = new LinkedList<byte[]>();                     //Payloads to deliver, in order
+    private boolean dispatching;                                                                    //A thread is calling the listener
+
+    private long framesSent, retransmits, framesReceived, payloadsDelivered, crcErrors, duplicates, acksSent, nacksSent;
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Constructor
+    public MldpFrameTransport(Listener listener, int window, int payloadSize) {
+        this.listener = listener;
+        this.window = Math.max(1, Math.min(MAX_WINDOW, window));
+        this.payloadSize = Math.max(1, payloadSize);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start again on a new connection, anything not yet delivered is lost
+    public synchronized void reset() {
+        Arrays.fill(sentPayloads, null);
+        Arrays.fill(receivedPayloads, null);
+        pendingPayloads.clear();
+        baseSeq = nextSeq = expectedSeq = framesSinceAck = 0;
+        ackDeadline = 0;
+        nackSent = escaping = discarding = false;
+        frameBuffer.reset();
+        outputFrames.clear();
+        outputPayloads.clear();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Send data reliably, split into frames of up to payloadSize bytes
+    public void send(byte[] data, long now) {
+        synchronized (this) {
+            for (int i = 0; i < data.length; i += payloadSize) {
+                pendingPayloads.add(Arrays.copyOfRange(data, i, Math.min(data.length, i + payloadSize)));
+            }
+            fillWindow(now);
+        }
+        dispatch();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Decode received bytes, which may hold any part of one or more frames
+    public void onReceived(byte[] data, long now) {
+        synchronized (this) {
+            for (byte b : data) {
+                if (b == FLAG) {                                                                    //End of one frame and start of the next
+                    if (frameBuffer.size() > 0 && !discarding) {
+                        handleFrame(frameBuffer.toByteArray(), now);
+                    }
+                    frameBuffer.reset();
+                    escaping = discarding = false;
+                }
+                else if (b == ESCAPE) {
+                    escaping = true;
+                }
+                else if (!discarding) {
+                    frameBuffer.write(escaping ? b ^ ESCAPE_XOR : b);
+                    escaping = false;
+                    if (frameBuffer.size() > payloadSize + 4) {                                     //Too long to be a frame so drop it
+                        crcErrors++;
+                        discarding = true;
+                    }
+                }
+            }
+        }
+        dispatch();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Send a delayed ACK or retransmit the oldest frame if their time has come
+    public void poll(long now) {
+        synchronized (this) {
+            if (ackDeadline != 0 && now >= ackDeadline) {
+                sendAck();
+            }
+            if (baseSeq != nextSeq && now - sentTimes[baseSeq] >= RETRANSMIT_TIME) {                //Oldest frame has not been acknowledged
+                retransmit(baseSeq, now);
+            }
+        }
+        dispatch();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Time when poll() needs to be called next, or 0 if nothing is waiting on a timer
+    public synchronized long getNextDeadline() {
+        long deadline = ackDeadline;
+        if (baseSeq != nextSeq) {
+            long retransmitTime = sentTimes[baseSeq] + RETRANSMIT_TIME;
+            if (deadline == 0 || retransmitTime < deadline) {
+                deadline = retransmitTime;
+            }
+        }
+        return deadline;
+    }
+
+    // Frames sent and not yet acknowledged plus payloads waiting for the window
+    public synchronized int getQueuedFrames() {
+        return distance(baseSeq, nextSeq) + pendingPayloads.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Frames sent %d, retransmitted %d, received %d, delivered %d, CRC errors %d, duplicates %d, ACKs %d, NACKs %d",
+                framesSent, retransmits, framesReceived, payloadsDelivered, crcErrors, duplicates, acksSent, nacksSent);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Pass queued frames and payloads to the listener with the lock released. Frames go first so ACKs are not held up
+    // behind delivery. Returns at once if another thread is already doing this, as it will pass on this output too.
+    private void dispatch() {
+        synchronized (this) {
+            if (dispatching) {
+                return;
+            }
+            dispatching = true;
+        }
+        boolean done = false;
+        try {
+            while (true) {
+                final byte[] frame;
+                final byte[] payload;
+                synchronized (this) {
+                    frame = outputFrames.poll();
+                    payload = frame == null ? outputPayloads.poll() : null;
+                    if (frame == null && payload == null) {
+                        dispatching = false;
+                        done = true;
+                        return;
+                    }
+                }
+                if (frame != null) {
+                    listener.sendFrame(frame);
+                }
+                else {
+                    listener.onPayload(payload);
+                }
+            }
+        }
+        finally {
+            if (!done) {                                                                            //Listener threw, let the next call carry on
+                synchronized (this) {
+                    dispatching = false;
+                }
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Send pending payloads while there is room in the window
+    private void fillWindow(long now) {
+        while (!pendingPayloads.isEmpty() && distance(baseSeq, nextSeq) < window) {
+            byte[] payload = pendingPayloads.poll();
+            sentPayloads[nextSeq] = payload;
+            sentTimes[nextSeq] = now;
+            outputFrames.add(encode(TYPE_DATA, nextSeq, payload));
+            nextSeq = (nextSeq + 1) & 0xff;
+            framesSent++;
+        }
+    }
+
+    private void retransmit(int seq, long now) {
+        if (sentPayloads[seq] != null) {
+            sentTimes[seq] = now;
+            outputFrames.add(encode(TYPE_DATA, seq, sentPayloads[seq]));
+            retransmits++;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Handle a complete unescaped frame
+    private void handleFrame(byte[] frame, long now) {
+        final int length = frame.length;
+        if (length < 4 || crc16(0xffff, frame, 0, length - 2) != (((frame[length - 2] & 0xff) << 8) | (frame[length - 1] & 0xff))) {
+            crcErrors++;                                                                            //Corrupted, so ask for the frame we are waiting for
+            requestMissing(now);
+            return;
+        }
+        final int seq = frame[1] & 0xff;
+        switch (frame[0]) {
+            case TYPE_DATA:
+                framesReceived++;
+                receiveData(seq, Arrays.copyOfRange(frame, 2, length - 2), now);
+                break;
+            case TYPE_ACK:
+                acknowledge(seq);
+                fillWindow(now);
+                break;
+            case TYPE_NACK:                                                                         //Everything before seq has arrived and seq is missing
+                acknowledge((seq - 1) & 0xff);
+                retransmit(seq, now);
+                fillWindow(now);
+                break;
+            default:
+                crcErrors++;
+                break;
+        }
+    }
+
+    private void receiveData(int seq, byte[] payload, long now) {
+        final int ahead = distance(expectedSeq, seq);
+        if (ahead == 0) {                                                                           //The frame we were waiting for
+            deliver(payload);
+            while (receivedPayloads[expectedSeq] != null) {                                         //Deliver frames that arrived early
+                byte[] buffered = receivedPayloads[expectedSeq];
+                receivedPayloads[expectedSeq] = null;
+                deliver(buffered);
+            }
+            nackSent = false;
+            if (++framesSinceAck >= (window + 1) / 2) {                                             //Acknowledge at least twice per window
+                sendAck();
+            }
+            else if (ackDeadline == 0) {
+                ackDeadline = now + ACK_DELAY;
+            }
+        }
+        else if (ahead < window) {                                                                  //Early, so keep it and ask for the missing frame
+            if (receivedPayloads[seq] == null) {
+                receivedPayloads[seq] = payload;
+            }
+            else {
+                duplicates++;
+            }
+            requestMissing(now);
+        }
+        else {                                                                                      //Already delivered, so our ACK was lost
+            duplicates++;
+            sendAck();
+        }
+    }
+
+    private void deliver(byte[] payload) {
+        expectedSeq = (expectedSeq + 1) & 0xff;
+        payloadsDelivered++;
+        outputPayloads.add(payload);
+    }
+
+    // Free the sender's copies of all frames up to and including seq
+    private void acknowledge(int seq) {
+        final int count = distance(baseSeq, seq) + 1;
+        if (count > distance(baseSeq, nextSeq)) {                                                   //Old or invalid acknowledgement
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            sentPayloads[baseSeq] = null;
+            baseSeq = (baseSeq + 1) & 0xff;
+        }
+    }
+
+    private void sendAck() {
+        outputFrames.add(encode(TYPE_ACK, (expectedSeq - 1) & 0xff, null));
+        ackDeadline = 0;
+        framesSinceAck = 0;
+        acksSent++;
+    }
+
+    // NACK the frame at expectedSeq unless a NACK for it is already outstanding
+    private void requestMissing(long now) {
+        if (nackSent && now - nackTime < NACK_TIME) {
+            return;
+        }
+        outputFrames.add(encode(TYPE_NACK, expectedSeq, null));
+        nackSent = true;
+        nackTime = now;
+        nacksSent++;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Build a frame with flags, escaping and CRC
+    private static byte[] encode(byte type, int seq, byte[] payload) {
+        final int payloadLength = payload == null ? 0 : payload.length;
+        byte[] body = new byte[payloadLength + 4];
+        body[0] = type;
+        body[1] = (byte) seq;
+        if (payloadLength > 0) {
+            System.arraycopy(payload, 0, body, 2, payloadLength);
+        }
+        int crc = crc16(0xffff, body, 0, payloadLength + 2);
+        body[payloadLength + 2] = (byte) (crc >> 8);
+        body[payloadLength + 3] = (byte) crc;
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(body.length + 8);
+        frame.write(FLAG);
+        for (byte b : body) {
+            if (b == FLAG || b == ESCAPE) {
+                frame.write(ESCAPE);
+                frame.write(b ^ ESCAPE_XOR);
+            }
+            else {
+                frame.write(b);
+            }
+        }
+        frame.write(FLAG);
+        return frame.toByteArray();
+    }
+
+    // CRC-16 with polynomial 0x1021, starting value 0xffff for CCITT-FALSE or 0 for XMODEM
+    static int crc16(int crc, byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            crc = ((crc << 8) ^ CRC_TABLE[((crc >> 8) ^ data[i]) & 0xff]) & 0xffff;
+        }
+        return crc;
+    }
+
+    private static int distance(int from, int to) {
+        return (to - from) & 0xff;
+    }
+}
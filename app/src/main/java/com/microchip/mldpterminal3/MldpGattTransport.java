@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * MldpTransport over a real Bluetooth LE connection.
+ *
+ * GATT events arrive at the BluetoothGattCallback given to the constructor. That callback, in the MldpBluetoothService,
+ * also does the MLDP specific GATT work (MTU exchange, finding the characteristics, enabling notifications and the
+ * control characteristic) and passes the connection and data events on to the Callback.
+ */
+public class MldpGattTransport implements MldpTransport {
+
+    private final static String TAG = MldpGattTransport.class.getSimpleName();                     //Class name for logging messages on the ADB
+
+    public final static int DEFAULT_MTU = 23;                                                       //ATT MTU before any exchange, allows 20 bytes of data per write
+
+    private final Context context;
+    private final BluetoothAdapter bluetoothAdapter;
+    private final BluetoothGattCallback gattCallback;
+    private Callback callback;
+    private BluetoothGatt bluetoothGatt;
+    private volatile BluetoothGattCharacteristic writeCharacteristic;                               //Set once the data characteristics are found
+    private volatile int mtu = DEFAULT_MTU;
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Constructor
+    public MldpGattTransport(Context context, BluetoothAdapter bluetoothAdapter, BluetoothGattCallback gattCallback) {
+        this.context = context;
+        this.bluetoothAdapter = bluetoothAdapter;
+        this.gattCallback = gattCallback;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        this.callback = callback;
+    }
+
+    public Callback getCallback() {
+        return callback;
+    }
+
+    @Override
+    public boolean connect(String address) {
+        final BluetoothDevice device = bluetoothAdapter.getRemoteDevice(address);
+        if (device == null) {
+            Log.w(TAG, "Unable to connect because device was not found");
+            return false;
+        }
+        writeCharacteristic = null;
+        mtu = DEFAULT_MTU;
+        bluetoothGatt = device.connectGatt(context, false, gattCallback);                           //Directly connect to the device, so set autoConnect to false
+        return bluetoothGatt != null;
+    }
+
+    // Try again with the same BluetoothGatt after a failed attempt
+    public void reconnect() {
+        if (bluetoothGatt != null) {
+            bluetoothGatt.connect();
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        if (bluetoothGatt != null) {
+            bluetoothGatt.disconnect();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (bluetoothGatt != null) {
+            bluetoothGatt.close();
+            bluetoothGatt = null;
+        }
+        writeCharacteristic = null;
+    }
+
+    @Override
+    public boolean discover() {
+        writeCharacteristic = null;
+        return bluetoothGatt != null && bluetoothGatt.discoverServices();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write one packet. BluetoothGatt copies the value when the write is issued.
+    @Override
+    public boolean write(byte[] data) {
+        final BluetoothGattCharacteristic characteristic = writeCharacteristic;
+        if (bluetoothGatt == null || characteristic == null) {
+            return false;
+        }
+        characteristic.setValue(data);
+        return bluetoothGatt.writeCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean isReady() {
+        return bluetoothGatt != null && writeCharacteristic != null;
+    }
+
+    @Override
+    public boolean isWriteWithoutResponse() {
+        final BluetoothGattCharacteristic characteristic = writeCharacteristic;
+        return characteristic != null && characteristic.getWriteType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+    }
+
+    @Override
+    public int getMtu() {
+        return mtu;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called from the BluetoothGattCallback as the connection is set up
+    void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    void setWriteCharacteristic(BluetoothGattCharacteristic characteristic) {
+        writeCharacteristic = characteristic;
+    }
+
+    // Connection for the GATT operations that are not part of the data path
+    BluetoothGatt getGatt() {
+        return bluetoothGatt;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Background round trip probe for watching link latency during a normal session.
+ *
+ * Every period a tagged ping "~Pxxxx\r\n", with xxxx the tag in hex, is written and the peripheral is expected to send
+ * it back, as an echo or from its firmware. The reply is recognised in the received bytes as they arrive, before the
+ * decoders, framing of replies or the main thread add any delay, and a reply that arrives whole in one notification is
+ * removed so it is not shown. Only one ping is outstanding at a time, so the probe costs a few bytes per period.
+ * Pings are skipped while a file, benchmark or a backlog of writes is using the link.
+ *
+ * The last WINDOW_SIZE round trips are kept. The link is flagged as degraded when the median of the last few round
+ * trips is well above the median of the whole window, or pings go unanswered, and flagged again when it recovers.
+ */
+public class MldpLatencyProbe {
+
+    private final static String TAG = MldpLatencyProbe.class.getSimpleName();                      //Class name for logging messages on the ADB
+
+    public static final long DEFAULT_PERIOD = 5000;                                                 //Milliseconds between pings
+
+    private static final byte[] PATTERN = {'~', 'P', 0, 0, 0, 0, '\r', '\n'};                       //Zeros are the hex digits of the tag
+    private static final int TAG_START = 2;
+    private static final int TAG_END = 6;
+    private static final int BACKLOG_LIMIT = 4;                                                     //Skip a ping when more writes than this are queued
+    private static final int WINDOW_SIZE = 64;                                                      //Round trips kept for the distribution
+    private static final int RECENT_SIZE = 4;                                                       //Latest round trips compared with the window
+    private static final int MIN_SAMPLES = 16;                                                      //Round trips needed before judging degradation
+    private static final double DEGRADED_FACTOR = 2.0;                                              //Recent median over window median that counts as degraded
+    private static final long DEGRADED_MARGIN = 20000;                                              //And at least this many microseconds over it
+    private static final int DEGRADED_TIMEOUTS = 2;                                                 //Unanswered pings in a row that count as degraded
+
+    private final MldpBluetoothService bleService;
+    private final long period;
+    private final Handler handler;
+
+    private final long[] samples = new long[WINDOW_SIZE];                                           //Round trips in microseconds, oldest overwritten
+    private int sampleCount, sampleNext;
+    private int nextTag, outstandingTag = -1;                                                       //-1 when no ping is waiting for a reply
+    private long sentTime;                                                                          //System.nanoTime() the outstanding ping was written
+    private int matched, matchedTag;                                                                //Progress through PATTERN in the received bytes
+    private int timeoutsInRow;
+    private boolean running, degraded;
+    private long pings, replies, timeouts, skipped, bytesSent;
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Constructor
+    public MldpLatencyProbe(MldpBluetoothService bleService, long period) {
+        this.bleService = bleService;
+        this.period = period;
+        handler = new Handler(Looper.getMainLooper());
+    }
+
+    public synchronized void start() {
+        running = true;
+        handler.removeCallbacks(timer);
+        handler.postDelayed(timer, period);
+    }
+
+    public synchronized void stop() {
+        running = false;
+        handler.removeCallbacks(timer);
+    }
+
+    public synchronized boolean isDegraded() {
+        return degraded;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Each period, count an unanswered ping and send the next one if the link is not busy
+    private final Runnable timer = new Runnable() {
+        @Override
+        public void run() {
+            byte[] ping = null;
+            synchronized (MldpLatencyProbe.this) {
+                if (!running) {
+                    return;
+                }
+                handler.postDelayed(timer, period);
+                if (outstandingTag >= 0) {                                                          //No reply within a period
+                    outstandingTag = -1;
+                    timeouts++;
+                    timeoutsInRow++;
+                    updateDegraded();
+                }
+                if (!bleService.isDataReady() || bleService.isSendingFile() || bleService.isBenchmarking()
+                        || bleService.getTxQueueDepth() > BACKLOG_LIMIT) {
+                    skipped++;                                                                      //Bulk transfer in progress, so keep out of its way
+                }
+                else {
+                    outstandingTag = nextTag;
+                    nextTag = (nextTag + 1) & 0xffff;
+                    ping = Arrays.copyOf(PATTERN, PATTERN.length);
+                    final String hex = String.format(Locale.US, "%04X", outstandingTag);
+                    for (int i = TAG_START; i < TAG_END; i++) {
+                        ping[i] = (byte) hex.charAt(i - TAG_START);
+                    }
+                    pings++;
+                    bytesSent += ping.length;
+                    sentTime = System.nanoTime();
+                }
+            }
+            if (ping != null) {
+                bleService.writeMLDP(ping);
+            }
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Look for ping replies in received data. Returns the data to deliver, with any reply that arrived whole removed.
+    byte[] onDataReceived(byte[] data) {
+        ByteArrayOutputStream kept = null;                                                          //Only made when a reply is cut out
+        int keptFrom = 0;
+        synchronized (this) {
+            for (int i = 0; i < data.length; i++) {
+                final byte b = data[i];
+                if (matched >= TAG_START && matched < TAG_END) {                                    //Hex digits of the tag
+                    final int digit = Character.digit(b, 16);
+                    if (digit >= 0) {
+                        matchedTag = (matchedTag << 4) | digit;
+                        matched++;
+                        continue;
+                    }
+                }
+                else if (b == PATTERN[matched]) {
+                    if (matched == 0) {
+                        matchedTag = 0;
+                    }
+                    if (++matched == PATTERN.length) {
+                        matched = 0;
+                        onReply(matchedTag);
+                        final int start = i + 1 - PATTERN.length;
+                        if (start >= keptFrom) {                                                    //Whole reply is in this notification
+                            if (kept == null) {
+                                kept = new ByteArrayOutputStream(data.length);
+                            }
+                            kept.write(data, keptFrom, start - keptFrom);
+                            keptFrom = i + 1;
+                        }
+                    }
+                    continue;
+                }
+                matched = b == PATTERN[0] ? 1 : 0;                                                  //'~' only appears at the start of the pattern
+                matchedTag = 0;
+            }
+        }
+        if (kept == null) {
+            return data;
+        }
+        kept.write(data, keptFrom, data.length - keptFrom);
+        return kept.toByteArray();
+    }
+
+    private void onReply(int tag) {
+        if (tag != outstandingTag) {                                                                //Late reply to a ping already counted as a timeout
+            return;
+        }
+        outstandingTag = -1;
+        replies++;
+        timeoutsInRow = 0;
+        samples[sampleNext] = (System.nanoTime() - sentTime) / 1000;
+        sampleNext = (sampleNext + 1) % WINDOW_SIZE;
+        sampleCount = Math.min(sampleCount + 1, WINDOW_SIZE);
+        updateDegraded();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Compare the latest round trips with the window and report a change
+    private void updateDegraded() {
+        boolean nowDegraded = timeoutsInRow >= DEGRADED_TIMEOUTS;
+        if (!nowDegraded && sampleCount >= MIN_SAMPLES && timeoutsInRow == 0) {
+            final long windowMedian = median(sampleCount);
+            final long recentMedian = median(RECENT_SIZE);
+            nowDegraded = recentMedian > windowMedian * DEGRADED_FACTOR && recentMedian - windowMedian > DEGRADED_MARGIN;
+        }
+        else if (!nowDegraded && timeoutsInRow > 0) {
+            nowDegraded = degraded;                                                                 //One lost ping changes nothing
+        }
+        if (nowDegraded != degraded) {
+            degraded = nowDegraded;
+            final long latest = sampleCount > 0 ? samples[(sampleNext + WINDOW_SIZE - 1) % WINDOW_SIZE] / 1000 : -1;
+            Log.i(TAG, (degraded ? "Link latency degraded, " : "Link latency recovered, ") + latest + " ms");
+            final boolean alertDegraded = degraded;
+            handler.post(new Runnable() {                                                           //Report on the main thread, outside the lock
+                @Override
+                public void run() {
+                    bleService.onLatencyAlert(alertDegraded, latest);
+                }
+            });
+        }
+    }
+
+    // Median of the latest count round trips in microseconds
+    private long median(int count) {
+        final long[] latest = new long[count];
+        for (int i = 0; i < count; i++) {
+            latest[i] = samples[(sampleNext + WINDOW_SIZE - 1 - i) % WINDOW_SIZE];
+        }
+        Arrays.sort(latest);
+        return latest[count / 2];
+    }
+
+    @Override
+    public synchronized String toString() {
+        String distribution = "";
+        if (sampleCount > 0) {
+            final long[] sorted = new long[sampleCount];
+            for (int i = 0; i < sampleCount; i++) {
+                sorted[i] = samples[(sampleNext + WINDOW_SIZE - 1 - i) % WINDOW_SIZE];
+            }
+            Arrays.sort(sorted);
+            distribution = String.format(Locale.US, ", round trip min %.1f ms, p50 %.1f ms, p90 %.1f ms, max %.1f ms",
+                    sorted[0] / 1000.0, sorted[sampleCount / 2] / 1000.0, sorted[Math.min(sampleCount - 1, sampleCount * 9 / 10)] / 1000.0,
+                    sorted[sampleCount - 1] / 1000.0);
+        }
+        return String.format(Locale.US, "Latency probe%s: %d pings, %d replies, %d timeouts, %d skipped, %d bytes sent%s",
+                degraded ? " (degraded)" : "", pings, replies, timeouts, skipped, bytesSent, distribution);
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Adjusts the connection priority of the MldpBluetoothService link to match the traffic.
+ *
+ * Switches to high priority (short connection interval) while writes are queued or data is flowing quickly, and drops
+ * back to balanced and then low power once the link has been quiet for a while. The hold times give hysteresis so a
+ * short pause in a bulk transfer does not cause the connection parameters to be renegotiated.
+ * Throughput and write latency are measured separately for each priority so the gain can be seen.
+ */
+public class MldpLinkTuner {
+
+    private final static String TAG = MldpLinkTuner.class.getSimpleName();                         //Class name for logging messages on the ADB
+
+    public static final int PRIORITY_BALANCED = 0;                                                  //Same values as BluetoothGatt.CONNECTION_PRIORITY_xxx added in API 21
+    public static final int PRIORITY_HIGH = 1;
+    public static final int PRIORITY_LOW_POWER = 2;
+    private static final String[] PRIORITY_NAMES = {"Balanced", "High", "Low power"};
+
+    private static final long EVALUATE_TIME = 500;                                                  //Milliseconds between checks of the traffic
+    private static final int HIGH_QUEUE_DEPTH = 4;                                                  //Queued writes that switch to high priority
+    private static final long HIGH_BYTES_PER_SECOND = 400;                                          //Combined Tx and Rx rate that switches to high priority
+    private static final long QUIET_BYTES_PER_SECOND = 100;                                         //Combined rate below which the link is considered quiet
+    private static final long BALANCED_HOLD_TIME = 2000;                                            //Quiet time before dropping from high to balanced priority
+    private static final long LOW_POWER_HOLD_TIME = 10000;                                          //Time with no traffic at all before dropping to low power
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Measurements for one connection priority
+    public static class ModeStats {
+        private final String name;
+        private long time, txBytes, rxBytes, writes, latencyTotal, latencyMax;                      //Time in milliseconds, latency in nanoseconds
+
+        private ModeStats(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getTimeMillis() {
+            return time;
+        }
+
+        public long getTxBytes() {
+            return txBytes;
+        }
+
+        public long getRxBytes() {
+            return rxBytes;
+        }
+
+        //Average combined Tx and Rx throughput in bytes per second while in this mode
+        public double getThroughput() {
+            return time > 0 ? (txBytes + rxBytes) * 1000.0 / time : 0;
+        }
+
+        //Average time in milliseconds from issuing a write to its completion callback
+        public double getAverageLatency() {
+            return writes > 0 ? latencyTotal / 1e6 / writes : 0;
+        }
+
+        public double getMaxLatency() {
+            return latencyMax / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d ms, %.0f bytes/s, write latency avg %.1f ms max %.1f ms", name, time, getThroughput(), getAverageLatency(), getMaxLatency());
+        }
+    }
+
+    private final MldpBluetoothService bleService;
+    private final Handler handler;
+    private final ModeStats[] modeStats = new ModeStats[PRIORITY_NAMES.length];
+
+    private boolean running;
+    private int priority = PRIORITY_BALANCED;                                                       //Android uses balanced priority for a new connection
+    private long modeStartTime, lastBusyTime, lastTrafficTime, lastEvaluateTime;
+    private long windowBytes;                                                                       //Tx and Rx bytes since the last evaluation
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Constructor
+    public MldpLinkTuner(MldpBluetoothService bleService) {
+        this.bleService = bleService;
+        handler = new Handler(Looper.getMainLooper());
+        for (int i = 0; i < modeStats.length; i++) {
+            modeStats[i] = new ModeStats(PRIORITY_NAMES[i]);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start tuning a new connection
+    public synchronized void start() {
+        long now = SystemClock.elapsedRealtime();
+        priority = PRIORITY_BALANCED;
+        modeStartTime = lastBusyTime = lastTrafficTime = lastEvaluateTime = now;
+        windowBytes = 0;
+        running = true;
+        handler.removeCallbacks(evaluate);
+        handler.postDelayed(evaluate, EVALUATE_TIME);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Stop tuning when the connection ends, the statistics are kept
+    public synchronized void stop() {
+        if (running) {
+            modeStats[priority].time += SystemClock.elapsedRealtime() - modeStartTime;              //Account for the time in the final mode
+            running = false;
+        }
+        handler.removeCallbacks(evaluate);
+    }
+
+    public synchronized int getPriority() {
+        return priority;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Copy of the measurements for each priority, indexed by PRIORITY_xxx
+    public synchronized ModeStats[] getModeStats() {
+        ModeStats[] copy = new ModeStats[modeStats.length];
+        for (int i = 0; i < modeStats.length; i++) {
+            ModeStats stats = new ModeStats(modeStats[i].name);
+            stats.time = modeStats[i].time + (running && i == priority ? SystemClock.elapsedRealtime() - modeStartTime : 0);
+            stats.txBytes = modeStats[i].txBytes;
+            stats.rxBytes = modeStats[i].rxBytes;
+            stats.writes = modeStats[i].writes;
+            stats.latencyTotal = modeStats[i].latencyTotal;
+            stats.latencyMax = modeStats[i].latencyMax;
+            copy[i] = stats;
+        }
+        return copy;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called by the MldpBluetoothService when a write has completed
+    public synchronized void onWriteComplete(int bytes, long latencyNanos) {
+        ModeStats stats = modeStats[priority];
+        stats.txBytes += bytes;
+        stats.writes++;
+        stats.latencyTotal += latencyNanos;
+        if (latencyNanos > stats.latencyMax) {
+            stats.latencyMax = latencyNanos;
+        }
+        windowBytes += bytes;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called by the MldpBluetoothService when a notification has been received
+    public synchronized void onDataReceived(int bytes) {
+        modeStats[priority].rxBytes += bytes;
+        windowBytes += bytes;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Look at the traffic since the last check and change priority if needed
+    private final Runnable evaluate = new Runnable() {
+        @Override
+        public void run() {
+            int queueDepth = bleService.getTxQueueDepth();                                          //Before the tuner lock, the service calls in holding its queue lock
+            synchronized (MldpLinkTuner.this) {
+                if (!running) {
+                    return;
+                }
+                long now = SystemClock.elapsedRealtime();
+                long rate = windowBytes * 1000 / Math.max(1, now - lastEvaluateTime);               //Bytes per second since the last check
+                if (windowBytes > 0 || queueDepth > 0) {
+                    lastTrafficTime = now;
+                }
+                if (queueDepth >= HIGH_QUEUE_DEPTH || rate >= HIGH_BYTES_PER_SECOND || (queueDepth > 0 && rate >= QUIET_BYTES_PER_SECOND)) {
+                    lastBusyTime = now;
+                }
+                windowBytes = 0;
+                lastEvaluateTime = now;
+
+                int wanted;
+                if (now - lastBusyTime < BALANCED_HOLD_TIME) {                                      //Busy recently so stay at or go to high priority
+                    wanted = (priority == PRIORITY_HIGH || now == lastBusyTime) ? PRIORITY_HIGH : priority;
+                }
+                else if (now - lastTrafficTime >= LOW_POWER_HOLD_TIME) {                            //No traffic for a long time
+                    wanted = PRIORITY_LOW_POWER;
+                }
+                else if (priority == PRIORITY_LOW_POWER && now != lastTrafficTime) {                //Stay at low power until there is traffic again
+                    wanted = PRIORITY_LOW_POWER;
+                }
+                else {
+                    wanted = PRIORITY_BALANCED;
+                }
+                if (wanted != priority) {
+                    if (bleService.requestConnectionPriority(wanted)) {                             //Ask for new connection parameters
+                        modeStats[priority].time += now - modeStartTime;
+                        modeStartTime = now;
+                        Log.d(TAG, "Connection priority changed from " + PRIORITY_NAMES[priority] + " to " + PRIORITY_NAMES[wanted]);
+                        priority = wanted;
+                    }
+                    else {                                                                          //Not supported on this Android version so stop trying
+                        Log.d(TAG, "Connection priority request not available");
+                        return;
+                    }
+                }
+                handler.postDelayed(evaluate, EVALUATE_TIME);
+            }
+        }
+    };
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Locale;
+
+/**
+ * Data waiting to be sent, kept in a file so it is not lost when the link drops or the app is restarted.
+ *
+ * Writes are appended to the file as a 4 byte length and the data. The file starts with a magic and the offset of the
+ * oldest data not yet sent, which is only moved on by commit() once everything read has been written to the link. Data
+ * read but not committed is read again after rewind(), so a disconnect part way through can send some data twice but
+ * never loses it. drain() applies these rules for a Link: it only commits when the link has nothing left queued and has
+ * not dropped a write since the last commit, and rewinds instead if it has. The queue holds up to its capacity in
+ * bytes, then either drops the oldest data or refuses new data.
+ * The file is emptied once everything has been sent, and compacted when sent data takes up more than the capacity.
+ */
+public class MldpOutboundQueue {
+
+    public static final int POLICY_DROP_OLDEST = 0;                                                 //Make room by dropping what has waited longest
+    public static final int POLICY_DROP_NEWEST = 1;                                                 //Refuse new data when full
+    public static final String FILE_NAME = "outbound_queue.dat";
+
+    private static final int MAGIC = 0x4D4C4451;                                                    //"MLDQ"
+    private static final int HEADER_SIZE = 12;                                                      //Magic and offset of the oldest data
+    private static final int LENGTH_SIZE = 4;
+
+    private final RandomAccessFile file;
+    private final long capacity;
+    private final int policy;
+    private long head;                                                                              //Oldest data not committed
+    private long readOffset;                                                                        //Next data to read
+    private long end;
+    private long added, sent, dropped, refused, resent;
+    private long linkDrops;                                                                         //Link drop count when data was last committed or rewound
+
+    // Write path that drain() sends to
+    public interface Link {
+        boolean isReady();
+        int getDepth();                                                                             //Writes queued or in flight
+        long getDropCount();                                                                        //Writes given up on or failed, never goes down
+        void send(byte[] data);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Constructor opens the file, keeping anything left in it from before
+    public MldpOutboundQueue(File path, long capacity, int policy) throws IOException {
+        this.capacity = capacity;
+        this.policy = policy;
+        file = new RandomAccessFile(path, "rw");
+        end = file.length();
+        if (end >= HEADER_SIZE && file.readInt() == MAGIC) {
+            head = file.readLong();
+            end = validEnd(head, end);
+            if (head > end) {
+                head = end;
+            }
+        }
+        else {                                                                                      //New or unreadable file
+            head = end = HEADER_SIZE;
+            writeHead();
+        }
+        file.setLength(end);                                                                        //Drop a write cut short by a crash
+        readOffset = head;
+    }
+
+    // End of the last whole write in the file
+    private long validEnd(long offset, long length) throws IOException {
+        while (offset + LENGTH_SIZE <= length) {
+            file.seek(offset);
+            final int size = file.readInt();
+            if (size < 0 || offset + LENGTH_SIZE + size > length) {
+                break;
+            }
+            offset += LENGTH_SIZE + size;
+        }
+        return offset;
+    }
+
+    private void writeHead() throws IOException {
+        file.seek(0);
+        file.writeInt(MAGIC);
+        file.writeLong(head);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Add data at the end of the queue. Returns false if it was refused because the queue is full.
+    public synchronized boolean add(byte[] data) throws IOException {
+        final long size = LENGTH_SIZE + data.length;
+        if (size > capacity) {
+            refused++;
+            return false;
+        }
+        if (end - head + size > capacity) {
+            if (policy == POLICY_DROP_NEWEST) {
+                refused++;
+                return false;
+            }
+            while (end - head + size > capacity) {                                                  //Drop the oldest writes until there is room
+                file.seek(head);
+                head += LENGTH_SIZE + file.readInt();
+                dropped++;
+            }
+            readOffset = Math.max(readOffset, head);
+            writeHead();
+        }
+        if (head - HEADER_SIZE > capacity) {
+            compact();
+        }
+        file.seek(end);
+        file.writeInt(data.length);
+        file.write(data);
+        end += size;
+        added++;
+        return true;
+    }
+
+    // Move the data not yet committed to the start of the file
+    private void compact() throws IOException {
+        final byte[] buffer = new byte[8192];
+        long from = head, to = HEADER_SIZE;
+        while (from < end) {
+            file.seek(from);
+            final int count = file.read(buffer, 0, (int) Math.min(buffer.length, end - from));
+            file.seek(to);
+            file.write(buffer, 0, count);
+            from += count;
+            to += count;
+        }
+        readOffset -= head - HEADER_SIZE;
+        end = to;
+        head = HEADER_SIZE;
+        writeHead();
+        file.setLength(end);
+    }
+
+    // Read whole writes, joined up to about maxLength bytes, or null if there is nothing left to read
+    public synchronized byte[] read(int maxLength) throws IOException {
+        if (readOffset >= end) {
+            return null;
+        }
+        long offset = readOffset;
+        int length = 0;
+        do {                                                                                        //Always at least one write, however long
+            file.seek(offset);
+            final int size = file.readInt();
+            length += size;
+            offset += LENGTH_SIZE + size;
+        } while (offset < end && length < maxLength);
+        final byte[] data = new byte[length];
+        int position = 0;
+        while (readOffset < offset) {
+            file.seek(readOffset);
+            final int size = file.readInt();
+            file.readFully(data, position, size);
+            position += size;
+            readOffset += LENGTH_SIZE + size;
+            sent++;
+        }
+        return data;
+    }
+
+    // Everything read so far has been written to the link, so it need not be kept
+    public synchronized void commit() throws IOException {
+        if (readOffset == head) {
+            return;
+        }
+        head = readOffset;
+        if (head == end) {                                                                          //All sent so start the file again
+            head = end = readOffset = HEADER_SIZE;
+            file.setLength(end);
+        }
+        writeHead();
+    }
+
+    // The link has dropped, so send everything not committed again
+    public synchronized void rewind() {
+        readOffset = head;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Send data to the link in chunks of about chunkLength bytes while it has fewer than lowDepth writes queued. Once the
+    // link has emptied, what was read is committed, or read again if the link dropped a write in the meantime.
+    public synchronized void drain(Link link, int lowDepth, int chunkLength) throws IOException {
+        if (!link.isReady()) {
+            return;
+        }
+        if (link.getDepth() == 0) {                                                                 //Everything read has left the link one way or another
+            final long drops = link.getDropCount();
+            if (drops == linkDrops) {
+                commit();
+            }
+            else {                                                                                  //Not all of it was written so send it again
+                linkDrops = drops;
+                if (readOffset != head) {
+                    resent++;
+                }
+                rewind();
+            }
+        }
+        byte[] data;
+        while (link.getDepth() < lowDepth && (data = read(chunkLength)) != null) {
+            link.send(data);
+        }
+    }
+
+    // True if there is nothing waiting to be committed
+    public synchronized boolean isEmpty() {
+        return head == end;
+    }
+
+    // True if there is data that has not been read yet
+    public synchronized boolean hasUnread() {
+        return readOffset < end;
+    }
+
+    public synchronized void close() {
+        try {
+            file.close();
+        }
+        catch (IOException e) {
+            //Data is already in the file
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "Outbound queue: %d bytes waiting of %d, %d writes queued, %d read to send, %d dropped, %d refused, %d resent",
+                end - head, capacity, added, sent, dropped, refused, resent);
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Splits data to be written into packets that fit the ATT MTU.
+ */
+public final class MldpPacketizer {
+
+    private final static int ATT_WRITE_HEADER = 3;                                                  //Opcode and handle in each write
+
+    private MldpPacketizer() {
+    }
+
+    // Largest data in one write with the given MTU
+    public static int getPacketSize(int mtu) {
+        return mtu - ATT_WRITE_HEADER;
+    }
+
+    // Add copies of the data to the collection one packet at a time, so the caller can reuse its buffer
+    public static void split(byte[] data, int mtu, Collection<byte[]> packets) {
+        final int packetSize = getPacketSize(mtu);
+        for (int i = 0; i < data.length; i += packetSize) {
+            packets.add(Arrays.copyOfRange(data, i, Math.min(data.length, i + packetSize)));
+        }
+    }
+}
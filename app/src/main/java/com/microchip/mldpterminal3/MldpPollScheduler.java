@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Sends commands to the peripheral on fixed periods for the MldpBluetoothService and records each reply.
+ *
+ * Every schedule has an absolute deadline of start + n * period, so late timer callbacks do not add up to drift. A
+ * poll is skipped rather than queued when the previous one for the same schedule has not been answered or when the
+ * write queue is backed up, and missed periods are skipped instead of being sent in a burst. All the schedules share
+ * one timer on the main thread that is set for whichever deadline comes first. Requests go through the MldpRpcClient
+ * and each reply is appended to a CSV file with its latency.
+ *
+ * Replies are matched in order unless a prefix is given or the schedule asks for sequence tags. With ordered matching a
+ * lost reply costs that poll and the polls due in the quiet period after it, see MldpRpcClient. Use a prefix or
+ * sequence tags when the peripheral supports them so that other schedules carry on.
+ *
+ * The schedule file has one setting per line. Lines starting with # are comments.
+ *   command=?TEMP\r        Start a new schedule that sends this text (\r, \n and \t are unescaped)
+ *   name=temperature       Name used in the results, the command is used if there is none
+ *   period=1000            Milliseconds between polls
+ *   prefix=TEMP=           Reply starts with this text, otherwise replies are matched in order
+ *   match=sequence         Tag the command with a sequence number that the peripheral echoes in its reply
+ *   timeout=500            Milliseconds to wait for the reply, the period if not given
+ */
+public class MldpPollScheduler {
+
+    private final static String TAG = MldpPollScheduler.class.getSimpleName();                     //Class name for logging messages on the ADB
+
+    public static final String SCHEDULE_FILE_NAME = "poll_schedule.txt";                            //Name of the schedule file in the application files directory
+    public static final String RESULT_FILE_NAME = "poll_results.csv";                               //Name of the file that replies are appended to
+
+    private static final long MIN_PERIOD = 10;                                                      //Shortest period in milliseconds
+    private static final int BACKLOG_LIMIT = 16;                                                    //Packets queued for writing before polls are skipped
+    private static final long FLUSH_TIME = 1000;                                                    //Milliseconds between flushes of the results file
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // One command sent on a fixed period
+    public static class Schedule {
+        private final String command;
+        private String name;
+        private long period;
+        private String prefix;
+        private boolean sequence;                                                                   //Match the reply by a sequence tag
+        private long timeout;
+        private long nextDeadline;                                                                  //SystemClock.uptimeMillis() of the next poll
+        private boolean awaitingReply;
+        private long sent, replies, timeouts, skipped, latencyTotal, latencyMax;
+        private String lastReply;
+
+        public Schedule(String name, String command, long period, String prefix, long timeout) {
+            this.name = name;
+            this.command = command;
+            this.period = Math.max(MIN_PERIOD, period);
+            this.prefix = prefix;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d sent, %d replies, %d timeouts, %d skipped, latency avg %.0f ms max %d ms, last %s",
+                    name, sent, replies, timeouts, skipped, replies > 0 ? (double) latencyTotal / replies : 0, latencyMax,
+                    lastReply != null ? lastReply.trim() : "-");
+        }
+
+        //Read schedules from a file in the format described above
+        public static List<Schedule> load(File file) throws IOException {
+            List<Schedule> schedules = new ArrayList<Schedule>();
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                Schedule schedule = null;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.trim().length() == 0 || line.trim().startsWith("#")) {                 //Skip blank lines and comments
+                        continue;
+                    }
+                    int split = line.indexOf('=');
+                    if (split < 0) {
+                        throw new IOException("Missing '=' in schedule line: " + line);
+                    }
+                    String key = line.substring(0, split).trim();
+                    String value = unescape(line.substring(split + 1));
+                    if (key.equals("command")) {
+                        schedule = new Schedule(value.trim(), value, 1000, null, 0);                //Each command starts a new schedule
+                        schedules.add(schedule);
+                    }
+                    else if (key.equals("name") && schedule != null) {
+                        schedule.name = value.trim();
+                    }
+                    else if (key.equals("period") && schedule != null) {
+                        schedule.period = Math.max(MIN_PERIOD, Long.parseLong(value.trim()));
+                    }
+                    else if (key.equals("prefix") && schedule != null) {
+                        schedule.prefix = value;
+                    }
+                    else if (key.equals("match") && schedule != null
+                            && (value.trim().equals("sequence") || value.trim().equals("ordered"))) {
+                        schedule.sequence = value.trim().equals("sequence");
+                    }
+                    else if (key.equals("timeout") && schedule != null) {
+                        schedule.timeout = Long.parseLong(value.trim());
+                    }
+                    else {
+                        throw new IOException("Unexpected schedule line: " + line);
+                    }
+                }
+            }
+            catch (NumberFormatException e) {                                                       //Bad period or timeout value
+                throw new IOException(e.getMessage());
+            }
+            finally {
+                reader.close();
+            }
+            return schedules;
+        }
+
+        private static String unescape(String value) {
+            return value.replace("\\r", "\r").replace("\\n", "\n").replace("\\t", "\t");
+        }
+    }
+
+    private final MldpBluetoothService bleService;
+    private final MldpRpcClient rpcClient;
+    private final List<Schedule> schedules;
+    private final File resultFile;
+    private final Handler handler;                                                                  //All events are handled on the main thread so no locking is needed
+    private Writer results;
+    private volatile boolean running;
+    private long lastFlushTime, lateMax;                                                            //Most milliseconds a poll went out after its deadline
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Constructor
+    public MldpPollScheduler(MldpBluetoothService bleService, MldpRpcClient rpcClient, List<Schedule> schedules, File resultFile) {
+        this.bleService = bleService;
+        this.rpcClient = rpcClient;
+        this.schedules = schedules;
+        this.resultFile = resultFile;
+        handler = new Handler(Looper.getMainLooper());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start all the schedules from now
+    public void start() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    results = new BufferedWriter(new FileWriter(resultFile, true));                 //Append to the results of previous runs
+                }
+                catch (IOException e) {
+                    Log.w(TAG, "Unable to open poll results file: " + e.getMessage());
+                }
+                final long now = SystemClock.uptimeMillis();
+                for (Schedule schedule : schedules) {
+                    schedule.nextDeadline = now;
+                }
+                running = true;
+                lastFlushTime = now;
+                scheduleTimer();
+            }
+        });
+    }
+
+    public void stop() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                running = false;
+                handler.removeCallbacks(timer);
+                closeResults();
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Set the one timer for the earliest deadline
+    private void scheduleTimer() {
+        handler.removeCallbacks(timer);
+        if (!running || schedules.isEmpty()) {
+            return;
+        }
+        long first = Long.MAX_VALUE;
+        for (Schedule schedule : schedules) {
+            first = Math.min(first, schedule.nextDeadline);
+        }
+        handler.postAtTime(timer, first);
+    }
+
+    private final Runnable timer = new Runnable() {
+        @Override
+        public void run() {
+            final long now = SystemClock.uptimeMillis();
+            final boolean backlogged = bleService.getTxQueueDepth() > BACKLOG_LIMIT;
+            for (Schedule schedule : schedules) {
+                if (schedule.nextDeadline > now) {
+                    continue;
+                }
+                lateMax = Math.max(lateMax, now - schedule.nextDeadline);
+                if (schedule.awaitingReply || backlogged) {                                         //Coalesce with the poll still in progress
+                    schedule.skipped++;
+                }
+                else {
+                    poll(schedule);
+                }
+                final long missed = (now - schedule.nextDeadline) / schedule.period;                //Periods that went by without a poll
+                schedule.skipped += missed;
+                schedule.nextDeadline += (missed + 1) * schedule.period;                            //Stay on the start + n * period grid
+            }
+            if (now - lastFlushTime >= FLUSH_TIME) {
+                flushResults();
+                lastFlushTime = now;
+            }
+            scheduleTimer();
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Send one poll and record the reply
+    private void poll(final Schedule schedule) {
+        final long timeout = schedule.timeout > 0 ? schedule.timeout : schedule.period;
+        final MldpRpcClient.Callback callback = new MldpRpcClient.Callback() {
+            @Override
+            public void onReply(MldpRpcClient.Request request, String reply) {
+                final long latency = request.getElapsedTime();
+                schedule.awaitingReply = false;
+                schedule.replies++;
+                schedule.latencyTotal += latency;
+                schedule.latencyMax = Math.max(schedule.latencyMax, latency);
+                schedule.lastReply = reply;
+                writeResult(schedule, latency, reply);
+            }
+
+            @Override
+            public void onFailure(MldpRpcClient.Request request, String reason) {
+                schedule.awaitingReply = false;
+                schedule.timeouts++;
+                writeResult(schedule, -1, reason);
+            }
+        };
+        schedule.awaitingReply = true;
+        schedule.sent++;
+        if (schedule.prefix != null) {
+            rpcClient.callWithPrefix(schedule.command, schedule.prefix, timeout, callback);
+        }
+        else if (schedule.sequence) {
+            rpcClient.callWithSequence(schedule.command, timeout, callback);
+        }
+        else {
+            rpcClient.call(schedule.command, timeout, callback);
+        }
+    }
+
+    private void writeResult(Schedule schedule, long latency, String reply) {
+        if (results == null) {
+            return;
+        }
+        try {
+            results.write(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US).format(new Date()) + ","
+                    + schedule.name + "," + latency + ",\"" + reply.trim().replace("\"", "\"\"") + "\"\n");
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Unable to write poll result: " + e.getMessage());
+        }
+    }
+
+    private void flushResults() {
+        try {
+            if (results != null) {
+                results.flush();
+            }
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Unable to write poll results: " + e.getMessage());
+        }
+    }
+
+    private void closeResults() {
+        try {
+            if (results != null) {
+                results.close();
+                results = null;
+            }
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Unable to close poll results: " + e.getMessage());
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder(String.format("Polling: %d schedules, latest timer %d ms", schedules.size(), lateMax));
+        for (Schedule schedule : schedules) {
+            text.append('\n').append(schedule);
+        }
+        return text.toString();
+    }
+}
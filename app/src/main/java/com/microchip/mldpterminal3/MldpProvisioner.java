@@ -0,0 +1,464 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Headless provisioning of MLDP devices for the MldpBluetoothService.
+ *
+ * Scans for devices that match a name prefix or advertised service UUID, connects to each one in turn without going
+ * through the MldpBluetoothScanActivity, runs a scripted send/expect exchange over the MLDP data characteristic and
+ * appends the result of each device to a CSV file.
+ * Devices are provisioned one after the other because the MldpBluetoothService holds a single BluetoothGatt connection.
+ *
+ * The script is a text file with one setting per line. Lines starting with # are comments.
+ *   name=Bob               Provision devices with a name starting with Bob
+ *   uuid=00035b03-...      Provision devices advertising this 128-bit service UUID
+ *   send=SN,Bob\r          Start a new step that writes this text (\r, \n and \t are unescaped)
+ *   expect=AOK             Wait for this text in the notifications before going to the next step
+ *   timeout=3000           Time in milliseconds to wait for the expected text
+ */
+public class MldpProvisioner {
+
+    private final static String TAG = MldpProvisioner.class.getSimpleName();                       //Class name for logging messages on the ADB
+
+    public static final String SCRIPT_FILE_NAME = "provisioning_script.txt";                         //Name of the script file in the application files directory
+    public static final String RESULT_FILE_NAME = "provisioning_results.csv";                        //Name of the file that results are appended to
+
+    private static final long SCAN_IDLE_TIME = 15000;                                               //Finish provisioning when no new device is found for this many milliseconds
+    private static final long CONNECT_TIME = 10000;                                                 //Length of time in milliseconds to connect and discover services
+    private static final long DISCONNECT_TIME = 2000;                                               //Length of time in milliseconds to wait for the disconnect before moving on
+    private static final long DEFAULT_STEP_TIME = 3000;                                             //Default time in milliseconds to wait for an expected response
+    private static final int MAX_RESPONSE_LENGTH = 1024;                                            //Characters of received text to keep for matching and reporting
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // One step of the script, the text to send and the text expected in response
+    public static class Step {
+        private final String send;
+        private String expect;
+        private long timeout;
+
+        public Step(String send, String expect, long timeout) {
+            this.send = send;
+            this.expect = expect;
+            this.timeout = timeout;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Which devices to provision and the steps to run on each of them
+    public static class Script {
+        private String namePrefix;
+        private UUID serviceUuid;
+        private final List<Step> steps = new ArrayList<Step>();
+
+        public Script(String namePrefix, UUID serviceUuid) {
+            this.namePrefix = namePrefix;
+            this.serviceUuid = serviceUuid;
+        }
+
+        public void addStep(Step step) {
+            steps.add(step);
+        }
+
+        public boolean isValid() {
+            return (namePrefix != null || serviceUuid != null) && !steps.isEmpty();                 //Need something to match devices against and something to do
+        }
+
+        //Read a script from a file in the format described above
+        public static Script load(File file) throws IOException {
+            Script script = new Script(null, null);
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                Step step = null;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.length() == 0 || line.startsWith("#")) {                               //Skip blank lines and comments
+                        continue;
+                    }
+                    int split = line.indexOf('=');
+                    if (split < 0) {
+                        throw new IOException("Missing '=' in script line: " + line);
+                    }
+                    String key = line.substring(0, split).trim();
+                    String value = unescape(line.substring(split + 1));
+                    if (key.equals("name")) {
+                        script.namePrefix = value;
+                    }
+                    else if (key.equals("uuid")) {
+                        script.serviceUuid = UUID.fromString(value.trim());
+                    }
+                    else if (key.equals("send")) {
+                        step = new Step(value, null, DEFAULT_STEP_TIME);                            //Each send starts a new step
+                        script.addStep(step);
+                    }
+                    else if (key.equals("expect") && step != null) {
+                        step.expect = value;
+                    }
+                    else if (key.equals("timeout") && step != null) {
+                        step.timeout = Long.parseLong(value.trim());
+                    }
+                    else {
+                        throw new IOException("Unexpected script line: " + line);
+                    }
+                }
+            }
+            catch (IllegalArgumentException e) {                                                    //Bad UUID or timeout value
+                throw new IOException(e.getMessage());
+            }
+            finally {
+                reader.close();
+            }
+            return script;
+        }
+
+        private static String unescape(String value) {
+            return value.replace("\\r", "\r").replace("\\n", "\n").replace("\\t", "\t");
+        }
+    }
+
+    private enum State {IDLE, SCANNING, CONNECTING, RUNNING, DISCONNECTING}                          //States of the provisioning sequence
+
+    private final MldpBluetoothService bleService;
+    private final Script script;
+    private final File resultFile;
+    private final Handler handler;                                                                  //All events are handled on the main thread so no locking is needed
+
+    private volatile State state = State.IDLE;                                                      //Also read by onScanResult() on the scan callback thread
+    private final Set<String> seenAddresses = new HashSet<String>();                                //Devices that have already been provisioned or queued
+    private final Queue<String[]> pendingDevices = new LinkedList<String[]>();                      //Address and name of matching devices waiting their turn
+    private String deviceAddress, deviceName;
+    private int stepIndex;
+    private final StringBuilder response = new StringBuilder();
+    private long startTime, deviceStartTime;
+    private int devicesPassed, devicesFailed;
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Constructor
+    public MldpProvisioner(MldpBluetoothService bleService, Script script, File resultFile) {
+        this.bleService = bleService;
+        this.script = script;
+        this.resultFile = resultFile;
+        handler = new Handler(Looper.getMainLooper());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start scanning for matching devices
+    public void start() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                seenAddresses.clear();
+                pendingDevices.clear();
+                devicesPassed = devicesFailed = 0;
+                startTime = SystemClock.elapsedRealtime();
+                state = State.SCANNING;
+                nextDevice();
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Stop provisioning and drop any connection in progress
+    public void stop() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                finish();
+            }
+        });
+    }
+
+    public boolean isActive() {
+        return state != State.IDLE;
+    }
+
+    public int getDevicesPassed() {
+        return devicesPassed;
+    }
+
+    public int getDevicesFailed() {
+        return devicesFailed;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Number of devices completed per minute since provisioning started
+    public double getDevicesPerMinute() {
+        long elapsed = SystemClock.elapsedRealtime() - startTime;
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return (devicesPassed + devicesFailed) * 60000.0 / elapsed;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called by the MldpBluetoothService for every advertising packet received while scanning
+    void onScanResult(final String address, final String name, byte[] scanRecord) {
+        if (state == State.IDLE || address == null) {
+            return;
+        }
+        boolean match = false;
+        if (script.namePrefix != null && name != null && name.startsWith(script.namePrefix)) {      //See if the name starts with the prefix
+            match = true;
+        }
+        else if (script.serviceUuid != null && MldpScanRecord.hasServiceUuid(scanRecord, script.serviceUuid)) { //See if the service UUID is advertised
+            match = true;
+        }
+        if (!match) {
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (state == State.IDLE || !seenAddresses.add(address)) {                           //Only queue each device once
+                    return;
+                }
+                pendingDevices.add(new String[] {address, name});
+                Log.d(TAG, "Found device to provision: " + address);
+                if (state == State.SCANNING) {                                                      //Not busy with another device so start right away
+                    handler.removeCallbacks(scanIdleTimeout);
+                    bleService.scanStop();
+                    nextDevice();
+                }
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called by the MldpBluetoothService when the services are discovered and notifications are enabled
+    void onLinkReady() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (state == State.CONNECTING) {
+                    handler.removeCallbacks(connectTimeout);
+                    state = State.RUNNING;
+                    stepIndex = 0;
+                    runStep();
+                }
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called by the MldpBluetoothService when the connection has been lost or closed
+    void onDisconnected() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (state == State.CONNECTING || state == State.RUNNING) {                          //Lost the connection before the script finished
+                    finishDevice(false, "Disconnected during " + (state == State.CONNECTING ? "connection" : "step " + (stepIndex + 1)));
+                }
+                else if (state == State.DISCONNECTING) {                                            //Expected disconnect so move on without waiting
+                    handler.removeCallbacks(disconnectTimeout);
+                    nextDevice();
+                }
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called by the MldpBluetoothService with each notification received on the data characteristic
+    void onDataReceived(final String data) {
+        if (data == null) {
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (state != State.RUNNING) {
+                    return;
+                }
+                response.append(data);
+                if (response.length() > MAX_RESPONSE_LENGTH) {                                      //Keep only the most recent text
+                    response.delete(0, response.length() - MAX_RESPONSE_LENGTH);
+                }
+                Step step = script.steps.get(stepIndex);
+                if (step.expect != null && response.indexOf(step.expect) >= 0) {                    //Got the expected response so go to the next step
+                    handler.removeCallbacks(stepTimeout);
+                    stepIndex++;
+                    runStep();
+                }
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Connect to the next queued device or go back to scanning
+    private void nextDevice() {
+        if (state == State.IDLE) {
+            return;
+        }
+        String[] device = pendingDevices.poll();
+        if (device == null) {                                                                       //Nothing queued so scan for more devices
+            state = State.SCANNING;
+            bleService.scanStart();
+            handler.postDelayed(scanIdleTimeout, SCAN_IDLE_TIME);
+            return;
+        }
+        deviceAddress = device[0];
+        deviceName = device[1];
+        deviceStartTime = SystemClock.elapsedRealtime();
+        state = State.CONNECTING;
+        handler.postDelayed(connectTimeout, CONNECT_TIME);
+        if (!bleService.connect(deviceAddress)) {                                                   //Ask the MldpBluetoothService to connect
+            finishDevice(false, "Connect request failed");
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Send the current step or finish the device if all steps are done
+    private void runStep() {
+        while (stepIndex < script.steps.size()) {
+            Step step = script.steps.get(stepIndex);
+            response.setLength(0);                                                                  //Only match text received after this step was sent
+            if (step.send != null) {
+                bleService.writeMLDP(step.send);
+            }
+            if (step.expect != null) {                                                              //Wait for the response in onDataReceived()
+                handler.postDelayed(stepTimeout, step.timeout);
+                return;
+            }
+            stepIndex++;                                                                            //Nothing to wait for so go straight to the next step
+        }
+        finishDevice(true, "OK");
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Record the result for the current device and disconnect from it
+    private void finishDevice(boolean success, String detail) {
+        handler.removeCallbacks(connectTimeout);
+        handler.removeCallbacks(stepTimeout);
+        if (success) {
+            devicesPassed++;
+        }
+        else {
+            devicesFailed++;
+        }
+        long duration = SystemClock.elapsedRealtime() - deviceStartTime;
+        writeResult(success, detail, duration);
+        bleService.onProvisionResult(deviceAddress, deviceName, success, detail, duration, getDevicesPerMinute());
+        state = State.DISCONNECTING;
+        bleService.disconnect();
+        handler.postDelayed(disconnectTimeout, DISCONNECT_TIME);                                    //In case there is no disconnect event, such as when the connection never completed
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // End provisioning and report the totals
+    private void finish() {
+        if (state == State.IDLE) {
+            return;
+        }
+        handler.removeCallbacks(scanIdleTimeout);
+        handler.removeCallbacks(connectTimeout);
+        handler.removeCallbacks(stepTimeout);
+        handler.removeCallbacks(disconnectTimeout);
+        if (state == State.SCANNING) {
+            bleService.scanStop();
+        }
+        else {
+            bleService.disconnect();
+        }
+        state = State.IDLE;
+        Log.i(TAG, "Provisioning finished, passed: " + devicesPassed + ", failed: " + devicesFailed);
+        bleService.onProvisionFinished(devicesPassed, devicesFailed, getDevicesPerMinute());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Append a line to the CSV result file
+    private void writeResult(boolean success, String detail, long duration) {
+        String time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(new Date());
+        String line = time + "," + deviceAddress + "," + csvField(deviceName) + "," + (success ? "PASS" : "FAIL") + "," + duration + "," + csvField(detail) + "\n";
+        try {
+            FileWriter writer = new FileWriter(resultFile, true);                                   //Append to the results of previous runs
+            try {
+                writer.write(line);
+            }
+            finally {
+                writer.close();
+            }
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Unable to write provisioning result: " + e.getMessage());
+        }
+    }
+
+    private static String csvField(String value) {
+        if (value == null) {
+            return "";
+        }
+        return "\"" + value.replace("\"", "\"\"").replace("\r", "\\r").replace("\n", "\\n") + "\"";
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Runnables for the various time outs
+    private final Runnable scanIdleTimeout = new Runnable() {
+        @Override
+        public void run() {
+            finish();                                                                               //No new devices so we are done
+        }
+    };
+
+    private final Runnable connectTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (state == State.CONNECTING) {
+                finishDevice(false, "Connection timed out");
+            }
+        }
+    };
+
+    private final Runnable stepTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (state == State.RUNNING) {
+                finishDevice(false, "No response to step " + (stepIndex + 1) + ", received: " + response);
+            }
+        }
+    };
+
+    private final Runnable disconnectTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (state == State.DISCONNECTING) {
+                nextDevice();
+            }
+        }
+    };
+}
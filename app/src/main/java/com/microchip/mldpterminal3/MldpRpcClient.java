@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Request and response calls over the MLDP data characteristic for the MldpBluetoothService.
+ *
+ * Several requests can be outstanding at once so a polling cycle does not wait a round trip per command. Replies are
+ * the frames from the MldpDecoderPipeline, normally lines, and are matched to requests in one of three ways:
+ *   ordered     The next reply that matches nothing else answers the oldest ordered request
+ *   prefix      The reply starts with text given with the request, such as "STATUS="
+ *   sequence    The request is sent as "#12 command" and the reply must start with "#12 ", which is removed
+ * Each request has a timeout. An ordered request that times out may still be answered, and that late reply must not be
+ * taken for the reply to the next one. So after a timeout no more ordered requests are written for one timeout, the
+ * quiet period, and unmatched replies in that time are thrown away as late. This also drops any unsolicited lines in the
+ * quiet period. The quiet period ends early once every late reply has arrived. A reply that is lost altogether costs
+ * one timeout and one quiet period, and the requests after it line up again.
+ * All callbacks are made on the main thread.
+ */
+public class MldpRpcClient {
+
+    private final static String TAG = MldpRpcClient.class.getSimpleName();                         //Class name for logging messages on the ADB
+
+    public static final int MATCH_ORDERED = 0;
+    public static final int MATCH_PREFIX = 1;
+    public static final int MATCH_SEQUENCE = 2;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char SEQUENCE_TAG = '#';
+    private static final int DEFAULT_MAX_OUTSTANDING = 8;
+
+    // Where requests are written, the MldpBluetoothService outside of tests
+    interface Sender {
+        void send(byte[] data);
+    }
+
+    public interface Callback {
+        void onReply(Request request, String reply);
+        void onFailure(Request request, String reason);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // One call and how to recognise its reply
+    public static class Request {
+        private final String command;
+        private final int match;
+        private String replyPrefix;                                                                 //Prefix or sequence tag the reply starts with
+        private final long timeout;
+        private final Callback callback;
+        private long sentTime;                                                                      //SystemClock.uptimeMillis() when written, 0 while waiting to go
+
+        Request(String command, int match, String replyPrefix, long timeout, Callback callback) {
+            this.command = command;
+            this.match = match;
+            this.replyPrefix = replyPrefix;
+            this.timeout = timeout;
+            this.callback = callback;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        // Milliseconds since the request was written
+        public long getElapsedTime() {
+            return sentTime != 0 ? SystemClock.uptimeMillis() - sentTime : 0;
+        }
+    }
+
+    private final Sender sender;
+    private final Handler handler;                                                                  //All events are handled on the main thread so no locking is needed
+    private final LinkedList<Request> waiting = new LinkedList<Request>();                          //Requests not yet written because of the pipeline limit
+    private final LinkedList<Request> outstanding = new LinkedList<Request>();                      //Written and waiting for a reply, oldest first
+    private int maxOutstanding = DEFAULT_MAX_OUTSTANDING;
+    private int nextSequence;
+    private int lateReplies;                                                                        //Replies still due for ordered requests that timed out
+    private long quietUntil;                                                                        //No ordered requests written before this while late replies are due
+    private long requests, replies, timeouts, discarded, roundTripTotal, roundTripMax, outstandingMax;
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Constructor
+    public MldpRpcClient(final MldpBluetoothService bleService) {
+        this(new Sender() {
+            @Override
+            public void send(byte[] data) {
+                bleService.writeMLDP(data);
+            }
+        }, new Handler(Looper.getMainLooper()));
+    }
+
+    MldpRpcClient(Sender sender, Handler handler) {
+        this.sender = sender;
+        this.handler = handler;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Make calls. The command is written as given, so include any line ending the peripheral needs.
+    public Request call(String command, long timeout, Callback callback) {
+        return submit(new Request(command, MATCH_ORDERED, null, timeout, callback));
+    }
+
+    public Request callWithPrefix(String command, String replyPrefix, long timeout, Callback callback) {
+        return submit(new Request(command, MATCH_PREFIX, replyPrefix, timeout, callback));
+    }
+
+    public Request callWithSequence(String command, long timeout, Callback callback) {
+        return submit(new Request(command, MATCH_SEQUENCE, null, timeout, callback));
+    }
+
+    // Most requests to have written and unanswered at once, 1 for stop and wait
+    public void setMaxOutstanding(final int max) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                maxOutstanding = Math.max(1, max);
+                sendWaiting(SystemClock.uptimeMillis());
+            }
+        });
+    }
+
+    private Request submit(final Request request) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                add(request, SystemClock.uptimeMillis());
+            }
+        });
+        return request;
+    }
+
+    void add(Request request, long now) {
+        waiting.add(request);
+        sendWaiting(now);
+    }
+
+    // Fail every request, as on a disconnect
+    public void reset(final String reason) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                handler.removeCallbacks(timeoutCheck);
+                LinkedList<Request> failed = new LinkedList<Request>(outstanding);
+                failed.addAll(waiting);
+                outstanding.clear();
+                waiting.clear();
+                lateReplies = 0;
+                quietUntil = 0;
+                for (Request request : failed) {
+                    request.callback.onFailure(request, reason);
+                }
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write waiting requests while there is room in the pipeline. Ordered requests wait for the end of a quiet period.
+    private void sendWaiting(long now) {
+        if (lateReplies > 0 && now >= quietUntil) {                                                 //Any replies still due are lost
+            lateReplies = 0;
+        }
+        for (Iterator<Request> iterator = waiting.iterator(); iterator.hasNext() && outstanding.size() < maxOutstanding; ) {
+            final Request request = iterator.next();
+            if (request.match == MATCH_ORDERED && lateReplies > 0) {                                //Its reply could not be told from a late one
+                continue;
+            }
+            iterator.remove();
+            String text = request.command;
+            if (request.match == MATCH_SEQUENCE) {
+                final String tag = SEQUENCE_TAG + Integer.toString(nextSequence) + " ";
+                nextSequence = (nextSequence + 1) % 1000;                                           //Short tags, far more than can be outstanding
+                request.replyPrefix = tag;
+                text = tag + text;
+            }
+            request.sentTime = now;
+            outstanding.add(request);
+            requests++;
+            outstandingMax = Math.max(outstandingMax, outstanding.size());
+            sender.send(text.getBytes(UTF8));
+        }
+        scheduleTimeout();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called with each frame received, on the decoder thread
+    void onFrame(byte[] frame) {
+        final String reply = new String(frame, UTF8);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                onReply(reply, SystemClock.uptimeMillis());
+            }
+        });
+    }
+
+    void onReply(String reply, long now) {
+        Request matched = null;
+        String result = reply;
+        for (Iterator<Request> iterator = outstanding.iterator(); iterator.hasNext(); ) {            //Tagged replies first, they cannot be mistaken
+            final Request request = iterator.next();
+            if (request.match != MATCH_ORDERED && reply.startsWith(request.replyPrefix)) {
+                matched = request;
+                if (request.match == MATCH_SEQUENCE) {
+                    result = reply.substring(request.replyPrefix.length());
+                }
+                iterator.remove();
+                break;
+            }
+        }
+        if (matched == null) {
+            if (lateReplies > 0) {                                                                  //Belongs to an ordered request that timed out
+                discarded++;
+                if (--lateReplies == 0) {                                                           //All accounted for so ordered requests can go again
+                    sendWaiting(now);
+                }
+                return;
+            }
+            for (Iterator<Request> iterator = outstanding.iterator(); iterator.hasNext(); ) {
+                final Request request = iterator.next();
+                if (request.match == MATCH_ORDERED) {
+                    matched = request;
+                    iterator.remove();
+                    break;
+                }
+            }
+        }
+        if (matched == null) {
+            return;                                                                                 //Not a reply, just data from the peripheral
+        }
+        final long roundTrip = now - matched.sentTime;
+        roundTripTotal += roundTrip;
+        roundTripMax = Math.max(roundTripMax, roundTrip);
+        replies++;
+        try {
+            matched.callback.onReply(matched, result);
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+        sendWaiting(now);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // One timer for the request that will time out first, or the end of the quiet period
+    private void scheduleTimeout() {
+        handler.removeCallbacks(timeoutCheck);
+        long first = lateReplies > 0 ? quietUntil : Long.MAX_VALUE;
+        for (Request request : outstanding) {
+            first = Math.min(first, request.sentTime + request.timeout);
+        }
+        if (first != Long.MAX_VALUE) {
+            handler.postAtTime(timeoutCheck, first);
+        }
+    }
+
+    private final Runnable timeoutCheck = new Runnable() {
+        @Override
+        public void run() {
+            expire(SystemClock.uptimeMillis());
+        }
+    };
+
+    // Fail the requests that have timed out
+    void expire(long now) {
+        LinkedList<Request> expired = new LinkedList<Request>();
+        for (Iterator<Request> iterator = outstanding.iterator(); iterator.hasNext(); ) {
+            final Request request = iterator.next();
+            if (now >= request.sentTime + request.timeout) {
+                expired.add(request);
+                iterator.remove();
+                if (request.match == MATCH_ORDERED) {
+                    lateReplies++;                                                                  //Its reply may still come and must not be given to the next request
+                    quietUntil = Math.max(quietUntil, now + request.timeout);
+                }
+            }
+        }
+        timeouts += expired.size();
+        for (Request request : expired) {
+            request.callback.onFailure(request, "Timeout");
+        }
+        sendWaiting(now);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RPC: %d requests, %d replies, %d timeouts, %d late replies discarded, round trip avg %.0f ms max %d ms, most outstanding %d",
+                requests, replies, timeouts, discarded, replies > 0 ? (double) roundTripTotal / replies : 0, roundTripMax, outstandingMax);
+    }
+}
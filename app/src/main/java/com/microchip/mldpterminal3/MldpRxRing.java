@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Received data published once and read by any number of subscribers, each at its own pace.
+ *
+ * The ring keeps the most recent entries, each numbered in sequence. A subscriber has its own cursor, the sequence
+ * number of the next entry it will read, so a slow subscriber does not hold up the others or the GATT callback thread.
+ * Every subscriber gets the same array for an entry, which is copied once when it is published and must not be
+ * changed. A subscriber that falls more than the size of the ring behind has lost entries, and its policy says whether
+ * it carries on from the oldest entry still in the ring, skips to the newest, or is cancelled.
+ *
+ * A subscriber with a listener is called on its handler thread with each entry, in order. A subscriber without a
+ * listener can call poll() itself, and keeps its place while it is not reading, as the terminal does while paused.
+ */
+public class MldpRxRing {
+
+    private final static String TAG = MldpRxRing.class.getSimpleName();                             //Class name for logging messages on the ADB
+
+    public static final int POLICY_SKIP_OLDEST = 0;                                                 //Lose the entries that were overwritten and carry on
+    public static final int POLICY_SKIP_TO_LATEST = 1;                                              //Lose everything not read yet and carry on with new entries
+    public static final int POLICY_CANCEL = 2;                                                      //Stop the subscription
+
+    private static final int BATCH_SIZE = 64;                                                       //Entries given to a listener before letting its thread do other work
+
+    // One published chunk of received data
+    private static class Entry {
+        final long sequence;
+        final long time;
+        final byte[] data;
+
+        Entry(long sequence, long time, byte[] data) {
+            this.sequence = sequence;
+            this.time = time;
+            this.data = data;
+        }
+    }
+
+    // Told about each entry on the handler thread. The data must not be changed.
+    public interface Listener {
+        void onData(byte[] data, long time);
+    }
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final int mask;
+    private volatile long published;                                                                //Sequence number of the next entry
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Constructor. The size is rounded up to a power of two.
+    public MldpRxRing(int size) {
+        final int capacity = Integer.highestOneBit(Math.max(size - 1, 1)) << 1;
+        entries = new AtomicReferenceArray<Entry>(capacity);
+        mask = capacity - 1;
+    }
+
+    // Add received data, copied once for all subscribers, and wake the subscribers that have listeners
+    public void publish(byte[] data) {
+        synchronized (this) {                                                                       //Only one publisher at a time
+            final long sequence = published;
+            entries.set((int) (sequence & mask), new Entry(sequence, SystemClock.uptimeMillis(), data.clone()));
+            published = sequence + 1;
+        }
+        for (Subscription subscription : subscriptions) {
+            subscription.signal();
+        }
+    }
+
+    // Subscriber with the given name, keeping its place if it already exists. New subscribers start with the next
+    // entry published.
+    public synchronized Subscription subscribe(String name, int policy) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.name.equals(name)) {
+                return subscription;
+            }
+        }
+        final Subscription subscription = new Subscription(name, policy, published);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    public void unsubscribe(Subscription subscription) {
+        subscriptions.remove(subscription);
+        subscription.setListener(null, null);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder text = new StringBuilder();
+        text.append(String.format("RX ring: %d entries, %d published", entries.length(), published));
+        for (Subscription subscription : subscriptions) {
+            text.append("\n").append(subscription);
+        }
+        return text.toString();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // One reader of the ring with its own cursor
+    public class Subscription {
+        private final String name;
+        private final int policy;
+        private volatile long cursor;                                                               //Sequence number of the next entry to read
+        private volatile Listener listener;
+        private volatile Handler handler;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean cancelled;
+        private long delivered, lost, maxLag;
+
+        private Subscription(String name, int policy, long cursor) {
+            this.name = name;
+            this.policy = policy;
+            this.cursor = cursor;
+        }
+
+        // Have entries passed to the listener on the handler thread, or stop with null. Catches up on anything
+        // published while there was no listener.
+        public void setListener(Listener newListener, Handler newHandler) {
+            handler = newHandler;
+            listener = newListener;
+            scheduled.set(false);
+            signal();
+        }
+
+        private void signal() {
+            final Handler current = handler;
+            if (listener != null && current != null && scheduled.compareAndSet(false, true)) {      //One drain posted at a time however much is published
+                current.post(drain);
+            }
+        }
+
+        private final Runnable drain = new Runnable() {
+            @Override
+            public void run() {
+                scheduled.set(false);
+                final Listener current = listener;
+                if (current == null) {
+                    return;
+                }
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    final Entry entry = next();
+                    if (entry == null) {
+                        return;
+                    }
+                    try {
+                        current.onData(entry.data, entry.time);
+                    }
+                    catch (Exception e) {
+                        Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+                    }
+                }
+                signal();                                                                           //More to do after the thread has had a turn
+            }
+        };
+
+        // Next entry's data, or null if there is nothing new. Only one thread may read a subscription.
+        public byte[] poll() {
+            final Entry entry = next();
+            return entry != null ? entry.data : null;
+        }
+
+        private Entry next() {
+            while (!cancelled) {
+                final long head = published;
+                long next = cursor;
+                if (next >= head) {
+                    return null;
+                }
+                if (head - next > maxLag) {
+                    maxLag = head - next;
+                }
+                if (head - next > entries.length()) {                                               //Overwritten before being read
+                    if (policy == POLICY_CANCEL) {
+                        cancelled = true;
+                        unsubscribe(this);
+                        Log.w(TAG, "Subscriber " + name + " fell behind and was cancelled");
+                        return null;
+                    }
+                    final long skipTo = policy == POLICY_SKIP_TO_LATEST ? head : head - entries.length();
+                    lost += skipTo - next;
+                    cursor = skipTo;
+                    continue;
+                }
+                final Entry entry = entries.get((int) (next & mask));
+                if (entry == null || entry.sequence != next) {                                      //Overwritten while checking, so look again
+                    continue;
+                }
+                cursor = next + 1;
+                delivered++;
+                return entry;
+            }
+            return null;
+        }
+
+        // Lose everything not read yet, so the next entry read is the next one published
+        public void skip() {
+            cursor = published;
+        }
+
+        // Entries published but not read yet
+        public long getLag() {
+            return Math.max(published - cursor, 0);
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("  %s: %d read, %d behind (max %d), %d lost%s", name, delivered, getLag(), maxLag, lost,
+                    cancelled ? ", cancelled" : listener == null ? ", paused" : "");
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import java.util.UUID;
+
+/**
+ * Walks the advertising data in a scan record.
+ *
+ * The record is a list of length, type, data fields padded with zeros. Nothing is allocated, so it can be called for
+ * every advertising packet while scanning.
+ */
+public final class MldpScanRecord {
+
+    private final static int TYPE_128_BIT_UUIDS_INCOMPLETE = 6;                                     //Incomplete list of 128-bit Service Class UUIDs
+    private final static int TYPE_128_BIT_UUIDS_COMPLETE = 7;                                       //Complete list of 128-bit Service Class UUIDs
+
+    private MldpScanRecord() {
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Check whether a complete or incomplete list of 128-bit service UUIDs in the record includes the given UUID
+    public static boolean hasServiceUuid(byte[] scanRecord, UUID uuid) {
+        if (scanRecord == null) {
+            return false;
+        }
+        final long msb = uuid.getMostSignificantBits();
+        final long lsb = uuid.getLeastSignificantBits();
+        int i = 0;
+        while (i < scanRecord.length - 1 && scanRecord[i] != 0) {                                   //Walk the length, type, data fields until the zero length padding
+            final int length = scanRecord[i] & 0xff;                                                //Length includes the type byte
+            final int type = scanRecord[i + 1] & 0xff;
+            if ((type == TYPE_128_BIT_UUIDS_INCOMPLETE || type == TYPE_128_BIT_UUIDS_COMPLETE) && i + length < scanRecord.length) {
+                for (int j = i + 2; j + 15 <= i + length; j += 16) {                                //Check each UUID in the list
+                    if (readLong(scanRecord, j + 8) == msb && readLong(scanRecord, j) == lsb) {
+                        return true;
+                    }
+                }
+            }
+            i += length + 1;                                                                        //Add length of current field to the index to point to the next field
+        }
+        return false;
+    }
+
+    // Eight bytes of a UUID, which are in little-endian order in advertising data
+    private static long readLong(byte[] scanRecord, int start) {
+        long value = 0;
+        for (int k = 7; k >= 0; k--) {
+            value = (value << 8) | (scanRecord[start + k] & 0xff);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Converts a recorded session to files other tools can read, one record at a time so memory use does not depend on
+ * the size of the session.
+ *
+ * btsnoop and pcap files hold each record as the HCI ACL packet carrying it, with RX as ATT notifications and TX as ATT
+ * write commands, so Wireshark shows them as it would a trace from the phone. Data longer than the MTU allows is split
+ * into one packet per ATT PDU. The trace has no GATT discovery, so a fixed connection handle and ATT handle are used.
+ * CSV has one line per record with the time, direction, length, hex and printable text.
+ */
+public class MldpSessionExporter {
+
+    public static final int FORMAT_BTSNOOP = 0;
+    public static final int FORMAT_PCAP = 1;
+    public static final int FORMAT_CSV = 2;
+    private static final String[] EXTENSIONS = {".btsnoop", ".pcap", ".csv"};
+
+    private static final int BUFFER_SIZE = 65536;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final int CONNECTION_HANDLE = 0x0040;
+    private static final int ATT_DATA_HANDLE = 0x0012;                                              //Stands in for the MLDP data characteristic value
+    private static final int L2CAP_CID_ATT = 0x0004;
+    private static final int ATT_HANDLE_VALUE_NOTIFICATION = 0x1B;
+    private static final int ATT_WRITE_COMMAND = 0x52;
+    private static final int H4_ACL_DATA = 0x02;
+    private static final int PACKET_OVERHEAD = 12;                                                  //H4 type, ACL, L2CAP and ATT headers
+    private static final int RECORD_HEADER_SIZE = 24;                                               //btsnoop record header, the larger of the two
+    private static final int BTSNOOP_DATALINK_H4 = 1002;
+    private static final long BTSNOOP_EPOCH_OFFSET = 0x00DCDDB30F2F8000L;                           //Microseconds from year 0 to 1970
+    private static final int PCAP_LINKTYPE_H4_WITH_PHDR = 201;
+
+    private final MldpSessionFile.Reader reader;
+    private final int format;
+    private final int mtu;
+    private final ByteBuffer packet;                                                                //Reused for every packet, headers and payload
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+    private final StringBuilder line = new StringBuilder();                                         //Reused for every CSV line
+    private long records, packets, bytes, elapsed;
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Constructor. Packets are split to fit the given ATT MTU.
+    public MldpSessionExporter(MldpSessionFile.Reader reader, int format, int mtu) {
+        this.reader = reader;
+        this.format = format;
+        this.mtu = mtu;
+        packet = ByteBuffer.allocate(RECORD_HEADER_SIZE + PACKET_OVERHEAD + MldpPacketizer.getPacketSize(mtu));
+    }
+
+    public static String getExtension(int format) {
+        return EXTENSIONS[format];
+    }
+
+    // Write the whole session from the start. The stream is closed when done.
+    public void export(OutputStream stream) throws IOException {
+        final long startTime = System.nanoTime();
+        final BufferedOutputStream output = new BufferedOutputStream(stream, BUFFER_SIZE);
+        final Writer text = format == FORMAT_CSV ? new OutputStreamWriter(output, "UTF-8") : null;
+        try {
+            writeHeader(output, text);
+            reader.seek(0);
+            MldpSessionReplay.Record record;
+            while ((record = reader.next()) != null) {
+                final long time = reader.getStartTime() + record.time;
+                if (text != null) {
+                    writeCsv(text, time, record);
+                }
+                else {
+                    final int size = MldpPacketizer.getPacketSize(mtu);
+                    for (int offset = 0; offset < record.data.length; offset += size) {
+                        writePacket(output, time, record.direction, record.data, offset, Math.min(size, record.data.length - offset));
+                    }
+                }
+                records++;
+                bytes += record.data.length;
+            }
+            if (text != null) {
+                text.flush();
+            }
+        }
+        finally {
+            output.close();
+            elapsed = System.nanoTime() - startTime;
+        }
+    }
+
+    private void writeHeader(OutputStream output, Writer text) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(24);
+        if (format == FORMAT_BTSNOOP) {
+            header.put("btsnoop\0".getBytes("US-ASCII")).putInt(1).putInt(BTSNOOP_DATALINK_H4);
+            output.write(header.array(), 0, header.position());
+        }
+        else if (format == FORMAT_PCAP) {
+            header.putInt(0xA1B2C3D4).putShort((short) 2).putShort((short) 4).putInt(0).putInt(0)
+                    .putInt(0xFFFF).putInt(PCAP_LINKTYPE_H4_WITH_PHDR);
+            output.write(header.array(), 0, header.position());
+        }
+        else {
+            text.write("time,elapsed_ms,direction,length,hex,text\r\n");
+        }
+    }
+
+    // One ATT PDU in an ACL packet, with the btsnoop or pcap record header in front
+    private void writePacket(OutputStream output, long time, int direction, byte[] data, int offset, int length) throws IOException {
+        final boolean received = direction == MldpSessionFile.TYPE_RX;
+        packet.clear();
+        packet.order(ByteOrder.BIG_ENDIAN);
+        if (format == FORMAT_BTSNOOP) {
+            packet.putInt(PACKET_OVERHEAD + length).putInt(PACKET_OVERHEAD + length);               //Original and included length
+            packet.putInt(received ? 1 : 0).putInt(0);                                              //Flags for ACL data with the direction, and drops
+            packet.putLong(time * 1000 + BTSNOOP_EPOCH_OFFSET);
+        }
+        else {
+            packet.putInt((int) (time / 1000)).putInt((int) (time % 1000 * 1000));
+            packet.putInt(4 + PACKET_OVERHEAD + length).putInt(4 + PACKET_OVERHEAD + length);
+            packet.putInt(received ? 1 : 0);                                                        //Direction pseudo header
+        }
+        packet.put((byte) H4_ACL_DATA);
+        packet.order(ByteOrder.LITTLE_ENDIAN);                                                      //HCI, L2CAP and ATT fields
+        packet.putShort((short) (CONNECTION_HANDLE | (received ? 0x2000 : 0)));                     //First packet, flushable from the controller
+        packet.putShort((short) (7 + length));
+        packet.putShort((short) (3 + length)).putShort((short) L2CAP_CID_ATT);
+        packet.put((byte) (received ? ATT_HANDLE_VALUE_NOTIFICATION : ATT_WRITE_COMMAND)).putShort((short) ATT_DATA_HANDLE);
+        packet.put(data, offset, length);
+        output.write(packet.array(), 0, packet.position());
+        packets++;
+    }
+
+    private void writeCsv(Writer text, long time, MldpSessionReplay.Record record) throws IOException {
+        line.setLength(0);
+        line.append(dateFormat.format(new Date(time))).append(',').append(record.time).append(',')
+                .append(record.direction == MldpSessionFile.TYPE_TX ? "TX" : "RX").append(',').append(record.data.length).append(',');
+        for (byte value : record.data) {
+            line.append(HEX_DIGITS[value >> 4 & 0x0F]).append(HEX_DIGITS[value & 0x0F]);
+        }
+        line.append(",\"");
+        for (byte value : record.data) {
+            final char c = (char) (value & 0xFF);
+            if (c == '"') {
+                line.append("\"\"");                                                                //Quotes are doubled in CSV
+            }
+            else {
+                line.append(c >= 0x20 && c < 0x7F ? c : '.');
+            }
+        }
+        line.append("\"\r\n");
+        text.write(line.toString());
+        packets++;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%d records (%d bytes) as %d %s in %.1f s",
+                records, bytes, packets, format == FORMAT_CSV ? "lines" : "packets", elapsed / 1e9);
+    }
+}
@@ -0,0 +1,741 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import android.os.SystemClock;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compact binary recording of a whole session, with an index so any time or text can be found without reading the
+ * file from the start.
+ *
+ * The file starts with an 8 byte magic and the wall clock start time in milliseconds. Each record after that has a 2
+ * byte payload length, a 1 byte type (RX, TX or index), a 4 byte time in milliseconds since the start and the payload.
+ * Record times come from SystemClock.elapsedRealtime(), so they never go backwards when the wall clock is set. An index
+ * entry with the time and file offset is taken about every INDEX_SPACING bytes, and the entries are written out in an
+ * index record every ENTRIES_PER_BLOCK entries. Each index record holds the offset of the one before it, and a clean
+ * close adds a footer with the offset of the last one, so opening the file only reads the index records. A file that
+ * was not closed, after a crash for example, is scanned once to rebuild the index.
+ *
+ * Each index record also holds a Bloom filter of the three byte sequences, ignoring case, in the data since the index
+ * record before it. A search only reads the blocks of data whose filters hold every sequence in the text searched for.
+ * The index is built on the writer thread, so recording only costs a copy on the data path.
+ *
+ * The Reader maps the file in segments, finds a time with a binary search of the index and reads at most
+ * INDEX_SPACING bytes of records from there. All numbers are big endian.
+ */
+public class MldpSessionFile {
+
+    public static final String FILE_EXTENSION = ".mldp";
+    public static final int TYPE_RX = MldpCaptureBuffer.DIRECTION_RX;
+    public static final int TYPE_TX = MldpCaptureBuffer.DIRECTION_TX;
+    public static final int TYPE_INDEX = 2;
+
+    private static final long MAGIC = 0x4D4C445053455331L;                                          //"MLDPSES1"
+    private static final long FOOTER_MAGIC = 0x4D4C4450454E4431L;                                   //"MLDPEND1"
+    private static final int HEADER_SIZE = 16;                                                      //Magic and start time
+    private static final int FOOTER_SIZE = 16;                                                      //Offset of the last index record and magic
+    private static final int RECORD_HEADER_SIZE = 7;                                                //Length, type and time
+    private static final int MAX_PAYLOAD = 0xFFFF;                                                  //Longer data is split into more records
+    private static final int INDEX_SPACING = 4096;                                                  //Bytes of records between index entries
+    private static final int ENTRIES_PER_BLOCK = 64;                                                //Index entries in each index record
+    private static final int INDEX_ENTRY_SIZE = 12;                                                 //Time and offset
+    private static final int BLOOM_BITS_LOG = 17;                                                   //Filter of 128 Kbits for about 256 KB of data
+    private static final int BLOOM_BITS = 1 << BLOOM_BITS_LOG;
+    private static final int BLOOM_BYTES = BLOOM_BITS / 8;
+    private static final int BLOOM_HASHES = 3;
+    private static final int FLUSH_SIZE = 65536;                                                    //Bytes buffered before being handed to the writer thread
+
+    private static final byte[] FOLD = new byte[256];                                               //ASCII letters folded to lower case for the index and searches
+
+    static {
+        for (int i = 0; i < FOLD.length; i++) {
+            FOLD[i] = (byte) (i >= 'A' && i <= 'Z' ? i + 'a' - 'A' : i);
+        }
+    }
+
+    // Bit positions of a three byte sequence in a Bloom filter, by double hashing
+    private static int bloomBit(int sequence, int hash) {
+        return (sequence * 0x9E3779B1 + hash * (sequence * 0x85EBCA6B | 1)) >>> (32 - BLOOM_BITS_LOG);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Appends records as data is sent and received. Records are copied into a buffer on the calling thread, and the
+    // index and file writes are done on a background thread so recording can be called from the data path.
+    public static class Writer {
+        private final File file;
+        private final FileOutputStream output;
+        private final ExecutorService executor = Executors.newSingleThreadExecutor();
+        private final long startTime;                                                               //Wall clock time for the header
+        private final long startElapsed;                                                            //SystemClock.elapsedRealtime() at the start, for record times
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(FLUSH_SIZE + MAX_PAYLOAD);
+        private final DataOutputStream data = new DataOutputStream(buffer);
+        private long records, payloadBytes;
+        private boolean closed;
+        private final Indexer indexer;
+        private volatile IOException error;
+
+        public Writer(File file) throws IOException {
+            this.file = file;
+            output = new FileOutputStream(file);
+            startTime = System.currentTimeMillis();
+            startElapsed = SystemClock.elapsedRealtime();
+            indexer = new Indexer(new BufferedOutputStream(output, FLUSH_SIZE));
+            data.writeLong(MAGIC);
+            data.writeLong(startTime);
+            flush();
+        }
+
+        public void record(int type, byte[] bytes, int offset, int length) {
+            record(type, bytes, offset, length, SystemClock.elapsedRealtime() - startElapsed);
+        }
+
+        // Record with the time in milliseconds since the start, which must not be before the last record's
+        synchronized void record(int type, byte[] bytes, int offset, int length, long time) {
+            if (closed) {
+                return;
+            }
+            try {
+                while (length > 0) {                                                                //Long writes are split to fit the length field
+                    final int count = Math.min(length, MAX_PAYLOAD);
+                    data.writeShort(count);
+                    data.writeByte(type);
+                    data.writeInt((int) time);
+                    data.write(bytes, offset, count);
+                    records++;
+                    payloadBytes += count;
+                    offset += count;
+                    length -= count;
+                }
+                if (buffer.size() >= FLUSH_SIZE) {
+                    flush();
+                }
+            }
+            catch (IOException e) {
+                error = e;
+            }
+        }
+
+        // Hand the buffered records to the writer thread
+        private void flush() {
+            final byte[] bytes = buffer.toByteArray();
+            buffer.reset();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        indexer.write(bytes);
+                    }
+                    catch (IOException e) {
+                        error = e;
+                    }
+                }
+            });
+        }
+
+        // Write out everything recorded so far and open it for reading while recording carries on
+        public Reader openReader() throws IOException {
+            final long[] written;
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("Session file is closed");
+                }
+                flush();
+                try {
+                    written = executor.submit(new Callable<long[]>() {
+                        @Override
+                        public long[] call() throws IOException {
+                            return indexer.sync();
+                        }
+                    }).get();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted");
+                }
+                catch (ExecutionException e) {
+                    throw new IOException(e.getCause().getMessage());
+                }
+            }
+            return new Reader(file, written[0], written[1]);
+        }
+
+        // Write the last index record and the footer, then wait for everything to reach the file
+        public void close() throws IOException {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                flush();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            indexer.finish(SystemClock.elapsedRealtime() - startElapsed);
+                        }
+                        catch (IOException e) {
+                            error = e;
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            output.close();
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(Locale.US, "Session: %s, %d records (%d bytes) over %.1f s, %d index blocks, %d bytes written%s",
+                    file.getName(), records, payloadBytes, (SystemClock.elapsedRealtime() - startElapsed) / 1000.0,
+                    indexer.indexBlocks, indexer.position, error != null ? ", error " + error.getMessage() : "");
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Places the records in the file and builds the index as they go past, on the writer thread
+    private static class Indexer {
+        private final BufferedOutputStream output;
+        private final long[] entryOffsets = new long[ENTRIES_PER_BLOCK];
+        private final long[] entryTimes = new long[ENTRIES_PER_BLOCK];
+        private int entryCount;
+        private final byte[] bloom = new byte[BLOOM_BYTES];
+        private final int[] sequences = new int[2];                                                 //Last three bytes in each direction
+        private final int[] sequenceLengths = new int[2];
+        private long nextEntryPosition = HEADER_SIZE, lastIndexOffset = -1;
+        private volatile long position, indexBlocks;
+
+        Indexer(BufferedOutputStream output) {
+            this.output = output;
+        }
+
+        // Whole records from the Writer, or the file header
+        void write(byte[] bytes) throws IOException {
+            int i = position == 0 ? HEADER_SIZE : 0;
+            if (i > 0) {
+                output.write(bytes, 0, HEADER_SIZE);
+                position = HEADER_SIZE;
+            }
+            while (i < bytes.length) {
+                final int length = (bytes[i] & 0xFF) << 8 | bytes[i + 1] & 0xFF;
+                final int type = bytes[i + 2];
+                final long time = ByteBuffer.wrap(bytes, i + 3, 4).getInt() & 0xFFFFFFFFL;
+                if (position >= nextEntryPosition) {
+                    if (entryCount == ENTRIES_PER_BLOCK) {
+                        writeIndex(time);
+                    }
+                    entryOffsets[entryCount] = position;
+                    entryTimes[entryCount++] = time;
+                    nextEntryPosition = position + INDEX_SPACING;
+                }
+                addSequences(type, bytes, i + RECORD_HEADER_SIZE, length);
+                output.write(bytes, i, RECORD_HEADER_SIZE + length);
+                position += RECORD_HEADER_SIZE + length;
+                i += RECORD_HEADER_SIZE + length;
+            }
+        }
+
+        // Put every three byte sequence in the filter, carrying on from the last data in the same direction
+        private void addSequences(int type, byte[] bytes, int offset, int length) {
+            int sequence = sequences[type];
+            int count = sequenceLengths[type];
+            for (int i = offset; i < offset + length; i++) {
+                sequence = (sequence << 8 | FOLD[bytes[i] & 0xFF] & 0xFF) & 0xFFFFFF;
+                if (++count >= 3) {
+                    for (int hash = 0; hash < BLOOM_HASHES; hash++) {
+                        final int bit = bloomBit(sequence, hash);
+                        bloom[bit >>> 3] |= 1 << (bit & 7);
+                    }
+                }
+            }
+            sequences[type] = sequence;
+            sequenceLengths[type] = Math.min(count, 3);
+        }
+
+        // Index record with the entries and filter since the last one and a link back to it
+        private void writeIndex(long time) throws IOException {
+            final int length = 16 + entryCount * INDEX_ENTRY_SIZE + BLOOM_BYTES;
+            final ByteBuffer block = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+            block.putShort((short) length).put((byte) TYPE_INDEX).putInt((int) time);
+            block.putLong(lastIndexOffset).putInt(entryCount);
+            for (int i = 0; i < entryCount; i++) {
+                block.putInt((int) entryTimes[i]).putLong(entryOffsets[i]);
+            }
+            block.putInt(BLOOM_BYTES).put(bloom);
+            output.write(block.array());
+            lastIndexOffset = position;
+            position += block.capacity();
+            entryCount = 0;
+            Arrays.fill(bloom, (byte) 0);
+            indexBlocks++;
+        }
+
+        // Flush the file and return the last index record and the end of the data
+        long[] sync() throws IOException {
+            output.flush();
+            return new long[] {lastIndexOffset, position};
+        }
+
+        void finish(long time) throws IOException {
+            writeIndex(time);
+            final ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+            footer.putLong(lastIndexOffset).putLong(FOOTER_MAGIC);
+            output.write(footer.array());
+            output.flush();
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Text found by a search
+    public static class Match {
+        public final long time;                                                                     //Milliseconds since the start of the session
+        public final int direction;
+        public final long offset;                                                                   //Record the match ends in
+        public final String text;                                                                   //Printable part of that record
+
+        Match(long time, int direction, long offset, String text) {
+            this.time = time;
+            this.direction = direction;
+            this.offset = offset;
+            this.text = text;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Reads records from any time in a session file. Also a source for MldpSessionReplay.
+    public static Reader open(File file) throws IOException {
+        return new Reader(file, -1, -1);
+    }
+
+    public static class Reader implements MldpSessionReplay.Source {
+        private static final long SEGMENT_STEP = 32 * 1024 * 1024;                                  //Segments overlap by a record so none is split
+        private static final long SEGMENT_OVERLAP = RECORD_HEADER_SIZE + MAX_PAYLOAD;
+        private static final int MATCH_TEXT_LENGTH = 60;
+
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final long size;
+        private final long startTime;
+        private long dataEnd;                                                                       //Offset after the last complete record
+        private long[] entryOffsets = new long[256];
+        private long[] entryTimes = new long[256];
+        private int entryCount;
+        private long[] blockStarts = new long[16];                                                  //Data between index records
+        private long[] blockEnds = new long[16];
+        private long[] blockFilters = new long[16];                                                 //Offset of the Bloom filter, -1 if none
+        private int blockCount;
+        private long endTime;
+        private long position = HEADER_SIZE;
+        private MappedByteBuffer segment;
+        private long segmentStart = -1;
+        private int blocksScanned;
+
+        // Opens a closed file when lastIndexOffset is -1, or one still being written up to dataEnd
+        Reader(File path, long lastIndexOffset, long dataEnd) throws IOException {
+            file = new RandomAccessFile(path, "r");
+            try {
+                channel = file.getChannel();
+                size = channel.size();
+                if (size < HEADER_SIZE || readLong(0) != MAGIC) {
+                    throw new IOException("Not a session file: " + path.getName());
+                }
+                startTime = readLong(8);
+                if (dataEnd >= 0) {
+                    this.dataEnd = dataEnd;
+                    readIndex(lastIndexOffset);
+                }
+                else if (size >= HEADER_SIZE + FOOTER_SIZE && readLong(size - 8) == FOOTER_MAGIC) {
+                    this.dataEnd = size - FOOTER_SIZE;
+                    readIndex(readLong(size - FOOTER_SIZE));
+                }
+                else {
+                    rebuildIndex();                                                                 //Not closed cleanly
+                }
+                endTime = findEndTime();
+            }
+            catch (IOException e) {
+                file.close();
+                throw e;
+            }
+        }
+
+        // Map the segment of the file holding the given offset, and at least a whole record after it. Returns the
+        // index of the offset in the segment.
+        private int locate(long offset) throws IOException {
+            final long start = offset / SEGMENT_STEP * SEGMENT_STEP;
+            if (start != segmentStart) {
+                segment = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_STEP + SEGMENT_OVERLAP, size - start));
+                segmentStart = start;
+            }
+            return (int) (offset - start);
+        }
+
+        private long readLong(long offset) throws IOException {
+            final int index = locate(offset);
+            return segment.getLong(index);
+        }
+
+        // Follow the index records back from the last one
+        private void readIndex(long indexOffset) throws IOException {
+            final List<Long> offsets = new ArrayList<Long>();
+            while (indexOffset >= HEADER_SIZE) {
+                offsets.add(indexOffset);
+                final long previous = readLong(indexOffset + RECORD_HEADER_SIZE);
+                if (previous >= indexOffset) {
+                    throw new IOException("Damaged session index");
+                }
+                indexOffset = previous;
+            }
+            long blockStart = HEADER_SIZE;
+            for (int i = offsets.size() - 1; i >= 0; i--) {                                         //Oldest first
+                blockStart = addIndex(blockStart, offsets.get(i));
+            }
+            if (blockStart < dataEnd) {                                                             //Data after the last index record
+                addBlock(blockStart, dataEnd, -1);
+                scanEntries(blockStart, dataEnd);
+            }
+        }
+
+        // Take the entries and filter from an index record. Returns the offset after it.
+        private long addIndex(long blockStart, long indexOffset) throws IOException {
+            final int record = locate(indexOffset);
+            final int length = segment.getShort(record) & 0xFFFF;
+            if ((segment.get(record + 2) & 0xFF) != TYPE_INDEX) {
+                throw new IOException("Damaged session index");
+            }
+            final int base = record + RECORD_HEADER_SIZE;
+            final int count = segment.getInt(base + 8);
+            for (int i = 0; i < count; i++) {
+                addEntry(segment.getInt(base + 12 + i * INDEX_ENTRY_SIZE) & 0xFFFFFFFFL, segment.getLong(base + 16 + i * INDEX_ENTRY_SIZE));
+            }
+            final int filter = 12 + count * INDEX_ENTRY_SIZE;
+            final boolean hasFilter = length >= filter + 4 + BLOOM_BYTES && segment.getInt(base + filter) == BLOOM_BYTES;
+            addBlock(blockStart, indexOffset, hasFilter ? indexOffset + RECORD_HEADER_SIZE + filter + 4 : -1);
+            return indexOffset + RECORD_HEADER_SIZE + length;
+        }
+
+        // Scan every record, keeping the index records found and stopping at the first incomplete record
+        private void rebuildIndex() throws IOException {
+            long offset = HEADER_SIZE, blockStart = HEADER_SIZE;
+            while (offset + RECORD_HEADER_SIZE <= size) {
+                final int base = locate(offset);
+                final int length = segment.getShort(base) & 0xFFFF;
+                if (offset + RECORD_HEADER_SIZE + length > size) {
+                    break;
+                }
+                if ((segment.get(base + 2) & 0xFF) == TYPE_INDEX) {
+                    blockStart = addIndex(blockStart, offset);
+                }
+                offset += RECORD_HEADER_SIZE + length;
+            }
+            dataEnd = offset;
+            if (blockStart < dataEnd) {
+                addBlock(blockStart, dataEnd, -1);
+                scanEntries(blockStart, dataEnd);
+            }
+        }
+
+        // Index entries for data that has no index record yet
+        private void scanEntries(long offset, long end) throws IOException {
+            long nextEntry = offset;
+            while (offset < end) {
+                final int base = locate(offset);
+                if (offset >= nextEntry) {
+                    addEntry(segment.getInt(base + 3) & 0xFFFFFFFFL, offset);
+                    nextEntry = offset + INDEX_SPACING;
+                }
+                offset += RECORD_HEADER_SIZE + (segment.getShort(base) & 0xFFFF);
+            }
+        }
+
+        private void addEntry(long time, long offset) {
+            if (entryCount == entryOffsets.length) {
+                entryOffsets = Arrays.copyOf(entryOffsets, entryCount * 2);
+                entryTimes = Arrays.copyOf(entryTimes, entryCount * 2);
+            }
+            entryTimes[entryCount] = time;
+            entryOffsets[entryCount++] = offset;
+        }
+
+        private void addBlock(long start, long end, long filter) {
+            if (blockCount == blockStarts.length) {
+                blockStarts = Arrays.copyOf(blockStarts, blockCount * 2);
+                blockEnds = Arrays.copyOf(blockEnds, blockCount * 2);
+                blockFilters = Arrays.copyOf(blockFilters, blockCount * 2);
+            }
+            blockStarts[blockCount] = start;
+            blockEnds[blockCount] = end;
+            blockFilters[blockCount++] = filter;
+        }
+
+        // Time of the last record, found by reading on from the last index entry
+        private long findEndTime() throws IOException {
+            final long saved = position;
+            position = entryCount > 0 ? entryOffsets[entryCount - 1] : HEADER_SIZE;
+            long time = 0;
+            MldpSessionReplay.Record record;
+            while ((record = next()) != null) {
+                time = record.time;
+            }
+            position = saved;
+            return time;
+        }
+
+        // Last index entry before the time or offset, or -1
+        private static int findEntry(long[] values, int count, long value) {
+            int low = 0, high = count - 1, found = -1;
+            while (low <= high) {
+                final int middle = (low + high) >>> 1;
+                if (values[middle] < value) {
+                    found = middle;
+                    low = middle + 1;
+                }
+                else {
+                    high = middle - 1;
+                }
+            }
+            return found;
+        }
+
+        // ------------------------------------------------------------------------------------------------------------
+        // Move to the first record at or after the time in milliseconds since the start of the session
+        public void seek(long time) throws IOException {
+            final int found = findEntry(entryTimes, entryCount, time);
+            position = found >= 0 ? entryOffsets[found] : HEADER_SIZE;
+            while (position + RECORD_HEADER_SIZE <= dataEnd) {                                      //At most INDEX_SPACING bytes to read
+                final int base = locate(position);
+                if ((segment.get(base + 2) & 0xFF) != TYPE_INDEX && (segment.getInt(base + 3) & 0xFFFFFFFFL) >= time) {
+                    return;
+                }
+                position += RECORD_HEADER_SIZE + (segment.getShort(base) & 0xFFFF);
+            }
+        }
+
+        // Next RX or TX record, or null at the end of the session
+        @Override
+        public MldpSessionReplay.Record next() throws IOException {
+            while (position + RECORD_HEADER_SIZE <= dataEnd) {
+                final int base = locate(position);
+                final int length = segment.getShort(base) & 0xFFFF;
+                final int type = segment.get(base + 2) & 0xFF;
+                final long time = segment.getInt(base + 3) & 0xFFFFFFFFL;
+                position += RECORD_HEADER_SIZE + length;
+                if (type != TYPE_INDEX) {
+                    final ByteBuffer payload = segment.duplicate();                                 //Leaves the shared segment position alone
+                    payload.position(base + RECORD_HEADER_SIZE);
+                    final byte[] data = new byte[length];
+                    payload.get(data);
+                    return new MldpSessionReplay.Record(time, type, data);
+                }
+            }
+            return null;
+        }
+
+        // ------------------------------------------------------------------------------------------------------------
+        // Find text sent or received, ignoring case and how the data was split into records. Returns up to limit
+        // matches, newest first. Text of fewer than three bytes cannot use the filters so reads the whole session.
+        public List<Match> search(String text, int limit) throws IOException {
+            final List<Match> matches = new ArrayList<Match>();
+            final byte[] pattern;
+            try {
+                pattern = text.getBytes("UTF-8");
+            }
+            catch (UnsupportedEncodingException e) {
+                throw new IOException(e.getMessage());
+            }
+            blocksScanned = 0;
+            if (pattern.length == 0) {
+                return matches;
+            }
+            for (int i = 0; i < pattern.length; i++) {
+                pattern[i] = FOLD[pattern[i] & 0xFF];
+            }
+            final int[] failure = new int[pattern.length];                                          //Knuth-Morris-Pratt table
+            for (int i = 1, k = 0; i < pattern.length; i++) {
+                while (k > 0 && pattern[i] != pattern[k]) {
+                    k = failure[k - 1];
+                }
+                if (pattern[i] == pattern[k]) {
+                    k++;
+                }
+                failure[i] = k;
+            }
+            final int[] sequences = new int[Math.max(pattern.length - 2, 0)];
+            for (int i = 0; i < sequences.length; i++) {
+                sequences[i] = (pattern[i] & 0xFF) << 16 | (pattern[i + 1] & 0xFF) << 8 | pattern[i + 2] & 0xFF;
+            }
+            for (int block = blockCount - 1; block >= 0 && matches.size() < limit; block--) {
+                if (mayContain(block, sequences)) {
+                    final List<Match> found = scan(block, pattern, failure);
+                    for (int i = found.size() - 1; i >= 0 && matches.size() < limit; i--) {
+                        matches.add(found.get(i));
+                    }
+                }
+            }
+            return matches;
+        }
+
+        // False if the text cannot be in the block, or end in it after starting in the block before
+        private boolean mayContain(int block, int[] sequences) throws IOException {
+            for (int sequence : sequences) {
+                if (!inFilter(block, sequence) && (block == 0 || !inFilter(block - 1, sequence))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean inFilter(int block, int sequence) throws IOException {
+            final long filter = blockFilters[block];
+            if (filter < 0) {
+                return true;                                                                        //No filter so it has to be read
+            }
+            final int base = locate(filter);
+            for (int hash = 0; hash < BLOOM_HASHES; hash++) {
+                final int bit = bloomBit(sequence, hash);
+                if ((segment.get(base + (bit >>> 3)) & 1 << (bit & 7)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Matches that end in the block, oldest first. Starts from the last index entry before the block so text that
+        // started before it is seen.
+        private List<Match> scan(int block, byte[] pattern, int[] failure) throws IOException {
+            blocksScanned++;
+            final List<Match> matches = new ArrayList<Match>();
+            final int entry = findEntry(entryOffsets, entryCount, blockStarts[block]);
+            long offset = entry >= 0 ? entryOffsets[entry] : blockStarts[block];
+            final int[] matched = new int[2];                                                       //Pattern bytes matched in each direction
+            while (offset < blockEnds[block]) {
+                final int base = locate(offset);
+                final int length = segment.getShort(base) & 0xFFFF;
+                final int type = segment.get(base + 2) & 0xFF;
+                if (type != TYPE_INDEX) {
+                    int k = matched[type];
+                    boolean found = false;
+                    for (int i = base + RECORD_HEADER_SIZE; i < base + RECORD_HEADER_SIZE + length; i++) {
+                        final byte value = FOLD[segment.get(i) & 0xFF];
+                        while (k > 0 && value != pattern[k]) {
+                            k = failure[k - 1];
+                        }
+                        if (value == pattern[k]) {
+                            k++;
+                        }
+                        if (k == pattern.length) {
+                            found = true;
+                            k = failure[k - 1];
+                        }
+                    }
+                    matched[type] = k;
+                    if (found && offset >= blockStarts[block]) {
+                        matches.add(new Match(segment.getInt(base + 3) & 0xFFFFFFFFL, type, offset, printable(base, length)));
+                    }
+                }
+                offset += RECORD_HEADER_SIZE + length;
+            }
+            return matches;
+        }
+
+        private String printable(int base, int length) {
+            final StringBuilder text = new StringBuilder();
+            for (int i = 0; i < Math.min(length, MATCH_TEXT_LENGTH); i++) {
+                final int value = segment.get(base + RECORD_HEADER_SIZE + i) & 0xFF;
+                text.append(value >= 0x20 && value < 0x7F ? (char) value : '.');
+            }
+            return text.toString();
+        }
+
+        // Blocks read by the last search, out of getBlockCount()
+        public int getBlocksScanned() {
+            return blocksScanned;
+        }
+
+        public int getBlockCount() {
+            return blockCount;
+        }
+
+        // ------------------------------------------------------------------------------------------------------------
+        // Offset of the next record, to come back to it with setPosition()
+        public long getPosition() {
+            return position;
+        }
+
+        public void setPosition(long position) {
+            this.position = position;
+        }
+
+        // Wall clock time in milliseconds when the session started
+        public long getStartTime() {
+            return startTime;
+        }
+
+        // Milliseconds from the start of the session to the last record
+        public long getDuration() {
+            return endTime;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public void close() {
+            try {
+                file.close();
+            }
+            catch (IOException e) {
+                //Nothing more to read anyway
+            }
+        }
+    }
+}
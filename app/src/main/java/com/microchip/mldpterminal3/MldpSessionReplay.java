@@ -0,0 +1,472 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transport that plays back a recorded session instead of connecting to a module, for reproducing problems seen in
+ * the field without the radio.
+ *
+ * Received data from the recording is delivered as notifications through the same callback as a real connection, so
+ * it goes through flow control, framing, decoding, triggers and the display exactly as it did at the time. Playback
+ * can follow the recorded timing, run faster or slower by a speed factor, or run at SPEED_MAX with no delays as a
+ * stress test of the receive path. Writes from the app complete at once and can be checked byte for byte against the
+ * data sent in the recording.
+ *
+ * The capture text files record data after decompression, framing and credits are taken out, so those should be off
+ * when replaying a capture. All events run on one replay thread.
+ */
+public class MldpSessionReplay implements MldpTransport {
+
+    public static final double SPEED_MAX = 0;                                                       //No delays between records
+    public static final int DIRECTION_RX = MldpCaptureBuffer.DIRECTION_RX;
+    public static final int DIRECTION_TX = MldpCaptureBuffer.DIRECTION_TX;
+    private static final int REPLAY_MTU = 247;                                                      //Notifications are split to fit this MTU
+    private static final int MAX_BATCH = 64;                                                        //Records handled before letting write completions run
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // One block of data sent or received at a time in milliseconds
+    public static class Record {
+        public final long time;
+        public final int direction;
+        public final byte[] data;
+
+        public Record(long time, int direction, byte[] data) {
+            this.time = time;
+            this.direction = direction;
+            this.data = data;
+        }
+    }
+
+    // Records in time order from a recording
+    public interface Source {
+        Record next() throws IOException;                                                           //Next record, or null at the end
+        void close();
+    }
+
+    // Told when playback ends, either at the end of the recording or when stopped
+    public interface Listener {
+        void onReplayFinished(MldpSessionReplay replay);
+    }
+
+    private final Source source;
+    private final String name;
+    private final double speed;
+    private final boolean checkTx;
+    private Callback callback;
+    private Listener listener;
+    private ScheduledExecutorService executor;
+    private boolean connected, ready, finished, timed;                                              //Timed once the first record has been read
+    private Record pending;                                                                         //Next record, read but not yet due
+    private long firstTime, lastTime, startTime, finishTime;
+    private String error;
+    private final LinkedList<byte[]> expectedTx = new LinkedList<byte[]>();                         //Recorded TX data not yet compared
+    private final LinkedList<byte[]> writtenTx = new LinkedList<byte[]>();                          //Written data not yet compared
+    private int expectedOffset, writtenOffset;
+    private long rxRecords, notifications, rxBytes, txRecords, writes, writeBytes;
+    private long txCompared, txMismatched, firstMismatch = -1;
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Constructor. Speed is 1 for the recorded timing, 2 for twice as fast and so on, or SPEED_MAX.
+    public MldpSessionReplay(Source source, String name, double speed, boolean checkTx) {
+        this.source = source;
+        this.name = name;
+        this.speed = speed;
+        this.checkTx = checkTx;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public synchronized void setCallback(Callback callback) {
+        this.callback = callback;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // There is nothing to connect to, so report connected and ready straight away
+    @Override
+    public synchronized boolean connect(String address) {
+        if (executor != null || finished) {
+            return false;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Callback connectedCallback;
+                synchronized (MldpSessionReplay.this) {
+                    connected = true;
+                    connectedCallback = callback;
+                }
+                connectedCallback.onConnected();
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean discover() {
+        if (!connected) {
+            return false;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Callback readyCallback;
+                synchronized (MldpSessionReplay.this) {
+                    if (!connected) {
+                        return;
+                    }
+                    ready = true;
+                    startTime = System.nanoTime();
+                    readyCallback = callback;
+                }
+                readyCallback.onReady();
+                play.run();
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized void disconnect() {
+        if (executor == null) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                finish();
+            }
+        });
+    }
+
+    @Override
+    public synchronized void close() {
+        connected = ready = false;
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        if (!finished) {
+            finished = true;
+            finishTime = System.nanoTime();
+            source.close();
+        }
+    }
+
+    // End playback and report, on the replay thread
+    private void finish() {
+        final Callback disconnectedCallback;
+        final Listener finishedListener;
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            connected = ready = false;
+            finishTime = System.nanoTime();
+            source.close();
+            disconnectedCallback = callback;
+            finishedListener = listener;
+        }
+        if (finishedListener != null) {
+            finishedListener.onReplayFinished(this);
+        }
+        disconnectedCallback.onDisconnected();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Deliver the records that are due, then wait for the next one
+    private final Runnable play = new Runnable() {
+        @Override
+        public void run() {
+            final List<byte[]> received = new ArrayList<byte[]>();
+            final Callback playCallback;
+            long delay = 0;
+            boolean end = false;
+            synchronized (MldpSessionReplay.this) {
+                if (!ready) {
+                    return;
+                }
+                try {
+                    for (int i = 0; i < MAX_BATCH; i++) {
+                        if (pending == null) {
+                            pending = source.next();
+                            if (pending == null) {
+                                end = true;
+                                break;
+                            }
+                            if (!timed) {                                                           //Capture times are relative so can be negative
+                                firstTime = pending.time;
+                                timed = true;
+                            }
+                        }
+                        if (speed != SPEED_MAX) {
+                            delay = (long) ((pending.time - firstTime) / speed) - (System.nanoTime() - startTime) / 1000000;
+                            if (delay > 0) {
+                                break;
+                            }
+                        }
+                        lastTime = pending.time;
+                        if (pending.direction == DIRECTION_RX) {
+                            rxRecords++;
+                            rxBytes += pending.data.length;
+                            MldpPacketizer.split(pending.data, REPLAY_MTU, received);               //Each notification fits the MTU
+                        }
+                        else {
+                            txRecords++;
+                            if (checkTx) {
+                                expectedTx.add(pending.data);
+                                compareTx();
+                            }
+                        }
+                        pending = null;
+                    }
+                }
+                catch (IOException e) {
+                    error = e.getMessage();
+                    end = true;
+                }
+                notifications += received.size();
+                playCallback = callback;
+            }
+            for (byte[] data : received) {
+                playCallback.onNotification(data);
+            }
+            synchronized (MldpSessionReplay.this) {
+                if (executor == null || !ready) {
+                    return;
+                }
+                if (!end) {
+                    executor.schedule(this, Math.max(delay, 0), TimeUnit.MILLISECONDS);             //Lets write completions run between batches
+                    return;
+                }
+            }
+            finish();
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Writes complete at once, after being checked against the recording
+    @Override
+    public synchronized boolean write(byte[] data) {
+        if (!ready || data.length > MldpPacketizer.getPacketSize(REPLAY_MTU)) {
+            return false;
+        }
+        writes++;
+        writeBytes += data.length;
+        if (checkTx) {
+            writtenTx.add(data.clone());
+            compareTx();
+        }
+        final Callback writeCallback = callback;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeCallback.onWriteComplete(true);
+            }
+        });
+        return true;
+    }
+
+    // Compare as much written data as there is recorded data for, ignoring how each side was split into writes
+    private void compareTx() {
+        while (!expectedTx.isEmpty() && !writtenTx.isEmpty()) {
+            final byte[] expected = expectedTx.getFirst();
+            final byte[] written = writtenTx.getFirst();
+            final int count = Math.min(expected.length - expectedOffset, written.length - writtenOffset);
+            for (int i = 0; i < count; i++) {
+                if (expected[expectedOffset + i] != written[writtenOffset + i]) {
+                    if (firstMismatch < 0) {
+                        firstMismatch = txCompared + i;
+                    }
+                    txMismatched++;
+                }
+            }
+            txCompared += count;
+            expectedOffset += count;
+            writtenOffset += count;
+            if (expectedOffset == expected.length) {
+                expectedTx.removeFirst();
+                expectedOffset = 0;
+            }
+            if (writtenOffset == written.length) {
+                writtenTx.removeFirst();
+                writtenOffset = 0;
+            }
+        }
+    }
+
+    // Bytes left over on one side of the comparison
+    private static long remaining(LinkedList<byte[]> queue, int offset) {
+        long count = -offset;
+        for (byte[] data : queue) {
+            count += data.length;
+        }
+        return Math.max(count, 0);
+    }
+
+    @Override
+    public synchronized boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public boolean isWriteWithoutResponse() {
+        return true;
+    }
+
+    @Override
+    public int getMtu() {
+        return REPLAY_MTU;
+    }
+
+    // True if every byte written matched the recording, with nothing missing or extra
+    public synchronized boolean isTxMatched() {
+        return checkTx && txMismatched == 0 && expectedTx.isEmpty() && writtenTx.isEmpty();
+    }
+
+    @Override
+    public synchronized String toString() {
+        final double elapsed = startTime == 0 ? 0 : ((finished ? finishTime : System.nanoTime()) - startTime) / 1e9;
+        final long recorded = timed ? lastTime - firstTime : 0;
+        final StringBuilder text = new StringBuilder();
+        text.append(String.format(Locale.US, "Replay of %s at %s%s: %d RX records (%d notifications, %d bytes, %.0f bytes/s), %d TX records, %d writes (%d bytes), %.1f s recorded played in %.1f s",
+                name, speed == SPEED_MAX ? "maximum speed" : String.format(Locale.US, "%.2fx", speed),
+                finished ? "" : " (playing)", rxRecords, notifications, rxBytes, elapsed > 0 ? rxBytes / elapsed : 0,
+                txRecords, writes, writeBytes, recorded / 1000.0, elapsed));
+        if (checkTx) {
+            text.append(String.format(Locale.US, "\nTX check: %d bytes compared, %d mismatched", txCompared, txMismatched));
+            if (firstMismatch >= 0) {
+                text.append(String.format(Locale.US, " (first at byte %d)", firstMismatch));
+            }
+            text.append(String.format(Locale.US, ", %d recorded bytes not written, %d written bytes not recorded",
+                    remaining(expectedTx, expectedOffset), remaining(writtenTx, writtenOffset)));
+        }
+        if (error != null) {
+            text.append("\nStopped by error: ").append(error);
+        }
+        return text.toString();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Read a capture snapshot written by MldpCaptureBuffer. Each line has the time in seconds, the direction and up to
+    // 16 bytes in hex. Lines with the same time and direction are joined back into one record, up to a short line.
+    public static Source openCapture(File file) throws IOException {
+        return new CaptureSource(new BufferedReader(new FileReader(file)));
+    }
+
+    private static class CaptureSource implements Source {
+        private static final int BYTES_PER_LINE = 16;
+
+        private final BufferedReader reader;
+        private String line;                                                                        //Line read ahead that starts the next record
+
+        CaptureSource(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public Record next() throws IOException {
+            long time = 0;
+            int direction = -1;
+            byte[] data = new byte[BYTES_PER_LINE];
+            int length = 0;
+            while (true) {
+                if (line == null) {
+                    line = reader.readLine();
+                    if (line == null) {
+                        break;
+                    }
+                }
+                if (line.startsWith("#") || line.trim().isEmpty()) {                                //Header and notes
+                    line = null;
+                    continue;
+                }
+                final String[] fields = line.trim().split(" +", 3);
+                if (fields.length < 3) {
+                    throw new IOException("Bad capture line: " + line);
+                }
+                final long lineTime;
+                try {
+                    lineTime = Math.round(Double.parseDouble(fields[0]) * 1000);
+                }
+                catch (NumberFormatException e) {
+                    throw new IOException("Bad capture time: " + line);
+                }
+                final int lineDirection = "TX".equals(fields[1]) ? DIRECTION_TX : DIRECTION_RX;
+                if (direction >= 0 && (lineTime != time || lineDirection != direction)) {
+                    break;                                                                          //Line starts the next record
+                }
+                time = lineTime;
+                direction = lineDirection;
+                final int hexStart = line.indexOf(fields[1]) + fields[1].length() + 1;              //Hex columns are three characters each
+                int count = 0;
+                while (count < BYTES_PER_LINE && hexStart + count * 3 + 2 <= line.length()
+                        && line.charAt(hexStart + count * 3) != ' ') {
+                    if (length == data.length) {
+                        final byte[] larger = new byte[data.length * 2];
+                        System.arraycopy(data, 0, larger, 0, length);
+                        data = larger;
+                    }
+                    try {
+                        data[length++] = (byte) Integer.parseInt(line.substring(hexStart + count * 3, hexStart + count * 3 + 2), 16);
+                    }
+                    catch (NumberFormatException e) {
+                        throw new IOException("Bad capture data: " + line);
+                    }
+                    count++;
+                }
+                line = null;
+                if (count < BYTES_PER_LINE) {
+                    break;                                                                          //Short line ends the record
+                }
+            }
+            if (direction < 0) {
+                return null;
+            }
+            final byte[] record = new byte[length];
+            System.arraycopy(data, 0, record, 0, length);
+            return new Record(time, direction, record);
+        }
+
+        @Override
+        public void close() {
+            try {
+                reader.close();
+            }
+            catch (IOException e) {
+                //Nothing more to read anyway
+            }
+        }
+    }
+}
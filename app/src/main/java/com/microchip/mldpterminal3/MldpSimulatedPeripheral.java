@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pure Java stand-in for an RN4020 running MLDP, or a BM70 running Transparent UART, for running the data path without
+ * a module.
+ *
+ * The link is modelled as connection events every connection interval. Each event carries a limited number of packets
+ * in each direction, so throughput depends on the interval, MTU and packets per event as it does over the air. Packets
+ * can be dropped at random, as when the module UART overruns, and each direction can have extra latency. The peripheral
+ * echoes what it receives unless a Responder is set. All events run on one simulator thread.
+ */
+public class MldpSimulatedPeripheral implements MldpTransport {
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Settings for the simulated link
+    public static class Config {
+        public long connectionInterval = 30;                                                        //Milliseconds between connection events
+        public int mtu = 247;                                                                       //ATT MTU agreed with the peripheral
+        public int packetsPerEvent = 4;                                                             //Packets each way in one connection event
+        public double lossRate = 0;                                                                 //Chance of a packet being dropped, 0 to 1
+        public long latency = 0;                                                                    //Extra milliseconds from sending to arriving, each way
+        public boolean writeWithoutResponse = true;                                                 //False for one acknowledged write per event
+        public int writeBufferSize = 8;                                                             //Writes the stack holds before write() reports busy
+        public boolean echo = true;                                                                 //Send back everything received
+        public long seed = 1;                                                                       //Random seed so runs can be repeated
+    }
+
+    // Behaviour of the peripheral other than echo
+    public interface Responder {
+        byte[] onData(byte[] data);                                                                 //Reply to send back, or null
+    }
+
+    private final Config config;
+    private final Random random;
+    private Callback callback;
+    private Responder responder;
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> eventTimer;
+    private boolean connected, ready;
+    private final LinkedList<byte[]> centralQueue = new LinkedList<byte[]>();                       //Writes waiting for a connection event
+    private final LinkedList<byte[]> peripheralQueue = new LinkedList<byte[]>();                    //Notifications waiting for a connection event
+    private long events, writes, writeBytes, writesLost, notifications, notificationsLost, busyCount;
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Constructor
+    public MldpSimulatedPeripheral(Config config) {
+        this.config = config;
+        random = new Random(config.seed);
+    }
+
+    public synchronized void setResponder(Responder responder) {
+        this.responder = responder;
+    }
+
+    @Override
+    public synchronized void setCallback(Callback callback) {
+        this.callback = callback;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Connecting takes a couple of connection intervals, like a real link
+    @Override
+    public synchronized boolean connect(String address) {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor();
+        }
+        centralQueue.clear();
+        peripheralQueue.clear();
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                final Callback connectedCallback;
+                synchronized (MldpSimulatedPeripheral.this) {
+                    connected = true;
+                    eventTimer = executor.scheduleAtFixedRate(connectionEvent, config.connectionInterval,
+                            config.connectionInterval, TimeUnit.MILLISECONDS);
+                    connectedCallback = callback;
+                }
+                connectedCallback.onConnected();
+            }
+        }, 2 * config.connectionInterval, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean discover() {
+        if (!connected) {
+            return false;
+        }
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                final Callback readyCallback;
+                synchronized (MldpSimulatedPeripheral.this) {
+                    if (!connected) {
+                        return;
+                    }
+                    ready = true;
+                    readyCallback = callback;
+                }
+                readyCallback.onReady();
+            }
+        }, 2 * config.connectionInterval, TimeUnit.MILLISECONDS);                                   //Discovery and enabling notifications
+        return true;
+    }
+
+    @Override
+    public synchronized void disconnect() {
+        if (executor == null) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Callback disconnectedCallback;
+                synchronized (MldpSimulatedPeripheral.this) {
+                    if (!connected) {
+                        return;
+                    }
+                    stopLink();
+                    disconnectedCallback = callback;
+                }
+                disconnectedCallback.onDisconnected();
+            }
+        });
+    }
+
+    @Override
+    public synchronized void close() {
+        stopLink();
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private void stopLink() {
+        connected = ready = false;
+        if (eventTimer != null) {
+            eventTimer.cancel(false);
+            eventTimer = null;
+        }
+        centralQueue.clear();
+        peripheralQueue.clear();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Queue a write for the next connection event, or report busy when the stack buffer is full
+    @Override
+    public synchronized boolean write(byte[] data) {
+        if (!ready || data.length > MldpPacketizer.getPacketSize(config.mtu)) {
+            return false;
+        }
+        if (centralQueue.size() >= config.writeBufferSize) {
+            busyCount++;
+            return false;
+        }
+        centralQueue.add(data.clone());
+        return true;
+    }
+
+    // Send data from the peripheral as if it came from its UART
+    public synchronized void sendFromPeripheral(byte[] data) {
+        MldpPacketizer.split(data, config.mtu, peripheralQueue);
+    }
+
+    @Override
+    public synchronized boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public boolean isWriteWithoutResponse() {
+        return config.writeWithoutResponse;
+    }
+
+    @Override
+    public int getMtu() {
+        return config.mtu;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // One connection event moves a few packets each way
+    private final Runnable connectionEvent = new Runnable() {
+        @Override
+        public void run() {
+            final LinkedList<byte[]> sent = new LinkedList<byte[]>();
+            final LinkedList<byte[]> received = new LinkedList<byte[]>();
+            final Callback eventCallback;
+            synchronized (MldpSimulatedPeripheral.this) {
+                if (!connected) {
+                    return;
+                }
+                events++;
+                final int writeLimit = config.writeWithoutResponse ? config.packetsPerEvent : 1;    //Acknowledged writes wait for the response
+                for (int i = 0; i < writeLimit && !centralQueue.isEmpty(); i++) {
+                    sent.add(centralQueue.remove());
+                }
+                for (int i = 0; i < config.packetsPerEvent && !peripheralQueue.isEmpty(); i++) {
+                    received.add(peripheralQueue.remove());
+                }
+                eventCallback = callback;
+            }
+            for (final byte[] data : sent) {                                                        //Writes from the central to the peripheral
+                final boolean lost = isLost();
+                synchronized (MldpSimulatedPeripheral.this) {
+                    writes++;
+                    writeBytes += data.length;
+                    if (lost) {
+                        writesLost++;
+                    }
+                }
+                if (!lost) {
+                    deliver(new Runnable() {
+                        @Override
+                        public void run() {
+                            onPeripheralData(data);
+                        }
+                    });
+                }
+                eventCallback.onWriteComplete(true);                                                //Stack reports the write done whether or not the UART kept it
+            }
+            for (final byte[] data : received) {                                                    //Notifications from the peripheral to the central
+                final boolean lost = isLost();
+                synchronized (MldpSimulatedPeripheral.this) {
+                    notifications++;
+                    if (lost) {
+                        notificationsLost++;
+                    }
+                }
+                if (!lost) {
+                    deliver(new Runnable() {
+                        @Override
+                        public void run() {
+                            eventCallback.onNotification(data);
+                        }
+                    });
+                }
+            }
+        }
+    };
+
+    private synchronized boolean isLost() {
+        return config.lossRate > 0 && random.nextDouble() < config.lossRate;
+    }
+
+    // Run after the configured latency, in order with everything else delivered
+    private void deliver(Runnable delivery) {
+        if (config.latency <= 0) {
+            delivery.run();
+            return;
+        }
+        synchronized (this) {
+            if (executor != null) {
+                executor.schedule(delivery, config.latency, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    // The peripheral has received data from the central
+    private void onPeripheralData(byte[] data) {
+        final Responder currentResponder;
+        synchronized (this) {
+            currentResponder = responder;
+        }
+        final byte[] reply = currentResponder != null ? currentResponder.onData(data) : config.echo ? data : null;
+        if (reply != null && reply.length > 0) {
+            sendFromPeripheral(reply);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Simulator: interval %d ms, MTU %d, %d events, %d writes (%d bytes, %d lost), %d notifications (%d lost), %d busy",
+                config.connectionInterval, config.mtu, events, writes, writeBytes, writesLost, notifications, notificationsLost, busyCount);
+    }
+}
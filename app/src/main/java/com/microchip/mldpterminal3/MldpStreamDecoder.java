@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import java.util.Arrays;
+
+/**
+ * Splits the stream of bytes from the peripheral into whole frames, however the notifications happened to divide it.
+ *
+ * Subclasses handle line, length prefixed, SLIP and COBS framing. Each keeps the partial frame between calls and passes
+ * complete frames to the Listener. A frame longer than the maximum size is dropped and counted as an error, and the
+ * decoder starts again at the next frame boundary it can find.
+ */
+public abstract class MldpStreamDecoder {
+
+    public interface Listener {
+        void onFrame(byte[] frame);
+    }
+
+    private byte[] buffer = new byte[64];                                                           //Frame being built, grows up to maxFrameSize
+    private int length;
+    protected final int maxFrameSize;
+    private boolean overflow;                                                                       //Dropping bytes until the next frame boundary
+    private long frames, errors;
+
+    protected MldpStreamDecoder(int maxFrameSize) {
+        this.maxFrameSize = Math.max(1, maxFrameSize);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Decode received bytes, calling the listener for each complete frame
+    public abstract void decode(byte[] data, int offset, int count, Listener listener);
+
+    // Throw away any partial frame
+    public void reset() {
+        length = 0;
+        overflow = false;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s decoder: %d frames, %d errors", getClass().getSimpleName(), frames, errors);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Helpers for subclasses to build the frame
+    protected final void append(byte b) {
+        if (overflow) {
+            return;
+        }
+        if (length == maxFrameSize) {
+            overflow = true;                                                                        //Too long, drop it
+            errors++;
+            return;
+        }
+        if (length == buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.min(maxFrameSize, buffer.length * 2));
+        }
+        buffer[length++] = b;
+    }
+
+    protected final int frameLength() {
+        return length;
+    }
+
+    protected final byte frameByte(int index) {
+        return buffer[index];
+    }
+
+    protected final void removeLast() {
+        if (length > 0) {
+            length--;
+        }
+    }
+
+    // Pass the frame to the listener, unless it overflowed, and start the next one with reset()
+    protected final void endFrame(Listener listener) {
+        if (!overflow) {
+            frames++;
+            listener.onFrame(Arrays.copyOf(buffer, length));
+        }
+        reset();
+    }
+
+    // Drop the frame being built because it is malformed
+    protected final void dropFrame() {
+        if (!overflow) {
+            errors++;
+        }
+        reset();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Frames end with the delimiter, normally '\n'. A '\r' before a '\n' is removed.
+    public static class Line extends MldpStreamDecoder {
+        private final byte delimiter;
+
+        public Line(byte delimiter, int maxFrameSize) {
+            super(maxFrameSize);
+            this.delimiter = delimiter;
+        }
+
+        @Override
+        public void decode(byte[] data, int offset, int count, Listener listener) {
+            for (int i = offset; i < offset + count; i++) {
+                final byte b = data[i];
+                if (b == delimiter) {
+                    if (delimiter == '\n' && frameLength() > 0 && frameByte(frameLength() - 1) == '\r') {
+                        removeLast();
+                    }
+                    endFrame(listener);
+                }
+                else {
+                    append(b);
+                }
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Frames start with a big endian length of 1, 2 or 4 bytes. A length over the maximum cannot be resynchronised
+    // from, so the frame is counted as an error and the stream is read as if it were that long.
+    public static class LengthPrefixed extends MldpStreamDecoder {
+        private final int prefixSize;
+        private int prefixRead;
+        private long frameSize;                                                                     //Payload bytes expected
+        private long payloadRead;
+
+        public LengthPrefixed(int prefixSize, int maxFrameSize) {
+            super(maxFrameSize);
+            if (prefixSize != 1 && prefixSize != 2 && prefixSize != 4) {
+                throw new IllegalArgumentException("Length prefix must be 1, 2 or 4 bytes");
+            }
+            this.prefixSize = prefixSize;
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            prefixRead = 0;
+            frameSize = payloadRead = 0;
+        }
+
+        @Override
+        public void decode(byte[] data, int offset, int count, Listener listener) {
+            for (int i = offset; i < offset + count; i++) {
+                if (prefixRead < prefixSize) {                                                      //Still reading the length
+                    frameSize = (frameSize << 8) | (data[i] & 0xff);
+                    if (++prefixRead == prefixSize && frameSize == 0) {
+                        endFrame(listener);                                                         //Empty frame
+                    }
+                    continue;
+                }
+                append(data[i]);                                                                    //Counts an error once, when the frame is too long
+                if (++payloadRead == frameSize) {
+                    endFrame(listener);                                                             //Also resets the length
+                }
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // RFC 1055 SLIP. Frames end with END and END or ESC in the data are escaped. Empty frames are ignored.
+    public static class Slip extends MldpStreamDecoder {
+        private static final byte END = (byte) 0xC0;
+        private static final byte ESC = (byte) 0xDB;
+        private static final byte ESC_END = (byte) 0xDC;
+        private static final byte ESC_ESC = (byte) 0xDD;
+        private boolean escaped;
+
+        public Slip(int maxFrameSize) {
+            super(maxFrameSize);
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            escaped = false;
+        }
+
+        @Override
+        public void decode(byte[] data, int offset, int count, Listener listener) {
+            for (int i = offset; i < offset + count; i++) {
+                final byte b = data[i];
+                if (b == END) {
+                    if (escaped) {
+                        dropFrame();                                                                //ESC END is not valid
+                    }
+                    else if (frameLength() > 0) {
+                        endFrame(listener);
+                    }
+                    else {
+                        reset();                                                                    //Leading END or overflowed frame
+                    }
+                }
+                else if (escaped) {
+                    escaped = false;
+                    if (b == ESC_END) {
+                        append(END);
+                    }
+                    else if (b == ESC_ESC) {
+                        append(ESC);
+                    }
+                    else {
+                        append(b);                                                                  //Protocol violation, RFC 1055 keeps the byte
+                    }
+                }
+                else if (b == ESC) {
+                    escaped = true;
+                }
+                else {
+                    append(b);
+                }
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Consistent Overhead Byte Stuffing with each frame ended by a zero byte. Decoded as the bytes arrive, so the
+    // only state is the count of bytes left in the current code block.
+    public static class Cobs extends MldpStreamDecoder {
+        private int remaining;                                                                      //Data bytes left in this code block
+        private boolean zeroPending;                                                                //Code block ends with an implied zero
+        private boolean started;
+
+        public Cobs(int maxFrameSize) {
+            super(maxFrameSize);
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            remaining = 0;
+            zeroPending = false;
+            started = false;
+        }
+
+        @Override
+        public void decode(byte[] data, int offset, int count, Listener listener) {
+            for (int i = offset; i < offset + count; i++) {
+                final int b = data[i] & 0xff;
+                if (b == 0) {                                                                       //End of frame
+                    if (remaining != 0) {
+                        dropFrame();                                                                //Code block cut short
+                    }
+                    else if (started) {
+                        endFrame(listener);                                                         //Last implied zero is not part of the data
+                    }
+                    else {
+                        reset();
+                    }
+                }
+                else if (remaining == 0) {                                                          //Code byte
+                    if (zeroPending) {
+                        append((byte) 0);
+                    }
+                    started = true;
+                    remaining = b - 1;
+                    zeroPending = b != 0xff;                                                        //A 0xFF block has no zero after it
+                }
+                else {
+                    append((byte) b);
+                    remaining--;
+                }
+            }
+        }
+    }
+}
@@ -26,11 +26,16 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
 import android.text.Editable;
 import android.text.TextWatcher;
+import android.text.Layout;
 import android.text.method.ScrollingMovementMethod;
 import android.util.Log;
 import android.view.Menu;
@@ -41,7 +46,12 @@ import android.widget.Button;
 import android.widget.EditText;
 import android.widget.TextView;
 
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.UnsupportedEncodingException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
 
 /**
  * Activity provides a terminal interface to send and receive bytes from an MLDP enabled
@@ -55,16 +65,50 @@ public class MldpTerminalActivity extends Activity {
     private static final String PREFS_NAME = "NAME";                                                //used to save name and MAC address of Bluetooth device and
     private static final String PREFS_ADDRESS = "ADDR";                                             //whether to connect automatically on startup.
     private static final String PREFS_AUTO_CONNECT = "AUTO";
+    private static final String PREFS_LINK_TUNING = "TUNE";                                         //Choices in the Link Options menu
+    private static final String PREFS_PIPELINED_WRITES = "PIPE";
+    private static final String PREFS_CREDIT_FLOW = "CRED";
+    private static final String PREFS_RATE_LIMIT = "RATE";
+    private static final String PREFS_FRAMED_TRANSPORT = "FRAM";
+    private static final String PREFS_COMPRESSION = "LZSS";
+    private static final String PREFS_FRAME_DECODER = "DECO";
     private static final int REQ_CODE_SCAN_ACTIVITY = 1;                                            //Codes to identify activities that return results such as enabling Bluetooth
     private static final int REQ_CODE_ENABLE_BT = 2;                                                //or scanning for bluetooth devices.
+    private static final int REQ_CODE_SEND_FILE = 3;                                                //Code to identify the activity that picks a file to send
+    private static final int REQ_CODE_SEND_YMODEM = 4;                                              //Code to identify the activity that picks a file to send with YMODEM
+    private static final int REQ_CODE_SEND_YMODEM_WINDOWED = 5;                                     //Code to identify the activity that picks a file to send with windowed YMODEM
+    private static final int YMODEM_WINDOW = 4;                                                     //YMODEM blocks sent ahead of the ACKs when windowed, for receivers that can take them
+    private static final int CAPTURE_BUFFER_SIZE = 4 * 1024 * 1024;                                 //Bytes of recent data to keep for capture snapshots
+    private static final long CAPTURE_PRE_TIME = 60000;                                             //Milliseconds of data to save before a capture event
+    private static final long CAPTURE_POST_TIME = 5000;                                             //Milliseconds of data to save after a capture event
+    private static final long BENCHMARK_TIME = 30000;                                               //Milliseconds to send for during a benchmark
+    private static final long OUTBOUND_QUEUE_CAPACITY = 1024 * 1024;                                //Bytes kept while disconnected before the oldest are dropped
+    private static final int CREDIT_INITIAL = 128;                                                  //Bytes the peripheral takes before its first credit grant
+    private static final int CREDIT_UNIT = 16;                                                      //Bytes for each count in a credit grant
+    private static final long TX_RATE_LIMIT = 11520;                                                //Bytes per second a 115200 baud UART on the module can pass on
+    private static final int TX_RATE_BURST = 256;                                                   //Bytes that can be written back to back when limited
+    private static final int COMPRESSION_WINDOW_BITS = 10;                                          //1 KB window so the peripheral needs little RAM to decompress
+    private static final int FRAME_MAX_SIZE = 4096;                                                 //Longest frame the chosen frame decoder accepts
+    private static final int[] FRAME_DECODER_ITEMS = {R.id.menu_decoder_none, R.id.menu_decoder_line, //Frame Decoder menu items, saved by their index
+            R.id.menu_decoder_length, R.id.menu_decoder_slip, R.id.menu_decoder_cobs};
+    private static final int DECODER_NONE = 0;
 
     private static final long CONNECT_TIME = 5000;						                            //Length of time in milliseconds to try to connect to a device
     private Handler connectTimeoutHandler;                                                          //Handler to provide a time out if connection attempt takes too long
     private MldpBluetoothService bleService;                                                        //Service that handles all interaction with the Bluetooth radio and remote device
+    private MldpRxRing.Subscription rxSubscription;                                                 //Our place in the received data, kept while paused so nothing is missed
+    private boolean resumed;                                                                        //Indication that the activity is showing and can display data
 
     private String bleDeviceName, bleDeviceAddress;                                                 //Name and address of remote Bluetooth device
     private boolean bleAutoConnect;                                                                 //Indication whether we should try to automatically connect to a device on startup
     private boolean attemptingAutoConnect = false;                                                  //Indication that we are trying to connect automatically
+    private boolean linkTuning = true;                                                              //Link options, passed to the service when it is bound
+    private boolean pipelinedWrites = true;
+    private boolean creditFlow;
+    private boolean rateLimit;
+    private boolean framedTransport;
+    private boolean compression;
+    private int frameDecoder = DECODER_NONE;                                                        //Index in FRAME_DECODER_ITEMS of the frame decoder chosen
 
     private ShowAlertDialogs showAlert;                                                             //Object that creates and shows all the alert pop ups used in the app
     private SharedPreferences prefs;									                            //SharedPreferences storage area to save the name and address of the Bluetooth device
@@ -74,7 +118,7 @@ public class MldpTerminalActivity extends Activity {
     private EditText textOutgoing;                                                                  //To type text to send to the remote Bluetooth device
     private Button buttonClearIncoming, buttonClearOutgoing;                                        //To clear the text on the display
 
-    private enum State {STARTING, ENABLING, SCANNING, CONNECTING, CONNECTED, DISCONNECTED, DISCONNECTING}; //States of the app.
+    private enum State {STARTING, ENABLING, SCANNING, CONNECTING, CONNECTED, DISCONNECTED, DISCONNECTING, PROVISIONING}; //States of the app.
     State state = State.STARTING;                                                                   //Initial state when app starts
 
     // ----------------------------------------------------------------------------------------------------------------
@@ -93,6 +137,16 @@ public class MldpTerminalActivity extends Activity {
         prefs = getSharedPreferences(PREFS, MODE_PRIVATE);								            //Get a reference to the SharedPreferences storage area
         if(prefs != null) {																	        //Check that a SharedPreferences exists
             bleAutoConnect = prefs.getBoolean(PREFS_AUTO_CONNECT, false);                           //Get the instruction to automatically connect or manually connect
+            linkTuning = prefs.getBoolean(PREFS_LINK_TUNING, true);                                 //Get the link options chosen last time
+            pipelinedWrites = prefs.getBoolean(PREFS_PIPELINED_WRITES, true);
+            creditFlow = prefs.getBoolean(PREFS_CREDIT_FLOW, false);
+            rateLimit = prefs.getBoolean(PREFS_RATE_LIMIT, false);
+            framedTransport = prefs.getBoolean(PREFS_FRAMED_TRANSPORT, false);
+            compression = prefs.getBoolean(PREFS_COMPRESSION, false);
+            frameDecoder = prefs.getInt(PREFS_FRAME_DECODER, DECODER_NONE);
+            if (frameDecoder < 0 || frameDecoder >= FRAME_DECODER_ITEMS.length) {                   //Saved by a version with other decoders
+                frameDecoder = DECODER_NONE;
+            }
             if (bleAutoConnect == true) {                                                           //Only need name and address if going to connect automatically
                 bleDeviceName = prefs.getString(PREFS_NAME, null);                                  //Get the name of the last BLE device the app was connected to
                 bleDeviceAddress = prefs.getString(PREFS_ADDRESS, null);                            //Get the address of the last BLE device the app was connected to
@@ -119,11 +173,13 @@ public class MldpTerminalActivity extends Activity {
 
     // ----------------------------------------------------------------------------------------------------------------
     // Activity resumed
-    // Register the receiver for intents from the MldpBluetoothService
+    // Register the receiver for intents from the MldpBluetoothService and catch up on data received while paused
     @Override
     protected void onResume() {
         super.onResume();
         registerReceiver(bleServiceReceiver, bleServiceIntentFilter()); 	                        //Register receiver to handles events fired by the service: connected, disconnected, discovered services, received data from read or notification operation
+        resumed = true;
+        listenForData();
 //        if (bleService != null && bleService.isBluetoothRadioEnabled() == false) {                  //See if the Bluetooth radio is on
 //            state = State.ENABLING;
 //            updateConnectionState();                                                                //Update the screen and menus
@@ -140,6 +196,10 @@ public class MldpTerminalActivity extends Activity {
     protected void onPause() {
         super.onPause();
         unregisterReceiver(bleServiceReceiver);                                                     //Unregister receiver that was registered in onResume()
+        resumed = false;
+        if (rxSubscription != null) {
+            rxSubscription.setListener(null, null);                                                 //Stop displaying but keep our place in the data
+        }
         //showAlert.dismiss();                                                                        //Dismiss any dialogs
     }
 
@@ -153,6 +213,13 @@ public class MldpTerminalActivity extends Activity {
         SharedPreferences.Editor editor = prefs.edit();                                             //Create a SharedPreferences editor
         editor.clear();                                                                             //Clear all saved preferences
         editor.putBoolean(PREFS_AUTO_CONNECT, bleAutoConnect);                                      //Use the editor to put the instruction to automatically connect in the SharedPreferences
+        editor.putBoolean(PREFS_LINK_TUNING, linkTuning);                                           //Keep the link options for next time
+        editor.putBoolean(PREFS_PIPELINED_WRITES, pipelinedWrites);
+        editor.putBoolean(PREFS_CREDIT_FLOW, creditFlow);
+        editor.putBoolean(PREFS_RATE_LIMIT, rateLimit);
+        editor.putBoolean(PREFS_FRAMED_TRANSPORT, framedTransport);
+        editor.putBoolean(PREFS_COMPRESSION, compression);
+        editor.putInt(PREFS_FRAME_DECODER, frameDecoder);
         if (bleAutoConnect == true) {                                                               //Only need name and address if going to connect automatically
             editor.putString(PREFS_NAME, bleDeviceName);                                            //Use the editor to put the current device name in the SharedPreferences
             editor.putString(PREFS_ADDRESS, bleDeviceAddress);                                      //Use the editor to put the current MAC address in the SharedPreferences
@@ -165,6 +232,9 @@ public class MldpTerminalActivity extends Activity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (bleService != null && rxSubscription != null && isFinishing()) {                        //Keep our place if the activity is only being recreated
+            bleService.unsubscribeRx(rxSubscription);
+        }
         unbindService(bleServiceConnection);                                                        //Unbind from the service handling Bluetooth
         bleService = null;
     }
@@ -175,7 +245,13 @@ public class MldpTerminalActivity extends Activity {
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.main_terminal_menu, menu);
-        if (state == State.CONNECTED) {                                                             //See if we are connected
+        menu.findItem(R.id.menu_provision).setVisible(state != State.CONNECTED && state != State.PROVISIONING); //Provision only when not using a device
+        menu.findItem(R.id.menu_provision_stop).setVisible(state == State.PROVISIONING);
+        if (state == State.PROVISIONING) {                                                          //The service is connecting on its own
+            menu.findItem(R.id.menu_disconnect).setVisible(false);
+            menu.findItem(R.id.menu_connect).setVisible(false);
+        }
+        else if (state == State.CONNECTED) {                                                        //See if we are connected
             menu.findItem(R.id.menu_disconnect).setVisible(true);                                   //Are connected so show Disconnect menu
             menu.findItem(R.id.menu_connect).setVisible(false);                                     //and hide Connect menu
         } else {
@@ -187,6 +263,48 @@ public class MldpTerminalActivity extends Activity {
                 menu.findItem(R.id.menu_connect).setVisible(true);                                  //No address so hide the connect menu
             }
         }
+        final boolean sendingFile = bleService != null && bleService.isSendingFile();               //File send options depend on whether a file is being sent
+        menu.findItem(R.id.menu_send_file).setVisible(state == State.CONNECTED && !sendingFile);
+        menu.findItem(R.id.menu_send_ymodem).setVisible(state == State.CONNECTED && !sendingFile);
+        menu.findItem(R.id.menu_send_ymodem_windowed).setVisible(state == State.CONNECTED && !sendingFile);
+        menu.findItem(R.id.menu_send_pause).setVisible(sendingFile && !bleService.isSendingFilePaused());
+        menu.findItem(R.id.menu_send_resume).setVisible(sendingFile && bleService.isSendingFilePaused());
+        menu.findItem(R.id.menu_send_cancel).setVisible(sendingFile);
+        final boolean triggers = bleService != null && bleService.hasTriggers();
+        menu.findItem(R.id.menu_triggers_load).setVisible(!triggers);
+        menu.findItem(R.id.menu_triggers_clear).setVisible(triggers);
+        final boolean capturing = bleService != null && bleService.isCapturing();
+        menu.findItem(R.id.menu_capture_start).setVisible(!capturing);
+        menu.findItem(R.id.menu_capture_snapshot).setVisible(capturing);
+        menu.findItem(R.id.menu_capture_stop).setVisible(capturing);
+        final boolean recording = bleService != null && bleService.isRecordingSession();
+        menu.findItem(R.id.menu_session_start).setVisible(!recording);
+        menu.findItem(R.id.menu_session_stop).setVisible(recording);
+        menu.findItem(R.id.menu_search).setVisible(bleService != null && bleService.hasSession());
+        menu.findItem(R.id.menu_export).setVisible(bleService != null && bleService.hasSession());
+        final boolean queueing = bleService != null && bleService.isOutboundQueueing();
+        menu.findItem(R.id.menu_queue_start).setVisible(!queueing);
+        menu.findItem(R.id.menu_queue_stop).setVisible(queueing);
+        menu.findItem(R.id.menu_connect_simulator).setVisible(state != State.CONNECTED && state != State.CONNECTING && state != State.PROVISIONING);
+        menu.findItem(R.id.menu_replay).setVisible(state != State.CONNECTED && state != State.CONNECTING && state != State.PROVISIONING);
+        menu.findItem(R.id.menu_replay_max).setVisible(state != State.CONNECTED && state != State.CONNECTING && state != State.PROVISIONING);
+        menu.findItem(R.id.menu_control).setVisible(state == State.CONNECTED && bleService != null && bleService.hasControlChannel());
+        final boolean benchmarking = bleService != null && bleService.isBenchmarking();
+        menu.findItem(R.id.menu_benchmark_start).setVisible(state == State.CONNECTED && !benchmarking);
+        menu.findItem(R.id.menu_benchmark_stop).setVisible(benchmarking);
+        final boolean probing = bleService != null && bleService.isProbing();
+        menu.findItem(R.id.menu_probe_start).setVisible(state == State.CONNECTED && !probing);
+        menu.findItem(R.id.menu_probe_stop).setVisible(probing);
+        final boolean polling = bleService != null && bleService.isPolling();
+        menu.findItem(R.id.menu_poll_start).setVisible(state == State.CONNECTED && !polling);
+        menu.findItem(R.id.menu_poll_stop).setVisible(polling);
+        menu.findItem(R.id.menu_link_tuning).setChecked(linkTuning);
+        menu.findItem(R.id.menu_pipelined_writes).setChecked(pipelinedWrites);
+        menu.findItem(R.id.menu_credit_flow).setChecked(creditFlow).setEnabled(state != State.CONNECTED); //Peripheral must agree, so only change between connections
+        menu.findItem(R.id.menu_rate_limit).setChecked(rateLimit);
+        menu.findItem(R.id.menu_framed_transport).setChecked(framedTransport).setEnabled(state != State.CONNECTED);
+        menu.findItem(R.id.menu_compression).setChecked(compression).setEnabled(state != State.CONNECTED);
+        menu.findItem(FRAME_DECODER_ITEMS[frameDecoder]).setChecked(true);
         return true;
     }
 
@@ -206,12 +324,274 @@ public class MldpTerminalActivity extends Activity {
                 }
                 return true;
 
+            case R.id.menu_connect_simulator:                                                       //Menu option Connect Simulator chosen
+                state = State.CONNECTING;
+                updateConnectionState();
+                bleService.connectSimulator(new MldpSimulatedPeripheral.Config());                  //Echoes everything sent, over a simulated link
+                return true;
+
+            case R.id.menu_replay:                                                                  //Menu option Replay Capture chosen
+                startReplay(1);                                                                     //Recorded timing
+                return true;
+
+            case R.id.menu_replay_max:                                                              //Menu option Replay Capture at Full Speed chosen
+                startReplay(MldpSessionReplay.SPEED_MAX);                                           //No delays, to stress the receive path and display
+                return true;
+
             case R.id.menu_disconnect:                                                              //Menu option Disconnect chosen
                 state = State.DISCONNECTING;                                                        //Used to determine whether disconnect event should trigger a popup to reconnect
                 updateConnectionState();                                                            //Update the screen and menus
                 bleService.disconnect();                                                            //Ask the MldpBluetoothService to disconnect
                 return true;
 
+            case R.id.menu_provision:                                                               //Menu option Provision chosen
+                startProvisioning();
+                return true;
+
+            case R.id.menu_provision_stop:                                                          //Menu option Stop Provisioning chosen
+                bleService.provisionStop();                                                         //Service reports ACTION_BLE_PROVISION_FINISHED when stopped
+                return true;
+
+            case R.id.menu_send_file:                                                               //Menu option Send File chosen
+                final Intent pickFileIntent = new Intent(Intent.ACTION_GET_CONTENT);                //Ask the user to choose a file
+                pickFileIntent.setType("*/*");
+                pickFileIntent.addCategory(Intent.CATEGORY_OPENABLE);
+                startActivityForResult(pickFileIntent, REQ_CODE_SEND_FILE);
+                return true;
+
+            case R.id.menu_send_ymodem:                                                             //Menu option YMODEM Upload chosen
+                final Intent pickYmodemIntent = new Intent(Intent.ACTION_GET_CONTENT);              //Ask the user to choose a file
+                pickYmodemIntent.setType("*/*");
+                pickYmodemIntent.addCategory(Intent.CATEGORY_OPENABLE);
+                startActivityForResult(pickYmodemIntent, REQ_CODE_SEND_YMODEM);
+                return true;
+
+            case R.id.menu_send_ymodem_windowed:                                                    //Menu option YMODEM Upload (Windowed) chosen
+                final Intent pickWindowedIntent = new Intent(Intent.ACTION_GET_CONTENT);            //Ask the user to choose a file
+                pickWindowedIntent.setType("*/*");
+                pickWindowedIntent.addCategory(Intent.CATEGORY_OPENABLE);
+                startActivityForResult(pickWindowedIntent, REQ_CODE_SEND_YMODEM_WINDOWED);
+                return true;
+
+            case R.id.menu_send_pause:                                                              //Menu option Pause Send chosen
+                bleService.sendFilePause();
+                invalidateOptionsMenu();
+                return true;
+
+            case R.id.menu_send_resume:                                                             //Menu option Resume Send chosen
+                bleService.sendFileResume();
+                invalidateOptionsMenu();
+                return true;
+
+            case R.id.menu_send_cancel:                                                             //Menu option Cancel Send chosen
+                bleService.sendFileCancel();                                                        //Service reports ACTION_BLE_FILE_FINISHED when cancelled
+                return true;
+
+            case R.id.menu_triggers_load:                                                           //Menu option Load Triggers chosen
+                loadTriggers();
+                return true;
+
+            case R.id.menu_triggers_clear:                                                          //Menu option Clear Triggers chosen
+                bleService.clearTriggers();
+                invalidateOptionsMenu();
+                return true;
+
+            case R.id.menu_capture_start:                                                           //Menu option Start Capture chosen
+                bleService.captureStart(CAPTURE_BUFFER_SIZE, CAPTURE_PRE_TIME, CAPTURE_POST_TIME);
+                invalidateOptionsMenu();
+                return true;
+
+            case R.id.menu_capture_snapshot:                                                        //Menu option Capture Snapshot chosen
+                bleService.captureSnapshot(getString(R.string.capture_manual));                     //Service reports ACTION_BLE_CAPTURE_SAVED when written
+                return true;
+
+            case R.id.menu_capture_stop:                                                            //Menu option Stop Capture chosen
+                bleService.captureStop();
+                invalidateOptionsMenu();
+                return true;
+
+            case R.id.menu_session_start:                                                           //Menu option Record Session chosen
+                startSession();
+                return true;
+
+            case R.id.menu_session_stop:                                                            //Menu option Stop Recording chosen
+                bleService.sessionStop();                                                           //Service reports ACTION_BLE_SESSION_SAVED when the file is complete
+                invalidateOptionsMenu();
+                return true;
+
+            case R.id.menu_search:                                                                  //Menu option Search Session chosen
+                showAlert.showSearchDialog(this, new ShowAlertDialogs.TextCallback() {
+                    @Override
+                    public void onText(String text) {                                               //Service reports ACTION_BLE_SEARCH_RESULT when done
+                        bleService.searchSession(text);
+                    }
+                });
+                return true;
+
+            case R.id.menu_queue_start:                                                             //Menu option Queue While Disconnected chosen
+                startOutboundQueue();
+                return true;
+
+            case R.id.menu_queue_stop:                                                              //Menu option Stop Queueing chosen
+                bleService.outboundQueueStop();                                                     //Anything waiting is sent next time queueing is started
+                invalidateOptionsMenu();
+                return true;
+
+            case R.id.menu_export_btsnoop:                                                          //Menu option Export Session chosen, for each format
+                exportSession(MldpSessionExporter.FORMAT_BTSNOOP);
+                return true;
+
+            case R.id.menu_export_pcap:
+                exportSession(MldpSessionExporter.FORMAT_PCAP);
+                return true;
+
+            case R.id.menu_export_csv:
+                exportSession(MldpSessionExporter.FORMAT_CSV);
+                return true;
+
+            case R.id.menu_benchmark_start:                                                         //Menu option Start Benchmark chosen
+                startBenchmark();
+                return true;
+
+            case R.id.menu_benchmark_stop:                                                          //Menu option Stop Benchmark chosen
+                bleService.benchmarkStop();                                                         //Service reports ACTION_BLE_BENCHMARK_FINISHED when stopped
+                return true;
+
+            case R.id.menu_probe_start:                                                             //Menu option Start Latency Probe chosen
+                bleService.probeStart(MldpLatencyProbe.DEFAULT_PERIOD);
+                invalidateOptionsMenu();
+                return true;
+
+            case R.id.menu_probe_stop:                                                              //Menu option Stop Latency Probe chosen
+                bleService.probeStop();
+                invalidateOptionsMenu();
+                return true;
+
+            case R.id.menu_poll_start:                                                              //Menu option Start Polling chosen
+                startPolling();
+                return true;
+
+            case R.id.menu_poll_stop:                                                               //Menu option Stop Polling chosen
+                bleService.pollStop();
+                invalidateOptionsMenu();
+                return true;
+
+            case R.id.menu_control:                                                                 //Menu option Control Command chosen
+                showAlert.showControlCommandDialog(this, new ShowAlertDialogs.TextCallback() {
+                    @Override
+                    public void onText(String text) {                                               //Service reports ACTION_BLE_CONTROL_RESPONSE when done
+                        bleService.writeControl(text, true);
+                    }
+                });
+                return true;
+
+            case R.id.menu_link_tuning:                                                             //Menu option Link Options > Connection Tuning chosen
+                linkTuning = !linkTuning;
+                bleService.setLinkTuningEnabled(linkTuning);
+                invalidateOptionsMenu();
+                return true;
+
+            case R.id.menu_pipelined_writes:                                                        //Menu option Link Options > Pipelined Writes chosen
+                pipelinedWrites = !pipelinedWrites;
+                bleService.setTxWindow(pipelinedWrites ? MldpBluetoothService.DEFAULT_TX_WINDOW : 1, 0);
+                invalidateOptionsMenu();
+                return true;
+
+            case R.id.menu_credit_flow:                                                             //Menu option Link Options > Credit Flow Control chosen
+                creditFlow = !creditFlow;
+                bleService.setCreditFlowControl(creditFlow, CREDIT_INITIAL, CREDIT_UNIT);
+                invalidateOptionsMenu();
+                return true;
+
+            case R.id.menu_rate_limit:                                                              //Menu option Link Options > Limit Write Rate chosen
+                rateLimit = !rateLimit;
+                bleService.setTxRateLimit(rateLimit ? TX_RATE_LIMIT : 0, TX_RATE_BURST);
+                invalidateOptionsMenu();
+                return true;
+
+            case R.id.menu_framed_transport:                                                        //Menu option Link Options > Framed Transport chosen
+                framedTransport = !framedTransport;
+                bleService.setFramedTransport(framedTransport, MldpFrameTransport.DEFAULT_WINDOW, MldpFrameTransport.DEFAULT_PAYLOAD_SIZE);
+                invalidateOptionsMenu();
+                return true;
+
+            case R.id.menu_compression:                                                             //Menu option Link Options > Compression chosen
+                compression = !compression;
+                bleService.setCompression(compression, COMPRESSION_WINDOW_BITS);
+                invalidateOptionsMenu();
+                return true;
+
+            case R.id.menu_decoder_none:                                                            //Menu option Frame Decoder > None, Lines, Length Prefixed, SLIP or COBS chosen
+            case R.id.menu_decoder_line:
+            case R.id.menu_decoder_length:
+            case R.id.menu_decoder_slip:
+            case R.id.menu_decoder_cobs:
+                for (int i = 0; i < FRAME_DECODER_ITEMS.length; i++) {
+                    if (FRAME_DECODER_ITEMS[i] == item.getItemId()) {
+                        frameDecoder = i;
+                    }
+                }
+                bleService.setStreamDecoder(createFrameDecoder());
+                invalidateOptionsMenu();
+                return true;
+
+            case R.id.menu_link_statistics:                                                         //Menu option Link Statistics chosen
+                StringBuilder statistics = new StringBuilder(getString(R.string.link_statistics_mtu, bleService.getMtu()));
+                for (MldpLinkTuner.ModeStats modeStats : bleService.getLinkStatistics()) {          //Throughput and latency for each connection priority
+                    statistics.append("\n\n").append(modeStats);
+                }
+                if (bleService.getCreditFlowStatistics() != null) {                                 //Show flow control if it is being used
+                    statistics.append("\n\n").append(bleService.getCreditFlowStatistics());
+                }
+                if (bleService.getTxRateStatistics() != null) {                                     //Show the rate limit if there is one
+                    statistics.append("\n\n").append(bleService.getTxRateStatistics());
+                }
+                if (bleService.getFramedTransportStatistics() != null) {                            //Show the framed transport if it is being used
+                    statistics.append("\n\n").append(bleService.getFramedTransportStatistics());
+                }
+                if (bleService.getCompressionStatistics() != null) {                                //Show the compression ratio if it is being used
+                    statistics.append("\n\n").append(bleService.getCompressionStatistics());
+                }
+                statistics.append("\n\n").append(bleService.getRxRingStatistics());                 //Show how far behind each reader of the received data is
+                if (bleService.getStreamDecoderStatistics() != null) {                              //Show the frame decoder if one is set
+                    statistics.append("\n\n").append(bleService.getStreamDecoderStatistics());
+                }
+                if (bleService.getTriggerStatistics() != null) {                                    //Show the trigger matches if any are loaded
+                    statistics.append("\n\n").append(bleService.getTriggerStatistics());
+                }
+                if (bleService.getRpcStatistics() != null) {                                        //Show the request round trips if calls have been made
+                    statistics.append("\n\n").append(bleService.getRpcStatistics());
+                }
+                if (bleService.getPollStatistics() != null) {                                       //Show each poll schedule if polling
+                    statistics.append("\n\n").append(bleService.getPollStatistics());
+                }
+                if (bleService.getSimulatorStatistics() != null) {                                  //Show the simulated link if it is being used
+                    statistics.append("\n\n").append(bleService.getSimulatorStatistics());
+                }
+                if (bleService.getSessionStatistics() != null) {                                    //Show the session file if one is being recorded
+                    statistics.append("\n\n").append(bleService.getSessionStatistics());
+                }
+                if (bleService.getOutboundQueueStatistics() != null) {                              //Show the writes waiting if queueing
+                    statistics.append("\n\n").append(bleService.getOutboundQueueStatistics());
+                }
+                if (bleService.getBlockTransferStatistics() != null) {                              //Show the retries and ACK latency of the last YMODEM upload
+                    statistics.append("\n\n").append(bleService.getBlockTransferStatistics());
+                }
+                if (bleService.getReplayStatistics() != null) {                                    //Show the replay if one is playing or has finished
+                    statistics.append("\n\n").append(bleService.getReplayStatistics());
+                }
+                if (bleService.getProbeStatistics() != null) {                                      //Show the round trip distribution if probing
+                    statistics.append("\n\n").append(bleService.getProbeStatistics());
+                }
+                if (bleService.getBenchmarkStatistics() != null) {                                  //Show the last benchmark if one has been run
+                    statistics.append("\n\n").append(bleService.getBenchmarkStatistics());
+                }
+                if (bleService.getControlStatistics() != null) {                                    //Show the control channel if the module has one
+                    statistics.append("\n\n").append(bleService.getControlStatistics());
+                }
+                showAlert.showStatisticsDialog(R.string.link_statistics_title, statistics.toString());
+                return true;
+
             case R.id.menu_help:                                                                    //Menu option Help chosen
                 showAlert.showHelpMenuDialog(this.getApplicationContext());                          //Show the AlertDialog that has the Help text
                 return true;
@@ -241,7 +621,20 @@ public class MldpTerminalActivity extends Activity {
         intentFilter.addAction(MldpBluetoothService.ACTION_BLE_REQ_ENABLE_BT);
         intentFilter.addAction(MldpBluetoothService.ACTION_BLE_CONNECTED);
         intentFilter.addAction(MldpBluetoothService.ACTION_BLE_DISCONNECTED);
-        intentFilter.addAction(MldpBluetoothService.ACTION_BLE_DATA_RECEIVED);
+        intentFilter.addAction(MldpBluetoothService.ACTION_BLE_PROVISION_RESULT);
+        intentFilter.addAction(MldpBluetoothService.ACTION_BLE_PROVISION_FINISHED);
+        intentFilter.addAction(MldpBluetoothService.ACTION_BLE_FILE_PROGRESS);
+        intentFilter.addAction(MldpBluetoothService.ACTION_BLE_FILE_FINISHED);
+        intentFilter.addAction(MldpBluetoothService.ACTION_BLE_TRIGGER);
+        intentFilter.addAction(MldpBluetoothService.ACTION_BLE_CAPTURE_SAVED);
+        intentFilter.addAction(MldpBluetoothService.ACTION_BLE_CONTROL_RESPONSE);
+        intentFilter.addAction(MldpBluetoothService.ACTION_BLE_BENCHMARK_FINISHED);
+        intentFilter.addAction(MldpBluetoothService.ACTION_BLE_REPLAY_FINISHED);
+        intentFilter.addAction(MldpBluetoothService.ACTION_BLE_SESSION_SAVED);
+        intentFilter.addAction(MldpBluetoothService.ACTION_BLE_SEARCH_RESULT);
+        intentFilter.addAction(MldpBluetoothService.ACTION_BLE_EXPORT_FINISHED);
+        intentFilter.addAction(MldpBluetoothService.ACTION_BLE_LATENCY_ALERT);
+        intentFilter.addAction(MldpBluetoothService.ACTION_BLE_FRAME_RECEIVED);
         return intentFilter;
     }
 
@@ -251,7 +644,25 @@ public class MldpTerminalActivity extends Activity {
         @Override
         public void onReceive(Context context, Intent intent) {
             final String action = intent.getAction();
-            if (MldpBluetoothService.ACTION_BLE_CONNECTED.equals(action)) {			                //Service has connected to BLE device
+            if (state == State.PROVISIONING) {                                                      //Connection events belong to the provisioning run so only show results
+                if (MldpBluetoothService.ACTION_BLE_PROVISION_RESULT.equals(action)) {              //Service has finished with one device
+                    textIncoming.append(String.format("%s %s %s %d ms (%.1f devices/min) %s\n",
+                            intent.getBooleanExtra(MldpBluetoothService.INTENT_EXTRA_PROVISION_SUCCESS, false) ? "PASS" : "FAIL",
+                            intent.getStringExtra(MldpBluetoothService.INTENT_EXTRA_SERVICE_ADDRESS),
+                            intent.getStringExtra(MldpBluetoothService.INTENT_EXTRA_SERVICE_NAME),
+                            intent.getLongExtra(MldpBluetoothService.INTENT_EXTRA_PROVISION_DURATION, 0),
+                            intent.getDoubleExtra(MldpBluetoothService.INTENT_EXTRA_PROVISION_RATE, 0),
+                            intent.getStringExtra(MldpBluetoothService.INTENT_EXTRA_PROVISION_DETAIL)));
+                }
+                else if (MldpBluetoothService.ACTION_BLE_PROVISION_FINISHED.equals(action)) {       //Service has stopped provisioning
+                    textIncoming.append(String.format("Provisioning finished: %d passed, %d failed\n",
+                            intent.getIntExtra(MldpBluetoothService.INTENT_EXTRA_PROVISION_PASSED, 0),
+                            intent.getIntExtra(MldpBluetoothService.INTENT_EXTRA_PROVISION_FAILED, 0)));
+                    state = State.DISCONNECTED;
+                    updateConnectionState();                                                        //Update the screen and menus
+                }
+            }
+            else if (MldpBluetoothService.ACTION_BLE_CONNECTED.equals(action)) {			        //Service has connected to BLE device
                 connectTimeoutHandler.removeCallbacks(abortConnection);                             //Stop the connection timeout handler from calling the runnable to stop the connection attempt
                 Log.d(TAG, "Received intent  ACTION_BLE_CONNECTED");
                 state = State.CONNECTED;
@@ -277,23 +688,114 @@ public class MldpTerminalActivity extends Activity {
                 state = State.DISCONNECTED;
                 updateConnectionState();                                                            //Update the screen and menus
             }
-            else if (MldpBluetoothService.ACTION_BLE_DATA_RECEIVED.equals(action)) {		        //Service has found new data available on BLE device
-                Log.d(TAG, "Received intent ACTION_BLE_DATA_RECEIVED");
-                String data = intent.getStringExtra(MldpBluetoothService.INTENT_EXTRA_SERVICE_DATA); //Get data as a string to display
-//                String data = null;
-//                try {
-//                    data = new String(intent.getByteArrayExtra(MldpBluetoothService.INTENT_EXTRA_SERVICE_DATA), "UTF-8"); // Example for bytes instead of string
-//                } catch (UnsupportedEncodingException e) {
-//                    e.printStackTrace();
-//                }
-                if (data != null) {
-                    textIncoming.append(data);
+            else if (MldpBluetoothService.ACTION_BLE_FILE_PROGRESS.equals(action)) {                //Service has sent more of a file
+                final long size = intent.getLongExtra(MldpBluetoothService.INTENT_EXTRA_FILE_SIZE, 0);
+                final long sent = intent.getLongExtra(MldpBluetoothService.INTENT_EXTRA_FILE_SENT, 0);
+                textConnectionState.setText(getString(R.string.file_progress, size > 0 ? (int) (sent * 100 / size) : 100,
+                        intent.getDoubleExtra(MldpBluetoothService.INTENT_EXTRA_FILE_RATE, 0)));
+            }
+            else if (MldpBluetoothService.ACTION_BLE_FILE_FINISHED.equals(action)) {                //Service has finished sending a file
+                final int status = intent.getIntExtra(MldpBluetoothService.INTENT_EXTRA_FILE_STATUS, MldpFileSender.STATUS_ERROR);
+                final int messageId = status == MldpFileSender.STATUS_COMPLETE ? R.string.file_complete
+                        : status == MldpFileSender.STATUS_CANCELLED ? R.string.file_cancelled : R.string.file_failed;
+                textIncoming.append(getString(messageId, intent.getLongExtra(MldpBluetoothService.INTENT_EXTRA_FILE_SENT, 0),
+                        intent.getLongExtra(MldpBluetoothService.INTENT_EXTRA_FILE_SIZE, 0),
+                        intent.getDoubleExtra(MldpBluetoothService.INTENT_EXTRA_FILE_RATE, 0)) + "\n");
+                updateConnectionState();                                                            //Put back the connection state and update the menus
+            }
+            else if (MldpBluetoothService.ACTION_BLE_FRAME_RECEIVED.equals(action)) {               //Service has decoded a frame
+                final byte[] frame = intent.getByteArrayExtra(MldpBluetoothService.INTENT_EXTRA_FRAME_DATA);
+                if (frame != null && frameDecoder != DECODER_NONE) {                                //Not the lines split for the RPC client
+                    final StringBuilder hex = new StringBuilder();
+                    for (byte b : frame) {
+                        hex.append(String.format("%02X ", b));
+                    }
+                    textIncoming.append("\n" + getString(R.string.frame_received, frame.length, hex.toString().trim()) + "\n");
+                }
+            }
+            else if (MldpBluetoothService.ACTION_BLE_TRIGGER.equals(action)) {                      //Service has found a trigger pattern
+                final String alert = intent.getStringExtra(MldpBluetoothService.INTENT_EXTRA_TRIGGER_ALERT);
+                final String mark = intent.getStringExtra(MldpBluetoothService.INTENT_EXTRA_TRIGGER_MARK);
+                if (alert != null) {
+                    textIncoming.append("\n" + getString(R.string.trigger_alert, alert) + "\n");
+                }
+                if (mark != null) {
+                    textIncoming.append("\n" + getString(R.string.trigger_mark, mark) + "\n");
                 }
             }
+            else if (MldpBluetoothService.ACTION_BLE_CAPTURE_SAVED.equals(action)) {                //Service has written a capture snapshot
+                textIncoming.append("\n" + getString(R.string.capture_saved,
+                        intent.getStringExtra(MldpBluetoothService.INTENT_EXTRA_CAPTURE_FILE)) + "\n");
+            }
+            else if (MldpBluetoothService.ACTION_BLE_BENCHMARK_FINISHED.equals(action)) {           //Service has finished a benchmark
+                showAlert.showStatisticsDialog(R.string.benchmark_title, getString(R.string.benchmark_result,
+                        intent.getStringExtra(MldpBluetoothService.INTENT_EXTRA_BENCHMARK_RESULT),
+                        intent.getStringExtra(MldpBluetoothService.INTENT_EXTRA_BENCHMARK_FILE)));
+                invalidateOptionsMenu();
+            }
+            else if (MldpBluetoothService.ACTION_BLE_SESSION_SAVED.equals(action)) {                //Service has finished writing a session file
+                textIncoming.append("\n" + getString(R.string.session_saved,
+                        intent.getStringExtra(MldpBluetoothService.INTENT_EXTRA_SESSION_FILE)) + "\n");
+            }
+            else if (MldpBluetoothService.ACTION_BLE_SEARCH_RESULT.equals(action)) {                //Service has searched the session
+                scrollToText(intent.getStringExtra(MldpBluetoothService.INTENT_EXTRA_SEARCH_TEXT));
+                showAlert.showStatisticsDialog(R.string.search_title,
+                        intent.getStringExtra(MldpBluetoothService.INTENT_EXTRA_SEARCH_RESULT));
+            }
+            else if (MldpBluetoothService.ACTION_BLE_EXPORT_FINISHED.equals(action)) {              //Service has written an export file or failed
+                if (intent.getStringExtra(MldpBluetoothService.INTENT_EXTRA_EXPORT_FILE) != null) {
+                    showAlert.showStatisticsDialog(R.string.export_title, getString(R.string.export_result,
+                            intent.getStringExtra(MldpBluetoothService.INTENT_EXTRA_EXPORT_RESULT),
+                            intent.getStringExtra(MldpBluetoothService.INTENT_EXTRA_EXPORT_FILE)));
+                }
+                else {
+                    showAlert.showStatisticsDialog(R.string.export_title, getString(R.string.export_failed,
+                            intent.getStringExtra(MldpBluetoothService.INTENT_EXTRA_EXPORT_RESULT)));
+                }
+            }
+            else if (MldpBluetoothService.ACTION_BLE_REPLAY_FINISHED.equals(action)) {              //Service has played the whole capture or been stopped
+                state = State.DISCONNECTING;                                                        //Disconnect that follows is expected
+                showAlert.showStatisticsDialog(R.string.replay_title,
+                        intent.getStringExtra(MldpBluetoothService.INTENT_EXTRA_REPLAY_RESULT));
+            }
+            else if (MldpBluetoothService.ACTION_BLE_LATENCY_ALERT.equals(action)) {                //Latency probe has seen a change
+                textIncoming.append("\n" + getString(intent.getBooleanExtra(MldpBluetoothService.INTENT_EXTRA_LATENCY_DEGRADED, false)
+                        ? R.string.latency_degraded : R.string.latency_recovered,
+                        intent.getLongExtra(MldpBluetoothService.INTENT_EXTRA_LATENCY, 0)) + "\n");
+            }
+            else if (MldpBluetoothService.ACTION_BLE_CONTROL_RESPONSE.equals(action)) {             //Service has completed a control command
+                final String response = intent.getStringExtra(MldpBluetoothService.INTENT_EXTRA_CONTROL_RESPONSE);
+                textIncoming.append("\n" + getString(R.string.control_response,
+                        intent.getStringExtra(MldpBluetoothService.INTENT_EXTRA_CONTROL_COMMAND).trim(),
+                        intent.getIntExtra(MldpBluetoothService.INTENT_EXTRA_CONTROL_STATUS, 0),
+                        response != null ? response.trim() : "") + "\n");
+            }
         }
     };
 
 
+    // ----------------------------------------------------------------------------------------------------------------
+    // Display received data from our subscription to the service, starting from where we left off
+    private void listenForData() {
+        if (bleService == null || !resumed) {                                                       //Called again when the service connects
+            return;
+        }
+        rxSubscription = bleService.subscribeRx(TAG, MldpRxRing.POLICY_SKIP_OLDEST);
+        rxSubscription.setListener(rxListener, new Handler());                                      //Called on the main thread
+    }
+
+    private final MldpRxRing.Listener rxListener = new MldpRxRing.Listener() {
+        @Override
+        public void onData(byte[] data, long time) {
+            try {
+                textIncoming.append(new String(data, "UTF-8"));                                     //Get data as a string to display
+            }
+            catch (UnsupportedEncodingException e) {
+                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            }
+        }
+    };
+
     // ----------------------------------------------------------------------------------------------------------------
     // Attempt to connect to a Bluetooth device given its address and time out after CONNECT_TIME milliseconds
     private boolean connectWithAddress(String address) {
@@ -364,6 +866,162 @@ public class MldpTerminalActivity extends Activity {
         startActivityForResult(bleScanActivityIntent, REQ_CODE_SCAN_ACTIVITY);                      //Start the MldpBluetoothScanActivity
     }
 
+    // ----------------------------------------------------------------------------------------------------------------
+    // Ask the MldpBluetoothService to provision all matching devices using the script in the application files directory
+    private void startProvisioning() {
+        File directory = getExternalFilesDir(null);                                                 //Script can be copied here with adb push
+        if (directory == null) {
+            directory = getFilesDir();
+        }
+        File scriptFile = new File(directory, MldpProvisioner.SCRIPT_FILE_NAME);
+        connectTimeoutHandler.removeCallbacks(abortConnection);                                     //Not connecting to a chosen device any more
+        bleService.disconnect();                                                                    //Disconnect an existing connection or cancel a connection attempt
+        if (bleService.provisionStart(scriptFile)) {                                                //Ask the MldpBluetoothService to start provisioning
+            state = State.PROVISIONING;
+            textIncoming.append(getString(R.string.provisioning_started, scriptFile.getPath()) + "\n");
+        }
+        else {
+            state = State.DISCONNECTED;
+            textIncoming.append(getString(R.string.provisioning_failed, scriptFile.getPath()) + "\n");
+        }
+        updateConnectionState();                                                                    //Update the screen and menus
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Ask the MldpBluetoothService to poll the device with the schedules in the application files directory
+    private void startPolling() {
+        File directory = getExternalFilesDir(null);                                                 //Schedule file can be copied here with adb push
+        if (directory == null) {
+            directory = getFilesDir();
+        }
+        File scheduleFile = new File(directory, MldpPollScheduler.SCHEDULE_FILE_NAME);
+        if (bleService.pollStart(scheduleFile)) {
+            textIncoming.append(getString(R.string.polling_started, scheduleFile.getPath()) + "\n");
+        }
+        else {
+            textIncoming.append(getString(R.string.polling_failed, scheduleFile.getPath()) + "\n");
+        }
+        invalidateOptionsMenu();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Ask the MldpBluetoothService to benchmark the link against a peripheral that echoes, with the results saved in the
+    // application files directory
+    private void startBenchmark() {
+        File directory = getExternalFilesDir(null);                                                 //Results file can be copied from here with adb pull
+        if (directory == null) {
+            directory = getFilesDir();
+        }
+        File resultFile = new File(directory, MldpEchoBenchmark.RESULT_FILE_NAME);
+        if (bleService.benchmarkStart(BENCHMARK_TIME, Integer.MAX_VALUE, resultFile)) {             //Largest packets the MTU allows
+            textIncoming.append(getString(R.string.benchmark_started, BENCHMARK_TIME / 1000) + "\n");
+        }
+        else {
+            textIncoming.append(getString(R.string.benchmark_failed) + "\n");
+        }
+        invalidateOptionsMenu();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Ask the MldpBluetoothService to record the whole session to a new file in the application files directory
+    private void startSession() {
+        File directory = getExternalFilesDir(null);                                                 //Session files can be copied from here with adb pull
+        if (directory == null) {
+            directory = getFilesDir();
+        }
+        File sessionFile = new File(directory, "session_"
+                + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date()) + MldpSessionFile.FILE_EXTENSION);
+        if (bleService.sessionStart(sessionFile)) {
+            textIncoming.append(getString(R.string.session_started, sessionFile.getPath()) + "\n");
+        }
+        else {
+            textIncoming.append(getString(R.string.session_failed, sessionFile.getPath()) + "\n");
+        }
+        invalidateOptionsMenu();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Ask the MldpBluetoothService to keep writes made while disconnected in the application files directory
+    private void startOutboundQueue() {
+        File directory = getExternalFilesDir(null);
+        if (directory == null) {
+            directory = getFilesDir();
+        }
+        File queueFile = new File(directory, MldpOutboundQueue.FILE_NAME);
+        if (bleService.outboundQueueStart(queueFile, OUTBOUND_QUEUE_CAPACITY, MldpOutboundQueue.POLICY_DROP_OLDEST)) {
+            textIncoming.append(getString(R.string.queue_started, queueFile.getPath()) + "\n");
+        }
+        else {
+            textIncoming.append(getString(R.string.queue_failed, queueFile.getPath()) + "\n");
+        }
+        invalidateOptionsMenu();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Ask the MldpBluetoothService to convert the session, reported with ACTION_BLE_EXPORT_FINISHED
+    private void exportSession(int format) {
+        if (bleService.exportSession(format)) {
+            textIncoming.append(getString(R.string.export_started) + "\n");
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Scroll the incoming text to the newest line with the text found by a search, if it is still on the screen
+    private void scrollToText(String text) {
+        final int index = textIncoming.getText().toString().toLowerCase(Locale.US).lastIndexOf(text.toLowerCase(Locale.US));
+        final Layout layout = textIncoming.getLayout();
+        if (index >= 0 && layout != null) {
+            textIncoming.scrollTo(0, layout.getLineTop(layout.getLineForOffset(index)));
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Ask the MldpBluetoothService to play back the newest session or capture in the application files directory,
+    // checking what is sent against the recording
+    private void startReplay(double speed) {
+        File directory = getExternalFilesDir(null);                                                 //Capture files can be copied here with adb push
+        if (directory == null) {
+            directory = getFilesDir();
+        }
+        File replayFile = null;
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                final String name = file.getName();
+                final boolean recording = name.startsWith("capture_") && name.endsWith(".txt")
+                        || name.startsWith("session_") && name.endsWith(MldpSessionFile.FILE_EXTENSION);
+                if (recording && (replayFile == null || file.lastModified() > replayFile.lastModified())) {
+                    replayFile = file;
+                }
+            }
+        }
+        if (replayFile != null && bleService.replayStart(replayFile, speed, true)) {
+            state = State.CONNECTING;
+            updateConnectionState();
+            textIncoming.append(getString(R.string.replay_started, replayFile.getPath()) + "\n");
+        }
+        else {
+            textIncoming.append(getString(R.string.replay_failed) + "\n");
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Ask the MldpBluetoothService to watch for the triggers in the application files directory
+    private void loadTriggers() {
+        File directory = getExternalFilesDir(null);                                                 //Trigger file can be copied here with adb push
+        if (directory == null) {
+            directory = getFilesDir();
+        }
+        File triggerFile = new File(directory, MldpTriggerEngine.TRIGGER_FILE_NAME);
+        if (bleService.loadTriggers(triggerFile)) {
+            textIncoming.append(getString(R.string.triggers_loaded, triggerFile.getPath()) + "\n");
+        }
+        else {
+            textIncoming.append(getString(R.string.triggers_failed, triggerFile.getPath()) + "\n");
+        }
+        invalidateOptionsMenu();
+    }
+
     // ----------------------------------------------------------------------------------------------------------------
     // 
 //    private void updateConnectionState(final int resourceId) {
@@ -391,6 +1049,10 @@ public class MldpTerminalActivity extends Activity {
                         textConnectionState.setText(R.string.disconnecting);
                         setProgressBarIndeterminateVisibility(false);                               //Hide circular progress bar
                         break;
+                    case PROVISIONING:
+                        textConnectionState.setText(R.string.provisioning);
+                        setProgressBarIndeterminateVisibility(true);                                //Show circular progress bar
+                        break;
                     default:
                         state = State.STARTING;
                         setProgressBarIndeterminateVisibility(false);                               //Hide circular progress bar
@@ -455,6 +1117,59 @@ public class MldpTerminalActivity extends Activity {
         }
     };
 
+    // ----------------------------------------------------------------------------------------------------------------
+    // Pass the choices in the Link Options menu to the service. A connection that is already up, as when the activity
+    // is recreated, keeps the options it was made with since the peripheral has to agree on some of them.
+    private void applyLinkOptions() {
+        if (bleService.isDataReady()) {
+            return;
+        }
+        bleService.setLinkTuningEnabled(linkTuning);
+        bleService.setTxWindow(pipelinedWrites ? MldpBluetoothService.DEFAULT_TX_WINDOW : 1, 0);    //One write at a time for stacks that lose pipelined writes
+        bleService.setCreditFlowControl(creditFlow, CREDIT_INITIAL, CREDIT_UNIT);
+        bleService.setTxRateLimit(rateLimit ? TX_RATE_LIMIT : 0, TX_RATE_BURST);                    //A rate of 0 is no limit
+        bleService.setFramedTransport(framedTransport, MldpFrameTransport.DEFAULT_WINDOW, MldpFrameTransport.DEFAULT_PAYLOAD_SIZE);
+        if (frameDecoder != DECODER_NONE) {                                                         //Leave the line decoder the RPC client may have set
+            bleService.setStreamDecoder(createFrameDecoder());
+        }
+        bleService.setCompression(compression, COMPRESSION_WINDOW_BITS);                            //Falls back to plain data if the peripheral does not answer the hello
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Decoder for the item chosen in the Frame Decoder menu, null for none
+    private MldpStreamDecoder createFrameDecoder() {
+        switch (FRAME_DECODER_ITEMS[frameDecoder]) {
+            case R.id.menu_decoder_line:
+                return new MldpStreamDecoder.Line((byte) '\n', FRAME_MAX_SIZE);
+            case R.id.menu_decoder_length:
+                return new MldpStreamDecoder.LengthPrefixed(2, FRAME_MAX_SIZE);
+            case R.id.menu_decoder_slip:
+                return new MldpStreamDecoder.Slip(FRAME_MAX_SIZE);
+            case R.id.menu_decoder_cobs:
+                return new MldpStreamDecoder.Cobs(FRAME_MAX_SIZE);
+            default:
+                return null;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Name of a picked file to send in the YMODEM header. The last part of a content URI is often just a number.
+    private String getDisplayName(Uri uri) {
+        String name = null;
+        final Cursor cursor = getContentResolver().query(uri, new String[] {OpenableColumns.DISPLAY_NAME}, null, null, null);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    name = cursor.getString(cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME));
+                }
+            }
+            finally {
+                cursor.close();
+            }
+        }
+        return name != null ? name : uri.getLastPathSegment();
+    }
+
     // ----------------------------------------------------------------------------------------------------------------
     // Callback for Activities that return a result
     // We call BluetoothAdapter to turn on the Bluetooth radio and MldpBluetoothScanActivity to scan
@@ -475,6 +1190,35 @@ public class MldpTerminalActivity extends Activity {
             }
             return;
         }
+        else if (requestCode == REQ_CODE_SEND_FILE) {                                               //User was asked to choose a file to send
+            if (resultCode == Activity.RESULT_OK && intent != null && intent.getData() != null) {
+                try {
+                    ParcelFileDescriptor fileDescriptor = getContentResolver().openFileDescriptor(intent.getData(), "r");
+                    if (fileDescriptor != null && bleService.sendFileStart(fileDescriptor)) {       //Ask the MldpBluetoothService to stream the file
+                        invalidateOptionsMenu();
+                    }
+                }
+                catch (FileNotFoundException e) {
+                    Log.w(TAG, "Unable to open file to send: " + e.getMessage());
+                }
+            }
+            return;
+        }
+        else if (requestCode == REQ_CODE_SEND_YMODEM || requestCode == REQ_CODE_SEND_YMODEM_WINDOWED) { //User was asked to choose a file to send with YMODEM
+            if (resultCode == Activity.RESULT_OK && intent != null && intent.getData() != null) {
+                try {
+                    final int window = requestCode == REQ_CODE_SEND_YMODEM_WINDOWED ? YMODEM_WINDOW : 1; //Standard YMODEM waits for each ACK
+                    ParcelFileDescriptor fileDescriptor = getContentResolver().openFileDescriptor(intent.getData(), "r");
+                    if (fileDescriptor != null && bleService.sendFileBlockStart(fileDescriptor, getDisplayName(intent.getData()), true, window)) {
+                        invalidateOptionsMenu();
+                    }
+                }
+                catch (FileNotFoundException e) {
+                    Log.w(TAG, "Unable to open file to send: " + e.getMessage());
+                }
+            }
+            return;
+        }
         else if(requestCode == REQ_CODE_SCAN_ACTIVITY) {                                            //Result from BluetoothScanActivity
             showAlert.dismiss();
             if (resultCode == Activity.RESULT_OK) {                                                 //User chose a Bluetooth device to connect
@@ -507,6 +1251,13 @@ public class MldpTerminalActivity extends Activity {
         public void onServiceConnected(ComponentName componentName, IBinder service) {		        //Service connects
             MldpBluetoothService.LocalBinder binder = (MldpBluetoothService.LocalBinder) service;   //Get the Binder for the Service
             bleService = binder.getService();                                                       //Get a link to the Service from the Binder
+            listenForData();                                                                        //Show data from the service if already resumed
+            applyLinkOptions();                                                                     //Set up the link the way it was chosen last time
+            if (bleService.isProvisioning()) {                                                      //Recreated during a provisioning run, which scans and connects on its own
+                state = State.PROVISIONING;
+                updateConnectionState();                                                            //Update the screen and menus
+                return;
+            }
             if (bleService.isBluetoothRadioEnabled()) {                                             //See if the Bluetooth radio is on
                 if(bleAutoConnect == false  || bleDeviceAddress == null) {                          //Not automatically connecting or do not have an address so must do a scan to select a BLE device
                     startScan();
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+/**
+ * Token bucket rate limiter for the MldpBluetoothService transmit path.
+ *
+ * Tokens are bytes. They refill at the configured rate up to the burst size, and a write may go when the bucket holds
+ * enough tokens for it. Instead of polling, the caller asks how long to wait and schedules the next write for then.
+ * A packet larger than the burst size only needs a full bucket, so it is never blocked forever.
+ */
+public class MldpTokenBucket {
+
+    private long rate;                                                                              //Bytes per second, 0 when disabled
+    private long burst;                                                                             //Most bytes that can be sent back to back
+    private double tokens;
+    private long lastRefillTime;                                                                    //System.nanoTime() of the last refill
+
+    private long bytesSent;
+    private long firstSendTime, lastSendTime;
+    private long throttleStartTime, throttleTime;                                                   //Nanoseconds spent waiting for tokens
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Set the rate in bytes per second and the burst size in bytes. A rate of 0 disables the limit.
+    public synchronized void configure(long bytesPerSecond, int burstBytes) {
+        rate = Math.max(0, bytesPerSecond);
+        burst = Math.max(1, burstBytes);
+        tokens = burst;                                                                             //Start with a full bucket
+        lastRefillTime = System.nanoTime();
+        bytesSent = firstSendTime = lastSendTime = throttleStartTime = throttleTime = 0;
+    }
+
+    public synchronized boolean isEnabled() {
+        return rate > 0;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Milliseconds to wait until a packet of this length may be sent, 0 if it can go now
+    public synchronized long getDelay(int length) {
+        if (rate == 0) {
+            return 0;
+        }
+        final long now = System.nanoTime();
+        refill(now);
+        final double needed = Math.min(length, burst) - tokens;
+        if (needed <= 0) {
+            return 0;
+        }
+        if (throttleStartTime == 0) {                                                               //Start timing the throttle
+            throttleStartTime = now;
+        }
+        return Math.max(1, (long) Math.ceil(needed * 1000 / rate));                                 //Round up so the tokens are there when the timer fires
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Take the tokens for a packet that has been sent
+    public synchronized void consume(int length) {
+        if (rate == 0) {
+            return;
+        }
+        final long now = System.nanoTime();
+        refill(now);
+        tokens -= length;                                                                           //May go negative for a packet larger than the burst
+        if (throttleStartTime != 0) {
+            throttleTime += now - throttleStartTime;
+            throttleStartTime = 0;
+        }
+        if (firstSendTime == 0) {
+            firstSendTime = now;
+        }
+        lastSendTime = now;
+        bytesSent += length;
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(burst, tokens + (now - lastRefillTime) * rate / 1e9);
+        lastRefillTime = now;
+    }
+
+    public synchronized long getConfiguredRate() {
+        return rate;
+    }
+
+    // Average bytes per second between the first and last packet sent
+    public synchronized double getAchievedRate() {
+        return lastSendTime > firstSendTime ? bytesSent * 1e9 / (lastSendTime - firstSendTime) : 0;
+    }
+
+    // Total milliseconds that writes have waited for tokens, including a wait in progress
+    public synchronized double getThrottleTime() {
+        return (throttleTime + (throttleStartTime != 0 ? System.nanoTime() - throttleStartTime : 0)) / 1e6;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Rate limit: %d bytes/s, burst %d, achieved %.0f bytes/s, throttled %.0f ms",
+                rate, burst, getAchievedRate(), getThrottleTime());
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+/**
+ * Link to an MLDP or Transparent UART peripheral as seen by the MldpBluetoothService data path.
+ *
+ * MldpGattTransport is the real Bluetooth LE connection and MldpSimulatedPeripheral is a pure Java stand-in, so the
+ * queueing, flow control, framing and throughput code can run without a module. Callbacks may come on any thread.
+ */
+public interface MldpTransport {
+
+    interface Callback {
+        void onConnected();                                                                         //Link is up, discover() can be called
+        void onReady();                                                                             //Data characteristics found and notifications enabled
+        void onDisconnected();
+        void onNotification(byte[] data);                                                           //Data from the peripheral
+        void onWriteComplete(boolean success);                                                      //One write accepted by write() has gone
+    }
+
+    void setCallback(Callback callback);
+
+    boolean connect(String address);
+
+    void disconnect();
+
+    void close();                                                                                   //Release everything, no more callbacks
+
+    boolean discover();                                                                             //Find the data characteristics and enable notifications
+
+    boolean write(byte[] data);                                                                     //One packet of at most getMtu() - 3 bytes, false if busy
+
+    boolean isReady();
+
+    boolean isWriteWithoutResponse();                                                               //Several writes can be in flight
+
+    int getMtu();
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Watches the received stream for many patterns at once and fires a Trigger for each one found.
+ *
+ * The patterns are compiled into an Aho-Corasick automaton with every transition filled in, so each received byte is
+ * one table lookup whatever the number of patterns. The only state kept between notifications is the automaton state,
+ * which is how a pattern split across two notifications is still found. Memory is fixed when the engine is built at
+ * 1 KB per automaton state, and there is at most one state per pattern byte.
+ *
+ * Triggers are read from a text file with one setting per line. Lines starting with # are comments.
+ *   match=CMD>             Start a new trigger that fires on this text (\r, \n and \t are unescaped)
+ *   reply=status\r         Text to write back to the peripheral
+ *   alert=Prompt seen      Text to show the user
+ *   mark=prompt            Label to put in the capture
+ *   holdoff=1000           Milliseconds after firing before the trigger can fire again
+ */
+public class MldpTriggerEngine {
+
+    public static final String TRIGGER_FILE_NAME = "triggers.txt";                                  //Name of the trigger file in the application files directory
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int ALPHABET = 256;
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // One pattern and what to do when it is found
+    public static class Trigger {
+        private final String match;
+        private String reply;
+        private String alert;
+        private String mark;
+        private long holdoff;
+        private long lastFired;                                                                     //System.nanoTime() of the last firing, 0 if never
+        private long count;
+
+        public Trigger(String match, String reply, String alert, String mark, long holdoff) {
+            this.match = match;
+            this.reply = reply;
+            this.alert = alert;
+            this.mark = mark;
+            this.holdoff = holdoff;
+        }
+
+        public String getMatch() {
+            return match;
+        }
+
+        public String getReply() {
+            return reply;
+        }
+
+        public String getAlert() {
+            return alert;
+        }
+
+        public String getMark() {
+            return mark;
+        }
+
+        //Read triggers from a file in the format described above
+        public static List<Trigger> load(File file) throws IOException {
+            List<Trigger> triggers = new ArrayList<Trigger>();
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                Trigger trigger = null;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.trim().length() == 0 || line.trim().startsWith("#")) {                 //Skip blank lines and comments
+                        continue;
+                    }
+                    int split = line.indexOf('=');
+                    if (split < 0) {
+                        throw new IOException("Missing '=' in trigger line: " + line);
+                    }
+                    String key = line.substring(0, split).trim();
+                    String value = unescape(line.substring(split + 1));                             //Spaces are kept, a prompt may end with one
+                    if (key.equals("match") && value.length() > 0) {
+                        trigger = new Trigger(value, null, null, null, 0);                          //Each match starts a new trigger
+                        triggers.add(trigger);
+                    }
+                    else if (key.equals("reply") && trigger != null) {
+                        trigger.reply = value;
+                    }
+                    else if (key.equals("alert") && trigger != null) {
+                        trigger.alert = value;
+                    }
+                    else if (key.equals("mark") && trigger != null) {
+                        trigger.mark = value;
+                    }
+                    else if (key.equals("holdoff") && trigger != null) {
+                        trigger.holdoff = Long.parseLong(value.trim());
+                    }
+                    else {
+                        throw new IOException("Unexpected trigger line: " + line);
+                    }
+                }
+            }
+            catch (NumberFormatException e) {                                                       //Bad holdoff value
+                throw new IOException(e.getMessage());
+            }
+            finally {
+                reader.close();
+            }
+            return triggers;
+        }
+
+        private static String unescape(String value) {
+            return value.replace("\\r", "\r").replace("\\n", "\n").replace("\\t", "\t");
+        }
+    }
+
+    public interface Listener {
+        void onTrigger(Trigger trigger);
+    }
+
+    private final Trigger[] triggers;
+    private final Listener listener;
+    private final int[] next;                                                                       //next[state * 256 + byte] is the state after the byte
+    private final int[][] output;                                                                   //Triggers that end at each state, null for none
+    private int state;
+    private long bytesScanned, scanTime;
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Constructor builds the automaton for the triggers
+    public MldpTriggerEngine(List<Trigger> triggerList, Listener listener) {
+        triggers = triggerList.toArray(new Trigger[triggerList.size()]);
+        this.listener = listener;
+        int maxStates = 1;
+        byte[][] patterns = new byte[triggers.length][];
+        for (int i = 0; i < triggers.length; i++) {
+            patterns[i] = triggers[i].match.getBytes(UTF8);
+            maxStates += patterns[i].length;
+        }
+        int[] trie = new int[maxStates * ALPHABET];                                                 //Goto function, -1 where there is no edge
+        Arrays.fill(trie, -1);
+        List<List<Integer>> outputs = new ArrayList<List<Integer>>();
+        outputs.add(null);
+        int states = 1;
+        for (int i = 0; i < patterns.length; i++) {                                                 //Build the trie of the patterns
+            int s = 0;
+            for (byte b : patterns[i]) {
+                final int edge = s * ALPHABET + (b & 0xff);
+                if (trie[edge] < 0) {
+                    trie[edge] = states++;
+                    outputs.add(null);
+                }
+                s = trie[edge];
+            }
+            if (outputs.get(s) == null) {
+                outputs.set(s, new ArrayList<Integer>());
+            }
+            outputs.get(s).add(i);
+        }
+        int[] fail = new int[states];
+        Queue<Integer> queue = new LinkedList<Integer>();
+        for (int b = 0; b < ALPHABET; b++) {                                                        //Missing edges from the root go back to the root
+            if (trie[b] < 0) {
+                trie[b] = 0;
+            }
+            else {
+                fail[trie[b]] = 0;
+                queue.add(trie[b]);
+            }
+        }
+        while (!queue.isEmpty()) {                                                                  //Breadth first so fail states are done before they are used
+            final int s = queue.remove();
+            final List<Integer> failOutput = outputs.get(fail[s]);
+            if (failOutput != null) {                                                               //Patterns that are suffixes of this one end here too
+                if (outputs.get(s) == null) {
+                    outputs.set(s, new ArrayList<Integer>());
+                }
+                outputs.get(s).addAll(failOutput);
+            }
+            for (int b = 0; b < ALPHABET; b++) {
+                final int edge = s * ALPHABET + b;
+                if (trie[edge] < 0) {
+                    trie[edge] = trie[fail[s] * ALPHABET + b];                                      //Fill in the edge so scanning never follows fail links
+                }
+                else {
+                    fail[trie[edge]] = trie[fail[s] * ALPHABET + b];
+                    queue.add(trie[edge]);
+                }
+            }
+        }
+        next = Arrays.copyOf(trie, states * ALPHABET);
+        output = new int[states][];
+        for (int s = 0; s < states; s++) {
+            final List<Integer> list = outputs.get(s);
+            if (list != null) {
+                output[s] = new int[list.size()];
+                for (int k = 0; k < list.size(); k++) {
+                    output[s][k] = list.get(k);
+                }
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Scan received bytes, firing the listener for each pattern found
+    public synchronized void process(byte[] data, int offset, int length) {
+        final long start = System.nanoTime();
+        int s = state;
+        for (int i = offset; i < offset + length; i++) {
+            s = next[(s << 8) | (data[i] & 0xff)];
+            if (output[s] != null) {
+                fire(output[s]);
+            }
+        }
+        state = s;
+        bytesScanned += length;
+        scanTime += System.nanoTime() - start;
+    }
+
+    private void fire(int[] matches) {
+        final long now = System.nanoTime();
+        for (int index : matches) {
+            final Trigger trigger = triggers[index];
+            if (trigger.lastFired != 0 && now - trigger.lastFired < trigger.holdoff * 1000000) {
+                continue;                                                                           //Still in the holdoff time
+            }
+            trigger.lastFired = now;
+            trigger.count++;
+            listener.onTrigger(trigger);
+        }
+    }
+
+    // Forget any partly matched pattern, as on a new connection
+    public synchronized void reset() {
+        state = 0;
+    }
+
+    public int getStateCount() {
+        return output.length;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder text = new StringBuilder(String.format("Triggers: %d patterns, %d states, %d bytes scanned, %.1f ns/byte",
+                triggers.length, output.length, bytesScanned, bytesScanned > 0 ? (double) scanTime / bytesScanned : 0));
+        for (Trigger trigger : triggers) {
+            text.append(String.format("\n%s: %d", trigger.match.trim(), trigger.count));
+        }
+        return text.toString();
+    }
+}
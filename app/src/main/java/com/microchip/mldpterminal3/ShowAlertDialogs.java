@@ -26,6 +26,7 @@ import android.text.SpannableString;
 import android.text.Spanned;
 import android.text.method.LinkMovementMethod;
 import android.text.util.Linkify;
+import android.widget.EditText;
 import android.widget.TextView;
 
 /**
@@ -87,6 +88,73 @@ public class ShowAlertDialogs {
         dialog.show();                                                                              //Show the AlertDialog that has the About text
     }
 
+    // ----------------------------------------------------------------------------------------------------------------
+    // Show a dialog with measurements reported by the MldpBluetoothService. OK button dismisses the dialog.
+    public void showStatisticsDialog(int titleId, String contents) {
+        dialog.dismiss();
+        builder.setTitle(titleId);                                                                  //Set up the AlertDialog that will contain the measurements
+        builder.setMessage(contents);
+        builder.setPositiveButton(R.string.statistics_ok_button, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {                                   // User clicked OK button
+            }
+        });
+        builder.setNegativeButton(null, null);
+        dialog = builder.create();
+        dialog.setCanceledOnTouchOutside(false);
+        dialog.show();                                                                              //Show the AlertDialog that has the measurements
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Show a dialog to type a command for the MLDP control characteristic. OK button passes the text to the callback.
+    public interface TextCallback {
+        void onText(String text);
+    }
+
+    public void showControlCommandDialog(Context context, final TextCallback callback) {
+        dialog.dismiss();
+        final EditText commandText = new EditText(context);
+        builder.setTitle(R.string.control_title);                                                   //Set up the AlertDialog that will contain the command
+        builder.setMessage(R.string.control_contents);
+        builder.setView(commandText);
+        builder.setPositiveButton(R.string.control_ok_button, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {                                   //User clicked OK button
+                callback.onText(commandText.getText().toString());
+            }
+        });
+        builder.setNegativeButton(R.string.control_cancel_button, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {                                   //User clicked Cancel button
+            }
+        });
+        dialog = builder.create();
+        dialog.setCanceledOnTouchOutside(false);
+        dialog.show();
+        builder.setView(null);                                                                      //Builder is shared with the other dialogs
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Show a dialog to type text to find in the recorded session. OK button passes the text to the callback.
+    public void showSearchDialog(Context context, final TextCallback callback) {
+        dialog.dismiss();
+        final EditText searchText = new EditText(context);
+        searchText.setSingleLine();
+        builder.setTitle(R.string.search_title);                                                    //Set up the AlertDialog that will contain the text
+        builder.setMessage(R.string.search_contents);
+        builder.setView(searchText);
+        builder.setPositiveButton(R.string.search_ok_button, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {                                   //User clicked OK button
+                callback.onText(searchText.getText().toString());
+            }
+        });
+        builder.setNegativeButton(R.string.search_cancel_button, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {                                   //User clicked Cancel button
+            }
+        });
+        dialog = builder.create();
+        dialog.setCanceledOnTouchOutside(false);
+        dialog.show();
+        builder.setView(null);                                                                      //Builder is shared with the other dialogs
+    }
+
     // ----------------------------------------------------------------------------------------------------------------
     // Show the Exit dialog when the Exit menu is selected. Cancel button dismisses the dialog. OK button executes a Runnable.
     public void showExitMenuDialog(final Runnable callback) {
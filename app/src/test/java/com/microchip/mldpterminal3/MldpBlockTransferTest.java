@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import android.os.Handler;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Plays the receiver against the MldpBlockTransfer state machine, one byte at a time as the main thread would.
+ */
+public class MldpBlockTransferTest {
+
+    private static final byte SOH = 0x01;
+    private static final byte STX = 0x02;
+    private static final byte EOT = 0x04;
+    private static final byte ACK = 0x06;
+    private static final byte NAK = 0x15;
+    private static final byte CAN = 0x18;
+    private static final byte C = 'C';
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<byte[]> written = new ArrayList<byte[]>();
+    private int finishedStatus = -1;
+
+    private MldpBlockTransfer start(int size, int window) throws IOException {
+        final File file = folder.newFile();
+        final FileOutputStream stream = new FileOutputStream(file);
+        for (int i = 0; i < size; i++) {
+            stream.write(i);
+        }
+        stream.close();
+        final RandomAccessFile source = new RandomAccessFile(file, "r");
+        MldpBlockTransfer transfer = new MldpBlockTransfer(new MldpBlockTransfer.Output() {
+            @Override
+            public void write(byte[] data) {
+                written.add(data);
+            }
+
+            @Override
+            public void onProgress(long sent, long size, double rate) {
+            }
+
+            @Override
+            public void onFinished(int status, long sent, long size, double rate) {
+                finishedStatus = status;
+            }
+        }, new Handler(), source.getChannel(), source, "test.bin", true, window);
+        transfer.begin();
+        return transfer;
+    }
+
+    // Block number of a written block, or -1 for anything else
+    private int lastBlock() {
+        final byte[] data = written.get(written.size() - 1);
+        return data[0] == SOH || data[0] == STX ? data[1] & 0xFF : -1;
+    }
+
+    private byte lastByte() {
+        final byte[] data = written.get(written.size() - 1);
+        return data[0];
+    }
+
+    @Test
+    public void sendsHeaderDataAndEndOfBatch() throws IOException {
+        MldpBlockTransfer transfer = start(1500, 1);
+        transfer.onByte(C);
+        assertEquals(0, lastBlock());
+        assertTrue(new String(written.get(0), 3, 16, "US-ASCII").startsWith("test.bin\u00001500\u0000"));
+        transfer.onByte(ACK);
+        transfer.onByte(C);
+        assertEquals(1, lastBlock());
+        assertEquals(1029, written.get(written.size() - 1).length);
+        transfer.onByte(ACK);
+        assertEquals(2, lastBlock());
+        transfer.onByte(ACK);
+        assertEquals(EOT, lastByte());
+        transfer.onByte(NAK);                                                                       //First EOT is usually NAKed
+        assertEquals(EOT, lastByte());
+        transfer.onByte(ACK);
+        transfer.onByte(C);
+        assertEquals(0, lastBlock());                                                               //Empty block 0 ends the batch
+        assertEquals(0, written.get(written.size() - 1)[3]);
+        transfer.onByte(ACK);
+        assertTrue(transfer.isFinished());
+        assertEquals(MldpFileSender.STATUS_COMPLETE, finishedStatus);
+    }
+
+    @Test
+    public void emptyFileGoesStraightToEndOfFile() throws IOException {
+        MldpBlockTransfer transfer = start(0, 1);
+        transfer.onByte(C);
+        transfer.onByte(ACK);
+        transfer.onByte(C);
+        assertEquals(EOT, lastByte());
+        transfer.onByte(ACK);
+        transfer.onByte(C);
+        transfer.onByte(ACK);
+        assertEquals(MldpFileSender.STATUS_COMPLETE, finishedStatus);
+    }
+
+    @Test
+    public void nakGoesBackToOldestBlock() throws IOException {
+        MldpBlockTransfer transfer = start(5000, 4);
+        transfer.onByte(C);
+        transfer.onByte(ACK);
+        transfer.onByte(C);
+        assertEquals(5, written.size());                                                            //Header and a window of four blocks
+        assertEquals(4, lastBlock());
+        transfer.onByte(ACK);
+        assertEquals(5, lastBlock());                                                               //Window moves on by one
+        transfer.onByte(NAK);
+        assertEquals(10, written.size());                                                           //Blocks 2 to 5 sent again
+        assertEquals(5, lastBlock());
+        assertEquals(2, written.get(6)[1]);
+    }
+
+    @Test
+    public void receiverCancels() throws IOException {
+        MldpBlockTransfer transfer = start(100, 1);
+        transfer.onByte(C);
+        transfer.onByte(CAN);
+        transfer.onByte(CAN);
+        assertTrue(transfer.isFinished());
+        assertEquals(MldpFileSender.STATUS_ERROR, finishedStatus);
+    }
+}
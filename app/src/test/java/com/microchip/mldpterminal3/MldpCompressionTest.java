@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips between two MldpCompression instances, one for each end of the link.
+ */
+public class MldpCompressionTest {
+
+    // Complete the handshake with the phone writing the given data before the peripheral hello arrives
+    private static byte[] handshake(MldpCompression phone, MldpCompression peripheral, byte[] early) {
+        assertEquals(0, peripheral.decode(phone.getHello()).length);                                //Peripheral sees the phone hello
+        assertEquals(0, phone.encode(early).length);                                                //Held until the window is known
+        assertTrue(phone.isWaiting());
+        assertEquals(1, phone.getHeldWrites());
+        assertNull(phone.flush());
+        assertEquals(0, phone.decode(peripheral.getHello()).length);
+        assertTrue(phone.isActive());
+        return phone.flush();
+    }
+
+    @Test
+    public void dataWrittenDuringHandshakeIsSentCompressed() {
+        final MldpCompression phone = new MldpCompression();
+        final MldpCompression peripheral = new MldpCompression();
+        phone.enable(12);
+        peripheral.enable(10);
+        final byte[] early = "written before the peripheral replied".getBytes();
+        final byte[] blocks = handshake(phone, peripheral, early);
+        assertArrayEquals(early, peripheral.decode(blocks));
+        assertEquals(0, phone.getHeldWrites());
+    }
+
+    @Test
+    public void roundTripInBothDirections() {
+        final MldpCompression phone = new MldpCompression();
+        final MldpCompression peripheral = new MldpCompression();
+        phone.enable(12);
+        peripheral.enable(12);
+        peripheral.decode(handshake(phone, peripheral, new byte[] {1}));
+        final Random random = new Random(1);
+        final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        for (int i = 0; i < 200; i++) {
+            final byte[] data = new byte[random.nextInt(3000) + 1];
+            if (i % 3 == 0) {                                                                       //Incompressible
+                random.nextBytes(data);
+            }
+            else {                                                                                  //Repetitive text with matches across blocks
+                for (int k = 0; k < data.length; k++) {
+                    data[k] = (byte) "TEMP=21.5C HUM=40% ".charAt((k + i) % 19);
+                }
+            }
+            sent.write(data, 0, data.length);
+            final byte[] blocks = phone.encode(data);
+            for (int offset = 0; offset < blocks.length; offset += 20) {                            //Blocks split across packets
+                final byte[] packet = new byte[Math.min(20, blocks.length - offset)];
+                System.arraycopy(blocks, offset, packet, 0, packet.length);
+                final byte[] plain = peripheral.decode(packet);
+                received.write(plain, 0, plain.length);
+            }
+            final byte[] echo = phone.decode(peripheral.encode(data));
+            assertArrayEquals(data, echo);
+        }
+        assertArrayEquals(sent.toByteArray(), received.toByteArray());
+        assertTrue(phone.getTxRatio() > 1.0);
+    }
+
+    @Test
+    public void peripheralWithoutSupportGetsPlainData() {
+        final MldpCompression phone = new MldpCompression();
+        phone.enable(12);
+        assertEquals(0, phone.encode("abc".getBytes()).length);
+        assertTrue(phone.onHelloTimeout());
+        assertFalse(phone.isWaiting());
+        assertArrayEquals("abc".getBytes(), phone.flush());                                         //Held data goes plain
+        assertArrayEquals("def".getBytes(), phone.encode("def".getBytes()));
+        final byte[] late = {0x1B, 'L', 'Z', 12};
+        assertArrayEquals(late, phone.decode(late));                                                //Late hello is just data
+        assertFalse(phone.onHelloTimeout());
+    }
+
+    @Test
+    public void disableReturnsHeldData() {
+        final MldpCompression phone = new MldpCompression();
+        phone.enable(8);
+        phone.encode("held".getBytes());
+        assertArrayEquals("held".getBytes(), phone.disable());
+        assertArrayEquals("plain".getBytes(), phone.encode("plain".getBytes()));
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that MldpCreditFlowControl takes grants out of the received data and counts the credits.
+ */
+public class MldpCreditFlowControlTest {
+
+    private static final byte DC1 = MldpCreditFlowControl.CREDIT_MARKER;
+
+    private final MldpCreditFlowControl flow = new MldpCreditFlowControl();
+
+    @Before
+    public void setUp() {
+        flow.enable(100, 16);
+    }
+
+    @Test
+    public void startsWithInitialCredits() {
+        assertEquals(100, flow.getCredits(false));
+        flow.onDataSent(60);
+        assertEquals(40, flow.getCredits(false));
+        flow.onDataSent(60);
+        assertEquals(0, flow.getCredits(true));
+        assertEquals(1, flow.getStallCount());
+    }
+
+    @Test
+    public void grantIsRemovedFromData() {
+        flow.onDataSent(100);
+        assertArrayEquals(new byte[] {'a', 'b'}, flow.onDataReceived(new byte[] {'a', DC1, 2, 'b'}));
+        assertEquals(32, flow.getCredits(false));
+    }
+
+    @Test
+    public void grantSplitAcrossNotifications() {
+        flow.onDataSent(100);
+        assertArrayEquals(new byte[] {'a'}, flow.onDataReceived(new byte[] {'a', DC1}));
+        assertArrayEquals(new byte[] {'b'}, flow.onDataReceived(new byte[] {1, 'b'}));
+        assertEquals(16, flow.getCredits(false));
+    }
+
+    @Test
+    public void escapedMarkerIsData() {
+        assertArrayEquals(new byte[] {DC1, 'x'}, flow.onDataReceived(new byte[] {DC1, 0, 'x'}));
+        assertEquals(100, flow.getCredits(false));
+    }
+
+    @Test
+    public void plainDataIsPassedThrough() {
+        final byte[] data = new byte[] {'p', 'l', 'a', 'i', 'n'};
+        assertSame(data, flow.onDataReceived(data));
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs MldpFrameTransport against itself with the frames between the two ends passed by hand.
+ */
+public class MldpFrameTransportTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    // One end of the link, keeping what it writes and what it delivers
+    private static class End implements MldpFrameTransport.Listener {
+        final List<byte[]> frames = new ArrayList<byte[]>();
+        final ByteArrayOutputStream delivered = new ByteArrayOutputStream();
+
+        @Override
+        public void sendFrame(byte[] frame) {
+            frames.add(frame);
+        }
+
+        @Override
+        public void onPayload(byte[] payload) {
+            delivered.write(payload, 0, payload.length);
+        }
+
+        // Frames written since the last call
+        List<byte[]> take() {
+            List<byte[]> taken = new ArrayList<byte[]>(frames);
+            frames.clear();
+            return taken;
+        }
+    }
+
+    private final End senderEnd = new End();
+    private final End receiverEnd = new End();
+    private final MldpFrameTransport sender = new MldpFrameTransport(senderEnd, 8, 4);
+    private final MldpFrameTransport receiver = new MldpFrameTransport(receiverEnd, 8, 4);
+
+    @Test
+    public void crcMatchesCheckValues() {
+        final byte[] check = "123456789".getBytes(ASCII);
+        assertEquals(0x29B1, MldpFrameTransport.crc16(0xffff, check, 0, check.length));             //CRC-16/CCITT-FALSE
+        assertEquals(0x31C3, MldpFrameTransport.crc16(0, check, 0, check.length));                  //CRC-16/XMODEM
+    }
+
+    @Test
+    public void flagAndEscapeBytesAreStuffed() {
+        sender.send(new byte[] {0x7E, 0x7D, 0x01}, 0);
+        final byte[] frame = senderEnd.take().get(0);
+        assertEquals(0x7E, frame[0]);
+        assertEquals(0x7E, frame[frame.length - 1]);
+        for (int i = 1; i < frame.length - 1; i++) {
+            assertTrue(frame[i] != 0x7E);
+        }
+        for (int i = 0; i < frame.length; i++) {                                                    //Frames can be split anywhere
+            receiver.onReceived(new byte[] {frame[i]}, 0);
+        }
+        assertArrayEquals(new byte[] {0x7E, 0x7D, 0x01}, receiverEnd.delivered.toByteArray());
+    }
+
+    @Test
+    public void corruptedFrameIsDropped() {
+        sender.send(new byte[] {1, 2, 3}, 0);
+        final byte[] frame = senderEnd.take().get(0);
+        frame[3] ^= 0x01;
+        receiver.onReceived(frame, 0);
+        assertEquals(0, receiverEnd.delivered.size());
+        assertTrue(receiver.toString().contains("CRC errors 1"));
+    }
+
+    @Test
+    public void lostFrameIsNackedOnceAndResent() {
+        sender.send("aaaabbbbccccdddd".getBytes(ASCII), 0);
+        final List<byte[]> frames = senderEnd.take();
+        assertEquals(4, frames.size());
+        for (int i = 1; i < frames.size(); i++) {                                                   //First frame lost
+            receiver.onReceived(frames.get(i), 10);
+        }
+        List<byte[]> replies = receiverEnd.take();
+        assertEquals(1, replies.size());                                                            //One NACK for the three early frames
+
+        receiver.onReceived(frames.get(3), 300);                                                    //NACK time has passed, so ask again
+        replies.addAll(receiverEnd.take());
+        assertEquals(2, replies.size());
+
+        sender.onReceived(replies.get(0), 20);
+        final List<byte[]> resent = senderEnd.take();
+        assertEquals(1, resent.size());                                                             //Only the missing frame
+        receiver.onReceived(resent.get(0), 30);
+        assertArrayEquals("aaaabbbbccccdddd".getBytes(ASCII), receiverEnd.delivered.toByteArray());
+    }
+
+    @Test
+    public void listenerCalledWithoutLockAndMaySendAgain() {
+        final List<byte[]> frames = new ArrayList<byte[]>();
+        final MldpFrameTransport[] replier = new MldpFrameTransport[1];
+        replier[0] = new MldpFrameTransport(new MldpFrameTransport.Listener() {
+            @Override
+            public void sendFrame(byte[] frame) {
+                assertFalse(Thread.holdsLock(replier[0]));
+                frames.add(frame);
+            }
+
+            @Override
+            public void onPayload(byte[] payload) {
+                assertFalse(Thread.holdsLock(replier[0]));
+                replier[0].send(payload, 0);                                                        //Echo from inside the callback, as a trigger reply does
+            }
+        }, 8, 4);
+        sender.send("abcdefgh".getBytes(ASCII), 0);
+        for (byte[] frame : senderEnd.take()) {
+            replier[0].onReceived(frame, 0);
+        }
+        assertEquals(2, frames.size());                                                             //The two echoed frames, the ACK is delayed
+        for (byte[] frame : frames) {
+            receiver.onReceived(frame, 0);
+        }
+        assertArrayEquals("abcdefgh".getBytes(ASCII), receiverEnd.delivered.toByteArray());
+    }
+}
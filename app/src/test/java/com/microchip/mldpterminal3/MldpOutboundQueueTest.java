@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives MldpOutboundQueue.drain() against a link that can drop, as the service does with its write queue.
+ */
+public class MldpOutboundQueueTest {
+
+    private static final int LOW_DEPTH = 2;
+    private static final int CHUNK = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File path;
+    private MldpOutboundQueue queue;
+    private FakeLink link;
+
+    // Write queue of the service and the peripheral behind it
+    private static class FakeLink implements MldpOutboundQueue.Link {
+        boolean ready = true;
+        final LinkedList<byte[]> queued = new LinkedList<byte[]>();
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        long drops;
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public int getDepth() {
+            return queued.size();
+        }
+
+        @Override
+        public long getDropCount() {
+            return drops;
+        }
+
+        @Override
+        public void send(byte[] data) {
+            queued.add(data);
+        }
+
+        // Next write reaches the peripheral
+        void complete() {
+            final byte[] data = queued.remove();
+            received.write(data, 0, data.length);
+        }
+
+        // Next write is given up on
+        void giveUp() {
+            queued.remove();
+            drops++;
+        }
+
+        // Link drops, taking everything queued with it
+        void disconnect() {
+            ready = false;
+            drops += queued.size();
+            queued.clear();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        path = new File(folder.getRoot(), MldpOutboundQueue.FILE_NAME);
+        queue = new MldpOutboundQueue(path, 1024, MldpOutboundQueue.POLICY_DROP_OLDEST);
+        link = new FakeLink();
+    }
+
+    @After
+    public void tearDown() {
+        queue.close();
+    }
+
+    // Complete writes one at a time, draining after each as the service does when there is room
+    private void deliverAll() throws IOException {
+        queue.drain(link, LOW_DEPTH, CHUNK);
+        while (link.getDepth() > 0) {
+            link.complete();
+            queue.drain(link, LOW_DEPTH, CHUNK);
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes();
+    }
+
+    @Test
+    public void writesMadeWhileDisconnectedAreSentAfterReconnect() throws IOException {
+        link.disconnect();
+        queue.rewind();
+        queue.add(bytes("one,"));
+        queue.add(bytes("two,"));
+        queue.add(bytes("three"));
+        queue.drain(link, LOW_DEPTH, CHUNK);
+        assertEquals(0, link.getDepth());                                                           //Nothing sent to a link that is not ready
+
+        link.ready = true;
+        deliverAll();
+        assertArrayEquals(bytes("one,two,three"), link.received.toByteArray());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void givenUpWriteIsSentAgainNotCommitted() throws IOException {
+        queue.add(bytes("aaaa"));
+        queue.add(bytes("bbbb"));
+        queue.drain(link, LOW_DEPTH, CHUNK);
+        link.complete();
+        link.giveUp();                                                                              //"bbbb" never reached the peripheral
+        queue.drain(link, LOW_DEPTH, CHUNK);
+        assertFalse(queue.isEmpty());
+
+        deliverAll();
+        assertArrayEquals(bytes("aaaaaaaabbbb"), link.received.toByteArray());                       //Sent again from the last commit
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void dropThenQueueThenReconnectThenDrain() throws IOException {
+        queue.add(bytes("1111"));
+        queue.add(bytes("2222"));
+        queue.add(bytes("3333"));
+        queue.drain(link, LOW_DEPTH, CHUNK);
+        link.complete();
+        queue.drain(link, LOW_DEPTH, CHUNK);                                                        //Link never emptied so nothing is committed
+        link.disconnect();
+        queue.rewind();                                                                             //As the service does on a disconnect
+        queue.add(bytes("4444"));                                                                   //Written during the dropout
+        queue.drain(link, LOW_DEPTH, CHUNK);
+        assertFalse(queue.isEmpty());
+
+        link.ready = true;
+        deliverAll();
+        assertArrayEquals(bytes("1111" + "1111222233334444"), link.received.toByteArray());          //Sent twice rather than lost
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void uncommittedDataSurvivesReopening() throws IOException {
+        queue.add(bytes("keep"));
+        queue.drain(link, LOW_DEPTH, CHUNK);                                                        //Read and in flight but not committed
+        queue.close();
+
+        queue = new MldpOutboundQueue(path, 1024, MldpOutboundQueue.POLICY_DROP_OLDEST);
+        link = new FakeLink();
+        deliverAll();
+        assertArrayEquals(bytes("keep"), link.received.toByteArray());
+        assertTrue(queue.isEmpty());
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import android.os.Handler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Drives the matching in MldpRpcClient with explicit times, as the main thread would with replies and timer callbacks.
+ */
+public class MldpRpcClientTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long TIMEOUT = 500;
+
+    private final List<String> sent = new ArrayList<String>();
+    private final List<String> results = new ArrayList<String>();
+    private MldpRpcClient client;
+
+    // Records what each request got back
+    private class Recorder implements MldpRpcClient.Callback {
+        @Override
+        public void onReply(MldpRpcClient.Request request, String reply) {
+            results.add(request.getCommand() + "=" + reply);
+        }
+
+        @Override
+        public void onFailure(MldpRpcClient.Request request, String reason) {
+            results.add(request.getCommand() + "!" + reason);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        client = new MldpRpcClient(new MldpRpcClient.Sender() {
+            @Override
+            public void send(byte[] data) {
+                sent.add(new String(data, UTF8));
+            }
+        }, new Handler());
+    }
+
+    private MldpRpcClient.Request ordered(String command) {
+        return new MldpRpcClient.Request(command, MldpRpcClient.MATCH_ORDERED, null, TIMEOUT, new Recorder());
+    }
+
+    @Test
+    public void lostReplyOnlyCostsOneQuietPeriod() {
+        client.add(ordered("A"), 1000);
+        client.expire(1000 + TIMEOUT);                                                              //Reply to A never comes
+        client.add(ordered("B"), 1600);
+        client.add(ordered("C"), 1600);
+        assertEquals(1, sent.size());                                                               //B and C held in the quiet period
+
+        client.expire(1000 + 2 * TIMEOUT);                                                          //Quiet period over, A's reply is lost
+        assertEquals(3, sent.size());
+        client.onReply("b", 2100);
+        client.onReply("c", 2200);
+        assertEquals("[A!Timeout, B=b, C=c]", results.toString());
+    }
+
+    @Test
+    public void lateReplyIsDiscarded() {
+        client.add(ordered("A"), 1000);
+        client.expire(1000 + TIMEOUT);
+        client.add(ordered("B"), 1600);
+        client.onReply("a", 1700);                                                                  //Late reply to A ends the quiet period
+        assertEquals(2, sent.size());
+        client.onReply("b", 1800);
+        assertEquals("[A!Timeout, B=b]", results.toString());
+    }
+
+    @Test
+    public void unsolicitedLineIsOnlyTakenInQuietPeriod() {
+        client.add(ordered("A"), 1000);
+        client.expire(1000 + TIMEOUT);
+        client.onReply("event", 1600);                                                              //Cannot be told from A's reply
+        client.onReply("event", 1700);                                                              //Nothing outstanding, ignored
+        client.add(ordered("B"), 1800);
+        client.onReply("b", 1900);
+        assertEquals("[A!Timeout, B=b]", results.toString());
+    }
+
+    @Test
+    public void taggedRequestsGoInQuietPeriod() {
+        client.add(ordered("A"), 1000);
+        client.expire(1000 + TIMEOUT);
+        client.add(new MldpRpcClient.Request("T", MldpRpcClient.MATCH_PREFIX, "T=", TIMEOUT, new Recorder()), 1600);
+        assertEquals(2, sent.size());
+        client.onReply("T=1", 1700);
+        assertEquals("[A!Timeout, T=T=1]", results.toString());
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Exports a short session in each format at the default MTU of 23, where each ATT PDU carries 20 bytes.
+ */
+public class MldpSessionExporterTest {
+
+    private static final int MTU = 23;
+    private static final byte[] RX_DATA = "hello".getBytes();
+    private static final byte[] TX_DATA = new byte[45];                                             //Three packets of 20, 20 and 5 bytes
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File sessionFile;
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < TX_DATA.length; i++) {
+            TX_DATA[i] = (byte) ('A' + i % 26);
+        }
+        sessionFile = folder.newFile("session" + MldpSessionFile.FILE_EXTENSION);
+        final MldpSessionFile.Writer writer = new MldpSessionFile.Writer(sessionFile);
+        writer.record(MldpSessionFile.TYPE_RX, RX_DATA, 0, RX_DATA.length);
+        writer.record(MldpSessionFile.TYPE_TX, TX_DATA, 0, TX_DATA.length);
+        writer.close();
+    }
+
+    private byte[] export(int format) throws IOException {
+        final MldpSessionFile.Reader reader = MldpSessionFile.open(sessionFile);
+        try {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            new MldpSessionExporter(reader, format, MTU).export(output);
+            return output.toByteArray();
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void btsnoopAtDefaultMtu() throws IOException {
+        final byte[] bytes = export(MldpSessionExporter.FORMAT_BTSNOOP);
+        assertEquals(16 + 4 * (24 + 12) + RX_DATA.length + TX_DATA.length, bytes.length);
+        assertArrayEquals("btsnoop\0".getBytes("US-ASCII"), Arrays.copyOf(bytes, 8));
+        final ByteBuffer record = ByteBuffer.wrap(bytes, 16, bytes.length - 16);
+        assertEquals(12 + RX_DATA.length, record.getInt());                                         //Original length
+        assertEquals(12 + RX_DATA.length, record.getInt());                                         //Included length
+        assertEquals(1, record.getInt());                                                           //Received
+        assertEquals(0x1B, bytes[16 + 24 + 9]);                                                     //ATT notification
+        assertArrayEquals(RX_DATA, Arrays.copyOfRange(bytes, 16 + 24 + 12, 16 + 24 + 12 + RX_DATA.length));
+    }
+
+    @Test
+    public void pcapAtDefaultMtu() throws IOException {
+        final byte[] bytes = export(MldpSessionExporter.FORMAT_PCAP);
+        assertEquals(24 + 4 * (20 + 12) + RX_DATA.length + TX_DATA.length, bytes.length);
+        assertEquals(0xA1B2C3D4, ByteBuffer.wrap(bytes).getInt());
+        final int last = bytes.length - (20 + 12 + 5);                                              //Last packet has the final 5 TX bytes
+        assertEquals(4 + 12 + 5, ByteBuffer.wrap(bytes, last + 8, 4).getInt());
+        assertEquals(0x52, bytes[last + 20 + 9]);                                                   //ATT write command
+        assertArrayEquals(Arrays.copyOfRange(TX_DATA, 40, 45), Arrays.copyOfRange(bytes, last + 32, bytes.length));
+    }
+
+    @Test
+    public void csvAtDefaultMtu() throws IOException {
+        final String[] lines = new String(export(MldpSessionExporter.FORMAT_CSV), "UTF-8").split("\r\n");
+        assertEquals(3, lines.length);                                                              //Header and one line per record, not per packet
+        assertEquals("time,elapsed_ms,direction,length,hex,text", lines[0]);
+        assertTrue(lines[1], lines[1].endsWith(",RX,5,68656C6C6F,\"hello\""));
+        assertTrue(lines[2], lines[2].contains(",TX,45,4142"));
+    }
+}
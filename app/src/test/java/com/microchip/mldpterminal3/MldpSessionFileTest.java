@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes session files with MldpSessionFile.Writer and reads them back. Records are given explicit times so seeks can
+ * be checked exactly. Records of RECORD_SIZE bytes, header included, put an index entry every four records and an index
+ * record every RECORDS_PER_BLOCK records.
+ */
+public class MldpSessionFileTest {
+
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 1024;
+    private static final int PAYLOAD_SIZE = RECORD_SIZE - 7;
+    private static final int RECORDS_PER_BLOCK = 256;                                               //64 index entries, one every 4096 bytes
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private MldpSessionFile.Writer writer;
+    private MldpSessionFile.Reader reader;
+
+    @Before
+    public void setUp() throws IOException {
+        file = folder.newFile("session" + MldpSessionFile.FILE_EXTENSION);
+        writer = new MldpSessionFile.Writer(file);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (reader != null) {
+            reader.close();
+        }
+        writer.close();
+    }
+
+    // Payload of record i, filled with dots and starting with its number
+    private static byte[] payload(int i) {
+        final byte[] data = new byte[PAYLOAD_SIZE];
+        Arrays.fill(data, (byte) '.');
+        final byte[] number = Integer.toString(i).getBytes();
+        System.arraycopy(number, 0, data, 0, number.length);
+        return data;
+    }
+
+    // Records numbered from first, 10 ms apart, alternating RX and TX
+    private void writeRecords(int first, int count) {
+        for (int i = first; i < first + count; i++) {
+            final byte[] data = payload(i);
+            writer.record(i % 2 == 0 ? MldpSessionFile.TYPE_RX : MldpSessionFile.TYPE_TX, data, 0, data.length, i * 10L);
+        }
+    }
+
+    // Record i of the usual size with text at the start or end of its payload
+    private void writeText(int i, int type, String text, boolean atEnd) {
+        final byte[] data = payload(i);
+        final byte[] bytes = text.getBytes();
+        System.arraycopy(bytes, 0, data, atEnd ? data.length - bytes.length : 0, bytes.length);
+        writer.record(type, data, 0, data.length, i * 10L);
+    }
+
+    private static void assertRecord(int i, MldpSessionReplay.Record record) {
+        assertEquals(i * 10L, record.time);
+        assertEquals(i % 2 == 0 ? MldpSessionFile.TYPE_RX : MldpSessionFile.TYPE_TX, record.direction);
+        assertArrayEquals(payload(i), record.data);
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        writeRecords(0, 3 * RECORDS_PER_BLOCK);
+        final byte[] large = new byte[70000];                                                       //Longer than one record can hold
+        writer.record(MldpSessionFile.TYPE_RX, large, 0, large.length, 10000);
+        writer.close();
+        reader = MldpSessionFile.open(file);
+        assertEquals(4, reader.getBlockCount());                                                    //Three full blocks and the one closed by close()
+        for (int i = 0; i < 3 * RECORDS_PER_BLOCK; i++) {
+            assertRecord(i, reader.next());
+        }
+        assertEquals(65535, reader.next().data.length);
+        assertEquals(70000 - 65535, reader.next().data.length);
+        assertNull(reader.next());
+        assertEquals(10000, reader.getDuration());
+    }
+
+    @Test
+    public void seekFindsFirstRecordAtOrAfterTime() throws IOException {
+        writeRecords(0, 3 * RECORDS_PER_BLOCK);
+        writer.close();
+        reader = MldpSessionFile.open(file);
+        reader.seek(2505);
+        assertRecord(251, reader.next());
+        reader.seek(2560);                                                                          //First record of the second block
+        assertRecord(256, reader.next());
+        reader.seek(0);
+        assertRecord(0, reader.next());
+        reader.seek(1000000);
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void rebuildsIndexOfUnclosedFile() throws IOException {
+        writeRecords(0, 2 * RECORDS_PER_BLOCK + 10);
+        writer.openReader().close();                                                                //Make sure it is all in the file
+        final File crashed = folder.newFile("crashed" + MldpSessionFile.FILE_EXTENSION);
+        final RandomAccessFile source = new RandomAccessFile(file, "r");
+        final byte[] bytes = new byte[(int) source.length() - 100];                                 //Last record cut short as by a crash
+        source.readFully(bytes);
+        source.close();
+        final FileOutputStream output = new FileOutputStream(crashed);
+        output.write(bytes);
+        output.close();
+
+        reader = MldpSessionFile.open(crashed);
+        assertEquals(3, reader.getBlockCount());                                                    //Two from index records and the rest scanned
+        assertEquals((2 * RECORDS_PER_BLOCK + 8) * 10L, reader.getDuration());                      //Incomplete last record dropped
+        reader.seek(2 * RECORDS_PER_BLOCK * 10L + 50);
+        assertRecord(2 * RECORDS_PER_BLOCK + 5, reader.next());
+        reader.seek(1000);
+        assertRecord(100, reader.next());
+    }
+
+    @Test
+    public void liveReaderSeesRecordsSoFar() throws IOException {
+        writeRecords(0, RECORDS_PER_BLOCK + 20);
+        reader = writer.openReader();
+        assertEquals((RECORDS_PER_BLOCK + 19) * 10L, reader.getDuration());
+        reader.seek((RECORDS_PER_BLOCK + 10) * 10L);
+        assertRecord(RECORDS_PER_BLOCK + 10, reader.next());
+        writeRecords(RECORDS_PER_BLOCK + 20, 10);                                                   //Recording carries on
+        for (int i = RECORDS_PER_BLOCK + 11; i < RECORDS_PER_BLOCK + 20; i++) {
+            assertRecord(i, reader.next());
+        }
+        assertNull(reader.next());                                                                  //Stops where it was opened
+        reader.close();
+
+        reader = writer.openReader();
+        assertEquals((RECORDS_PER_BLOCK + 29) * 10L, reader.getDuration());
+        assertTrue(reader.getBlockCount() >= 2);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Searches
+
+    @Test
+    public void searchFindsTextSplitAcrossRecordsIgnoringCase() throws IOException {
+        writer.record(MldpSessionFile.TYPE_RX, "say Hel".getBytes(), 0, 7, 10);
+        writer.record(MldpSessionFile.TYPE_TX, "lo".getBytes(), 0, 2, 20);                          //Other direction does not break the RX text
+        writer.record(MldpSessionFile.TYPE_RX, "LO there".getBytes(), 0, 8, 30);
+        writer.close();
+        reader = MldpSessionFile.open(file);
+        final List<MldpSessionFile.Match> matches = reader.search("hello", 10);
+        assertEquals(1, matches.size());
+        assertEquals(30, matches.get(0).time);                                                      //Reported in the record the match ends in
+        assertEquals(MldpSessionFile.TYPE_RX, matches.get(0).direction);
+        assertEquals("LO there", matches.get(0).text);
+        assertEquals(1, reader.search("SAY HELLO THERE", 10).size());
+        assertTrue(reader.search("hellolo", 10).isEmpty());                                         //TX bytes are not joined to the RX text
+    }
+
+    @Test
+    public void shortTextReadsEveryBlock() throws IOException {
+        writeRecords(0, 3 * RECORDS_PER_BLOCK);
+        writer.close();
+        reader = MldpSessionFile.open(file);
+        final List<MldpSessionFile.Match> matches = reader.search("76", 100);                       //Fewer than three bytes so no filter can rule a block out
+        assertEquals(reader.getBlockCount(), reader.getBlocksScanned());
+        assertEquals(15, matches.size());                                                           //76, 176 to 676 and 760 to 767
+        assertEquals(7670, matches.get(0).time);                                                    //Newest first
+        assertEquals(760, matches.get(14).time);
+        assertEquals(3, reader.search("76", 3).size());
+        assertEquals(1, reader.getBlocksScanned());                                                 //Stops once the limit is reached
+    }
+
+    @Test
+    public void filterSkipsBlocksWithoutText() throws IOException {
+        writeRecords(0, 300);
+        writeText(300, MldpSessionFile.TYPE_RX, "zebra", false);
+        writeRecords(301, 3 * RECORDS_PER_BLOCK - 301);
+        writer.close();
+        reader = MldpSessionFile.open(file);
+        final List<MldpSessionFile.Match> matches = reader.search("Zebra", 10);
+        assertEquals(1, matches.size());
+        assertEquals(3000, matches.get(0).time);
+        assertEquals(3, reader.getBlockCount());
+        assertEquals(2, reader.getBlocksScanned());                                                 //The block with it and the one after, where a match could end
+        assertTrue(reader.search("giraffe", 10).isEmpty());
+        assertEquals(0, reader.getBlocksScanned());
+    }
+
+    @Test
+    public void searchFindsTextAcrossBlockBoundary() throws IOException {
+        writeRecords(0, RECORDS_PER_BLOCK - 2);
+        writeText(RECORDS_PER_BLOCK - 2, MldpSessionFile.TYPE_TX, "x", false);
+        writeText(RECORDS_PER_BLOCK - 1, MldpSessionFile.TYPE_RX, "nee", true);                     //Last record of the first block
+        writeText(RECORDS_PER_BLOCK, MldpSessionFile.TYPE_RX, "dle", false);                        //First record after its index record
+        writeRecords(RECORDS_PER_BLOCK + 1, 10);
+        writer.close();
+
+        final RandomAccessFile raw = new RandomAccessFile(file, "r");
+        raw.seek(HEADER_SIZE + RECORDS_PER_BLOCK * RECORD_SIZE + 2);
+        assertEquals(MldpSessionFile.TYPE_INDEX, raw.read());                                       //The index record really is between the two halves
+        raw.close();
+
+        reader = MldpSessionFile.open(file);
+        final List<MldpSessionFile.Match> matches = reader.search("needle", 10);
+        assertEquals(1, matches.size());
+        assertEquals(RECORDS_PER_BLOCK * 10L, matches.get(0).time);
+        assertFalse(matches.get(0).offset < HEADER_SIZE + RECORDS_PER_BLOCK * RECORD_SIZE);
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the MldpTransport calls the data path makes against MldpSimulatedPeripheral. The simulator runs on its own
+ * thread in real time, so the link is set up with short connection intervals and the checks wait for callbacks.
+ */
+public class MldpSimulatedPeripheralTest {
+
+    private static final long WAIT = 2000;                                                          //Milliseconds to wait for a callback before failing
+
+    // Records callbacks from the simulator thread
+    private static class Recorder implements MldpTransport.Callback {
+        final Semaphore connected = new Semaphore(0);
+        final Semaphore ready = new Semaphore(0);
+        final Semaphore disconnected = new Semaphore(0);
+        final Semaphore writesDone = new Semaphore(0);
+        final Semaphore notified = new Semaphore(0);
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+        @Override
+        public void onConnected() {
+            connected.release();
+        }
+
+        @Override
+        public void onReady() {
+            ready.release();
+        }
+
+        @Override
+        public void onDisconnected() {
+            disconnected.release();
+        }
+
+        @Override
+        public void onNotification(byte[] data) {
+            synchronized (received) {
+                received.write(data, 0, data.length);
+            }
+            notified.release(data.length);                                                          //One permit per byte received
+        }
+
+        @Override
+        public void onWriteComplete(boolean success) {
+            if (success) {
+                writesDone.release();
+            }
+        }
+
+        byte[] getReceived() {
+            synchronized (received) {
+                return received.toByteArray();
+            }
+        }
+    }
+
+    private final Recorder recorder = new Recorder();
+    private MldpSimulatedPeripheral peripheral;
+
+    @After
+    public void tearDown() {
+        if (peripheral != null) {
+            peripheral.close();
+        }
+    }
+
+    private static MldpSimulatedPeripheral.Config fastLink() {
+        final MldpSimulatedPeripheral.Config config = new MldpSimulatedPeripheral.Config();
+        config.connectionInterval = 5;
+        config.mtu = 23;                                                                            //20 byte packets so data is split
+        return config;
+    }
+
+    // Connect and discover as MldpBluetoothService does
+    private void open(MldpSimulatedPeripheral.Config config) throws InterruptedException {
+        peripheral = new MldpSimulatedPeripheral(config);
+        peripheral.setCallback(recorder);
+        assertTrue(peripheral.connect("00:00:00:00:00:00"));
+        assertTrue(recorder.connected.tryAcquire(WAIT, TimeUnit.MILLISECONDS));
+        assertFalse(peripheral.isReady());
+        assertTrue(peripheral.discover());
+        assertTrue(recorder.ready.tryAcquire(WAIT, TimeUnit.MILLISECONDS));
+        assertTrue(peripheral.isReady());
+    }
+
+    // Write in packets, retrying while the stack reports busy, and return the number of packets
+    private int writeAll(byte[] data) throws InterruptedException {
+        final int packetSize = MldpPacketizer.getPacketSize(peripheral.getMtu());
+        int packets = 0;
+        for (int offset = 0; offset < data.length; offset += packetSize) {
+            final byte[] packet = Arrays.copyOfRange(data, offset, Math.min(data.length, offset + packetSize));
+            while (!peripheral.write(packet)) {
+                Thread.sleep(1);
+            }
+            packets++;
+        }
+        return packets;
+    }
+
+    private static byte[] testData(int length) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    @Test
+    public void writeBeforeReadyFails() {
+        peripheral = new MldpSimulatedPeripheral(fastLink());
+        peripheral.setCallback(recorder);
+        assertFalse(peripheral.write(new byte[] {1}));
+    }
+
+    @Test
+    public void echoesWritesInOrder() throws InterruptedException {
+        open(fastLink());
+        final byte[] data = testData(500);
+        final int packets = writeAll(data);
+        assertTrue(recorder.writesDone.tryAcquire(packets, WAIT, TimeUnit.MILLISECONDS));
+        assertTrue(recorder.notified.tryAcquire(data.length, WAIT, TimeUnit.MILLISECONDS));
+        assertArrayEquals(data, recorder.getReceived());
+    }
+
+    @Test
+    public void oversizedWriteRejected() throws InterruptedException {
+        open(fastLink());
+        assertFalse(peripheral.write(new byte[MldpPacketizer.getPacketSize(peripheral.getMtu()) + 1]));
+    }
+
+    @Test
+    public void busyWhenWriteBufferFull() throws InterruptedException {
+        final MldpSimulatedPeripheral.Config config = fastLink();
+        config.writeBufferSize = 2;
+        config.connectionInterval = 300;                                                            //Slow enough that no event empties the buffer between writes
+        open(config);
+        assertTrue(peripheral.write(new byte[] {1}));
+        assertTrue(peripheral.write(new byte[] {2}));
+        assertFalse(peripheral.write(new byte[] {3}));
+    }
+
+    @Test
+    public void responderReplacesEcho() throws InterruptedException {
+        open(fastLink());
+        peripheral.setResponder(new MldpSimulatedPeripheral.Responder() {
+            @Override
+            public byte[] onData(byte[] data) {
+                return new byte[] {(byte) data.length};
+            }
+        });
+        writeAll(testData(5));
+        assertTrue(recorder.notified.tryAcquire(1, WAIT, TimeUnit.MILLISECONDS));
+        assertArrayEquals(new byte[] {5}, recorder.getReceived());
+    }
+
+    @Test
+    public void lostPacketsStillCompleteWrites() throws InterruptedException {
+        final MldpSimulatedPeripheral.Config config = fastLink();
+        config.lossRate = 1;
+        open(config);
+        final int packets = writeAll(testData(100));
+        assertTrue(recorder.writesDone.tryAcquire(packets, WAIT, TimeUnit.MILLISECONDS));
+        Thread.sleep(10 * config.connectionInterval);
+        assertEquals(0, recorder.getReceived().length);
+    }
+
+    @Test
+    public void disconnectEndsLink() throws InterruptedException {
+        open(fastLink());
+        peripheral.disconnect();
+        assertTrue(recorder.disconnected.tryAcquire(WAIT, TimeUnit.MILLISECONDS));
+        assertFalse(peripheral.isReady());
+        assertFalse(peripheral.write(new byte[] {1}));
+    }
+}
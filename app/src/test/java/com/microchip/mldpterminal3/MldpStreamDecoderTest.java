@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Feeds each MldpStreamDecoder with frames split in awkward places and checks what comes out.
+ */
+public class MldpStreamDecoderTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final List<byte[]> frames = new ArrayList<byte[]>();
+    private final MldpStreamDecoder.Listener listener = new MldpStreamDecoder.Listener() {
+        @Override
+        public void onFrame(byte[] frame) {
+            frames.add(frame);
+        }
+    };
+
+    // Decode one byte at a time, the worst case for a decoder that keeps state between calls
+    private void decodeBytes(MldpStreamDecoder decoder, byte[] data) {
+        for (int i = 0; i < data.length; i++) {
+            decoder.decode(data, i, 1, listener);
+        }
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] data = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            data[i] = (byte) values[i];
+        }
+        return data;
+    }
+
+    @Test
+    public void lineRemovesCarriageReturn() {
+        decodeBytes(new MldpStreamDecoder.Line((byte) '\n', 16), "ab\r\ncd\n".getBytes(ASCII));
+        assertEquals(2, frames.size());
+        assertArrayEquals("ab".getBytes(ASCII), frames.get(0));
+        assertArrayEquals("cd".getBytes(ASCII), frames.get(1));
+    }
+
+    @Test
+    public void lineTooLongIsDropped() {
+        MldpStreamDecoder decoder = new MldpStreamDecoder.Line((byte) '\n', 4);
+        final byte[] data = "abcdef\nxy\n".getBytes(ASCII);
+        decoder.decode(data, 0, data.length, listener);
+        assertEquals(1, frames.size());
+        assertArrayEquals("xy".getBytes(ASCII), frames.get(0));
+        assertEquals(1, decoder.getErrors());
+    }
+
+    @Test
+    public void lengthPrefixed() {
+        decodeBytes(new MldpStreamDecoder.LengthPrefixed(2, 16), bytes(0, 3, 'a', 'b', 'c', 0, 0, 0, 1, 'd'));
+        assertEquals(3, frames.size());
+        assertArrayEquals("abc".getBytes(ASCII), frames.get(0));
+        assertEquals(0, frames.get(1).length);                                                      //Empty frame
+        assertArrayEquals("d".getBytes(ASCII), frames.get(2));
+    }
+
+    @Test
+    public void slipUnescapes() {
+        decodeBytes(new MldpStreamDecoder.Slip(16), bytes(0xC0, 'a', 0xDB, 0xDC, 0xDB, 0xDD, 'b', 0xC0, 0xC0));
+        assertEquals(1, frames.size());                                                             //Empty frame between the ENDs is ignored
+        assertArrayEquals(bytes('a', 0xC0, 0xDB, 'b'), frames.get(0));
+    }
+
+    @Test
+    public void slipEscapedEndIsAnError() {
+        MldpStreamDecoder decoder = new MldpStreamDecoder.Slip(16);
+        decodeBytes(decoder, bytes('a', 0xDB, 0xC0, 'b', 0xC0));
+        assertEquals(1, frames.size());
+        assertArrayEquals(bytes('b'), frames.get(0));
+        assertEquals(1, decoder.getErrors());
+    }
+
+    @Test
+    public void cobsRestoresZeros() {
+        decodeBytes(new MldpStreamDecoder.Cobs(16), bytes(0x03, 0x11, 0x22, 0x02, 0x33, 0x00, 0x01, 0x00));
+        assertEquals(2, frames.size());
+        assertArrayEquals(bytes(0x11, 0x22, 0x00, 0x33), frames.get(0));
+        assertEquals(0, frames.get(1).length);
+    }
+
+    @Test
+    public void cobsFullBlockHasNoZero() {
+        byte[] data = new byte[254];
+        Arrays.fill(data, (byte) 0x01);
+        byte[] encoded = new byte[257];
+        encoded[0] = (byte) 0xFF;                                                                   //254 data bytes and no zero after them
+        System.arraycopy(data, 0, encoded, 1, data.length);
+        encoded[255] = 0x01;
+        encoded[256] = 0x00;
+        MldpStreamDecoder decoder = new MldpStreamDecoder.Cobs(512);
+        decoder.decode(encoded, 0, encoded.length, listener);
+        assertEquals(1, frames.size());
+        assertArrayEquals(data, frames.get(0));
+    }
+
+    @Test
+    public void cobsBlockCutShortIsAnError() {
+        MldpStreamDecoder decoder = new MldpStreamDecoder.Cobs(16);
+        decodeBytes(decoder, bytes(0x03, 0x11, 0x00, 0x02, 0x44, 0x00));
+        assertEquals(1, frames.size());
+        assertArrayEquals(bytes(0x44), frames.get(0));
+        assertEquals(1, decoder.getErrors());
+    }
+}
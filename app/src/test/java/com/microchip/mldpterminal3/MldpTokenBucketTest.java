@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the delays MldpTokenBucket asks for. The bucket runs on System.nanoTime() so the checks allow some slack.
+ */
+public class MldpTokenBucketTest {
+
+    private final MldpTokenBucket bucket = new MldpTokenBucket();
+
+    @Test
+    public void noLimitNeverWaits() {
+        bucket.configure(0, 100);
+        assertFalse(bucket.isEnabled());
+        bucket.consume(100000);
+        assertEquals(0, bucket.getDelay(100000));
+    }
+
+    @Test
+    public void fullBucketSendsBurstAtOnce() {
+        bucket.configure(1000, 100);
+        assertTrue(bucket.isEnabled());
+        assertEquals(0, bucket.getDelay(100));
+    }
+
+    @Test
+    public void emptyBucketWaitsForRefill() {
+        bucket.configure(1000, 100);
+        bucket.consume(100);
+        final long delay = bucket.getDelay(50);                                                     //50 bytes at 1000 bytes/s
+        assertTrue("delay " + delay, delay >= 40 && delay <= 50);
+    }
+
+    @Test
+    public void largePacketOnlyNeedsFullBucket() {
+        bucket.configure(1000, 100);
+        bucket.consume(100);
+        final long delay = bucket.getDelay(500);                                                    //Waits for the burst size, not 500 bytes
+        assertTrue("delay " + delay, delay >= 90 && delay <= 100);
+    }
+
+    @Test
+    public void refillsOverTime() throws InterruptedException {
+        bucket.configure(1000, 100);
+        bucket.consume(100);
+        Thread.sleep(60);
+        assertEquals(0, bucket.getDelay(50));
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Feeds text to MldpTriggerEngine and checks which triggers fire, in order. Holdoff runs on System.nanoTime() so that
+ * check sleeps.
+ */
+public class MldpTriggerEngineTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> fired = new ArrayList<String>();
+
+    private MldpTriggerEngine engine(long holdoff, String... patterns) {
+        final List<MldpTriggerEngine.Trigger> triggers = new ArrayList<MldpTriggerEngine.Trigger>();
+        for (String pattern : patterns) {
+            triggers.add(new MldpTriggerEngine.Trigger(pattern, null, null, null, holdoff));
+        }
+        return new MldpTriggerEngine(triggers, new MldpTriggerEngine.Listener() {
+            @Override
+            public void onTrigger(MldpTriggerEngine.Trigger trigger) {
+                fired.add(trigger.getMatch());
+            }
+        });
+    }
+
+    private static void feed(MldpTriggerEngine engine, String text) {
+        final byte[] data = ("  " + text).getBytes(ASCII);                                         //Offset into the array as the service passes it
+        engine.process(data, 2, data.length - 2);
+    }
+
+    @Test
+    public void failLinksFindPatternsInsideOthers() {
+        final MldpTriggerEngine engine = engine(0, "he", "she", "his", "hers");
+        feed(engine, "ushers");
+        assertEquals(Arrays.asList("she", "he", "hers"), fired);                                    //"he" ends with "she" through its fail link
+    }
+
+    @Test
+    public void sharedPrefixesShareStates() {
+        assertEquals(1 + 3 + 1, engine(0, "abc", "abd").getStateCount());
+    }
+
+    @Test
+    public void patternSplitAcrossNotifications() {
+        final MldpTriggerEngine engine = engine(0, "CMD>");
+        feed(engine, "xxC");
+        feed(engine, "M");
+        assertEquals(0, fired.size());
+        feed(engine, "D> ");
+        assertEquals(Arrays.asList("CMD>"), fired);
+    }
+
+    @Test
+    public void overlappingMatchesAllFire() {
+        final MldpTriggerEngine engine = engine(0, "aa", "abab");
+        feed(engine, "aaaa");
+        assertEquals(3, fired.size());
+        fired.clear();
+        feed(engine, "bababab");                                                                    //Follows the last "a", so "abab" is found three times
+        assertEquals(Arrays.asList("abab", "abab", "abab"), fired);
+    }
+
+    @Test
+    public void resetForgetsPartialMatch() {
+        final MldpTriggerEngine engine = engine(0, "CMD>");
+        feed(engine, "CM");
+        engine.reset();
+        feed(engine, "D>");
+        assertEquals(0, fired.size());
+    }
+
+    @Test
+    public void holdoffSuppressesRepeats() throws InterruptedException {
+        final MldpTriggerEngine engine = engine(50, "OK");
+        feed(engine, "OK OK");
+        assertEquals(1, fired.size());
+        Thread.sleep(70);
+        feed(engine, "OK");
+        assertEquals(2, fired.size());
+    }
+
+    @Test
+    public void loadReadsSettingsAndEscapes() throws IOException {
+        final File file = folder.newFile(MldpTriggerEngine.TRIGGER_FILE_NAME);
+        final FileWriter writer = new FileWriter(file);
+        writer.write("# Prompts\n\nmatch=CMD> \nreply=status\\r\nalert=Prompt seen\nmark=prompt\nholdoff=1000\nmatch=ERR\n");
+        writer.close();
+        final List<MldpTriggerEngine.Trigger> triggers = MldpTriggerEngine.Trigger.load(file);
+        assertEquals(2, triggers.size());
+        assertEquals("CMD> ", triggers.get(0).getMatch());                                          //Trailing space kept
+        assertEquals("status\r", triggers.get(0).getReply());
+        assertEquals("Prompt seen", triggers.get(0).getAlert());
+        assertEquals("prompt", triggers.get(0).getMark());
+        assertEquals("ERR", triggers.get(1).getMatch());
+        assertNull(triggers.get(1).getReply());
+    }
+
+    @Test(expected = IOException.class)
+    public void loadRejectsSettingBeforeMatch() throws IOException {
+        final File file = folder.newFile(MldpTriggerEngine.TRIGGER_FILE_NAME);
+        final FileWriter writer = new FileWriter(file);
+        writer.write("reply=status\n");
+        writer.close();
+        MldpTriggerEngine.Trigger.load(file);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Repeatable data for the benchmarks, shaped like what a peripheral typically sends.
+ */
+final class BenchmarkData {
+
+    final static int NOTIFICATION_SIZE = 244;                                                       //Data in one notification with a 247 byte MTU
+    private final static int FRAME_COUNT = 1024;
+    private final static int BINARY_FRAME_SIZE = 32;
+
+    private BenchmarkData() {
+    }
+
+    // Lines of sensor readings as a terminal would show them
+    static byte[] terminalText(int size) {
+        final StringBuilder text = new StringBuilder(size + 64);
+        final Random random = new Random(1);
+        for (int line = 0; text.length() < size; line++) {
+            text.append(String.format("%05d T=%.1fC RH=%d%% V=%.2f\r\n", line, 20 + random.nextInt(100) / 10.0,
+                    30 + random.nextInt(40), 3 + random.nextInt(40) / 100.0));
+        }
+        return Arrays.copyOf(text.toString().getBytes(), size);
+    }
+
+    // Stream of frames encoded for the given decoder, split into notifications
+    static List<byte[]> encodedStream(String decoder) {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final Random random = new Random(1);
+        if ("line".equals(decoder)) {
+            final byte[] text = terminalText(FRAME_COUNT * 28);
+            stream.write(text, 0, text.length);
+        }
+        else {
+            final byte[] payload = new byte[BINARY_FRAME_SIZE];
+            for (int i = 0; i < FRAME_COUNT; i++) {
+                random.nextBytes(payload);
+                if ("lengthPrefixed".equals(decoder)) {
+                    stream.write(payload.length >> 8);
+                    stream.write(payload.length);
+                    stream.write(payload, 0, payload.length);
+                }
+                else if ("slip".equals(decoder)) {
+                    writeSlip(stream, payload);
+                }
+                else if ("cobs".equals(decoder)) {
+                    writeCobs(stream, payload);
+                }
+                else {
+                    throw new IllegalArgumentException("Unknown decoder " + decoder);
+                }
+            }
+        }
+        return notifications(stream.toByteArray());
+    }
+
+    static MldpStreamDecoder newDecoder(String decoder) {
+        if ("line".equals(decoder)) {
+            return new MldpStreamDecoder.Line((byte) '\n', 1024);
+        }
+        if ("lengthPrefixed".equals(decoder)) {
+            return new MldpStreamDecoder.LengthPrefixed(2, 1024);
+        }
+        if ("slip".equals(decoder)) {
+            return new MldpStreamDecoder.Slip(1024);
+        }
+        return new MldpStreamDecoder.Cobs(1024);
+    }
+
+    static List<byte[]> notifications(byte[] stream) {
+        final List<byte[]> notifications = new ArrayList<byte[]>();
+        for (int i = 0; i < stream.length; i += NOTIFICATION_SIZE) {
+            notifications.add(Arrays.copyOfRange(stream, i, Math.min(stream.length, i + NOTIFICATION_SIZE)));
+        }
+        return notifications;
+    }
+
+    private static void writeSlip(ByteArrayOutputStream stream, byte[] payload) {
+        for (byte b : payload) {
+            if (b == (byte) 0xC0) {
+                stream.write(0xDB);
+                stream.write(0xDC);
+            }
+            else if (b == (byte) 0xDB) {
+                stream.write(0xDB);
+                stream.write(0xDD);
+            }
+            else {
+                stream.write(b);
+            }
+        }
+        stream.write(0xC0);
+    }
+
+    private static void writeCobs(ByteArrayOutputStream stream, byte[] payload) {
+        final byte[] block = new byte[255];
+        int length = 0;
+        for (byte b : payload) {
+            if (b == 0) {
+                stream.write(length + 1);
+                stream.write(block, 0, length);
+                length = 0;
+                continue;
+            }
+            block[length++] = b;
+            if (length == 254) {
+                stream.write(0xff);
+                stream.write(block, 0, length);
+                length = 0;
+            }
+        }
+        stream.write(length + 1);
+        stream.write(block, 0, length);
+        stream.write(0);
+    }
+}
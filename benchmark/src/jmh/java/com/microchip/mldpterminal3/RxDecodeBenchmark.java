@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+
+/**
+ * Splitting received notifications into frames with each MldpStreamDecoder, one notification per operation.
+ */
+@State(Scope.Thread)
+public class RxDecodeBenchmark {
+
+    @Param({"line", "lengthPrefixed", "slip", "cobs"})
+    public String decoder;
+
+    private List<byte[]> notifications;
+    private MldpStreamDecoder streamDecoder;
+    private MldpStreamDecoder.Listener listener;
+    private int next;
+
+    @Setup
+    public void setup(final Blackhole blackhole) {
+        notifications = BenchmarkData.encodedStream(decoder);                                       //Ends on a frame boundary so it can be replayed
+        streamDecoder = BenchmarkData.newDecoder(decoder);
+        listener = new MldpStreamDecoder.Listener() {
+            @Override
+            public void onFrame(byte[] frame) {
+                blackhole.consume(frame);
+            }
+        };
+    }
+
+    @Benchmark
+    public void decode() {
+        final byte[] notification = notifications.get(next);
+        next = (next + 1) % notifications.size();
+        streamDecoder.decode(notification, 0, notification.length, listener);
+    }
+}
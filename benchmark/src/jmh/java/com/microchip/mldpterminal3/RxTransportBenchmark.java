@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Work done on each received notification before it reaches the decoders: the framed transport, decompression and
+ * the UTF-8 conversion for the ACTION_BLE_DATA_RECEIVED broadcast. One notification per operation.
+ */
+@State(Scope.Thread)
+public class RxTransportBenchmark {
+
+    private final static int SEQUENCE_COUNT = 256;                                                  //Frames in a full cycle of sequence numbers
+
+    private List<byte[]> framedNotifications;
+    private MldpFrameTransport receiver;
+    private MldpCompression sender, decompressor;
+    private byte[] text;
+    private int next;
+
+    @Setup
+    public void setup(final Blackhole blackhole) {
+        framedNotifications = BenchmarkData.notifications(framedStream());
+        receiver = new MldpFrameTransport(new MldpFrameTransport.Listener() {
+            @Override
+            public void sendFrame(byte[] frame) {                                                   //ACKs have nowhere to go
+                blackhole.consume(frame);
+            }
+
+            @Override
+            public void onPayload(byte[] payload) {
+                blackhole.consume(payload);
+            }
+        }, MldpFrameTransport.DEFAULT_WINDOW, MldpFrameTransport.DEFAULT_PAYLOAD_SIZE);
+        sender = new MldpCompression();                                                             //Both ends after the hello exchange
+        decompressor = new MldpCompression();
+        sender.enable(10);
+        decompressor.enable(10);
+        sender.decode(decompressor.getHello());
+        decompressor.decode(sender.getHello());
+        text = BenchmarkData.terminalText(BenchmarkData.NOTIFICATION_SIZE);
+    }
+
+    @Benchmark
+    public void framed() {
+        receiver.onReceived(framedNotifications.get(next), 0);
+        next = (next + 1) % framedNotifications.size();
+    }
+
+    @Benchmark
+    public byte[] compressedRoundTrip() {                                                           //Decoding needs the encoder's history, so both ends run
+        return decompressor.decode(sender.encode(text));
+    }
+
+    @Benchmark
+    public String utf8() throws UnsupportedEncodingException {
+        return new String(text, "UTF-8");
+    }
+
+    // One full cycle of data frames as a sender writes them, so the stream can be replayed with the sequence numbers in order
+    private static byte[] framedStream() {
+        final LinkedList<byte[]> dataFrames = new LinkedList<byte[]>();
+        final LinkedList<byte[]> ackFrames = new LinkedList<byte[]>();
+        final MldpFrameTransport frameSender = new MldpFrameTransport(new MldpFrameTransport.Listener() {
+            @Override
+            public void sendFrame(byte[] frame) {
+                dataFrames.add(frame);
+            }
+
+            @Override
+            public void onPayload(byte[] payload) {
+            }
+        }, MldpFrameTransport.DEFAULT_WINDOW, MldpFrameTransport.DEFAULT_PAYLOAD_SIZE);
+        final MldpFrameTransport frameReceiver = new MldpFrameTransport(new MldpFrameTransport.Listener() {
+            @Override
+            public void sendFrame(byte[] frame) {
+                ackFrames.add(frame);
+            }
+
+            @Override
+            public void onPayload(byte[] payload) {
+            }
+        }, MldpFrameTransport.DEFAULT_WINDOW, MldpFrameTransport.DEFAULT_PAYLOAD_SIZE);
+        frameSender.send(BenchmarkData.terminalText(SEQUENCE_COUNT * MldpFrameTransport.DEFAULT_PAYLOAD_SIZE), 0);
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        while (!dataFrames.isEmpty()) {                                                             //Pass frames and ACKs between the two ends until all are sent
+            final byte[] frame = dataFrames.poll();
+            stream.write(frame, 0, frame.length);
+            frameReceiver.onReceived(frame, 0);
+            while (!ackFrames.isEmpty()) {
+                frameSender.onReceived(ackFrames.poll(), 0);
+            }
+        }
+        return stream.toByteArray();
+    }
+}
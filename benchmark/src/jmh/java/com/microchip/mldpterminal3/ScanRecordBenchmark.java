@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.UUID;
+
+/**
+ * Advertising data walk done for every scan result on Android 4.x and for every device seen while provisioning.
+ */
+@State(Scope.Benchmark)
+public class ScanRecordBenchmark {
+
+    private final static UUID UUID_MLDP_PRIVATE_SERVICE = UUID.fromString("00035b03-58e6-07dd-021a-08123a000300");
+    private final static int SCAN_RECORD_SIZE = 62;                                                 //Advertising packet and scan response as Android reports them
+
+    @Param({"mldp", "other"})
+    public String advertiser;
+
+    private byte[] scanRecord;
+
+    @Setup
+    public void setup() {
+        final ByteBuffer record = ByteBuffer.allocate(SCAN_RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        record.put(new byte[] {2, 0x01, 0x06});                                                     //Flags
+        if ("mldp".equals(advertiser)) {                                                            //RN4020 advertising the MLDP private service
+            record.put(new byte[] {17, 0x07});
+            record.putLong(UUID_MLDP_PRIVATE_SERVICE.getLeastSignificantBits());
+            record.putLong(UUID_MLDP_PRIVATE_SERVICE.getMostSignificantBits());
+        }
+        else {                                                                                      //Some other device with a 16-bit service and manufacturer data
+            record.put(new byte[] {3, 0x03, 0x0f, 0x18});
+            record.put(new byte[] {9, (byte) 0xff, 0x4c, 0x00, 0x10, 0x05, 0x01, 0x18, 0x00, 0x00});
+        }
+        final byte[] name = "RN4020_1234".getBytes();
+        record.put((byte) (name.length + 1)).put((byte) 0x09).put(name);                            //Complete local name, the rest stays zero padding
+        scanRecord = record.array();
+    }
+
+    @Benchmark
+    public boolean hasServiceUuid() {
+        return MldpScanRecord.hasServiceUuid(scanRecord, UUID_MLDP_PRIVATE_SERVICE);
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Received text added to the terminal display, one notification per operation. The activity appends each broadcast
+ * string to the incoming TextView. The TextView's Editable and layout cannot run outside Android, so this measures the
+ * string conversion and accumulation with a StringBuilder holding the given amount of earlier text. Layout cost, which
+ * grows with the text in the view, has to be measured on a device.
+ */
+@State(Scope.Thread)
+public class TextAccumulationBenchmark {
+
+    @Param({"0", "65536"})
+    public int existingText;
+
+    private final static int ACCUMULATE_LIMIT = 1 << 20;                                            //Characters added before starting again
+
+    private byte[] notification;
+    private StringBuilder display;
+
+    @Setup
+    public void setup() {
+        notification = BenchmarkData.terminalText(BenchmarkData.NOTIFICATION_SIZE);
+        display = new StringBuilder(new String(BenchmarkData.terminalText(existingText)));
+    }
+
+    @Benchmark
+    public int append() throws UnsupportedEncodingException {
+        display.append(new String(notification, "UTF-8"));                                         //As deliverData() and then the activity do
+        if (display.length() > existingText + ACCUMULATE_LIMIT) {
+            display.setLength(existingText);
+        }
+        return display.length();
+    }
+}
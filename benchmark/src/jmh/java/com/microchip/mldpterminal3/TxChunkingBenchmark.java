@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.LinkedList;
+
+/**
+ * Work done by writeMLDP() before the transmit pump: optional compression, then splitting into packets that fit the
+ * MTU and queueing them. The queue is drained in each operation as the pump would.
+ */
+@State(Scope.Thread)
+public class TxChunkingBenchmark {
+
+    @Param({"23", "247"})
+    public int mtu;
+
+    @Param({"20", "1024"})
+    public int size;
+
+    private byte[] data;
+    private final LinkedList<byte[]> txQueue = new LinkedList<byte[]>();
+    private MldpCompression compression;
+
+    @Setup
+    public void setup() {
+        data = BenchmarkData.terminalText(size);
+        compression = new MldpCompression();                                                        //Compression after the hello exchange
+        compression.enable(10);
+        final MldpCompression peer = new MldpCompression();
+        peer.enable(10);
+        compression.decode(peer.getHello());
+    }
+
+    @Benchmark
+    public int split() {
+        MldpPacketizer.split(data, mtu, txQueue);
+        return drain();
+    }
+
+    @Benchmark
+    public int compressAndSplit() {
+        MldpPacketizer.split(compression.encode(data), mtu, txQueue);
+        return drain();
+    }
+
+    private int drain() {
+        int bytes = 0;
+        byte[] packet;
+        while ((packet = txQueue.poll()) != null) {
+            bytes += packet.length;
+        }
+        return bytes;
+    }
+}